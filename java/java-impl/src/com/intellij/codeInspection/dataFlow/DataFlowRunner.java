@@ -37,6 +37,7 @@ import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.Pair;
 import com.intellij.psi.*;
 import com.intellij.psi.util.PsiUtil;
+import gnu.trove.THashMap;
 import gnu.trove.THashSet;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -56,6 +57,15 @@ public class DataFlowRunner {
   // is executed more than this limit times.
   public static final int MAX_STATES_PER_BRANCH = 300;
 
+  // States are processed in the order of their instructions, so that the states coming to a join point from different branches
+  // are likely to meet in the queue and equal ones are processed once.
+  private static final Comparator<DfaInstructionState> INSTRUCTION_ORDER = new Comparator<DfaInstructionState>() {
+    @Override
+    public int compare(DfaInstructionState o1, DfaInstructionState o2) {
+      return o1.getInstruction().getIndex() - o2.getInstruction().getIndex();
+    }
+  };
+
   public Instruction getInstruction(int index) {
     return myInstructions[index];
   }
@@ -116,9 +126,11 @@ public class DataFlowRunner {
         return RunnerResult.TOO_COMPLEX;
       }
 
-      final ArrayList<DfaInstructionState> queue = new ArrayList<DfaInstructionState>();
+      final PriorityQueue<DfaInstructionState> queue = new PriorityQueue<DfaInstructionState>(16, INSTRUCTION_ORDER);
+      // memory states waiting in the queue for every instruction, they aren't modified until they leave the queue
+      final Map<Instruction, Set<DfaMemoryState>> queuedStates = new THashMap<Instruction, Set<DfaMemoryState>>();
       for (final DfaMemoryState initialState : initialStates) {
-        queue.add(new DfaInstructionState(myInstructions[0], initialState));
+        addToQueue(new DfaInstructionState(myInstructions[0], initialState), queue, queuedStates);
       }
 
       long timeLimit = ourTimeLimit;
@@ -132,12 +144,13 @@ public class DataFlowRunner {
         }
         ProgressManager.checkCanceled();
 
-        DfaInstructionState instructionState = queue.remove(0);
+        DfaInstructionState instructionState = queue.poll();
         if (LOG.isDebugEnabled()) {
           LOG.debug(instructionState.toString());
         }
 
         Instruction instruction = instructionState.getInstruction();
+        queuedStates.get(instruction).remove(instructionState.getMemoryState());
         long distance = instructionState.getDistanceFromStart();
 
         if (instruction instanceof BranchingInstruction) {
@@ -154,7 +167,7 @@ public class DataFlowRunner {
             Instruction nextInstruction = state.getInstruction();
             if ((!(nextInstruction instanceof BranchingInstruction) || !nextInstruction.isMemoryStateProcessed(state.getMemoryState())) && instruction.getIndex() < endOffset) {
               state.setDistanceFromStart(distance + 1);
-              queue.add(state);
+              addToQueue(state, queue, queuedStates);
             }
           }
         }
@@ -175,6 +188,22 @@ public class DataFlowRunner {
     }
   }
 
+  /**
+   * Adds the given state to the queue unless an equal memory state is already waiting there for the same instruction.
+   */
+  private static void addToQueue(@NotNull DfaInstructionState state,
+                                 @NotNull Queue<DfaInstructionState> queue,
+                                 @NotNull Map<Instruction, Set<DfaMemoryState>> queuedStates) {
+    Set<DfaMemoryState> states = queuedStates.get(state.getInstruction());
+    if (states == null) {
+      states = new THashSet<DfaMemoryState>();
+      queuedStates.put(state.getInstruction(), states);
+    }
+    if (states.add(state.getMemoryState())) {
+      queue.add(state);
+    }
+  }
+
   protected ControlFlowAnalyzer createControlFlowAnalyzer() {
     return new ControlFlowAnalyzer(myValueFactory);
   }
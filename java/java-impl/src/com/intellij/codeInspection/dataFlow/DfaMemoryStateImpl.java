@@ -177,8 +177,19 @@ public class DfaMemoryStateImpl implements DfaMemoryState {
   }
 
   public int hashCode() {
-    return 0;
-    //return myEqClasses.hashCode() + myStack.hashCode() + myVariableStates.hashCode();
+    int result = myStateSize;
+    result = 31 * result + myDistinctClasses.size();
+    result = 31 * result + myStack.hashCode();
+    result = 31 * result + myOffsetStack.size();
+    result = 31 * result + myVariableStates.hashCode();
+    // equivalence classes are compared regardless of their order, see equals()
+    int classesHash = 0;
+    for (SortedIntSet aClass : myEqClasses) {
+      if (aClass != null) {
+        classesHash += aClass.hashCode();
+      }
+    }
+    return 31 * result + classesHash;
   }
 
   private void appendClass(StringBuffer buf, int aClassIndex) {
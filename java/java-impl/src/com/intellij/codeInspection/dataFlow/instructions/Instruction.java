@@ -28,16 +28,16 @@ import com.intellij.codeInspection.dataFlow.DataFlowRunner;
 import com.intellij.codeInspection.dataFlow.DfaInstructionState;
 import com.intellij.codeInspection.dataFlow.DfaMemoryState;
 import com.intellij.codeInspection.dataFlow.InstructionVisitor;
-import com.intellij.openapi.progress.ProgressManager;
+import gnu.trove.THashSet;
 
-import java.util.ArrayList;
+import java.util.Set;
 
 public abstract class Instruction {
   private int myIndex;
-  private final ArrayList<DfaMemoryState> myProcessedStates;
+  private final Set<DfaMemoryState> myProcessedStates;
 
   protected Instruction() {
-    myProcessedStates = new ArrayList<DfaMemoryState>();
+    myProcessedStates = new THashSet<DfaMemoryState>();
   }
 
   protected final DfaInstructionState[] nextInstruction(DataFlowRunner runner, DfaMemoryState stateBefore) {
@@ -47,16 +47,14 @@ public abstract class Instruction {
   public abstract DfaInstructionState[] accept(DataFlowRunner runner, DfaMemoryState stateBefore, InstructionVisitor visitor);
 
   public boolean isMemoryStateProcessed(DfaMemoryState dfaMemState) {
-    for (DfaMemoryState state : myProcessedStates) {
-      ProgressManager.checkCanceled();
-      if (dfaMemState.equals(state)) {
-        return true;
-      }
-    }
-
-    return false;
+    return myProcessedStates.contains(dfaMemState);
   }
 
+  /**
+   * Remembers the given state as processed by this instruction, equal states are stored once.
+   *
+   * @return false if the instruction has already processed too many different states
+   */
   public boolean setMemoryStateProcessed(DfaMemoryState dfaMemState) {
     if (myProcessedStates.size() > DataFlowRunner.MAX_STATES_PER_BRANCH) return false;
     myProcessedStates.add(dfaMemState);
@@ -26,22 +26,34 @@ package com.intellij.psi.controlFlow;
 
 import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Comparing;
 import com.intellij.openapi.util.NotNullLazyKey;
+import com.intellij.psi.PsiCodeBlock;
 import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.PsiVariable;
 import com.intellij.psi.impl.PsiManagerEx;
+import com.intellij.psi.util.PsiModificationTracker;
+import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.containers.ConcurrentWeakHashMap;
 import com.intellij.util.containers.ContainerUtil;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
 
 import java.lang.ref.Reference;
 import java.lang.ref.SoftReference;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class ControlFlowFactory {
   // psiElements hold weakly, controlFlows softly
   private final ConcurrentMap<PsiElement, Reference<CopyOnWriteArrayList<ControlFlowContext>>> cachedFlows = new ConcurrentWeakHashMap<PsiElement, Reference<CopyOnWriteArrayList<ControlFlowContext>>>();
+  // flows of method bodies survive PSI changes, they are reused while the body text and all declarations outside code blocks are the same
+  private final ConcurrentMap<PsiElement, Reference<CopyOnWriteArrayList<ControlFlowContext>>> cachedMethodBodyFlows = new ConcurrentWeakHashMap<PsiElement, Reference<CopyOnWriteArrayList<ControlFlowContext>>>();
+  private final AtomicLong myCacheHits = new AtomicLong();
+  private final AtomicLong myCacheMisses = new AtomicLong();
 
   private static final NotNullLazyKey<ControlFlowFactory, Project> INSTANCE_KEY = ServiceManager.createLazyKey(ControlFlowFactory.class);
 
@@ -68,16 +80,41 @@ public class ControlFlowFactory {
     registerControlFlow(codeFragment, flow, evaluateConstantIfConfition, policy);
   }
 
+  /**
+   * @return number of control flow requests served from the cache
+   */
+  public long getCacheHitCount() {
+    return myCacheHits.get();
+  }
+
+  /**
+   * @return number of control flow requests that required building the control flow
+   */
+  public long getCacheMissCount() {
+    return myCacheMisses.get();
+  }
+
   private static class ControlFlowContext {
     private final ControlFlowPolicy policy;
     private final boolean evaluateConstantIfCondition;
     private final long modificationCount;
+    // text of the method body the flow is built for, null for other elements
+    @Nullable private final String text;
     private final ControlFlow controlFlow;
+    // PSI modification count the method body has been checked to have the same text and valid flow elements at
+    private volatile long checkedModificationCount;
 
-    private ControlFlowContext(boolean evaluateConstantIfCondition, @NotNull ControlFlowPolicy policy, long modificationCount, @NotNull ControlFlow controlFlow) {
+    private ControlFlowContext(boolean evaluateConstantIfCondition,
+                               @NotNull ControlFlowPolicy policy,
+                               long modificationCount,
+                               @Nullable String text,
+                               long checkedModificationCount,
+                               @NotNull ControlFlow controlFlow) {
       this.evaluateConstantIfCondition = evaluateConstantIfCondition;
       this.policy = policy;
       this.modificationCount = modificationCount;
+      this.text = text;
+      this.checkedModificationCount = checkedModificationCount;
       this.controlFlow = controlFlow;
     }
 
@@ -94,6 +131,7 @@ public class ControlFlowFactory {
       int result = policy.hashCode();
       result = 31 * result + (evaluateConstantIfCondition ? 1 : 0);
       result = 31 * result + (int)(modificationCount ^ (modificationCount >>> 32));
+      result = 31 * result + (text == null ? 0 : text.hashCode());
       return result;
     }
 
@@ -108,7 +146,19 @@ public class ControlFlowFactory {
     }
 
     private boolean isFor(@NotNull ControlFlowContext that) {
-      return isFor(that.policy, that.evaluateConstantIfCondition, that.modificationCount);
+      return isFor(that.policy, that.evaluateConstantIfCondition, that.modificationCount) && Comparing.equal(text, that.text);
+    }
+
+    /**
+     * Checks that the method body is the same as the flow has been built for. The check is made once per PSI modification count,
+     * so, repeated requests without PSI changes in between cost nothing.
+     */
+    private boolean isUpToDate(@NotNull PsiElement methodBody, long psiModificationCount) {
+      if (checkedModificationCount == psiModificationCount) return true;
+      assert text != null;
+      if (!methodBody.textMatches(text) || !ControlFlowFactory.isUpToDate(controlFlow)) return false;
+      checkedModificationCount = psiModificationCount;
+      return true;
     }
   }
 
@@ -127,38 +177,81 @@ public class ControlFlowFactory {
                                     @NotNull ControlFlowPolicy policy,
                                     boolean enableShortCircuit,
                                     boolean evaluateConstantIfCondition) throws AnalysisCanceledException {
-    final long modificationCount = element.getManager().getModificationTracker().getModificationCount();
-    CopyOnWriteArrayList<ControlFlowContext> cached = getOrCreateCachedFlowsForElement(element);
+    final boolean methodBody = isMethodBody(element);
+    final PsiModificationTracker tracker = element.getManager().getModificationTracker();
+    final long psiModificationCount = tracker.getModificationCount();
+    final long modificationCount = methodBody ? tracker.getOutOfCodeBlockModificationCount() : psiModificationCount;
+    CopyOnWriteArrayList<ControlFlowContext> cached = getOrCreateCachedFlowsForElement(element, methodBody);
     for (ControlFlowContext context : cached) {
-      if (context.isFor(policy, evaluateConstantIfCondition,modificationCount)) return context.controlFlow;
+      if (context.isFor(policy, evaluateConstantIfCondition, modificationCount) &&
+          (!methodBody || context.isUpToDate(element, psiModificationCount))) {
+        myCacheHits.incrementAndGet();
+        return context.controlFlow;
+      }
     }
+    myCacheMisses.incrementAndGet();
     ControlFlow controlFlow = new ControlFlowAnalyzer(element, policy, enableShortCircuit, evaluateConstantIfCondition).buildControlFlow();
-    ControlFlowContext context = createContext(evaluateConstantIfCondition, policy, controlFlow, modificationCount);
+    ControlFlowContext context = new ControlFlowContext(evaluateConstantIfCondition, policy, modificationCount,
+                                                        methodBody ? element.getText() : null, psiModificationCount, controlFlow);
+    if (methodBody) {
+      // drop flows built for the previous versions of the body
+      for (ControlFlowContext old : cached) {
+        if (old.modificationCount != modificationCount || !old.isUpToDate(element, psiModificationCount)) {
+          cached.remove(old);
+        }
+      }
+    }
     cached.addIfAbsent(context);
     return controlFlow;
   }
 
-  @NotNull
-  private static ControlFlowContext createContext(final boolean evaluateConstantIfCondition,
-                                                  @NotNull ControlFlowPolicy policy,
-                                                  @NotNull ControlFlow controlFlow,
-                                                  final long modificationCount) {
-    return new ControlFlowContext(evaluateConstantIfCondition, policy, modificationCount,controlFlow);
+  /**
+   * Control flow of a method body depends on the body itself and on the declarations it refers to. The latter may change
+   * only together with out of code block modification count, changes in bodies of other methods don't affect it.
+   * Methods of local and anonymous classes are excluded: they may refer to locals of the enclosing code block,
+   * which change without out of code block modification.
+   */
+  private static boolean isMethodBody(@NotNull PsiElement element) {
+    if (!(element instanceof PsiCodeBlock)) return false;
+    PsiElement method = element.getParent();
+    return method instanceof PsiMethod && PsiTreeUtil.getParentOfType(method, PsiCodeBlock.class) == null;
+  }
+
+  /**
+   * Checks that the elements and variables the control flow refers to haven't been replaced or deleted since the flow has been built.
+   */
+  private static boolean isUpToDate(@NotNull ControlFlow flow) {
+    for (int i = 0; i < flow.getSize(); i++) {
+      PsiElement element = flow.getElement(i);
+      if (element != null && !element.isValid()) return false;
+    }
+    for (Instruction instruction : flow.getInstructions()) {
+      PsiVariable variable = instruction instanceof ReadVariableInstruction ? ((ReadVariableInstruction)instruction).variable :
+                             instruction instanceof WriteVariableInstruction ? ((WriteVariableInstruction)instruction).variable : null;
+      if (variable != null && !variable.isValid()) return false;
+    }
+    return true;
   }
 
   private void registerControlFlow(@NotNull PsiElement element,
                                    @NotNull ControlFlow flow,
                                    boolean evaluateConstantIfCondition,
                                    @NotNull ControlFlowPolicy policy) {
-    final long modificationCount = element.getManager().getModificationTracker().getModificationCount();
-    ControlFlowContext controlFlowContext = createContext(evaluateConstantIfCondition, policy, flow, modificationCount);
+    final boolean methodBody = isMethodBody(element);
+    final PsiModificationTracker tracker = element.getManager().getModificationTracker();
+    final long psiModificationCount = tracker.getModificationCount();
+    final long modificationCount = methodBody ? tracker.getOutOfCodeBlockModificationCount() : psiModificationCount;
+    ControlFlowContext controlFlowContext = new ControlFlowContext(evaluateConstantIfCondition, policy, modificationCount,
+                                                                   methodBody ? element.getText() : null, psiModificationCount, flow);
 
-    CopyOnWriteArrayList<ControlFlowContext> cached = getOrCreateCachedFlowsForElement(element);
+    CopyOnWriteArrayList<ControlFlowContext> cached = getOrCreateCachedFlowsForElement(element, methodBody);
     cached.addIfAbsent(controlFlowContext);
   }
 
   @NotNull
-  private CopyOnWriteArrayList<ControlFlowContext> getOrCreateCachedFlowsForElement(@NotNull PsiElement element) {
+  private CopyOnWriteArrayList<ControlFlowContext> getOrCreateCachedFlowsForElement(@NotNull PsiElement element, boolean methodBody) {
+    ConcurrentMap<PsiElement, Reference<CopyOnWriteArrayList<ControlFlowContext>>> cachedFlows =
+      methodBody ? cachedMethodBodyFlows : this.cachedFlows;
     Reference<CopyOnWriteArrayList<ControlFlowContext>> cachedRef = cachedFlows.get(element);
     CopyOnWriteArrayList<ControlFlowContext> cached = cachedRef == null ? null : cachedRef.get();
     if (cached == null) {
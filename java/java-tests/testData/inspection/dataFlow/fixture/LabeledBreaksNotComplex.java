@@ -0,0 +1,18 @@
+class LabeledBreaksNotComplex {
+  boolean isReady(int step) { return step > 0; }
+
+  void runSteps() {
+    s1: { if (isReady(1)) {} else break s1; }
+    s2: { if (isReady(2)) {} else break s2; }
+    s3: { if (isReady(3)) {} else break s3; }
+    s4: { if (isReady(4)) {} else break s4; }
+    s5: { if (isReady(5)) {} else break s5; }
+    s6: { if (isReady(6)) {} else break s6; }
+    s7: { if (isReady(7)) {} else break s7; }
+    s8: { if (isReady(8)) {} else break s8; }
+    s9: { if (isReady(9)) {} else break s9; }
+    s10: { if (isReady(10)) {} else break s10; }
+    s11: { if (isReady(11)) {} else break s11; }
+    s12: { if (isReady(12)) {} else break s12; }
+  }
+}
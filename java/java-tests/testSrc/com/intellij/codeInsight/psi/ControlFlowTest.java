@@ -1,13 +1,18 @@
 package com.intellij.codeInsight.psi;
 
 import com.intellij.openapi.application.ex.PathManagerEx;
+import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.openapi.vfs.LocalFileSystem;
 import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.psi.JavaPsiFacade;
+import com.intellij.psi.PsiAnonymousClass;
 import com.intellij.psi.PsiCodeBlock;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiJavaFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.PsiStatement;
 import com.intellij.psi.controlFlow.*;
 import com.intellij.psi.util.PsiTreeUtil;
 import com.intellij.testFramework.LightCodeInsightTestCase;
@@ -91,4 +96,93 @@ public class ControlFlowTest extends LightCodeInsightTestCase {
     ControlFlowUtil.findExitPointsAndStatements(flow, 0, flow.getSize() -1 , exitPoints, ControlFlowUtil.DEFAULT_EXIT_STATEMENTS_CLASSES);
     assertEquals(1, exitPoints.size());
   }
+
+  public void testMethodFlowIsReusedAfterChangeInAnotherMethod() throws Exception {
+    configureFromFileText("a.java", "public class Foo {\n" +
+                                    "  void foo(int i) {\n" +
+                                    "    if (i > 0) i++;\n" +
+                                    "  }\n" +
+                                    "  void bar() {\n" +
+                                    "    int j = 0;\n" +
+                                    "  }\n" +
+                                    "}");
+    PsiMethod[] methods = ((PsiJavaFile)getFile()).getClasses()[0].getMethods();
+    final PsiCodeBlock fooBody = methods[0].getBody();
+    final PsiCodeBlock barBody = methods[1].getBody();
+    ControlFlowFactory factory = ControlFlowFactory.getInstance(getProject());
+    ControlFlowPolicy policy = LocalsOrMyInstanceFieldsControlFlowPolicy.getInstance();
+    ControlFlow fooFlow = factory.getControlFlow(fooBody, policy);
+    ControlFlow barFlow = factory.getControlFlow(barBody, policy);
+    long hits = factory.getCacheHitCount();
+
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        barBody.add(JavaPsiFacade.getElementFactory(getProject()).createStatementFromText("j++;", null));
+      }
+    }.execute();
+
+    assertSame(fooFlow, factory.getControlFlow(fooBody, policy));
+    assertEquals(hits + 1, factory.getCacheHitCount());
+    assertNotSame(barFlow, factory.getControlFlow(barBody, policy));
+  }
+
+  public void testMethodFlowIsReusedWhenBodyTextIsRestored() throws Exception {
+    configureFromFileText("a.java", "public class Foo {\n" +
+                                    "  void bar() {\n" +
+                                    "    int j = 0;\n" +
+                                    "  }\n" +
+                                    "}");
+    final PsiCodeBlock body = ((PsiJavaFile)getFile()).getClasses()[0].getMethods()[0].getBody();
+    ControlFlowFactory factory = ControlFlowFactory.getInstance(getProject());
+    ControlFlowPolicy policy = LocalsOrMyInstanceFieldsControlFlowPolicy.getInstance();
+    ControlFlow flow = factory.getControlFlow(body, policy);
+    assertSame(flow, factory.getControlFlow(body, policy));
+
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        PsiElement added = body.add(JavaPsiFacade.getElementFactory(getProject()).createStatementFromText("j++;", null));
+        added.delete();
+      }
+    }.execute();
+
+    long misses = factory.getCacheMissCount();
+    assertSame(flow, factory.getControlFlow(body, policy));
+    assertSame(flow, factory.getControlFlow(body, policy));
+    assertEquals(misses, factory.getCacheMissCount());
+  }
+
+  public void testAnonymousClassMethodFlowIsRebuiltAfterChangeInEnclosingMethod() throws Exception {
+    configureFromFileText("a.java", "public class Foo {\n" +
+                                    "  void foo() {\n" +
+                                    "    int i = 0;\n" +
+                                    "    Runnable r = new Runnable() {\n" +
+                                    "      public void run() {\n" +
+                                    "        int j = i;\n" +
+                                    "      }\n" +
+                                    "    };\n" +
+                                    "  }\n" +
+                                    "}");
+    PsiMethod foo = ((PsiJavaFile)getFile()).getClasses()[0].getMethods()[0];
+    final PsiStatement declaration = foo.getBody().getStatements()[0];
+    PsiAnonymousClass anonymousClass = PsiTreeUtil.findChildOfType(foo, PsiAnonymousClass.class);
+    PsiCodeBlock runBody = anonymousClass.getMethods()[0].getBody();
+    ControlFlowFactory factory = ControlFlowFactory.getInstance(getProject());
+    ControlFlowPolicy policy = LocalsOrMyInstanceFieldsControlFlowPolicy.getInstance();
+    ControlFlow flow = factory.getControlFlow(runBody, policy);
+    assertEquals(1, ControlFlowUtil.getReadBeforeWrite(flow).size());
+
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        declaration.delete();
+      }
+    }.execute();
+
+    assertTrue(runBody.isValid());
+    ControlFlow newFlow = factory.getControlFlow(runBody, policy);
+    assertNotSame(flow, newFlow);
+    assertEquals(0, ControlFlowUtil.getReadBeforeWrite(newFlow).size());
+  }
 }
@@ -18,9 +18,21 @@ package com.intellij.codeInspection;
 import com.intellij.JavaTestUtil;
 import com.intellij.codeInsight.NullableNotNullManager;
 import com.intellij.codeInspection.dataFlow.DataFlowInspection;
+import com.intellij.codeInspection.dataFlow.RunnerResult;
+import com.intellij.codeInspection.dataFlow.StandardDataFlowRunner;
+import com.intellij.codeInspection.dataFlow.StandardInstructionVisitor;
 import com.intellij.pom.java.LanguageLevel;
+import com.intellij.psi.PsiCodeBlock;
+import com.intellij.psi.PsiFile;
+import com.intellij.psi.PsiMethod;
+import com.intellij.psi.util.PsiTreeUtil;
+import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.testFramework.builders.JavaModuleFixtureBuilder;
 import com.intellij.testFramework.fixtures.JavaCodeInsightFixtureTestCase;
+import com.intellij.util.ThrowableRunnable;
+
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * @author peter
@@ -59,6 +71,7 @@ public class DataFlowInspectionFixtureTest extends JavaCodeInsightFixtureTestCas
   public void testBuildRegexpNotComplex() throws Throwable { doTest(); }
   public void testTernaryInWhileNotComplex() throws Throwable { doTest(); }
   public void testTryCatchInForNotComplex() throws Throwable { doTest(); }
+  public void testLabeledBreaksNotComplex() throws Throwable { doTest(); }
   public void testFieldChangedBetweenSynchronizedBlocks() throws Throwable { doTest(); }
 
   public void testGeneratedEquals() throws Throwable { doTest(); }
@@ -140,4 +153,27 @@ public class DataFlowInspectionFixtureTest extends JavaCodeInsightFixtureTestCas
   public void testUnknownFloatMayBeNaN() { doTest(); }
   public void testLastConstantConditionInAnd() { doTest(); }
 
+  public void testNotComplexMethodsPerformance() throws Throwable {
+    PsiFile[] files = myFixture.configureByFiles("BigMethodNotComplex.java", "BuildRegexpNotComplex.java",
+                                                 "TernaryInWhileNotComplex.java", "TryCatchInForNotComplex.java",
+                                                 "LabeledBreaksNotComplex.java");
+    final List<PsiCodeBlock> bodies = new ArrayList<PsiCodeBlock>();
+    for (PsiFile file : files) {
+      for (PsiMethod method : PsiTreeUtil.findChildrenOfType(file, PsiMethod.class)) {
+        if (method.getBody() != null) {
+          bodies.add(method.getBody());
+        }
+      }
+    }
+    PlatformTestUtil.startPerformanceTest("DFA of not complex methods", 3000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (PsiCodeBlock body : bodies) {
+          RunnerResult result = new StandardDataFlowRunner(false).analyzeMethod(body, new StandardInstructionVisitor());
+          assertEquals(body.getParent().toString(), RunnerResult.OK, result);
+        }
+      }
+    }).cpuBound().assertTiming();
+  }
+
 }
@@ -20,10 +20,17 @@ import com.intellij.analysis.AnalysisScope;
 import com.intellij.codeInsight.CodeInsightTestCase;
 import com.intellij.codeInspection.actions.RunInspectionIntention;
 import com.intellij.codeInspection.ex.*;
+import com.intellij.codeInspection.redundantCast.RedundantCastInspection;
+import com.intellij.codeInspection.sillyAssignment.SillyAssignmentInspection;
 import com.intellij.codeInspection.visibility.VisibilityInspection;
+import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.profile.codeInspection.InspectionProfileManager;
+import com.intellij.psi.PsiElement;
+import com.intellij.psi.PsiFile;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * @author Dmitry Avdeev
@@ -68,6 +75,54 @@ public class GlobalInspectionContextTest extends CodeInsightTestCase {
     fail("No disabled tools found");
   }
 
+  public void testBatchedResultsAreSameAsSequential() throws Exception {
+    String[] shortNames = {new SillyAssignmentInspection().getShortName(), new RedundantCastInspection().getShortName()};
+    InspectionProfileImpl profile = new InspectionProfileImpl("Foo");
+    profile.disableAllTools();
+    for (String shortName : shortNames) {
+      profile.enableTool(shortName);
+    }
+
+    VirtualFile dir = null;
+    for (int i = 0; i < 10; i++) {
+      String text = "class A" + i + " {\n" +
+                    "  int f;\n" +
+                    "  void m(int p) {\n" +
+                    (i % 2 == 0 ? "    p = p;\n" : "") +
+                    "    Object o = (Object)\"" + i + "\";\n" +
+                    (i % 3 == 0 ? "    f = f;\n" : "") +
+                    "  }\n" +
+                    "}";
+      String fileName = "A" + i + ".java";
+      PsiFile file = dir == null ? createFile(fileName, text) : createFile(myModule, dir, fileName, text);
+      dir = file.getVirtualFile().getParent();
+    }
+
+    List<String> sequential = inspect(profile, shortNames, 1);
+    assertFalse(sequential.isEmpty());
+    assertEquals(sequential, inspect(profile, shortNames, 4));
+    assertEquals(sequential, inspect(profile, shortNames, 100));
+  }
+
+  private List<String> inspect(InspectionProfileImpl profile, String[] shortNames, int filesBatchSize) {
+    GlobalInspectionContextImpl context = ((InspectionManagerEx)InspectionManager.getInstance(getProject())).createNewGlobalContext(false);
+    context.setExternalProfile(profile);
+    context.setFilesBatchSize(filesBatchSize);
+    context.doInspections(new AnalysisScope(myModule), InspectionManager.getInstance(getProject()));
+
+    List<String> result = new ArrayList<String>();
+    for (String shortName : shortNames) {
+      DescriptorProviderInspection tool = (DescriptorProviderInspection)context.getTools().get(shortName).getTool();
+      for (CommonProblemDescriptor descriptor : tool.getProblemDescriptors()) {
+        PsiElement element = ((ProblemDescriptor)descriptor).getPsiElement();
+        result.add(shortName + " " + element.getContainingFile().getName() + ":" + ((ProblemDescriptor)descriptor).getLineNumber() +
+                   " " + element.getText());
+      }
+    }
+    Collections.sort(result);
+    return result;
+  }
+
   @Override
   public void setUp() throws Exception {
     super.setUp();
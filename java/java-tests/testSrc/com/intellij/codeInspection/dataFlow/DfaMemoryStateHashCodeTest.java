@@ -0,0 +1,127 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInspection.dataFlow;
+
+import com.intellij.codeInsight.guess.impl.ExpressionTypeMemoryState;
+import com.intellij.codeInspection.dataFlow.value.DfaRelationValue;
+import com.intellij.codeInspection.dataFlow.value.DfaValueFactory;
+import com.intellij.codeInspection.dataFlow.value.DfaVariableValue;
+import com.intellij.psi.*;
+import com.intellij.testFramework.LightIdeaTestCase;
+
+/**
+ * Equal states have to hash equally, otherwise the runner doesn't notice it has already processed a state.
+ */
+public class DfaMemoryStateHashCodeTest extends LightIdeaTestCase {
+  private DfaValueFactory myFactory;
+  private PsiMethod myMethod;
+  private DfaVariableValue myA;
+  private DfaVariableValue myB;
+  private DfaVariableValue myC;
+  private DfaVariableValue myD;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myFactory = new DfaValueFactory();
+    myMethod = getJavaFacade().getElementFactory().createMethodFromText("void m(Object a, Object b, Object c, Object d, Object o) {}", null);
+    PsiParameter[] parameters = myMethod.getParameterList().getParameters();
+    myA = myFactory.getVarFactory().createVariableValue(parameters[0], false);
+    myB = myFactory.getVarFactory().createVariableValue(parameters[1], false);
+    myC = myFactory.getVarFactory().createVariableValue(parameters[2], false);
+    myD = myFactory.getVarFactory().createVariableValue(parameters[3], false);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myFactory = null;
+    myMethod = null;
+    myA = myB = myC = myD = null;
+    super.tearDown();
+  }
+
+  public void testPermutedEqClasses() {
+    DfaMemoryStateImpl state1 = new DfaMemoryStateImpl(myFactory);
+    applyConditions(state1, eq(myA, myB), eq(myC, myD));
+    DfaMemoryStateImpl state2 = new DfaMemoryStateImpl(myFactory);
+    applyConditions(state2, eq(myC, myD), eq(myB, myA));
+    assertEqualStates(state1, state2);
+  }
+
+  public void testUnitedEqClasses() {
+    DfaMemoryStateImpl state1 = new DfaMemoryStateImpl(myFactory);
+    applyConditions(state1, eq(myA, myB), eq(myC, myD), eq(myB, myC));
+    DfaMemoryStateImpl state2 = new DfaMemoryStateImpl(myFactory);
+    applyConditions(state2, eq(myA, myB), eq(myA, myC), eq(myA, myD));
+    assertEqualStates(state1, state2);
+  }
+
+  public void testPermutedDistinctClasses() {
+    DfaMemoryStateImpl state1 = new DfaMemoryStateImpl(myFactory);
+    applyConditions(state1, ne(myA, myB), ne(myC, myD), eq(myA, myC));
+    DfaMemoryStateImpl state2 = new DfaMemoryStateImpl(myFactory);
+    applyConditions(state2, eq(myC, myA), ne(myD, myC), ne(myB, myA));
+    assertEqualStates(state1, state2);
+  }
+
+  public void testCopyHashesEqually() {
+    DfaMemoryStateImpl state = new DfaMemoryStateImpl(myFactory);
+    applyConditions(state, eq(myA, myB), ne(myC, myD));
+    state.push(myA);
+    assertEqualStates(state, state.createCopy());
+  }
+
+  public void testExpressionTypeMemoryState() {
+    PsiClassType stringType = PsiType.getJavaLangString(getPsiManager(), myMethod.getResolveScope());
+    PsiClassType objectType = PsiType.getJavaLangObject(getPsiManager(), myMethod.getResolveScope());
+
+    ExpressionTypeMemoryState state1 = new ExpressionTypeMemoryState(myFactory);
+    applyConditions(state1, eq(myA, myB), eq(myC, myD));
+    state1.setExpressionType(createExpression("o"), stringType);
+    state1.setExpressionType(createExpression("a"), objectType);
+    // equivalent expressions are different PSI elements
+    ExpressionTypeMemoryState state2 = new ExpressionTypeMemoryState(myFactory);
+    applyConditions(state2, eq(myD, myC), eq(myA, myB));
+    state2.setExpressionType(createExpression("a"), objectType);
+    state2.setExpressionType(createExpression("o"), stringType);
+    assertEqualStates(state1, state2);
+    assertEqualStates(state1, state1.createCopy());
+  }
+
+  private PsiExpression createExpression(String text) {
+    return getJavaFacade().getElementFactory().createExpressionFromText(text, myMethod.getBody());
+  }
+
+  private DfaRelationValue eq(DfaVariableValue left, DfaVariableValue right) {
+    return myFactory.getRelationFactory().createRelation(left, right, JavaTokenType.EQEQ, false);
+  }
+
+  private DfaRelationValue ne(DfaVariableValue left, DfaVariableValue right) {
+    return myFactory.getRelationFactory().createRelation(left, right, JavaTokenType.EQEQ, true);
+  }
+
+  private static void applyConditions(DfaMemoryStateImpl state, DfaRelationValue... conditions) {
+    for (DfaRelationValue condition : conditions) {
+      assertTrue(String.valueOf(condition), state.applyCondition(condition));
+    }
+  }
+
+  private static void assertEqualStates(DfaMemoryStateImpl state1, DfaMemoryStateImpl state2) {
+    assertEquals(state1, state2);
+    assertEquals(state2, state1);
+    assertEquals(state1.toString() + " vs " + state2, state1.hashCode(), state2.hashCode());
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi;
+
+import com.intellij.ide.highlighter.JavaFileType;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.Document;
+import com.intellij.psi.impl.DebugUtil;
+import com.intellij.testFramework.LightCodeInsightTestCase;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+
+/**
+ * Checks that committing several separate changes gives the same PSI as parsing the new text from scratch.
+ */
+public class ChangedBlocksReparseTest extends LightCodeInsightTestCase {
+  private static final int METHODS_NUMBER = 40;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    StringBuilder text = new StringBuilder("class A {\n");
+    for (int i = 0; i < METHODS_NUMBER; i++) {
+      text.append("  int m").append(i).append("(int p) {\n")
+        .append("    int v = p + ").append(i).append(";\n")
+        .append("    return v;\n")
+        .append("  }\n");
+    }
+    configureFromFileText("A.java", text.append("}").toString());
+  }
+
+  public void testSeveralMethodBodies() {
+    edit(new Runnable() {
+      @Override
+      public void run() {
+        insertIntoBody(31, "    v *= 2;\n");
+        insertIntoBody(17, "    v *= 3;\n");
+        insertIntoBody(3, "    v *= 4;\n");
+      }
+    });
+    assertSameAsFullParse();
+  }
+
+  public void testReplaceAllOverTrackedChangesLimit() {
+    edit(new Runnable() {
+      @Override
+      public void run() {
+        Document document = getEditor().getDocument();
+        for (int offset = document.getText().lastIndexOf("p + "); offset >= 0; offset = document.getText().lastIndexOf("p + ", offset - 1)) {
+          document.replaceString(offset, offset + 4, "p - ");
+        }
+      }
+    });
+    assertSameAsFullParse();
+  }
+
+  public void testChangeBreakingBlockStructure() {
+    edit(new Runnable() {
+      @Override
+      public void run() {
+        insertIntoBody(20, "    v++;\n");
+        insertIntoBody(5, "    }\n");
+      }
+    });
+    assertSameAsFullParse();
+  }
+
+  public void testChangesInsideAndOutsideBlocks() {
+    edit(new Runnable() {
+      @Override
+      public void run() {
+        insertIntoBody(30, "    v++;\n");
+        Document document = getEditor().getDocument();
+        document.insertString(document.getText().indexOf("  int m10("), "  int myField;\n");
+      }
+    });
+    assertSameAsFullParse();
+  }
+
+  public void testBulkPastePerformance() {
+    final StringBuilder pasted = new StringBuilder();
+    for (int i = 0; i < 30000; i++) {
+      pasted.append("    v += ").append(i).append(";\n");
+    }
+    final Document document = getEditor().getDocument();
+    final int offset = document.getText().indexOf("    return v;");
+    PlatformTestUtil.startPerformanceTest("commit of 30000 pasted lines", 5000, new ThrowableRunnable() {
+      @Override
+      public void run() {
+        edit(new Runnable() {
+          @Override
+          public void run() {
+            document.insertString(offset, pasted);
+            PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+            document.deleteString(offset, offset + pasted.length());
+            PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+          }
+        });
+      }
+    }).cpuBound().assertTiming();
+
+    edit(new Runnable() {
+      @Override
+      public void run() {
+        document.insertString(offset, pasted);
+      }
+    });
+    assertSameAsFullParse();
+  }
+
+  private static void insertIntoBody(int methodIndex, String text) {
+    Document document = getEditor().getDocument();
+    String header = "m" + methodIndex + "(int p) {\n";
+    document.insertString(document.getText().indexOf(header) + header.length(), text);
+  }
+
+  private static void edit(Runnable runnable) {
+    ApplicationManager.getApplication().runWriteAction(runnable);
+  }
+
+  private static void assertSameAsFullParse() {
+    PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+    String text = getEditor().getDocument().getText();
+    assertEquals(text, myFile.getText());
+    PsiFile fullParse = PsiFileFactory.getInstance(getProject()).createFileFromText(myFile.getName(), JavaFileType.INSTANCE, text);
+    assertEquals(DebugUtil.psiToString(fullParse, false), DebugUtil.psiToString(myFile, false));
+  }
+}
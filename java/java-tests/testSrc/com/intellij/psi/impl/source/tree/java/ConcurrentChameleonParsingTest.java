@@ -0,0 +1,74 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.tree.java;
+
+import com.intellij.lang.ASTNode;
+import com.intellij.psi.impl.DebugUtil;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
+import com.intellij.testFramework.LightIdeaTestCase;
+
+public class ConcurrentChameleonParsingTest extends LightIdeaTestCase {
+  private static final int METHODS_NUMBER = 50;
+
+  public void testSameTreeAsSequentialParsing() {
+    String text = createText();
+    ASTNode concurrent = createLightFile("Concurrent.java", text).getNode();
+    ASTNode sequential = createLightFile("Sequential.java", text).getNode();
+    assertNotNull(concurrent);
+    assertNotNull(sequential);
+
+    assertTrue(LazyParseableElement.parseAllConcurrently(concurrent, null));
+    assertEquals(0, countNotParsed(concurrent));
+    assertEquals(DebugUtil.treeToString(sequential, false), DebugUtil.treeToString(concurrent, false));
+  }
+
+  public void testNestedChameleonsAreParsed() {
+    ASTNode root = createLightFile("Test.java", createText()).getNode();
+    assertNotNull(root);
+    root.getFirstChildNode(); // the file itself is parsed, method bodies are not
+    assertTrue(String.valueOf(countNotParsed(root)), countNotParsed(root) >= METHODS_NUMBER);
+
+    assertTrue(LazyParseableElement.parseAllConcurrently(root, null));
+    assertEquals(0, countNotParsed(root));
+  }
+
+  private static String createText() {
+    StringBuilder text = new StringBuilder("class Test {\n");
+    for (int i = 0; i < METHODS_NUMBER; i++) {
+      text.append("  int m").append(i).append("(int p) {\n")
+        .append("    int v = p * ").append(i).append(";\n")
+        .append("    Runnable r = new Runnable() {\n")
+        .append("      public void run() { if (v > 0) { System.out.println(\"").append(i).append("\"); } }\n")
+        .append("    };\n")
+        .append("    for (int j = 0; j < v; j++) { r.run(); }\n")
+        .append("    return v;\n")
+        .append("  }\n");
+    }
+    return text.append("}").toString();
+  }
+
+  // doesn't look into not parsed chameleons, so counting doesn't parse anything
+  private static int countNotParsed(ASTNode node) {
+    if (node instanceof LazyParseableElement && !((LazyParseableElement)node).isParsed()) {
+      return 1;
+    }
+    int count = 0;
+    for (ASTNode child = node.getFirstChildNode(); child != null; child = child.getTreeNext()) {
+      count += countNotParsed(child);
+    }
+    return count;
+  }
+}
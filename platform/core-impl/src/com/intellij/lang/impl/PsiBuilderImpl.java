@@ -34,6 +34,7 @@ import com.intellij.psi.impl.source.tree.*;
 import com.intellij.psi.impl.source.tree.Factory;
 import com.intellij.psi.text.BlockSupport;
 import com.intellij.psi.tree.*;
+import com.intellij.reference.SoftReference;
 import com.intellij.util.CharTable;
 import com.intellij.util.ExceptionUtil;
 import com.intellij.util.ThreeState;
@@ -46,6 +47,7 @@ import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.lang.reflect.Field;
 import java.util.AbstractList;
@@ -92,29 +94,11 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
   private Map<Key, Object> myUserData = null;
 
-  private final LimitedPool<StartMarker> START_MARKERS = new LimitedPool<StartMarker>(2000, new LimitedPool.ObjectFactory<StartMarker>() {
-    @Override
-    public StartMarker create() {
-      return new StartMarker();
-    }
+  // softly reachable, so the buffers of idle threads don't hold memory forever
+  private static final ThreadLocal<SoftReference<ParsingArena>> ourArena = new ThreadLocal<SoftReference<ParsingArena>>();
 
-    @Override
-    public void cleanup(final StartMarker startMarker) {
-      startMarker.clean();
-    }
-  });
-
-  private final LimitedPool<DoneMarker> DONE_MARKERS = new LimitedPool<DoneMarker>(2000, new LimitedPool.ObjectFactory<DoneMarker>() {
-    @Override
-    public DoneMarker create() {
-      return new DoneMarker();
-    }
-
-    @Override
-    public void cleanup(final DoneMarker doneMarker) {
-      doneMarker.clean();
-    }
-  });
+  private final Thread myArenaThread = Thread.currentThread();
+  private final ParsingArena myArena = ParsingArena.getInstance();
 
   private static final WhitespacesAndCommentsBinder DEFAULT_LEFT_EDGE_TOKEN_BINDER = new WhitespacesAndCommentsBinder() {
     @Override
@@ -192,8 +176,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   private void cacheLexemes() {
     int approxLexCount = Math.max(10, myText.length() / 5);
 
-    myLexStarts = new int[approxLexCount];
-    myLexTypes = new IElementType[approxLexCount];
+    getArena().takeLexemeBuffers(this, approxLexCount);
 
     myLexer.start(myText);
     int i = 0;
@@ -579,6 +562,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     public void clean() {
       super.clean();
       myStart = null;
+      myCollapse = false;
       myEdgeTokenBinder = DEFAULT_RIGHT_EDGE_TOKEN_BINDER;
     }
 
@@ -795,7 +779,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   }
 
   private StartMarker createMarker(final int lexemeIndex) {
-    StartMarker marker = START_MARKERS.alloc();
+    StartMarker marker = getArena().myStartMarkers.alloc();
     marker.myLexemeIndex = lexemeIndex;
     marker.myBuilder = this;
 
@@ -823,7 +807,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       LOG.error("The marker must be added before rolled back to.");
     }
     myProduction.removeRange(idx, myProduction.size());
-    START_MARKERS.recycle((StartMarker)marker);
+    getArena().myStartMarkers.recycle((StartMarker)marker);
   }
 
   @SuppressWarnings({"SuspiciousMethodCalls"})
@@ -831,13 +815,13 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     final DoneMarker doneMarker = ((StartMarker)marker).myDoneMarker;
     if (doneMarker != null) {
       myProduction.remove(myProduction.lastIndexOf(doneMarker));
-      DONE_MARKERS.recycle(doneMarker);
+      recycleDoneMarker(doneMarker);
     }
     final boolean removed = myProduction.remove(myProduction.lastIndexOf(marker)) == marker;
     if (!removed) {
       LOG.error("The marker must be added before it is dropped.");
     }
-    START_MARKERS.recycle((StartMarker)marker);
+    getArena().myStartMarkers.recycle((StartMarker)marker);
   }
 
   public void error(Marker marker, String message) {
@@ -868,7 +852,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
   public void done(final Marker marker) {
     doValidityChecks(marker, null);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
+    DoneMarker doneMarker = getArena().myDoneMarkers.alloc();
     doneMarker.myStart = (StartMarker)marker;
     doneMarker.myLexemeIndex = myCurrentLexeme;
     boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
@@ -885,7 +869,7 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
 
     int beforeIndex = myProduction.lastIndexOf(before);
 
-    DoneMarker doneMarker = DONE_MARKERS.alloc();
+    DoneMarker doneMarker = getArena().myDoneMarkers.alloc();
     doneMarker.myLexemeIndex = ((StartMarker)before).myLexemeIndex;
     doneMarker.myStart = (StartMarker)marker;
     boolean tieToTheLeft = doneMarker.myStart.myType.isLeftBound() &&
@@ -967,17 +951,41 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
       return buildTree();
     }
     finally {
+      ParsingArena arena = getArena();
       for (ProductionMarker marker : myProduction) {
         if (marker instanceof StartMarker) {
-          START_MARKERS.recycle((StartMarker)marker);
+          arena.myStartMarkers.recycle((StartMarker)marker);
         }
         else if (marker instanceof DoneMarker) {
-          DONE_MARKERS.recycle((DoneMarker)marker);
+          recycleDoneMarker((DoneMarker)marker);
         }
       }
+      arena.releaseLexemeBuffers(this);
+    }
+  }
+
+  private void recycleDoneMarker(@NotNull DoneMarker marker) {
+    // markers with errors are not pooled, otherwise they may be allocated by the next done() call
+    if (marker.getClass() == DoneMarker.class) {
+      getArena().myDoneMarkers.recycle(marker);
     }
   }
 
+  // the arena is not thread-safe: a builder used by another thread than it was created at works with that thread's arena
+  @NotNull
+  private ParsingArena getArena() {
+    return Thread.currentThread() == myArenaThread ? myArena : ParsingArena.getInstance();
+  }
+
+  /**
+   * @return the length of the lexeme buffers the current thread keeps for the next builder, 0 if it keeps none
+   */
+  @TestOnly
+  public static int getCachedLexemeBuffersLength() {
+    IElementType[] types = ParsingArena.getInstance().myLexTypes;
+    return types != null ? types.length : 0;
+  }
+
   private ASTNode buildTree() {
     final StartMarker rootMarker = prepareLightTree();
     final boolean isTooDeep = myFile != null && BlockSupport.isTooDeep(myFile.getOriginalFile());
@@ -1625,6 +1633,86 @@ public class PsiBuilderImpl extends UserDataHolderBase implements PsiBuilder, AS
     return ASTFactory.leaf(type, text);
   }
 
+  /**
+   * Holds lexeme buffers and marker pools shared by all builders created at the same thread, so that (re)parsing doesn't
+   * allocate lexeme arrays and markers again and again.
+   * <p/>
+   * Lexeme buffers are owned by a single builder at a time: they are taken on the builder creation and returned back when
+   * {@link #getTreeBuilt() the tree is built}, hence, nested builders just allocate their own buffers. Builders which produce
+   * {@link #getLightTree() light trees} never return their buffers because the light tree nodes refer to them.
+   * <p/>
+   * An arena holds buffers for at most 64K lexemes and 2 * 2000 markers, and is only softly reachable from its thread.
+   */
+  private static class ParsingArena {
+    /** Buffers for more lexemes than this are not kept in order not to hold too much memory per thread. */
+    private static final int MAX_CACHED_LEXEMES_NUMBER = 64 * 1024;
+    private static final int MARKERS_POOL_CAPACITY = 2000;
+
+    private final LimitedPool<StartMarker> myStartMarkers =
+      new LimitedPool<StartMarker>(MARKERS_POOL_CAPACITY, new LimitedPool.ObjectFactory<StartMarker>() {
+        @Override
+        public StartMarker create() {
+          return new StartMarker();
+        }
+
+        @Override
+        public void cleanup(final StartMarker startMarker) {
+          startMarker.clean();
+        }
+      });
+
+    private final LimitedPool<DoneMarker> myDoneMarkers =
+      new LimitedPool<DoneMarker>(MARKERS_POOL_CAPACITY, new LimitedPool.ObjectFactory<DoneMarker>() {
+        @Override
+        public DoneMarker create() {
+          return new DoneMarker();
+        }
+
+        @Override
+        public void cleanup(final DoneMarker doneMarker) {
+          doneMarker.clean();
+        }
+      });
+
+    private int[] myLexStarts;
+    private IElementType[] myLexTypes;
+
+    @NotNull
+    private static ParsingArena getInstance() {
+      SoftReference<ParsingArena> reference = ourArena.get();
+      ParsingArena arena = reference != null ? reference.get() : null;
+      if (arena == null) {
+        arena = new ParsingArena();
+        ourArena.set(new SoftReference<ParsingArena>(arena));
+      }
+      return arena;
+    }
+
+    private void takeLexemeBuffers(@NotNull PsiBuilderImpl builder, int approxLexCount) {
+      if (myLexTypes != null && myLexTypes.length >= approxLexCount) {
+        builder.myLexStarts = myLexStarts;
+        builder.myLexTypes = myLexTypes;
+        myLexStarts = null;
+        myLexTypes = null;
+      }
+      else {
+        builder.myLexStarts = new int[approxLexCount];
+        builder.myLexTypes = new IElementType[approxLexCount];
+      }
+    }
+
+    private void releaseLexemeBuffers(@NotNull PsiBuilderImpl builder) {
+      IElementType[] types = builder.myLexTypes;
+      if (types == null || types.length > MAX_CACHED_LEXEMES_NUMBER || myLexTypes != null && myLexTypes.length >= types.length) {
+        return;
+      }
+      myLexStarts = builder.myLexStarts;
+      myLexTypes = types;
+      builder.myLexStarts = null;
+      builder.myLexTypes = null;
+    }
+  }
+
   /**
    * just to make removeRange method available.
    */
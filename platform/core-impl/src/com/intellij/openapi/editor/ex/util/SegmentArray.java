@@ -18,24 +18,81 @@ package com.intellij.openapi.editor.ex.util;
 import com.intellij.openapi.diagnostic.Logger;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
 /**
  * This class is a data structure specialized for working with the indexed segments, i.e. it holds numerous mappings like
  * {@code 'index <-> (start; end)'} and provides convenient way for working with them, e.g. find index by particular offset that
  * belongs to target <code>(start; end)</code> segment etc.
  * <p/>
+ * Segments are stored at chunks of up to {@link #MAX_CHUNK_SIZE} elements. Every chunk keeps offsets relative to its own shift,
+ * so, inserting, removing or shifting segments in the middle costs O(chunk size + chunks number) instead of copying
+ * and updating the whole tail of the array.
+ * <p/>
  * Not thread-safe.
  */
 public class SegmentArray {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.SegmentArray");
-  private int[] myStarts;
-  private int[] myEnds;
+
+  static final int MAX_CHUNK_SIZE = 1024;
+
+  private final List<Chunk> myChunks = new ArrayList<Chunk>();
+  private final boolean myWithData;
+
+  /** Index of the chunk used during the last lookup, sequential lookups (e.g. by highlighter iterators) don't need binary search. */
+  private int myLastChunkIndex;
 
   protected int mySegmentCount = 0;
   protected static final int INITIAL_SIZE = 64;
 
   protected SegmentArray() {
-    myStarts = new int[INITIAL_SIZE];
-    myEnds = new int[INITIAL_SIZE];
+    this(false);
+  }
+
+  /**
+   * @param withData  flag that indicates if additional <code>'short'</code> value should be stored for every segment
+   */
+  SegmentArray(boolean withData) {
+    myWithData = withData;
+  }
+
+  private static class Chunk {
+    int[] starts;
+    int[] ends;
+    short[] data;
+    int size;
+    /** Index of the first chunk segment within the whole array. */
+    int firstIndex;
+    /** Value to add to the stored offsets in order to get actual segment offsets. */
+    int shift;
+
+    Chunk(int capacity, boolean withData) {
+      starts = new int[capacity];
+      ends = new int[capacity];
+      data = withData ? new short[capacity] : null;
+    }
+
+    void ensureCapacity(int capacity) {
+      if (capacity <= starts.length) {
+        return;
+      }
+      int newCapacity = Math.max(capacity, Math.min(MAX_CHUNK_SIZE, calcCapacity(starts.length, capacity)));
+      starts = Arrays.copyOf(starts, newCapacity);
+      ends = Arrays.copyOf(ends, newCapacity);
+      if (data != null) {
+        data = Arrays.copyOf(data, newCapacity);
+      }
+    }
+
+    void move(int from, int to, int length) {
+      System.arraycopy(starts, from, starts, to, length);
+      System.arraycopy(ends, from, ends, to, length);
+      if (data != null) {
+        System.arraycopy(data, from, data, to, length);
+      }
+    }
   }
 
   protected void setElementAt(int i, int startOffset, int endOffset) {
@@ -46,20 +103,56 @@ public class SegmentArray {
       LOG.error("Invalid endOffset:" + endOffset);
     }
 
-    if (i >= mySegmentCount) {
-      mySegmentCount = i + 1;
+    while (i > mySegmentCount) {
+      append(0, 0, (short)0);
+    }
+    if (i == mySegmentCount) {
+      append(startOffset, endOffset, (short)0);
+      return;
+    }
+
+    Chunk chunk = myChunks.get(findChunkIndex(i));
+    int local = i - chunk.firstIndex;
+    chunk.starts[local] = startOffset - chunk.shift;
+    chunk.ends[local] = endOffset - chunk.shift;
+  }
+
+  private void append(int startOffset, int endOffset, short data) {
+    Chunk chunk = myChunks.isEmpty() ? null : myChunks.get(myChunks.size() - 1);
+    if (chunk == null || chunk.size >= MAX_CHUNK_SIZE) {
+      Chunk newChunk = new Chunk(chunk == null ? INITIAL_SIZE : MAX_CHUNK_SIZE, myWithData);
+      newChunk.firstIndex = mySegmentCount;
+      myChunks.add(newChunk);
+      chunk = newChunk;
     }
+    chunk.ensureCapacity(chunk.size + 1);
+    chunk.starts[chunk.size] = startOffset - chunk.shift;
+    chunk.ends[chunk.size] = endOffset - chunk.shift;
+    if (chunk.data != null) {
+      chunk.data[chunk.size] = data;
+    }
+    chunk.size++;
+    mySegmentCount++;
+  }
 
-    myStarts = reallocateArray(myStarts, i);
-    myStarts[i] = startOffset;
+  protected short getData(int index) {
+    Chunk chunk = myChunks.get(findChunkIndex(index));
+    return chunk.data[index - chunk.firstIndex];
+  }
 
-    myEnds = reallocateArray(myEnds, i);
-    myEnds[i] = endOffset;
+  protected void setData(int index, short data) {
+    Chunk chunk = myChunks.get(findChunkIndex(index));
+    chunk.data[index - chunk.firstIndex] = data;
   }
 
   protected void replace(int startOffset, @NotNull SegmentArray data, int len) {
-    System.arraycopy(data.myStarts, 0, myStarts, startOffset, len);
-    System.arraycopy(data.myEnds, 0, myEnds, startOffset, len);
+    boolean copyData = myWithData && data.myWithData;
+    for (int i = 0; i < len; i++) {
+      setElementAt(startOffset + i, data.getSegmentStart(i), data.getSegmentEnd(i));
+      if (copyData) {
+        setData(startOffset + i, data.getData(i));
+      }
+    }
   }
 
   static int calcCapacity(int currentArraySize, int index) {
@@ -84,6 +177,38 @@ public class SegmentArray {
     return newArray;
   }
 
+  /**
+   * @param index   segment index
+   * @return        index of the chunk that holds segment with the given index
+   */
+  private int findChunkIndex(int index) {
+    int chunkIndex = myLastChunkIndex;
+    if (chunkIndex < myChunks.size()) {
+      Chunk chunk = myChunks.get(chunkIndex);
+      if (index >= chunk.firstIndex && index < chunk.firstIndex + chunk.size) {
+        return chunkIndex;
+      }
+      if (index == chunk.firstIndex + chunk.size && chunkIndex + 1 < myChunks.size()) {
+        myLastChunkIndex = chunkIndex + 1;
+        return chunkIndex + 1;
+      }
+    }
+
+    int start = 0;
+    int end = myChunks.size() - 1;
+    while (start < end) {
+      int i = (start + end + 1) >>> 1;
+      if (myChunks.get(i).firstIndex <= index) {
+        start = i;
+      }
+      else {
+        end = i - 1;
+      }
+    }
+    myLastChunkIndex = start;
+    return start;
+  }
+
   public final int findSegmentIndex(int offset) {
     if (mySegmentCount <= 0) {
       if (offset == 0) return 0;
@@ -99,95 +224,224 @@ public class SegmentArray {
     final int lastValidIndex = mySegmentCount - 1;
     if (offset == lastValidOffset) return lastValidIndex;
 
+    // Find the last chunk that starts before the given offset.
     int start = 0;
-    int end = lastValidIndex;
-
+    int end = myChunks.size() - 1;
     while (start < end) {
-      int i = (start + end) / 2;
-      if (offset < myStarts[i]) {
+      int i = (start + end + 1) >>> 1;
+      Chunk chunk = myChunks.get(i);
+      if (chunk.starts[0] + chunk.shift <= offset) {
+        start = i;
+      }
+      else {
         end = i - 1;
       }
-      else if (offset >= myEnds[i]) {
-        start = i + 1;
+    }
+    Chunk chunk = myChunks.get(start);
+
+    // Find the last chunk segment that starts before the given offset.
+    int relativeOffset = offset - chunk.shift;
+    start = 0;
+    end = chunk.size - 1;
+    while (start < end) {
+      int i = (start + end + 1) >>> 1;
+      if (chunk.starts[i] <= relativeOffset) {
+        start = i;
       }
       else {
-        return i;
+        end = i - 1;
       }
     }
 
     // This means that there is a gap at given offset
-    assert myStarts[start] <= offset && offset < myEnds[start] : start;
+    assert chunk.starts[start] <= relativeOffset && relativeOffset < chunk.ends[start] : chunk.firstIndex + start;
 
-    return start;
+    return chunk.firstIndex + start;
   }
 
   public int getLastValidOffset() {
-    return mySegmentCount == 0 ? 0 : myEnds[mySegmentCount - 1];
+    if (mySegmentCount == 0) {
+      return 0;
+    }
+    Chunk chunk = myChunks.get(myChunks.size() - 1);
+    return chunk.ends[chunk.size - 1] + chunk.shift;
   }
 
   public final void changeSegmentLength(int startIndex, int change) {
     if (startIndex >= 0 && startIndex < mySegmentCount) {
-      myEnds[startIndex] += change;
+      Chunk chunk = myChunks.get(findChunkIndex(startIndex));
+      chunk.ends[startIndex - chunk.firstIndex] += change;
     }
     shiftSegments(startIndex + 1, change);
   }
 
   public final void shiftSegments(int startIndex, int shift) {
-    for (int i = startIndex; i < mySegmentCount; i++) {
-      myStarts[i] += shift;
-      myEnds[i] += shift;
-      if (myStarts[i] < 0 || myEnds[i] < 0) {
-        LOG.error("Error shifting segments: myStarts[" + i + "] = " + myStarts[i] + ", myEnds[" + i + "] = " + myEnds[i]);
-      }
+    if (startIndex >= mySegmentCount || shift == 0) {
+      return;
+    }
+    int chunkIndex = findChunkIndex(startIndex);
+    Chunk chunk = myChunks.get(chunkIndex);
+    for (int i = startIndex - chunk.firstIndex; i < chunk.size; i++) {
+      chunk.starts[i] += shift;
+      chunk.ends[i] += shift;
+      checkShiftedSegment(chunk, i);
+    }
+    for (int i = chunkIndex + 1; i < myChunks.size(); i++) {
+      chunk = myChunks.get(i);
+      chunk.shift += shift;
+      checkShiftedSegment(chunk, 0);
+    }
+  }
+
+  private static void checkShiftedSegment(@NotNull Chunk chunk, int i) {
+    int start = chunk.starts[i] + chunk.shift;
+    int end = chunk.ends[i] + chunk.shift;
+    if (start < 0 || end < 0) {
+      LOG.error("Error shifting segments: myStarts[" + (chunk.firstIndex + i) + "] = " + start
+                + ", myEnds[" + (chunk.firstIndex + i) + "] = " + end);
     }
   }
 
   public void removeAll() {
+    myChunks.clear();
+    myLastChunkIndex = 0;
     mySegmentCount = 0;
   }
 
   public void remove(int startIndex, int endIndex) {
-    myStarts = remove(myStarts, startIndex, endIndex);
-    myEnds = remove(myEnds, startIndex, endIndex);
+    if (startIndex >= endIndex) {
+      return;
+    }
+    int firstChunkIndex = findChunkIndex(startIndex);
+    int chunkIndex = firstChunkIndex;
+    int local = startIndex - myChunks.get(chunkIndex).firstIndex;
+    int toRemove = endIndex - startIndex;
+    while (toRemove > 0) {
+      Chunk chunk = myChunks.get(chunkIndex);
+      int removed = Math.min(toRemove, chunk.size - local);
+      chunk.move(local + removed, local, chunk.size - local - removed);
+      chunk.size -= removed;
+      toRemove -= removed;
+      if (chunk.size == 0) {
+        myChunks.remove(chunkIndex);
+      }
+      else {
+        chunkIndex++;
+      }
+      local = 0;
+    }
     mySegmentCount -= endIndex - startIndex;
-  }
 
-  @NotNull
-  protected int[] remove(@NotNull int[] array, int startIndex, int endIndex) {
-    if (endIndex < mySegmentCount) {
-      System.arraycopy(array, endIndex, array, startIndex, mySegmentCount - endIndex);
+    // Merge chunks around the removed range if they became small.
+    if (chunkIndex > 0 && chunkIndex < myChunks.size()) {
+      Chunk previous = myChunks.get(chunkIndex - 1);
+      Chunk next = myChunks.get(chunkIndex);
+      if (previous.size + next.size <= MAX_CHUNK_SIZE) {
+        previous.ensureCapacity(previous.size + next.size);
+        int shiftDiff = next.shift - previous.shift;
+        for (int i = 0; i < next.size; i++) {
+          previous.starts[previous.size + i] = next.starts[i] + shiftDiff;
+          previous.ends[previous.size + i] = next.ends[i] + shiftDiff;
+        }
+        if (previous.data != null) {
+          System.arraycopy(next.data, 0, previous.data, previous.size, next.size);
+        }
+        previous.size += next.size;
+        myChunks.remove(chunkIndex);
+      }
     }
-    return array;
+    updateFirstIndices(Math.max(0, firstChunkIndex - 1));
   }
 
   protected void insert(@NotNull SegmentArray segmentArray, int startIndex) {
-    myStarts = insert(myStarts, segmentArray.myStarts, startIndex, segmentArray.getSegmentCount());
-    myEnds = insert(myEnds, segmentArray.myEnds, startIndex, segmentArray.getSegmentCount());
-    mySegmentCount += segmentArray.getSegmentCount();
+    int count = segmentArray.getSegmentCount();
+    if (count <= 0) {
+      return;
+    }
+    boolean copyData = myWithData && segmentArray.myWithData;
+    if (startIndex >= mySegmentCount) {
+      for (int i = 0; i < count; i++) {
+        append(segmentArray.getSegmentStart(i), segmentArray.getSegmentEnd(i), copyData ? segmentArray.getData(i) : (short)0);
+      }
+      return;
+    }
+
+    int chunkIndex = findChunkIndex(startIndex);
+    Chunk chunk = myChunks.get(chunkIndex);
+    int local = startIndex - chunk.firstIndex;
+    if (chunk.size + count <= MAX_CHUNK_SIZE) {
+      chunk.ensureCapacity(chunk.size + count);
+      chunk.move(local, local + count, chunk.size - local);
+      for (int i = 0; i < count; i++) {
+        chunk.starts[local + i] = segmentArray.getSegmentStart(i) - chunk.shift;
+        chunk.ends[local + i] = segmentArray.getSegmentEnd(i) - chunk.shift;
+        if (chunk.data != null) {
+          chunk.data[local + i] = copyData ? segmentArray.getData(i) : 0;
+        }
+      }
+      chunk.size += count;
+    }
+    else {
+      // Re-split the target chunk together with the inserted segments into half-filled chunks.
+      int total = chunk.size + count;
+      List<Chunk> newChunks = new ArrayList<Chunk>();
+      Chunk current = null;
+      for (int i = 0; i < total; i++) {
+        if (current == null || current.size >= MAX_CHUNK_SIZE / 2) {
+          current = new Chunk(MAX_CHUNK_SIZE, myWithData);
+          newChunks.add(current);
+        }
+        int start;
+        int end;
+        short data;
+        if (i < local || i >= local + count) {
+          int j = i < local ? i : i - count;
+          start = chunk.starts[j] + chunk.shift;
+          end = chunk.ends[j] + chunk.shift;
+          data = chunk.data == null ? 0 : chunk.data[j];
+        }
+        else {
+          start = segmentArray.getSegmentStart(i - local);
+          end = segmentArray.getSegmentEnd(i - local);
+          data = copyData ? segmentArray.getData(i - local) : 0;
+        }
+        current.starts[current.size] = start;
+        current.ends[current.size] = end;
+        if (current.data != null) {
+          current.data[current.size] = data;
+        }
+        current.size++;
+      }
+      myChunks.remove(chunkIndex);
+      myChunks.addAll(chunkIndex, newChunks);
+    }
+    mySegmentCount += count;
+    updateFirstIndices(chunkIndex);
   }
 
-  @NotNull
-  protected int[] insert(@NotNull int[] array, @NotNull int[] insertArray, int startIndex, int insertLength) {
-    int[] newArray = reallocateArray(array, mySegmentCount + insertLength);
-    if (startIndex < mySegmentCount) {
-      System.arraycopy(newArray, startIndex, newArray, startIndex + insertLength, mySegmentCount - startIndex);
+  private void updateFirstIndices(int fromChunkIndex) {
+    int index = fromChunkIndex > 0 ? myChunks.get(fromChunkIndex - 1).firstIndex + myChunks.get(fromChunkIndex - 1).size : 0;
+    for (int i = fromChunkIndex; i < myChunks.size(); i++) {
+      Chunk chunk = myChunks.get(i);
+      chunk.firstIndex = index;
+      index += chunk.size;
     }
-    System.arraycopy(insertArray, 0, newArray, startIndex, insertLength);
-    return newArray;
   }
 
   public int getSegmentStart(int index) {
     if (index < 0 || index >= mySegmentCount) {
       throw new IndexOutOfBoundsException("Wrong line: " + index + ". Available lines count: " + mySegmentCount);
     }
-    return myStarts[index];
+    Chunk chunk = myChunks.get(findChunkIndex(index));
+    return chunk.starts[index - chunk.firstIndex] + chunk.shift;
   }
 
   public int getSegmentEnd(int index) {
     if (index < 0 || index >= mySegmentCount) {
       throw new IndexOutOfBoundsException("Wrong line: " + index + ". Available lines count: " + mySegmentCount);
     }
-    return myEnds[index];
+    Chunk chunk = myChunks.get(findChunkIndex(index));
+    return chunk.ends[index - chunk.firstIndex] + chunk.shift;
   }
 
 
@@ -195,4 +449,3 @@ public class SegmentArray {
     return mySegmentCount;
   }
 }
-
@@ -24,23 +24,15 @@ import org.jetbrains.annotations.NotNull;
  * Not thread-safe.
  */
 public class SegmentArrayWithData extends SegmentArray {
-  private short[] myData;
 
   public SegmentArrayWithData() {
-    myData = new short[INITIAL_SIZE];
+    super(true);
   }
 
   public void setElementAt(int i, int startOffset, int endOffset, int data) {
     if (data < 0 && data > Short.MAX_VALUE) throw new IndexOutOfBoundsException("data out of short range" + data);
     super.setElementAt(i, startOffset, endOffset);
-    myData = reallocateArray(myData, i+1);
-    myData[i] = (short)data;
-  }
-
-  @Override
-  public void remove(int startIndex, int endIndex) {
-    myData = remove(myData, startIndex, endIndex);
-    super.remove(startIndex, endIndex);
+    setData(i, (short)data);
   }
 
   public void replace(int startIndex, int endIndex, @NotNull SegmentArrayWithData newData) {
@@ -65,54 +57,23 @@ public class SegmentArrayWithData extends SegmentArray {
 
 
   protected void replace(int startOffset, @NotNull SegmentArrayWithData data, int len) {
-    System.arraycopy(data.myData, 0, myData, startOffset, len);
     super.replace(startOffset, data, len);
   }
 
   public void insert(@NotNull SegmentArrayWithData segmentArray, int startIndex) {
-    myData = insert(myData, segmentArray.myData, startIndex, segmentArray.getSegmentCount());
     super.insert(segmentArray, startIndex);
   }
 
-  @NotNull
-  private short[] insert(@NotNull short[] array, @NotNull short[] insertArray, int startIndex, int insertLength) {
-    short[] newArray = reallocateArray(array, mySegmentCount + insertLength);
-    if (startIndex < mySegmentCount) {
-      System.arraycopy(newArray, startIndex, newArray, startIndex + insertLength, mySegmentCount - startIndex);
-    }
-    System.arraycopy(insertArray, 0, newArray, startIndex, insertLength);
-    return newArray;
-  }
-
-  @NotNull
-  private short[] remove(@NotNull short[] array, int startIndex, int endIndex) {
-    if (endIndex < mySegmentCount) {
-      System.arraycopy(array, endIndex, array, startIndex, mySegmentCount - endIndex);
-    }
-    return array;
-  }
-
   public short getSegmentData(int index) {
     if(index < 0 || index >= mySegmentCount) {
       throw new IndexOutOfBoundsException("Wrong index: " + index);
     }
-    return myData[index];
+    return getData(index);
   }
 
   public void setSegmentData(int index, int data) {
     if(index < 0 || index >= mySegmentCount) throw new IndexOutOfBoundsException("Wrong index: " + index);
     if (data < 0 && data > Short.MAX_VALUE) throw new IndexOutOfBoundsException("data out of short range" + data);
-    myData[index] = (short)data;
-  }
-
-  @NotNull
-  private static short[] reallocateArray(@NotNull short[] array, int index) {
-    if (index < array.length) return array;
-
-    short[] newArray = new short[calcCapacity(array.length, index)];
-    System.arraycopy(array, 0, newArray, 0, array.length);
-    return newArray;
+    setData(index, (short)data);
   }
-
 }
-
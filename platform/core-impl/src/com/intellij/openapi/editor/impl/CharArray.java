@@ -62,6 +62,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
 
   private volatile CharSequence myOriginalSequence;
   private volatile char[] myArray;
+  private volatile boolean myArrayShared; // myArray is referenced by a snapshot and has to be copied before modification
   private volatile Reference<String> myStringRef; // buffers String value - for not to generate it every time
   private volatile int myBufferSize;
   private volatile int myDeferredShift;
@@ -169,6 +170,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
     myOriginalSequence = chars.toString();
     myArray = null;
+    myArrayShared = false;
     myStringRef = null;
     myCount = chars.length();
     assert myStart == 0; // can't change substring
@@ -266,6 +268,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       int newLength = newString.length();
       int oldLength = endOffset - startOffset;
 
+      unshareArray();
       CharArrayUtil.getChars(newString, myArray, startOffset, Math.min(newLength, oldLength));
       myStringRef = null;
 
@@ -300,6 +303,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       }
     }
     else {
+      unshareArray();
       if (endIndex < myCount) {
         System.arraycopy(myArray, endIndex, myArray, startIndex, myCount - endIndex);
         myStringRef = null;
@@ -329,6 +333,7 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     }
     else {
       int insertLength = s.length();
+      unshareArray();
       myArray = resizeArray(myArray, myCount + insertLength);
       if (startIndex < myCount) {
         System.arraycopy(myArray, startIndex, myArray, startIndex + insertLength, myCount - startIndex);
@@ -378,6 +383,35 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
     assertConsistency();
   }
 
+  private void unshareArray() {
+    if (myArrayShared) {
+      myArray = Arrays.copyOf(myArray, myArray.length);
+      myArrayShared = false;
+    }
+  }
+
+  /**
+   * @return the current text which stays unchanged by subsequent modifications. The backing array is not copied here
+   * but shared with the returned sequence until the next modification.
+   */
+  @NotNull
+  CharSequence getSnapshot() {
+    assertReadAccess();
+    String string = myStringRef == null ? null : myStringRef.get();
+    if (string != null) return string;
+    lock.lock();
+    try {
+      flushDeferredChanged();
+      CharSequence originalSequence = myOriginalSequence;
+      if (originalSequence != null) return originalSequence;
+      myArrayShared = true;
+      return new CharArrayCharSequence(myArray, myStart, myStart + myCount);
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+
   @NotNull
   public CharSequence getCharArray() {
     assertConsistency();
@@ -639,9 +673,11 @@ abstract class CharArray implements CharSequenceBackedByArray, Dumpable {
       final boolean inPlace;
       if (myArray.length < length()) {
         myArray = changesMerger.mergeToCharArray(myArray, myCount, changes);
+        myArrayShared = false;
         inPlace = false;
       }
       else {
+        unshareArray();
         changesMerger.mergeInPlace(myArray, myCount, changes);
         inPlace = true;
       }
@@ -35,6 +35,7 @@ import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.LocalTimeCounter;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NonNls;
@@ -51,6 +52,8 @@ import java.util.List;
 public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.impl.DocumentImpl");
   public static boolean CHECK_DOCUMENT_CONSISTENCY = ApplicationManager.getApplication().isUnitTestMode();
+  // keep the text in an ImmutableText instead of a CharArray: edits of big documents don't copy the text
+  private static final boolean USE_IMMUTABLE_TEXT = SystemProperties.getBooleanProperty("idea.document.immutable.text", false);
 
   private final List<DocumentListener> myDocumentListeners = ContainerUtil.createEmptyCOWList();
   private final RangeMarkerTree<RangeMarkerEx> myRangeMarkers = new RangeMarkerTree<RangeMarkerEx>(this);
@@ -58,7 +61,9 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   private ReadonlyFragmentModificationHandler myReadonlyFragmentModificationHandler;
 
   private final LineSet myLineSet = new LineSet();
-  private final CharArray myText;
+  @Nullable private final CharArray myText; // null if the text is kept in myImmutableText
+  private volatile ImmutableText myImmutableText;
+  private int myBufferSize;
 
   private boolean myIsReadOnly = false;
   private boolean isStripTrailingSpacesEnabled = true;
@@ -85,8 +90,18 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   }
 
   public DocumentImpl(@NotNull CharSequence chars, boolean forUseInNonAWTThread) {
+    this(chars, forUseInNonAWTThread, USE_IMMUTABLE_TEXT);
+  }
+
+  DocumentImpl(@NotNull CharSequence chars, boolean forUseInNonAWTThread, boolean useImmutableText) {
     assertValidSeparators(chars);
-    myText = new MyCharArray(CharArrayUtil.fromSequence(chars), chars.length());
+    if (useImmutableText) {
+      myText = null;
+      myImmutableText = ImmutableText.valueOf(chars);
+    }
+    else {
+      myText = new MyCharArray(CharArrayUtil.fromSequence(chars), chars.length());
+    }
     myLineSet.documentCreated(this);
     setCyclicBufferSize(0);
     setModificationStamp(LocalTimeCounter.currentTime());
@@ -102,14 +117,26 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     }
   }
 
+  /**
+   * @return the document chars, in the {@link ImmutableText} mode a flat copy of the text made once per modification
+   * @see #hasRawChars()
+   */
   public char[] getRawChars() {
-    return myText.getChars();
+    return myText != null ? myText.getChars() : myImmutableText.getChars();
+  }
+
+  /**
+   * @return true if {@link #getRawChars()} returns the text storage itself, false if it copies the whole text, then callers
+   * needing only a part of it should copy the part from {@link #getCharsSequence()}
+   */
+  public boolean hasRawChars() {
+    return myText != null;
   }
 
   @Override
   @NotNull
   public char[] getChars() {
-    return ArrayUtil.realloc(CharArrayUtil.fromSequence(getCharsSequence()), myText.length());
+    return ArrayUtil.realloc(CharArrayUtil.fromSequence(getCharsSequence()), getTextLength());
   }
 
   @Override
@@ -135,7 +162,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     }
 
     boolean markAsNeedsStrippingLater = false;
-    CharSequence text = myText.getCharArray();
+    CharSequence text = getCharsSequence();
     RangeMarker caretMarker = caretOffset < 0 || caretOffset > getTextLength() ? null : createRangeMarker(caretOffset, caretOffset);
     try {
       for (int line = 0; line < myLineSet.getLineCount(); line++) {
@@ -170,7 +197,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
               });
             }
           });
-          text = myText.getCharArray();
+          text = getCharsSequence();
         }
       }
     }
@@ -352,7 +379,13 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
       throwGuardedFragment(marker, offset, null, s.toString());
     }
 
-    myText.insert(s, offset);
+    if (myText != null) {
+      myText.insert(s, offset);
+    }
+    else {
+      updateImmutableText(myImmutableText.insert(offset, s), offset, null, s, LocalTimeCounter.currentTime(), false);
+      trimToBufferSize();
+    }
   }
 
   @Override
@@ -364,14 +397,19 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     if (startOffset == endOffset) return;
     assertNotNestedModification();
 
-    CharSequence sToDelete = myText.substring(startOffset, endOffset);
+    CharSequence sToDelete = substring(startOffset, endOffset);
 
     RangeMarker marker = getRangeGuard(startOffset, endOffset);
     if (marker != null) {
       throwGuardedFragment(marker, startOffset, sToDelete.toString(), null);
     }
 
-    myText.remove(startOffset, endOffset, sToDelete);
+    if (myText != null) {
+      myText.remove(startOffset, endOffset, sToDelete);
+    }
+    else {
+      updateImmutableText(myImmutableText.delete(startOffset, endOffset), startOffset, sToDelete, null, LocalTimeCounter.currentTime(), false);
+    }
   }
 
   @Override
@@ -437,13 +475,42 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     }
 
     s = s.subSequence(newStartInString, newEndInString);
-    CharSequence sToDelete = myText.substring(startOffset, endOffset);
+    CharSequence sToDelete = substring(startOffset, endOffset);
     RangeMarker guard = getRangeGuard(startOffset, endOffset);
     if (guard != null) {
       throwGuardedFragment(guard, startOffset, sToDelete.toString(), s.toString());
     }
 
-    myText.replace(startOffset, endOffset, sToDelete, s, newModificationStamp, wholeTextReplaced);
+    if (myText != null) {
+      myText.replace(startOffset, endOffset, sToDelete, s, newModificationStamp, wholeTextReplaced);
+    }
+    else {
+      updateImmutableText(myImmutableText.replace(startOffset, endOffset, s), startOffset, sToDelete, s, newModificationStamp,
+                          wholeTextReplaced);
+    }
+  }
+
+  @NotNull
+  private CharSequence substring(int startOffset, int endOffset) {
+    return myText != null ? myText.substring(startOffset, endOffset) : myImmutableText.subSequence(startOffset, endOffset);
+  }
+
+  private void updateImmutableText(@NotNull ImmutableText newText,
+                                   int offset,
+                                   @Nullable CharSequence oldString,
+                                   @Nullable CharSequence newString,
+                                   long newModificationStamp,
+                                   boolean wholeTextReplaced) {
+    final DocumentEvent event = beforeChangedUpdate(offset, oldString, newString, wholeTextReplaced);
+    myImmutableText = newText;
+    changedUpdate(event, newModificationStamp);
+  }
+
+  private void trimToBufferSize() {
+    final int length = getTextLength();
+    if (myBufferSize != 0 && length > myBufferSize) {
+      deleteString(0, length - myBufferSize);
+    }
   }
 
   private void assertBounds(final int startOffset, final int endOffset) {
@@ -607,7 +674,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return ApplicationManager.getApplication().runReadAction(new Computable<String>() {
       @Override
       public String compute() {
-        return myText.toString();
+        return myText != null ? myText.toString() : myImmutableText.toString();
       }
     });
   }
@@ -618,14 +685,14 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return ApplicationManager.getApplication().runReadAction(new Computable<String>() {
       @Override
       public String compute() {
-        return myText.substring(range.getStartOffset(), range.getEndOffset()).toString();
+        return substring(range.getStartOffset(), range.getEndOffset()).toString();
       }
     });
   }
 
   @Override
   public int getTextLength() {
-    return myText.length();
+    return myText != null ? myText.length() : myImmutableText.length();
   }
 
   /**
@@ -638,10 +705,22 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
     return getCharsSequence();
   }
 
+  /**
+   * @return the current text which stays unchanged by subsequent modifications, tagged with the current modification stamp.
+   * With ImmutableText storage it costs nothing and may be taken from any thread; otherwise it shares the text array
+   * which is copied on the next modification, and has to be taken in a read action.
+   */
+  @NotNull
+  public DocumentSnapshot getSnapshot() {
+    // the text is assigned before the stamp on modification: read the stamp first so that the text is never older than it
+    final long stamp = myModificationStamp;
+    return new DocumentSnapshot(myText != null ? myText.getSnapshot() : myImmutableText, stamp);
+  }
+
   @Override
   @NotNull
   public CharSequence getCharsSequence() {
-    return myText.getCharArray();
+    return myText != null ? myText.getCharArray() : myImmutableText;
   }
 
 
@@ -754,7 +833,13 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
 
   @Override
   public void setCyclicBufferSize(int bufferSize) {
-    myText.setBufferSize(bufferSize);
+    if (myText != null) {
+      myText.setBufferSize(bufferSize);
+    }
+    else {
+      assert bufferSize >= 0 : bufferSize;
+      myBufferSize = bufferSize;
+    }
   }
 
   @Override
@@ -794,7 +879,10 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
       return;
     }
     myDoingBulkUpdate = value;
-    myText.setDeferredChangeMode(value);
+    if (myText != null) {
+      // edits of ImmutableText are cheap enough without deferring
+      myText.setDeferredChangeMode(value);
+    }
     if (value) {
       getPublisher().updateStarted(this);
     }
@@ -825,7 +913,7 @@ public class DocumentImpl extends UserDataHolderBase implements DocumentEx {
   @NotNull
   public String dumpState() {
     @NonNls StringBuilder result = new StringBuilder();
-    result.append("deferred mode: ").append(myText.isDeferredChangeMode() ? "on" : "off");
+    result.append("deferred mode: ").append(myText != null && myText.isDeferredChangeMode() ? "on" : "off");
     result.append(", intervals:\n");
     for (int line = 0; line < getLineCount(); line++) {
       result.append(line).append(": ").append(getLineStartOffset(line)).append("-")
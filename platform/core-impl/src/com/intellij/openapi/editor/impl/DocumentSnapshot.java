@@ -0,0 +1,81 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.Document;
+import com.intellij.util.text.CharArrayCharSequence;
+import com.intellij.util.text.CharArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Immutable text of a document tagged with the modification stamp the document had when the text was taken.
+ * Background readers may work with the snapshot text without holding a read action for the whole time and check
+ * {@link #isUpToDate(Document)} before using the results.
+ *
+ * @see DocumentImpl#getSnapshot()
+ */
+public final class DocumentSnapshot {
+  private final CharSequence myText;
+  private final long myModificationStamp;
+
+  DocumentSnapshot(@NotNull CharSequence text, long modificationStamp) {
+    myText = text;
+    myModificationStamp = modificationStamp;
+  }
+
+  @NotNull
+  public static DocumentSnapshot of(@NotNull Document document) {
+    if (document instanceof DocumentImpl) {
+      return ((DocumentImpl)document).getSnapshot();
+    }
+    // the stamp is read first, so the text may only be newer than the stamp and never passes for an up-to-date one
+    final long stamp = document.getModificationStamp();
+    return new DocumentSnapshot(document.getText(), stamp);
+  }
+
+  /**
+   * Unlike {@link #of(Document)}, doesn't share the text array with the document, so the next modification doesn't copy
+   * the whole text: the text is copied by the calling thread right away, unless the document keeps it immutable anyway.
+   * Has to be called in a read action.
+   */
+  @NotNull
+  public static DocumentSnapshot copyOf(@NotNull Document document) {
+    if (document instanceof DocumentImpl && !((DocumentImpl)document).hasRawChars()) {
+      return ((DocumentImpl)document).getSnapshot();
+    }
+    final long stamp = document.getModificationStamp();
+    CharSequence text = document.getCharsSequence();
+    char[] chars = new char[text.length()];
+    CharArrayUtil.getChars(text, chars, 0);
+    return new DocumentSnapshot(new CharArrayCharSequence(chars), stamp);
+  }
+
+  /**
+   * @return the text which is never changed, reading it needs no read action
+   */
+  @NotNull
+  public CharSequence getText() {
+    return myText;
+  }
+
+  public long getModificationStamp() {
+    return myModificationStamp;
+  }
+
+  public boolean isUpToDate(@NotNull Document document) {
+    return document.getModificationStamp() == myModificationStamp;
+  }
+}
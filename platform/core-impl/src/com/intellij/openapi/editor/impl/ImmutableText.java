@@ -0,0 +1,329 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.util.text.CharArrayUtil;
+import com.intellij.util.text.CharSequenceBackedByArray;
+import org.jetbrains.annotations.NotNull;
+
+import java.lang.ref.Reference;
+import java.lang.ref.SoftReference;
+
+/**
+ * Immutable text stored as a balanced tree (rope) of small char blocks. Insertions, removals and {@link #subSequence(int, int)}
+ * take O(log n) time and share all untouched blocks with the original text, so every version of a big document
+ * can be kept and read concurrently without copying.
+ * <p/>
+ * The tree is kept weight-balanced on concatenation: no child of a node is more than twice as long as its sibling
+ * unless a rotation is impossible.
+ */
+public final class ImmutableText implements CharSequenceBackedByArray {
+  private static final int BLOCK_SIZE = 1 << 9;
+  public static final ImmutableText EMPTY = new ImmutableText(new Leaf(new char[0]));
+
+  private final Node myRoot;
+  // the last leaf accessed by charAt(), sequential reads don't need to descend from the root
+  private volatile LeafRef myLastLeaf;
+  private volatile Reference<String> myStringRef;
+  private volatile Reference<char[]> myCharsRef;
+
+  private ImmutableText(@NotNull Node root) {
+    myRoot = root;
+  }
+
+  @NotNull
+  public static ImmutableText valueOf(@NotNull CharSequence text) {
+    if (text instanceof ImmutableText) {
+      return (ImmutableText)text;
+    }
+    return text.length() == 0 ? EMPTY : new ImmutableText(nodeOf(text, 0, text.length()));
+  }
+
+  @NotNull
+  private static Node nodeOf(@NotNull CharSequence text, int start, int end) {
+    final int length = end - start;
+    if (length <= BLOCK_SIZE) {
+      final char[] data = new char[length];
+      CharArrayUtil.getChars(text, data, start, 0, length);
+      return new Leaf(data);
+    }
+    final int half = (length + 1) >> 1;
+    return new Composite(nodeOf(text, start, start + half), nodeOf(text, start + half, end));
+  }
+
+  @NotNull
+  public ImmutableText concat(@NotNull CharSequence text) {
+    if (text.length() == 0) return this;
+    return length() == 0 ? valueOf(text) : new ImmutableText(concat(myRoot, valueOf(text).myRoot));
+  }
+
+  @NotNull
+  public ImmutableText insert(int offset, @NotNull CharSequence text) {
+    if (text.length() == 0) return this;
+    return subtext(0, offset).concat(text).concat(subtext(offset, length()));
+  }
+
+  @NotNull
+  public ImmutableText delete(int start, int end) {
+    if (start == end) return this;
+    checkRange(start, end);
+    return subtext(0, start).concat(subtext(end, length()));
+  }
+
+  @NotNull
+  public ImmutableText replace(int start, int end, @NotNull CharSequence text) {
+    return delete(start, end).insert(start, text);
+  }
+
+  @NotNull
+  private ImmutableText subtext(int start, int end) {
+    if (start == 0 && end == length()) return this;
+    if (start == end) return EMPTY;
+    return new ImmutableText(myRoot.subNode(start, end));
+  }
+
+  @Override
+  public int length() {
+    return myRoot.length();
+  }
+
+  @Override
+  public char charAt(int index) {
+    if (index < 0 || index >= length()) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + index + "; count:" + length());
+    }
+    LeafRef leaf = myLastLeaf;
+    if (leaf == null || index < leaf.myOffset || index >= leaf.myOffset + leaf.myLeaf.myData.length) {
+      myLastLeaf = leaf = findLeaf(index);
+    }
+    return leaf.myLeaf.myData[index - leaf.myOffset];
+  }
+
+  @NotNull
+  private LeafRef findLeaf(int index) {
+    Node node = myRoot;
+    int offset = 0;
+    while (node instanceof Composite) {
+      final Composite composite = (Composite)node;
+      final int headLength = composite.myHead.length();
+      if (index < offset + headLength) {
+        node = composite.myHead;
+      }
+      else {
+        offset += headLength;
+        node = composite.myTail;
+      }
+    }
+    return new LeafRef((Leaf)node, offset);
+  }
+
+  @NotNull
+  @Override
+  public ImmutableText subSequence(int start, int end) {
+    checkRange(start, end);
+    return subtext(start, end);
+  }
+
+  private void checkRange(int start, int end) {
+    if (start < 0 || start > end || end > length()) {
+      throw new IndexOutOfBoundsException("Wrong range: " + start + "-" + end + "; count:" + length());
+    }
+  }
+
+  /**
+   * @return a flat copy of the text, cached until it's garbage collected. The array must not be modified.
+   */
+  @NotNull
+  @Override
+  public char[] getChars() {
+    final Reference<char[]> ref = myCharsRef;
+    char[] chars = ref == null ? null : ref.get();
+    if (chars == null) {
+      chars = new char[length()];
+      myRoot.getChars(chars, 0);
+      myCharsRef = new SoftReference<char[]>(chars);
+    }
+    return chars;
+  }
+
+  @Override
+  public void getChars(@NotNull char[] dst, int dstOffset) {
+    myRoot.getChars(dst, dstOffset);
+  }
+
+  @NotNull
+  @Override
+  public String toString() {
+    final Reference<String> ref = myStringRef;
+    String string = ref == null ? null : ref.get();
+    if (string == null) {
+      final Reference<char[]> charsRef = myCharsRef;
+      final char[] chars = charsRef == null ? null : charsRef.get();
+      if (chars != null) {
+        string = new String(chars);
+      }
+      else {
+        final char[] data = new char[length()];
+        myRoot.getChars(data, 0);
+        string = new String(data);
+      }
+      myStringRef = new SoftReference<String>(string);
+    }
+    return string;
+  }
+
+  int getDepth() {
+    return myRoot.depth();
+  }
+
+  @NotNull
+  private static Node concat(@NotNull Node head, @NotNull Node tail) {
+    final int length = head.length() + tail.length();
+    if (length <= BLOCK_SIZE) {
+      final char[] data = new char[length];
+      head.getChars(data, 0);
+      tail.getChars(data, head.length());
+      return new Leaf(data);
+    }
+
+    if (head.length() << 1 < tail.length() && tail instanceof Composite) {
+      // head is too short, returns (head + tail.head) + tail.tail
+      Composite composite = (Composite)tail;
+      if (composite.myHead.length() > composite.myTail.length()) {
+        composite = composite.rightRotation();
+      }
+      return new Composite(concat(head, composite.myHead), composite.myTail);
+    }
+    if (tail.length() << 1 < head.length() && head instanceof Composite) {
+      // tail is too short, returns head.head + (head.tail + tail)
+      Composite composite = (Composite)head;
+      if (composite.myTail.length() > composite.myHead.length()) {
+        composite = composite.leftRotation();
+      }
+      return new Composite(composite.myHead, concat(composite.myTail, tail));
+    }
+    return new Composite(head, tail);
+  }
+
+  private static abstract class Node {
+    abstract int length();
+
+    abstract int depth();
+
+    abstract void getChars(@NotNull char[] dst, int dstOffset);
+
+    @NotNull
+    abstract Node subNode(int start, int end);
+  }
+
+  private static final class Leaf extends Node {
+    private final char[] myData;
+
+    private Leaf(@NotNull char[] data) {
+      myData = data;
+    }
+
+    @Override
+    int length() {
+      return myData.length;
+    }
+
+    @Override
+    int depth() {
+      return 0;
+    }
+
+    @Override
+    void getChars(@NotNull char[] dst, int dstOffset) {
+      System.arraycopy(myData, 0, dst, dstOffset, myData.length);
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == myData.length) return this;
+      final char[] data = new char[end - start];
+      System.arraycopy(myData, start, data, 0, data.length);
+      return new Leaf(data);
+    }
+  }
+
+  private static final class Composite extends Node {
+    private final Node myHead;
+    private final Node myTail;
+    private final int myLength;
+    private final int myDepth;
+
+    private Composite(@NotNull Node head, @NotNull Node tail) {
+      myHead = head;
+      myTail = tail;
+      myLength = head.length() + tail.length();
+      myDepth = Math.max(head.depth(), tail.depth()) + 1;
+    }
+
+    @Override
+    int length() {
+      return myLength;
+    }
+
+    @Override
+    int depth() {
+      return myDepth;
+    }
+
+    @Override
+    void getChars(@NotNull char[] dst, int dstOffset) {
+      myHead.getChars(dst, dstOffset);
+      myTail.getChars(dst, dstOffset + myHead.length());
+    }
+
+    @NotNull
+    @Override
+    Node subNode(int start, int end) {
+      if (start == 0 && end == myLength) return this;
+      final int cesure = myHead.length();
+      if (end <= cesure) return myHead.subNode(start, end);
+      if (start >= cesure) return myTail.subNode(start - cesure, end - cesure);
+      return concat(myHead.subNode(start, cesure), myTail.subNode(0, end - cesure));
+    }
+
+    // (A + B) + C -> A + (B + C)
+    @NotNull
+    private Composite rightRotation() {
+      if (!(myHead instanceof Composite)) return this;
+      final Composite head = (Composite)myHead;
+      return new Composite(head.myHead, new Composite(head.myTail, myTail));
+    }
+
+    // A + (B + C) -> (A + B) + C
+    @NotNull
+    private Composite leftRotation() {
+      if (!(myTail instanceof Composite)) return this;
+      final Composite tail = (Composite)myTail;
+      return new Composite(new Composite(myHead, tail.myHead), tail.myTail);
+    }
+  }
+
+  private static final class LeafRef {
+    private final Leaf myLeaf;
+    private final int myOffset;
+
+    private LeafRef(@NotNull Leaf leaf, int offset) {
+      myLeaf = leaf;
+      myOffset = offset;
+    }
+  }
+}
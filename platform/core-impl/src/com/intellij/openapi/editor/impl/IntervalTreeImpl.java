@@ -30,9 +30,7 @@ import org.jetbrains.annotations.NotNull;
 
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
-import java.util.ConcurrentModificationException;
-import java.util.List;
-import java.util.NoSuchElementException;
+import java.util.*;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReadWriteLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
@@ -53,7 +51,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     private volatile int myEnd;
     private volatile boolean isValid = true;
     private volatile boolean isAttachedToTree; // true if the node is inserted to the tree
-    protected final List<Getter<E>> intervals;
+    // the only Getter<E> of the node or Getter<E>[] when several intervals share it; most nodes hold one interval, so no list per node
+    private Object myIntervals;
     protected int maxEnd; // max of all intervalEnd()s among all children.
     protected int delta;  // delta of startOffset. getStartOffset() = myStartOffset + Sum of deltas up to root
 
@@ -70,7 +69,55 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       myIntervalTree = intervalTree;
       myStart = start;
       myEnd = end;
-      intervals = new SmartList<Getter<E>>(createGetter(key));
+      myIntervals = createGetter(key);
+    }
+
+    final int intervalCount() {
+      Object intervals = myIntervals;
+      return intervals instanceof Getter[] ? ((Getter[])intervals).length : intervals == null ? 0 : 1;
+    }
+
+    final Getter<E> intervalAt(int index) {
+      Object intervals = myIntervals;
+      //noinspection unchecked
+      return intervals instanceof Getter[] ? ((Getter<E>[])intervals)[index] : (Getter<E>)intervals;
+    }
+
+    private void addGetter(@NotNull Getter<E> getter) {
+      Object intervals = myIntervals;
+      if (intervals == null) {
+        myIntervals = getter;
+      }
+      else if (intervals instanceof Getter[]) {
+        Getter[] array = (Getter[])intervals;
+        Getter[] newArray = new Getter[array.length + 1];
+        System.arraycopy(array, 0, newArray, 0, array.length);
+        newArray[array.length] = getter;
+        myIntervals = newArray;
+      }
+      else {
+        myIntervals = new Getter[]{(Getter)intervals, getter};
+      }
+    }
+
+    private void removeGetterAt(int index) {
+      Object intervals = myIntervals;
+      if (intervals instanceof Getter[]) {
+        Getter[] array = (Getter[])intervals;
+        if (array.length == 2) {
+          myIntervals = array[1 - index];
+        }
+        else {
+          Getter[] newArray = new Getter[array.length - 1];
+          System.arraycopy(array, 0, newArray, 0, index);
+          System.arraycopy(array, index + 1, newArray, index, newArray.length - index);
+          myIntervals = newArray;
+        }
+      }
+      else {
+        assert index == 0 && intervals != null : index;
+        myIntervals = null;
+      }
     }
 
     @Override
@@ -90,9 +137,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
     @Override
     public boolean processAliveKeys(@NotNull Processor<? super E> processor) {
-      //noinspection ForLoopReplaceableByForEach
-      for (int i = 0; i < intervals.size(); i++) {
-        Getter<E> interval = intervals.get(i);
+      for (int i = 0; i < intervalCount(); i++) {
+        Getter<E> interval = intervalAt(i);
         E key = interval.get();
         if (key != null && !processor.process(key)) return false;
       }
@@ -102,8 +148,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     @Override
     public boolean hasAliveKey(boolean purgeDead) {
       boolean hasAliveInterval = false;
-      for (int i = intervals.size() - 1; i >= 0; i--) {
-        Getter<E> interval = intervals.get(i);
+      for (int i = intervalCount() - 1; i >= 0; i--) {
+        Getter<E> interval = intervalAt(i);
         if (interval.get() != null) {
           hasAliveInterval = true;
           if (purgeDead) {
@@ -126,24 +172,24 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     private boolean removeInterval(@NotNull E key) {
       myIntervalTree.checkBelongsToTheTree(key, true);
       myIntervalTree.assertUnderWriteLock();
-      for (int i = intervals.size() - 1; i >= 0; i--) {
-        Getter<E> interval = intervals.get(i);
+      for (int i = intervalCount() - 1; i >= 0; i--) {
+        Getter<E> interval = intervalAt(i);
         E t = interval.get();
         if (t == key) {
           removeIntervalInternal(i);
-          if (intervals.isEmpty()) {
+          if (intervalCount() == 0) {
             myIntervalTree.removeNode(this);
             return true;
           }
           return false;
         }
       }
-      assert false: "interval not found: "+key +"; "+ intervals+"; isValid="+key.isValid();
+      assert false: "interval not found: "+key +"; "+ intervalsToString()+"; isValid="+key.isValid();
       return false;
     }
 
     public void removeIntervalInternal(int i) {
-      intervals.remove(i);
+      removeGetterAt(i);
       if (isAttachedToTree) {   // for detached node, do not update tree node count
         assert myIntervalTree.keySize > 0 : myIntervalTree.keySize;
         myIntervalTree.keySize--;
@@ -152,7 +198,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
 
     public void addInterval(@NotNull E interval) {
       myIntervalTree.assertUnderWriteLock();
-      intervals.add(createGetter(interval));
+      addGetter(createGetter(interval));
       if (isAttachedToTree) { // for detached node, do not update tree node count
         myIntervalTree.keySize++;
         myIntervalTree.setNode(interval, this);
@@ -358,7 +404,13 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     @NonNls
     @Override
     public String toString() {
-      return "Node: " + intervals;
+      return "Node: " + intervalsToString();
+    }
+
+    @NonNls
+    String intervalsToString() {
+      Object intervals = myIntervals;
+      return intervals instanceof Getter[] ? Arrays.toString((Getter[])intervals) : "[" + intervals + "]";
     }
   }
 
@@ -578,8 +630,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
           if (currentNode == null) return false;
 
           if (modCount != modCountBefore) throw new ConcurrentModificationException();
-          while (indexInCurrentList != currentNode.intervals.size()) {
-            T t = currentNode.intervals.get(indexInCurrentList++).get();
+          while (indexInCurrentList != currentNode.intervalCount()) {
+            T t = currentNode.intervalAt(indexInCurrentList++).get();
             if (t != null) {
               current = t;
               return true;
@@ -594,8 +646,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
             if (overlaps(currentNode, startOffset, endOffset, deltaUpToRootExclusive)) {
               assert currentNode.intervalStart() + deltaUpToRootExclusive + currentNode.delta >= firstOverlapStart;
               indexInCurrentList = 0;
-              while (indexInCurrentList != currentNode.intervals.size()) {
-                T t = currentNode.intervals.get(indexInCurrentList++).get();
+              while (indexInCurrentList != currentNode.intervalCount()) {
+                T t = currentNode.intervalAt(indexInCurrentList++).get();
                 if (t != null) {
                   current = t;
                   return true;
@@ -722,7 +774,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     node.setCachedValues(0, true, modCount);
     correctMaxUp(node);
     onInsertNode();
-    keySize += node.intervals.size();
+    keySize += node.intervalCount();
     insertCase1(node);
     node.isAttachedToTree = true;
     verifyProperties();
@@ -768,6 +820,79 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     }
   }
 
+  // adds the batch of intervals (e.g. all highlighters of the freshly highlighted file) at once.
+  // into the empty tree it is O(n) when the batch comes sorted: nodes are linked into the balanced tree directly, without rebalancing on each insert.
+  // otherwise falls back to addInterval() one by one
+  public void addIntervals(@NotNull List<? extends T> intervals,
+                           @NotNull int[] starts,
+                           @NotNull int[] ends,
+                           boolean greedyToLeft,
+                           boolean greedyToRight,
+                           int layer) {
+    assert intervals.size() == starts.length && intervals.size() == ends.length : intervals.size() + "; " + starts.length + "; " + ends.length;
+    try {
+      l.writeLock().lock();
+      checkMax(true);
+      processReferenceQueue();
+      if (root != null) {
+        for (int i = 0; i < intervals.size(); i++) {
+          addInterval(intervals.get(i), starts[i], ends[i], greedyToLeft, greedyToRight, layer);
+        }
+        return;
+      }
+      modCount++;
+      List<IntervalNode<T>> nodes = new ArrayList<IntervalNode<T>>(intervals.size());
+      for (int i = 0; i < intervals.size(); i++) {
+        T interval = intervals.get(i);
+        assert lookupNode(interval) == null : interval;
+        nodes.add(createNewNode(interval, starts[i], ends[i], greedyToLeft, greedyToRight, layer));
+      }
+      Comparator<IntervalNode<T>> comparator = new Comparator<IntervalNode<T>>() {
+        @Override
+        public int compare(IntervalNode<T> i1, IntervalNode<T> i2) {
+          int d = i1.intervalStart() - i2.intervalStart();
+          return d != 0 ? d : compareEqualStartIntervals(i1, i2);
+        }
+      };
+      Collections.sort(nodes, comparator); // linear for the already sorted batch
+
+      // equal intervals share the node, as in findOrInsert()
+      List<IntervalNode<T>> distinct = new ArrayList<IntervalNode<T>>(nodes.size());
+      for (IntervalNode<T> node : nodes) {
+        IntervalNode<T> last = distinct.isEmpty() ? null : distinct.get(distinct.size() - 1);
+        if (last != null && comparator.compare(last, node) == 0) {
+          last.addInterval(node.intervalAt(0).get());
+        }
+        else {
+          distinct.add(node);
+        }
+      }
+
+      buildBalanced(distinct);
+      attachBuiltSubtree(getRoot());
+      checkMax(true);
+    }
+    finally {
+      l.writeLock().unlock();
+    }
+  }
+
+  // returns maxEnd of the subtree; deltas of freshly linked nodes are all zero
+  private int attachBuiltSubtree(IntervalNode<T> node) {
+    if (node == null) return 0;
+    int leftMaxEnd = attachBuiltSubtree(node.getLeft());
+    int rightMaxEnd = attachBuiltSubtree(node.getRight());
+    node.maxEnd = Math.max(node.intervalEnd(), Math.max(leftMaxEnd, rightMaxEnd));
+    node.setCachedValues(0, true, modCount);
+    keySize += node.intervalCount();
+    node.isAttachedToTree = true;
+    for (int i = 0; i < node.intervalCount(); i++) {
+      T interval = node.intervalAt(i).get();
+      if (interval != null) setNode(interval, node);
+    }
+    return node.maxEnd;
+  }
+
   // returns true if all markers are valid
   public boolean checkMax(boolean assertInvalid) {
     return VERIFY && doCheckMax(assertInvalid);
@@ -819,8 +944,8 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       assert IntervalNode.deltaUpToRoot(packedOffsets) == root.delta + deltaUpToRootExclusive;
     }
     T liveInterval = null;
-    for (int i = root.intervals.size() - 1; i >= 0; i--) {
-      T t = root.intervals.get(i).get();
+    for (int i = root.intervalCount() - 1; i >= 0; i--) {
+      T t = root.intervalAt(i).get();
       if (t == null) continue;
       liveInterval = t;
       checkBelongsToTheTree(t, false);
@@ -831,7 +956,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       checkBelongsToTheTree(liveInterval, true);
     }
 
-    keyCounter[0]+= root.intervals.size();
+    keyCounter[0]+= root.intervalCount();
     nodeCounter[0]++;
     int delta = deltaUpToRootExclusive + (root.isValid() ? root.delta : 0);
     IntTrinity l = checkMax(root.getLeft(), delta, assertInvalid, allValid, keyCounter, nodeCounter, ids, root.delta == 0 && allDeltasUpAreNull);
@@ -885,10 +1010,10 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     if (!VERIFY) return;
 
     if (assertInvalid) {
-      assert !root.intervals.isEmpty();
+      assert root.intervalCount() != 0;
       boolean contains = false;
-      for (int i = root.intervals.size() - 1; i >= 0; i--) {
-        T key = root.intervals.get(i).get();
+      for (int i = root.intervalCount() - 1; i >= 0; i--) {
+        T key = root.intervalAt(i).get();
         if (key == null) continue;
         contains |= key == interval;
         IntervalNode<T> node = lookupNode(key);
@@ -896,7 +1021,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
         assert node.getTree() == this : node;
       }
 
-      assert contains : root.intervals + "; " + interval;
+      assert contains : root.intervalsToString() + "; " + interval;
     }
 
     IntervalNode<T> e = root;
@@ -946,7 +1071,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
     assertAllDeltasAreNull(node);
     super.deleteNode(n);
 
-    keySize -= node.intervals.size();
+    keySize -= node.intervalCount();
     assert keySize >= 0 : keySize;
     node.isAttachedToTree = false;
   }
@@ -1195,7 +1320,7 @@ public abstract class IntervalTreeImpl<T extends MutableInterval> extends RedBla
       if (node == null) return;
       int before = size();
       boolean nodeRemoved = node.removeInterval(interval);
-      assert nodeRemoved || !node.intervals.isEmpty();
+      assert nodeRemoved || node.intervalCount() != 0;
 
       IntervalNode<T> insertedNode = addInterval(interval, start, end, greedyToLeft, greedyToRight, layer);
       assert node != insertedNode;
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Lines of a text stored in blocks of up to {@link #MAX_BLOCK_SIZE} lines. A block keeps line starts relative to its own start,
+ * and Fenwick trees over block lengths and line counts give absolute offsets. Changing the length of a line costs
+ * O(block size + log(blocks)), replacing a range of lines costs O(block size + replaced lines + log(blocks)) as long as
+ * the number of touched blocks stays the same; otherwise the trees are rebuilt in O(blocks), which happens once per
+ * about {@link #MAX_BLOCK_SIZE}/2 added lines or {@link #MIN_BLOCK_SIZE} removed ones. Offset/line lookups take O(log n).
+ * <p/>
+ * Every line has a byte of client data. Modifications are not thread-safe, concurrent lookups are.
+ */
+final class LineBlocks {
+  static final int MAX_BLOCK_SIZE = 512;
+  private static final int MIN_BLOCK_SIZE = MAX_BLOCK_SIZE / 4;
+
+  private final List<Block> myBlocks = new ArrayList<Block>();
+  private int[] myLengthTree = new int[1]; // Fenwick trees indexed from 1
+  private int[] myCountTree = new int[1];
+  private int myLineCount;
+  private int myTextLength;
+  // the block of the last lookup, lookups of nearby lines don't need to query the trees
+  private volatile BlockRef myLastBlock;
+
+  private static final class Block {
+    private int[] myStarts;
+    private byte[] myData;
+    private int myCount;
+    private int myLength;
+
+    private Block(int capacity) {
+      myStarts = new int[capacity];
+      myData = new byte[capacity];
+    }
+
+    private int getLineLength(int index) {
+      return (index + 1 < myCount ? myStarts[index + 1] : myLength) - myStarts[index];
+    }
+
+    private void add(int length, byte data) {
+      if (myCount == myStarts.length) {
+        final int capacity = Math.min(Math.max(myCount * 2, 16), MAX_BLOCK_SIZE * 2);
+        myStarts = copyOf(myStarts, capacity);
+        myData = copyOf(myData, capacity);
+      }
+      myStarts[myCount] = myLength;
+      myData[myCount] = data;
+      myCount++;
+      myLength += length;
+    }
+  }
+
+  private static final class BlockRef {
+    private final Block myBlock;
+    private final int myIndex;
+    private final int myFirstLine;
+    private final int myStartOffset;
+
+    private BlockRef(@NotNull Block block, int index, int firstLine, int startOffset) {
+      myBlock = block;
+      myIndex = index;
+      myFirstLine = firstLine;
+      myStartOffset = startOffset;
+    }
+  }
+
+  int getLineCount() {
+    return myLineCount;
+  }
+
+  int getTextLength() {
+    return myTextLength;
+  }
+
+  int getLineStart(int line) {
+    final BlockRef ref = findBlockByLine(line);
+    return ref.myStartOffset + ref.myBlock.myStarts[line - ref.myFirstLine];
+  }
+
+  int getLineEnd(int line) {
+    final BlockRef ref = findBlockByLine(line);
+    final int index = line - ref.myFirstLine;
+    return ref.myStartOffset + ref.myBlock.myStarts[index] + ref.myBlock.getLineLength(index);
+  }
+
+  byte getData(int line) {
+    final BlockRef ref = findBlockByLine(line);
+    return ref.myBlock.myData[line - ref.myFirstLine];
+  }
+
+  void setData(int line, int data) {
+    final BlockRef ref = findBlockByLine(line);
+    ref.myBlock.myData[line - ref.myFirstLine] = (byte)data;
+  }
+
+  /**
+   * @return the line containing the offset; the text length belongs to the last line
+   */
+  int findLineIndex(int offset) {
+    if (myLineCount == 0) {
+      if (offset == 0) return 0;
+      throw new IllegalStateException("no segments available. offset = " + offset);
+    }
+    if (offset > myTextLength || offset < 0) {
+      throw new IndexOutOfBoundsException("Wrong offset: " + offset + ". Should be in range: [0, " + myTextLength + "]");
+    }
+    if (offset == myTextLength) return myLineCount - 1;
+
+    BlockRef ref = myLastBlock;
+    if (ref == null || offset < ref.myStartOffset || offset >= ref.myStartOffset + ref.myBlock.myLength) {
+      final int blockIndex = lowerBound(myLengthTree, offset);
+      ref = createRef(blockIndex);
+      myLastBlock = ref;
+    }
+
+    // the last line starting at or before the offset
+    final Block block = ref.myBlock;
+    final int localOffset = offset - ref.myStartOffset;
+    int low = 0;
+    int high = block.myCount - 1;
+    while (low < high) {
+      final int mid = (low + high + 1) >>> 1;
+      if (block.myStarts[mid] <= localOffset) {
+        low = mid;
+      }
+      else {
+        high = mid - 1;
+      }
+    }
+    return ref.myFirstLine + low;
+  }
+
+  void changeLineLength(int line, int change) {
+    final BlockRef ref = findBlockByLine(line);
+    final Block block = ref.myBlock;
+    for (int i = line - ref.myFirstLine + 1; i < block.myCount; i++) {
+      block.myStarts[i] += change;
+    }
+    block.myLength += change;
+    myTextLength += change;
+    add(myLengthTree, ref.myIndex, change);
+    myLastBlock = null;
+  }
+
+  /**
+   * Replaces lines <code>[startLine; endLine)</code> with the given ones, <code>startLine == getLineCount()</code> appends.
+   */
+  void replace(int startLine, int endLine, @NotNull int[] lengths, @NotNull byte[] data, int count) {
+    assert 0 <= startLine && startLine <= endLine && endLine <= myLineCount : startLine + "-" + endLine + " of " + myLineCount;
+    myLastBlock = null;
+    boolean rebuild = myBlocks.isEmpty();
+    if (rebuild) {
+      myBlocks.add(new Block(Math.min(Math.max(count, 16), MAX_BLOCK_SIZE * 2)));
+    }
+
+    final int firstBlock = startLine == myLineCount ? myBlocks.size() - 1 : findBlockIndex(startLine);
+    final int lastBlock = endLine == startLine ? firstBlock : findBlockIndex(endLine - 1);
+    final int firstBlockLine = prefixSum(myCountTree, firstBlock);
+    final int lastBlockLine = prefixSum(myCountTree, lastBlock);
+
+    // lines before the range in the first block, the new lines and lines after the range in the last block
+    final Block head = myBlocks.get(firstBlock);
+    final Block tail = myBlocks.get(lastBlock);
+    final int headCount = startLine - firstBlockLine;
+    final int tailStart = endLine - lastBlockLine;
+    final int total = headCount + count + tail.myCount - tailStart;
+    final int oldBlocksNumber = lastBlock - firstBlock + 1;
+    int blocksNumber = (total + MAX_BLOCK_SIZE - 1) / MAX_BLOCK_SIZE;
+    if (blocksNumber < oldBlocksNumber && total >= oldBlocksNumber * MIN_BLOCK_SIZE) {
+      blocksNumber = oldBlocksNumber; // keep the number of blocks, then the trees are updated in place
+    }
+    final List<Block> newBlocks = new ArrayList<Block>(blocksNumber);
+    for (int i = 0; i < headCount; i++) {
+      append(newBlocks, total, blocksNumber, head.getLineLength(i), head.myData[i]);
+    }
+    for (int i = 0; i < count; i++) {
+      append(newBlocks, total, blocksNumber, lengths[i], data[i]);
+    }
+    for (int i = tailStart; i < tail.myCount; i++) {
+      append(newBlocks, total, blocksNumber, tail.getLineLength(i), tail.myData[i]);
+    }
+
+    final List<Block> blocks = myBlocks.subList(firstBlock, lastBlock + 1);
+    final Block[] oldBlocks = blocks.toArray(new Block[oldBlocksNumber]);
+    if (blocksNumber == oldBlocksNumber) {
+      for (int i = 0; i < blocksNumber; i++) {
+        blocks.set(i, newBlocks.get(i));
+      }
+    }
+    else {
+      blocks.clear();
+      blocks.addAll(newBlocks);
+      rebuild = true;
+    }
+    rebuild |= mergeSmallBlocks(Math.max(0, firstBlock - 1), Math.min(myBlocks.size(), firstBlock + blocksNumber + 1));
+
+    if (rebuild) {
+      rebuildTrees();
+      return;
+    }
+    // only the paths of the replaced blocks change
+    for (int i = 0; i < blocksNumber; i++) {
+      final Block oldBlock = oldBlocks[i];
+      final Block block = myBlocks.get(firstBlock + i);
+      add(myLengthTree, firstBlock + i, block.myLength - oldBlock.myLength);
+      add(myCountTree, firstBlock + i, block.myCount - oldBlock.myCount);
+      myTextLength += block.myLength - oldBlock.myLength;
+      myLineCount += block.myCount - oldBlock.myCount;
+    }
+  }
+
+  // lines are split evenly, so that the next insertions don't split the blocks again
+  private static void append(@NotNull List<Block> blocks, int total, int blocksNumber, int length, byte data) {
+    Block current = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+    if (current == null || current.myCount == getBlockSize(total, blocksNumber, blocks.size() - 1)) {
+      current = new Block(getBlockSize(total, blocksNumber, blocks.size()));
+      blocks.add(current);
+    }
+    current.add(length, data);
+  }
+
+  private static int getBlockSize(int total, int blocksNumber, int index) {
+    return total / blocksNumber + (index < total % blocksNumber ? 1 : 0);
+  }
+
+  /**
+   * @return true if some blocks have been merged
+   */
+  private boolean mergeSmallBlocks(int from, int to) {
+    boolean merged = false;
+    for (int i = Math.min(to, myBlocks.size()) - 1; i > from; i--) {
+      final Block previous = myBlocks.get(i - 1);
+      final Block block = myBlocks.get(i);
+      if (previous.myCount + block.myCount <= MAX_BLOCK_SIZE && (previous.myCount < MIN_BLOCK_SIZE || block.myCount < MIN_BLOCK_SIZE)) {
+        for (int j = 0; j < block.myCount; j++) {
+          previous.add(block.getLineLength(j), block.myData[j]);
+        }
+        myBlocks.remove(i);
+        merged = true;
+      }
+    }
+    return merged;
+  }
+
+  void removeAll() {
+    myBlocks.clear();
+    rebuildTrees();
+  }
+
+  private void rebuildTrees() {
+    final int size = myBlocks.size();
+    myLengthTree = new int[size + 1];
+    myCountTree = new int[size + 1];
+    myLineCount = 0;
+    myTextLength = 0;
+    for (int i = 0; i < size; i++) {
+      final Block block = myBlocks.get(i);
+      myLengthTree[i + 1] = block.myLength;
+      myCountTree[i + 1] = block.myCount;
+      myLineCount += block.myCount;
+      myTextLength += block.myLength;
+    }
+    // O(n) Fenwick tree construction
+    for (int i = 1; i <= size; i++) {
+      final int parent = i + (i & -i);
+      if (parent <= size) {
+        myLengthTree[parent] += myLengthTree[i];
+        myCountTree[parent] += myCountTree[i];
+      }
+    }
+    myLastBlock = null;
+  }
+
+  @NotNull
+  private BlockRef findBlockByLine(int line) {
+    if (line < 0 || line >= myLineCount) {
+      throw new IndexOutOfBoundsException("Wrong line: " + line + ". Available lines count: " + myLineCount);
+    }
+    BlockRef ref = myLastBlock;
+    if (ref == null || line < ref.myFirstLine || line >= ref.myFirstLine + ref.myBlock.myCount) {
+      ref = createRef(findBlockIndex(line));
+      myLastBlock = ref;
+    }
+    return ref;
+  }
+
+  private int findBlockIndex(int line) {
+    return lowerBound(myCountTree, line);
+  }
+
+  @NotNull
+  private BlockRef createRef(int blockIndex) {
+    return new BlockRef(myBlocks.get(blockIndex), blockIndex, prefixSum(myCountTree, blockIndex), prefixSum(myLengthTree, blockIndex));
+  }
+
+  // sum of the first count elements
+  private static int prefixSum(@NotNull int[] tree, int count) {
+    int sum = 0;
+    for (int i = count; i > 0; i -= i & -i) {
+      sum += tree[i];
+    }
+    return sum;
+  }
+
+  private static void add(@NotNull int[] tree, int index, int delta) {
+    for (int i = index + 1; i < tree.length; i += i & -i) {
+      tree[i] += delta;
+    }
+  }
+
+  // the index of the element containing the value: the least index with prefixSum(index + 1) > value
+  private static int lowerBound(@NotNull int[] tree, int value) {
+    int index = 0;
+    for (int step = Integer.highestOneBit(tree.length); step > 0; step >>= 1) {
+      final int next = index + step;
+      if (next < tree.length && tree[next] <= value) {
+        index = next;
+        value -= tree[next];
+      }
+    }
+    return index;
+  }
+
+  @NotNull
+  private static int[] copyOf(@NotNull int[] array, int length) {
+    final int[] result = new int[length];
+    System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+
+  @NotNull
+  private static byte[] copyOf(@NotNull byte[] array, int length) {
+    final byte[] result = new byte[length];
+    System.arraycopy(array, 0, result, 0, Math.min(array.length, length));
+    return result;
+  }
+}
@@ -19,7 +19,6 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.LineIterator;
-import com.intellij.openapi.editor.ex.util.SegmentArrayWithData;
 import com.intellij.openapi.editor.impl.event.DocumentEventImpl;
 import com.intellij.openapi.util.text.LineTokenizer;
 import com.intellij.util.text.MergingCharSequence;
@@ -29,15 +28,17 @@ import org.jetbrains.annotations.NotNull;
  * Data structure specialized for working with document text lines, i.e. stores information about line mapping to document
  * offsets and provides convenient ways to work with that information like retrieving target line by document offset etc.
  * <p/>
+ * Lines are kept in {@link LineBlocks}, so typing costs O(log n) of lines count rather than shifting all subsequent lines.
+ * <p/>
  * Not thread-safe.
  */
 public class LineSet{
-  private SegmentArrayWithData mySegments = new SegmentArrayWithData();
+  private final LineBlocks myLines = new LineBlocks();
   private static final int MODIFIED_MASK = 0x4;
   private static final int SEPARATOR_MASK = 0x3;
 
   public int findLineIndex(int offset) {
-    int lineIndex = mySegments.findSegmentIndex(offset);
+    int lineIndex = myLines.findLineIndex(offset);
     assert lineIndex >= 0;
     return lineIndex;
   }
@@ -47,28 +48,28 @@ public class LineSet{
   }
 
   public final int getLineStart(int index) {
-    int lineStart = mySegments.getSegmentStart(index);
+    int lineStart = myLines.getLineStart(index);
     assert lineStart >= 0;
     return lineStart;
   }
 
   public final int getLineEnd(int index) {
-    return mySegments.getSegmentEnd(index);
+    return myLines.getLineEnd(index);
   }
 
   final boolean isModified(int index) {
-    return (mySegments.getSegmentData(index) & MODIFIED_MASK) != 0;
+    return (myLines.getData(index) & MODIFIED_MASK) != 0;
   }
   final void setModified(int index) {
-    setSegmentModified(mySegments, index);
+    myLines.setData(index, myLines.getData(index) | MODIFIED_MASK);
   }
 
   final int getSeparatorLength(int index) {
-    return mySegments.getSegmentData(index) & SEPARATOR_MASK;
+    return myLines.getData(index) & SEPARATOR_MASK;
   }
 
   final int getLineCount() {
-    return mySegments.getSegmentCount();
+    return myLines.getLineCount();
   }
 
   public void documentCreated(@NotNull Document document) {
@@ -77,33 +78,25 @@ public class LineSet{
 
   public void changedUpdate(DocumentEvent e1) {
     DocumentEventImpl e = (DocumentEventImpl) e1;
-    if (e.isOnlyOneLineChanged() && mySegments.getSegmentCount() > 0) {
+    if (e.isOnlyOneLineChanged() && myLines.getLineCount() > 0) {
       processOneLineChange(e);
     } else {
-      if (mySegments.getSegmentCount() == 0 || e.getStartOldIndex() >= mySegments.getSegmentCount() ||
+      if (myLines.getLineCount() == 0 || e.getStartOldIndex() >= myLines.getLineCount() ||
           e.getStartOldIndex() < 0) {
         initSegments(e.getDocument().getCharsSequence(), true);
         return;
       }
 
-      final int optimizedLineShift = e.getOptimizedLineShift();
-
-      if (optimizedLineShift != -1) {
-        processOptimizedMultilineInsert(e, optimizedLineShift);
-      } else {
-        final int optimizedOldLineShift = e.getOptimizedOldLineShift();
-
-        if (optimizedOldLineShift != -1) {
-          processOptimizedMultilineDelete(e, optimizedOldLineShift);
-        } else {
-          processMultilineChange(e);
-        }
-      }
+      processMultilineChange(e);
     }
 
     if (e.isWholeTextReplaced()) {
       clearModificationFlags();
     }
+
+    if (doTest) {
+      checkConsistency(e.getDocument().getCharsSequence());
+    }
   }
 
   public static void setTestingMode(boolean testMode) {
@@ -113,161 +106,14 @@ public class LineSet{
 
   private static boolean doTest = false;
 
-  private void processOptimizedMultilineDelete(final DocumentEventImpl e, final int optimizedLineShift) {
-    final int insertionPoint = e.getOffset();
-    final int changedLineIndex = e.getStartOldIndex();
-    final int lengthDiff = e.getOldLength();
-
-    SegmentArrayWithData workingCopySegmentsForTesting = null;
-    SegmentArrayWithData segments; //
-
-    if (doTest) {
-      segments = new SegmentArrayWithData();
-      workingCopySegmentsForTesting = new SegmentArrayWithData();
-      fillSegments(segments, workingCopySegmentsForTesting);
-    } else {
-      segments = mySegments;
-    }
-
-    final int oldSegmentStart = segments.getSegmentStart(changedLineIndex);
-    final int lastChangedEnd = segments.getSegmentEnd(changedLineIndex + optimizedLineShift);
-    final short lastChangedData = segments.getSegmentData(changedLineIndex + optimizedLineShift);
-    final int newSegmentEnd = oldSegmentStart + (insertionPoint - oldSegmentStart) + (lastChangedEnd - insertionPoint - lengthDiff);
-
-    segments.remove(changedLineIndex, changedLineIndex + optimizedLineShift);
-
-    if (newSegmentEnd != 0) {
-      segments.setElementAt(
-        changedLineIndex,
-        oldSegmentStart, newSegmentEnd,
-        lastChangedData | MODIFIED_MASK
-      );
-    } else {
-      segments.remove(changedLineIndex, changedLineIndex + 1);
-    }
-
-// update data after lineIndex, shifting with optimizedLineShift
-    final int segmentCount = segments.getSegmentCount();
-    for(int i = changedLineIndex + 1; i < segmentCount; ++i) {
-      segments.setElementAt(i, segments.getSegmentStart(i) - lengthDiff,
-        segments.getSegmentEnd(i) - lengthDiff,
-        segments.getSegmentData(i)
-      );
-    }
-
-    if (doTest) {
-      final SegmentArrayWithData data = mySegments;
-      mySegments = segments;
-      addEmptyLineAtEnd();
-
-      doCheckResults(workingCopySegmentsForTesting, e, data, segments);
-    } else {
-      addEmptyLineAtEnd();
-    }
-  }
-
-  private void processOptimizedMultilineInsert(final DocumentEventImpl e, final int optimizedLineShift) {
-    final int insertionPoint = e.getOffset();
-    final int changedLineIndex = e.getStartOldIndex();
-    final int lengthDiff = e.getNewLength();
-    final LineTokenizer tokenizer = new LineTokenizer(e.getNewFragment());
-
-    SegmentArrayWithData workingCopySegmentsForTesting = null;
-    SegmentArrayWithData segments; //
-
-    if (doTest) {
-      segments = new SegmentArrayWithData();
-      workingCopySegmentsForTesting = new SegmentArrayWithData();
-      fillSegments(segments, workingCopySegmentsForTesting);
-    } else {
-      segments = mySegments;
-    }
-
-    int i;
-
-    // update data after lineIndex, shifting with optimizedLineShift
-    for(i = segments.getSegmentCount() - 1; i > changedLineIndex; --i) {
-      segments.setElementAt(i + optimizedLineShift, segments.getSegmentStart(i) + lengthDiff,
-        segments.getSegmentEnd(i) + lengthDiff,
-        segments.getSegmentData(i)
-      );
-    }
-
-    final int oldSegmentEnd = segments.getSegmentEnd(changedLineIndex);
-    final int oldSegmentStart = segments.getSegmentStart(changedLineIndex);
-    final short oldSegmentData = segments.getSegmentData(changedLineIndex);
-
-    final int newChangedLineEnd = insertionPoint + tokenizer.getLineSeparatorLength() + tokenizer.getOffset() + tokenizer.getLength();
-    segments.setElementAt(
-      changedLineIndex,
-      oldSegmentStart, newChangedLineEnd,
-      tokenizer.getLineSeparatorLength() | MODIFIED_MASK
-    );
-
-    tokenizer.advance();
-    i = 1;
-    int lastFragmentLength = 0;
-
-    while(!tokenizer.atEnd()) {
-      lastFragmentLength = tokenizer.getLineSeparatorLength() != 0 ? 0:tokenizer.getLength();
-      segments.setElementAt(
-        changedLineIndex + i,
-        insertionPoint + tokenizer.getOffset(),
-        insertionPoint + tokenizer.getOffset() + tokenizer.getLength() + tokenizer.getLineSeparatorLength(),
-        tokenizer.getLineSeparatorLength() | MODIFIED_MASK
-      );
-      i++;
-      tokenizer.advance();
-    }
-
-    segments.setElementAt(
-      changedLineIndex + optimizedLineShift, insertionPoint + lengthDiff - lastFragmentLength,
-      oldSegmentEnd + lengthDiff,
-      oldSegmentData | MODIFIED_MASK
-    );
-
-    if (doTest) {
-      final SegmentArrayWithData data = mySegments;
-      mySegments = segments;
-      addEmptyLineAtEnd();
-
-      doCheckResults(workingCopySegmentsForTesting, e, data, segments);
-    } else {
-      addEmptyLineAtEnd();
-    }
-  }
-
-  private void doCheckResults(final SegmentArrayWithData workingCopySegmentsForTesting, final DocumentEventImpl e,
-                              final SegmentArrayWithData data,
-                              final SegmentArrayWithData segments) {
-    mySegments = workingCopySegmentsForTesting;
-    processMultilineChange(e);
-    mySegments = data;
-
-    assert workingCopySegmentsForTesting.getSegmentCount() == segments.getSegmentCount();
-    for(int i =0; i < segments.getSegmentCount();++i) {
-      assert workingCopySegmentsForTesting.getSegmentStart(i) == segments.getSegmentStart(i);
-      assert workingCopySegmentsForTesting.getSegmentEnd(i) == segments.getSegmentEnd(i);
-      assert workingCopySegmentsForTesting.getSegmentData(i) == segments.getSegmentData(i);
-    }
-
-    processMultilineChange(e);
-  }
-
-  private void fillSegments(final SegmentArrayWithData segments, final SegmentArrayWithData workingCopySegmentsForTesting) {
-    for(int i = mySegments.getSegmentCount() - 1; i >=0; --i) {
-      segments.setElementAt(
-        i,
-        mySegments.getSegmentStart(i),
-        mySegments.getSegmentEnd(i),
-        mySegments.getSegmentData(i)
-      );
-      workingCopySegmentsForTesting.setElementAt(
-        i,
-        mySegments.getSegmentStart(i),
-        mySegments.getSegmentEnd(i),
-        mySegments.getSegmentData(i)
-      );
+  private void checkConsistency(@NotNull CharSequence text) {
+    LineSet expected = new LineSet();
+    expected.initSegments(text, false);
+    assert expected.getLineCount() == getLineCount() : expected.getLineCount() + " lines expected, got " + getLineCount();
+    for (int i = 0; i < getLineCount(); i++) {
+      assert expected.getLineStart(i) == getLineStart(i) : "line " + i;
+      assert expected.getLineEnd(i) == getLineEnd(i) : "line " + i;
+      assert expected.getSeparatorLength(i) == getSeparatorLength(i) : "line " + i;
     }
   }
 
@@ -295,91 +141,60 @@ public class LineSet{
       newString = new MergingCharSequence(newString, postfix);
     }
 
-    updateSegments(newString, oldStartLine, oldEndLine, offset1, e);
+    replaceLines(newString, oldStartLine, oldEndLine + 1, true);
     // We add empty line at the end, if the last line ends by line separator.
     addEmptyLineAtEnd();
   }
 
-  private void updateSegments(CharSequence newText, int oldStartLine, int oldEndLine, int offset1,
-                                              DocumentEventImpl e) {
+  private void replaceLines(CharSequence newText, int startLine, int endLine, boolean isModified) {
+    int[] lengths = new int[16];
+    byte[] data = new byte[16];
     int count = 0;
     LineTokenizer lineTokenizer = new LineTokenizer(newText);
-    for (int index = oldStartLine; index <= oldEndLine; index++) {
-      if (!lineTokenizer.atEnd()) {
-        setSegmentAt(mySegments, index, lineTokenizer, offset1, true);
-        lineTokenizer.advance();
-      } else {
-        mySegments.remove(index, oldEndLine + 1);
-        break;
+    while (!lineTokenizer.atEnd()) {
+      if (count == lengths.length) {
+        int[] newLengths = new int[count * 2];
+        System.arraycopy(lengths, 0, newLengths, 0, count);
+        lengths = newLengths;
+        byte[] newData = new byte[count * 2];
+        System.arraycopy(data, 0, newData, 0, count);
+        data = newData;
       }
+      int separatorLength = lineTokenizer.getLineSeparatorLength();
+      lengths[count] = lineTokenizer.getLength() + separatorLength;
+      data[count] = (byte)(isModified ? separatorLength | MODIFIED_MASK : separatorLength);
       count++;
+      lineTokenizer.advance();
     }
-    if (!lineTokenizer.atEnd()) {
-      SegmentArrayWithData insertSegments = new SegmentArrayWithData();
-      int i = 0;
-      while (!lineTokenizer.atEnd()) {
-        setSegmentAt(insertSegments, i, lineTokenizer, offset1, true);
-        lineTokenizer.advance();
-        count++;
-        i++;
-      }
-      mySegments.insert(insertSegments, oldEndLine + 1);
-    }
-    int shift = e.getNewLength() - e.getOldLength();
-    mySegments.shiftSegments(oldStartLine + count, shift);
+    myLines.replace(startLine, endLine, lengths, data, count);
   }
 
   private void processOneLineChange(DocumentEventImpl e) {
     // Check, if the change on the end of text
-    if (e.getOffset() >= mySegments.getSegmentEnd(mySegments.getSegmentCount() - 1)) {
-      mySegments.changeSegmentLength(mySegments.getSegmentCount() - 1, e.getNewLength() - e.getOldLength());
-      setSegmentModified(mySegments, mySegments.getSegmentCount() - 1);
-    } else {
-      mySegments.changeSegmentLength(e.getStartOldIndex(), e.getNewLength() - e.getOldLength());
-      setSegmentModified(mySegments, e.getStartOldIndex());
-    }
+    int lastLine = myLines.getLineCount() - 1;
+    int line = e.getOffset() >= myLines.getLineEnd(lastLine) ? lastLine : e.getStartOldIndex();
+    myLines.changeLineLength(line, e.getNewLength() - e.getOldLength());
+    setModified(line);
   }
 
   public void clearModificationFlags() {
-    for (int i = 0; i < mySegments.getSegmentCount(); i++) {
-      mySegments.setSegmentData(i, mySegments.getSegmentData(i) & ~MODIFIED_MASK);
-    }
-  }
-
-  private static void setSegmentAt(SegmentArrayWithData segmentArrayWithData, int index, LineTokenizer lineTokenizer, int offsetShift, boolean isModified) {
-    int offset = lineTokenizer.getOffset() + offsetShift;
-    int length = lineTokenizer.getLength();
-    int separatorLength = lineTokenizer.getLineSeparatorLength();
-    int separatorAndModifiedFlag = separatorLength;
-    if(isModified) {
-      separatorAndModifiedFlag |= MODIFIED_MASK;
+    for (int i = 0; i < myLines.getLineCount(); i++) {
+      myLines.setData(i, myLines.getData(i) & ~MODIFIED_MASK);
     }
-    segmentArrayWithData.setElementAt(index, offset, offset + length + separatorLength, separatorAndModifiedFlag);
-  }
-
-  private static void setSegmentModified(SegmentArrayWithData segments, int i) {
-    segments.setSegmentData(i, segments.getSegmentData(i)|MODIFIED_MASK);
   }
 
   private void initSegments(CharSequence text, boolean toSetModified) {
-    mySegments.removeAll();
-    LineTokenizer lineTokenizer = new LineTokenizer(text);
-    int i = 0;
-    while(!lineTokenizer.atEnd()) {
-      setSegmentAt(mySegments, i, lineTokenizer, 0, toSetModified);
-      i++;
-      lineTokenizer.advance();
-    }
+    myLines.removeAll();
+    replaceLines(text, 0, 0, toSetModified);
     // We add empty line at the end, if the last line ends by line separator.
     addEmptyLineAtEnd();
   }
 
   // Add empty line at the end, if the last line ends by line separator.
   private void addEmptyLineAtEnd() {
-    int segmentCount = mySegments.getSegmentCount();
-    if(segmentCount > 0 && getSeparatorLength(segmentCount-1) > 0) {
-      mySegments.setElementAt(segmentCount, mySegments.getSegmentEnd(segmentCount-1),  mySegments.getSegmentEnd(segmentCount-1), 0);
-      setSegmentModified(mySegments, segmentCount);
+    int lineCount = myLines.getLineCount();
+    if(lineCount > 0 && getSeparatorLength(lineCount-1) > 0) {
+      myLines.replace(lineCount, lineCount, new int[]{0}, new byte[]{MODIFIED_MASK}, 1);
     }
   }
 
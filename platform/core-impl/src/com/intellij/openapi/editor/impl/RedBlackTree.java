@@ -18,6 +18,8 @@ package com.intellij.openapi.editor.impl;
 import com.intellij.util.Processor;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.List;
+
 
 /**
  * User: cdr
@@ -81,6 +83,33 @@ public abstract class RedBlackTree<K> {
     nodeSize++;
   }
 
+  // links detached nodes, sorted in the tree order and all distinct, into the perfectly balanced tree in O(n); the tree must be empty.
+  // midpoint split leaves all null links at the depth D or D+1, D = floor(log2(n)), so painting the nodes at the depth D red keeps black heights equal
+  protected void buildBalanced(@NotNull List<? extends Node<K>> sortedNodes) {
+    assert root == null : root;
+    int size = sortedNodes.size();
+    if (size == 0) return;
+    int redDepth = 31 - Integer.numberOfLeadingZeros(size);
+    root = linkBalanced(sortedNodes, 0, size, 0, redDepth == 0 ? -1 : redDepth);
+    root.setParent(null);
+    nodeSize += size;
+    verifyProperties();
+  }
+
+  private static <K> Node<K> linkBalanced(@NotNull List<? extends Node<K>> nodes, int from, int to, int depth, int redDepth) {
+    if (from >= to) return null;
+    int mid = (from + to) >>> 1;
+    Node<K> node = nodes.get(mid);
+    Node<K> left = linkBalanced(nodes, from, mid, depth + 1, redDepth);
+    Node<K> right = linkBalanced(nodes, mid + 1, to, depth + 1, redDepth);
+    node.setLeft(left);
+    node.setRight(right);
+    if (left != null) left.setParent(node);
+    if (right != null) right.setParent(node);
+    node.color = depth == redDepth ? Color.RED : Color.BLACK;
+    return node;
+  }
+
   protected void insertCase1(Node<K> n) {
     if (n.getParent() == null) {
       n.color = Color.BLACK;
@@ -20,6 +20,7 @@ import com.intellij.ide.caches.FileContent;
 import com.intellij.lang.PsiBuilderFactory;
 import com.intellij.openapi.Disposable;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.components.ServiceManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.extensions.Extensions;
 import com.intellij.openapi.fileEditor.FileDocumentManager;
@@ -34,6 +35,7 @@ import com.intellij.psi.*;
 import com.intellij.psi.impl.cache.CacheUtil;
 import com.intellij.psi.impl.file.impl.FileManager;
 import com.intellij.psi.impl.file.impl.FileManagerImpl;
+import com.intellij.psi.impl.source.resolve.ResolveCache;
 import com.intellij.psi.util.PsiModificationTracker;
 import com.intellij.testFramework.LightVirtualFile;
 import com.intellij.util.containers.ContainerUtil;
@@ -113,6 +115,10 @@ public class PsiManagerImpl extends PsiManagerEx {
     }
     beforeChange(true);
     beforeChange(false);
+    ResolveCache resolveCache = ServiceManager.getService(myProject, ResolveCache.class);
+    if (resolveCache != null) {
+      resolveCache.dropCaches();
+    }
   }
 
   @Override
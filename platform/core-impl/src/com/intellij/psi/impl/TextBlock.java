@@ -24,8 +24,17 @@ import com.intellij.openapi.util.UserDataHolderEx;
 import com.intellij.psi.PsiFile;
 import org.jetbrains.annotations.NotNull;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 public class TextBlock extends DocumentAdapter {
   private static final Key<TextBlock> KEY_TEXT_BLOCK = Key.create("KEY_TEXT_BLOCK");
+  /**
+   * If there are more separate changes than this, the two nearest ones are merged into a single change covering both. So, e.g.
+   * replace-all with many occurrences is committed by reparse of at most this number of ranges. A bulk paste is a single change.
+   */
+  private static final int MAX_TRACKED_CHANGES_NUMBER = 20;
   @SuppressWarnings({"UnusedDeclaration"})
   private Document myDocument; // Will hold a document on a hard reference until there's uncommitted PSI for this document.
 
@@ -33,6 +42,8 @@ public class TextBlock extends DocumentAdapter {
   private int myTextEndOffset = -1;
   private int myPsiEndOffset = -1;
   private boolean myIsLocked = false;
+  /** Disjoint changes sorted by offset. */
+  private List<Change> myChanges = new ArrayList<Change>();
 
   public boolean isEmpty() {
     return myStartOffset == -1;
@@ -41,6 +52,7 @@ public class TextBlock extends DocumentAdapter {
   public void clear() {
     myStartOffset = -1;
     myDocument = null;
+    myChanges = new ArrayList<Change>();
   }
 
   public int getStartOffset() {
@@ -91,6 +103,68 @@ public class TextBlock extends DocumentAdapter {
 
       myStartOffset = Math.min(myStartOffset, offset);
     }
+
+    addChange(offset, e.getOldLength(), e.getNewLength());
+  }
+
+  private void addChange(int offset, int oldLength, int newLength) {
+    int i = 0;
+    while (i < myChanges.size() && myChanges.get(i).myTextEndOffset < offset) {
+      i++;
+    }
+
+    // merge the new change with all the changes it touches
+    int startOffset = offset;
+    int endOffset = offset + oldLength;
+    int mergedShift = 0;
+    while (i < myChanges.size() && myChanges.get(i).myTextStartOffset <= endOffset) {
+      Change change = myChanges.remove(i);
+      startOffset = Math.min(startOffset, change.myTextStartOffset);
+      endOffset = Math.max(endOffset, change.myTextEndOffset);
+      mergedShift += change.getLengthShift();
+    }
+    int shift = newLength - oldLength;
+    myChanges.add(i, new Change(startOffset, endOffset + shift, endOffset - startOffset - mergedShift));
+
+    for (int j = i + 1; j < myChanges.size(); j++) {
+      Change change = myChanges.get(j);
+      myChanges.set(j, new Change(change.myTextStartOffset + shift, change.myTextEndOffset + shift, change.myPsiLength));
+    }
+
+    if (myChanges.size() > MAX_TRACKED_CHANGES_NUMBER) {
+      mergeNearestChanges();
+    }
+  }
+
+  private void mergeNearestChanges() {
+    int nearest = 0;
+    for (int j = 1; j < myChanges.size() - 1; j++) {
+      if (getGap(j) < getGap(nearest)) {
+        nearest = j;
+      }
+    }
+    Change first = myChanges.get(nearest);
+    Change second = myChanges.remove(nearest + 1);
+    int psiLength = first.myPsiLength + getGapLength(first, second) + second.myPsiLength;
+    myChanges.set(nearest, new Change(first.myTextStartOffset, second.myTextEndOffset, psiLength));
+  }
+
+  private int getGap(int index) {
+    return getGapLength(myChanges.get(index), myChanges.get(index + 1));
+  }
+
+  private static int getGapLength(@NotNull Change first, @NotNull Change second) {
+    return second.myTextStartOffset - first.myTextEndOffset;
+  }
+
+  /**
+   * @return separate document changes made since the last commit sorted by offset, at most {@link #MAX_TRACKED_CHANGES_NUMBER}
+   *         of them; {@link #getStartOffset()}, {@link #getTextEndOffset()} and {@link #getPsiEndOffset()} describe the block which
+   *         covers all the changes
+   */
+  @NotNull
+  public List<Change> getChanges() {
+    return Collections.unmodifiableList(myChanges);
   }
 
   public void performAtomically(@NotNull Runnable runnable) {
@@ -108,6 +182,43 @@ public class TextBlock extends DocumentAdapter {
     }
   }
 
+  /**
+   * Single changed region of the document: its start and end offsets in the document and its length in PSI. Offsets in PSI
+   * are the document ones minus {@link #getLengthShift() length shifts} of all the preceding changes.
+   */
+  public static class Change {
+    private final int myTextStartOffset;
+    private final int myTextEndOffset;
+    private final int myPsiLength;
+
+    public Change(int textStartOffset, int textEndOffset, int psiLength) {
+      myTextStartOffset = textStartOffset;
+      myTextEndOffset = textEndOffset;
+      myPsiLength = psiLength;
+    }
+
+    public int getTextStartOffset() {
+      return myTextStartOffset;
+    }
+
+    public int getTextEndOffset() {
+      return myTextEndOffset;
+    }
+
+    public int getPsiLength() {
+      return myPsiLength;
+    }
+
+    public int getLengthShift() {
+      return myTextEndOffset - myTextStartOffset - myPsiLength;
+    }
+
+    @Override
+    public String toString() {
+      return "[" + myTextStartOffset + ", " + myTextEndOffset + "), psi length " + myPsiLength;
+    }
+  }
+
   @NotNull
   public static TextBlock get(@NotNull PsiFile file) {
     TextBlock textBlock = file.getUserData(KEY_TEXT_BLOCK);
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.resolve;
+
+import com.intellij.psi.PsiFile;
+import org.jetbrains.annotations.NotNull;
+
+/**
+ * Lets {@link ResolveCache} keep results for references in files of a language across PSI changes in the incremental mode.
+ * Should be registered only together with a {@link com.intellij.psi.impl.PsiTreeChangePreprocessor} that increments
+ * the out of code block modification count for every change outside the language's code blocks, in files of any language.
+ *
+ * @see LanguageIncrementalResolveSupport
+ */
+public interface IncrementalResolveSupport {
+  /**
+   * @return true if resolve of the references in the file may be affected only by changes in the file itself and by changes
+   * increasing the out of code block modification count
+   */
+  boolean isOutOfCodeBlockModificationTracked(@NotNull PsiFile file);
+}
@@ -22,30 +22,64 @@ import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProgressIndicatorProvider;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
-import com.intellij.psi.PsiElement;
-import com.intellij.psi.PsiPolyVariantReference;
-import com.intellij.psi.PsiReference;
-import com.intellij.psi.ResolveResult;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.psi.*;
 import com.intellij.psi.impl.AnyPsiChangeListener;
 import com.intellij.psi.impl.PsiManagerImpl;
+import com.intellij.psi.impl.source.PsiFileImpl;
 import com.intellij.reference.SoftReference;
 import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.containers.ConcurrentWeakHashMap;
 import com.intellij.util.containers.ContainerUtil;
 import com.intellij.util.messages.MessageBus;
+import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 public class ResolveCache {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.resolve.ResolveCache");
+  @NonNls private static final String INCREMENTAL_MODE_KEY = "resolve.cache.incremental";
+  private static final int INCREMENTAL_CACHE_SIZE = 100000;
   private final ConcurrentMap[] myMaps = new ConcurrentMap[2*2*2]; //boolean physical, boolean incompleteCode, boolean isPoly
   private final AtomicInteger myClearCount = new AtomicInteger(0);
   private final RecursionGuard myGuard = RecursionManager.createGuard("resolveCache");
 
+  /*
+   * In the incremental mode results for references from physical source files survive PSI changes. A result is valid while
+   * neither the reference file nor anything outside code blocks has been changed, i.e. it relies on the out of code block
+   * modification count being increased by every change that may affect resolve in other files. So, only files of languages
+   * registering IncrementalResolveSupport are handled this way, references in other files use the maps cleared on every change.
+   * Results are stamped with the modification stamp of the whole reference file: the platform has no notion of code blocks,
+   * so any change in a file drops the results of all its references, and only references in files that are not being edited
+   * benefit from this mode.
+   */
+  private final boolean myIncremental;
+  private final WeakKeyLruCache[] myStampedCaches = new WeakKeyLruCache[2*2]; //boolean incompleteCode, boolean isPoly
+  private final AtomicInteger myDropCount = new AtomicInteger(0);
+
+  public enum InvalidationCause {
+    /** cache has been cleared on PSI change or dropped */
+    CACHE_CLEARED,
+    /** file containing the reference has been changed */
+    FILE_CHANGED,
+    /** something outside code blocks has been changed */
+    DEPENDENCIES_CHANGED,
+    /** resolve result contains an element that is no longer valid */
+    RESULT_INVALIDATED,
+    /** entry has been evicted because of the cache size limit */
+    EVICTED
+  }
+
+  private final AtomicLong myHits = new AtomicLong();
+  private final AtomicLong myMisses = new AtomicLong();
+  private final AtomicLongArray myInvalidations = new AtomicLongArray(InvalidationCause.values().length);
+
   public static ResolveCache getInstance(Project project) {
     ProgressIndicatorProvider.checkCanceled(); // We hope this method is being called often enough to cancel daemon processes smoothly
     return ServiceManager.getService(project, ResolveCache.class);
@@ -64,9 +98,20 @@ public class ResolveCache {
   }
 
   public ResolveCache(@NotNull MessageBus messageBus) {
+    this(messageBus, Registry.is(INCREMENTAL_MODE_KEY, false));
+  }
+
+  ResolveCache(@NotNull MessageBus messageBus, boolean incremental) {
     for (int i = 0; i < myMaps.length; i++) {
       myMaps[i] = createWeakMap();
     }
+    myIncremental = incremental;
+    if (myIncremental) {
+      int shardsNumber = Runtime.getRuntime().availableProcessors() * 4;
+      for (int i = 0; i < myStampedCaches.length; i++) {
+        myStampedCaches[i] = new WeakKeyLruCache(shardsNumber, INCREMENTAL_CACHE_SIZE / myStampedCaches.length);
+      }
+    }
     messageBus.connect().subscribe(PsiManagerImpl.ANY_PSI_CHANGE_TOPIC, new AnyPsiChangeListener() {
       @Override
       public void beforePsiChanged(boolean isPhysical) {
@@ -86,7 +131,55 @@ public class ResolveCache {
   public void clearCache(boolean isPhysical) {
     myClearCount.incrementAndGet();
     int startIndex = isPhysical ? 0 : 1;
-    for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) myMaps[i*4+j*2+k].clear();
+    for (int i=startIndex;i<2;i++)for (int j=0;j<2;j++)for (int k=0;k<2;k++) {
+      ConcurrentMap map = myMaps[i*4+j*2+k];
+      myInvalidations.addAndGet(InvalidationCause.CACHE_CLEARED.ordinal(), map.size());
+      map.clear();
+    }
+  }
+
+  /**
+   * Unlike {@link #clearCache(boolean)}, drops the results kept across PSI changes in the incremental mode as well.
+   */
+  public void dropCaches() {
+    myDropCount.incrementAndGet();
+    clearCache(true);
+    for (WeakKeyLruCache cache : myStampedCaches) {
+      if (cache != null) {
+        myInvalidations.addAndGet(InvalidationCause.CACHE_CLEARED.ordinal(), cache.size());
+        cache.clear();
+      }
+    }
+  }
+
+  /**
+   * @return number of resolve requests served from the cache
+   */
+  public long getHitCount() {
+    return myHits.get();
+  }
+
+  /**
+   * @return number of resolve requests that required resolving the reference
+   */
+  public long getMissCount() {
+    return myMisses.get();
+  }
+
+  /**
+   * @return number of cached results dropped because of the given cause
+   */
+  public long getInvalidationCount(@NotNull InvalidationCause cause) {
+    if (cause == InvalidationCause.EVICTED) {
+      long result = 0;
+      for (WeakKeyLruCache cache : myStampedCaches) {
+        if (cache != null) {
+          result += cache.getEvictedCount();
+        }
+      }
+      return result;
+    }
+    return myInvalidations.get(cause.ordinal());
   }
 
   @Nullable
@@ -99,14 +192,37 @@ public class ResolveCache {
     ApplicationManager.getApplication().assertReadAccessAllowed();
 
     int clearCountOnStart = myClearCount.intValue();
-    boolean physical = ref.getElement().isPhysical();
+    PsiElement refElement = ref.getElement();
+    boolean physical = refElement.isPhysical();
+    if (myIncremental && physical) {
+      PsiFile file = refElement.getContainingFile();
+      if (isResolvedIncrementally(file)) {
+        return resolveIncrementally(ref, resolver, needToPreventRecursion, incompleteCode, isPoly, file);
+      }
+    }
     ConcurrentMap<TRef, Getter<TResult>> map = getMap(physical, incompleteCode, isPoly);
     Getter<TResult> reference = map.get(ref);
     TResult result = reference == null ? null : reference.get();
     if (result != null) {
+      myHits.incrementAndGet();
       return result;
     }
+    myMisses.incrementAndGet();
+
+    RecursionGuard.StackStamp stamp = myGuard.markStack();
+    result = doResolve(ref, resolver, needToPreventRecursion, incompleteCode, isPoly);
+
+    if (stamp.mayCacheNow() && clearCountOnStart == myClearCount.intValue()) {
+      cache(ref, map, result, isPoly);
+    }
+    return result;
+  }
 
+  private <TRef extends PsiReference, TResult> TResult doResolve(@NotNull final TRef ref,
+                                                                 @NotNull final AbstractResolver<TRef, TResult> resolver,
+                                                                 boolean needToPreventRecursion,
+                                                                 final boolean incompleteCode,
+                                                                 boolean isPoly) {
     Computable<TResult> computable = new Computable<TResult>() {
       @Override
       public TResult compute() {
@@ -114,17 +230,87 @@ public class ResolveCache {
       }
     };
 
-    RecursionGuard.StackStamp stamp = myGuard.markStack();
-    result = needToPreventRecursion ? myGuard.doPreventingRecursion(Trinity.create(ref, incompleteCode, isPoly), true, computable) : computable.compute();
+    TResult result = needToPreventRecursion ? myGuard.doPreventingRecursion(Trinity.create(ref, incompleteCode, isPoly), true, computable) : computable.compute();
     PsiElement element = result instanceof ResolveResult ? ((ResolveResult)result).getElement() : null;
     LOG.assertTrue(element == null || element.isValid(), result);
+    return result;
+  }
 
-    if (stamp.mayCacheNow() && clearCountOnStart == myClearCount.intValue()) {
-      cache(ref, map, result, isPoly);
+  @Nullable
+  private <TRef extends PsiReference, TResult> TResult resolveIncrementally(@NotNull TRef ref,
+                                                                            @NotNull AbstractResolver<TRef, TResult> resolver,
+                                                                            boolean needToPreventRecursion,
+                                                                            boolean incompleteCode,
+                                                                            boolean isPoly,
+                                                                            @NotNull PsiFile file) {
+    int dropCountOnStart = myDropCount.intValue();
+    long fileStamp = file.getModificationStamp();
+    long dependenciesStamp = file.getManager().getModificationTracker().getOutOfCodeBlockModificationCount();
+    WeakKeyLruCache<TRef, StampedGetter<TResult>> cache = getStampedCache(incompleteCode, isPoly);
+    StampedGetter<TResult> cached = cache.get(ref);
+    if (cached != null) {
+      InvalidationCause cause = getInvalidationCause(cached, file);
+      if (cause != null) {
+        myInvalidations.incrementAndGet(cause.ordinal());
+        cache.remove(ref);
+      }
+      else if (cached.isAvailable()) {
+        myHits.incrementAndGet();
+        return cached.get();
+      }
+    }
+    myMisses.incrementAndGet();
+
+    RecursionGuard.StackStamp stamp = myGuard.markStack();
+    TResult result = doResolve(ref, resolver, needToPreventRecursion, incompleteCode, isPoly);
+
+    if (stamp.mayCacheNow() &&
+        dropCountOnStart == myDropCount.intValue() &&
+        fileStamp == file.getModificationStamp() &&
+        dependenciesStamp == file.getManager().getModificationTracker().getOutOfCodeBlockModificationCount()) {
+      cache.put(ref, new StampedGetter<TResult>(createGetter(result, isPoly), fileStamp, dependenciesStamp));
     }
     return result;
   }
 
+  private static boolean isResolvedIncrementally(@Nullable PsiFile file) {
+    if (!(file instanceof PsiFileImpl)) return false;
+    for (IncrementalResolveSupport support : LanguageIncrementalResolveSupport.INSTANCE.allForLanguage(file.getLanguage())) {
+      if (support.isOutOfCodeBlockModificationTracked(file)) return true;
+    }
+    return false;
+  }
+
+  private <TRef extends PsiReference, TResult> WeakKeyLruCache<TRef, StampedGetter<TResult>> getStampedCache(boolean incompleteCode,
+                                                                                                             boolean isPoly) {
+    //noinspection unchecked
+    return myStampedCaches[(incompleteCode ? 0 : 1)*2 + (isPoly ? 0 : 1)];
+  }
+
+  @Nullable
+  private static InvalidationCause getInvalidationCause(@NotNull StampedGetter<?> cached, @NotNull PsiFile file) {
+    if (cached.myFileStamp != file.getModificationStamp()) return InvalidationCause.FILE_CHANGED;
+    if (cached.myDependenciesStamp != file.getManager().getModificationTracker().getOutOfCodeBlockModificationCount()) {
+      return InvalidationCause.DEPENDENCIES_CHANGED;
+    }
+    Object result = cached.get();
+    if (result != null && !isValidResult(result)) return InvalidationCause.RESULT_INVALIDATED;
+    return null;
+  }
+
+  private static boolean isValidResult(@NotNull Object result) {
+    if (result instanceof PsiElement) {
+      return ((PsiElement)result).isValid();
+    }
+    if (result instanceof ResolveResult[]) {
+      for (ResolveResult resolveResult : (ResolveResult[])result) {
+        PsiElement element = resolveResult.getElement();
+        if (element != null && !element.isValid()) return false;
+      }
+    }
+    return true;
+  }
+
   @NotNull
   public <T extends PsiPolyVariantReference> ResolveResult[] resolveWithCaching(@NotNull T ref,
                                                                                 @NotNull PolyVariantResolver<T> resolver,
@@ -135,6 +321,13 @@ public class ResolveCache {
   }
 
   public <T extends PsiPolyVariantReference> boolean isCached(@NotNull T ref, boolean physical, boolean incompleteCode, boolean isPoly) {
+    if (myIncremental && physical) {
+      PsiFile file = ref.getElement().getContainingFile();
+      if (isResolvedIncrementally(file)) {
+        StampedGetter<ResolveResult[]> cached = this.<T, ResolveResult[]>getStampedCache(incompleteCode, isPoly).get(ref);
+        return cached != null && cached.isAvailable() && getInvalidationCause(cached, file) == null;
+      }
+    }
     Map<T, Getter<ResolveResult[]>> map = getMap(physical, incompleteCode, isPoly);
     Getter<ResolveResult[]> reference = map.get(ref);
     return reference != null && reference.get() != null;
@@ -165,6 +358,30 @@ public class ResolveCache {
       super(referent);
     }
   }
+
+  private static class StampedGetter<T> implements Getter<T> {
+    private final Getter<T> myResult;
+    private final long myFileStamp;
+    private final long myDependenciesStamp;
+
+    private StampedGetter(@NotNull Getter<T> result, long fileStamp, long dependenciesStamp) {
+      myResult = result;
+      myFileStamp = fileStamp;
+      myDependenciesStamp = dependenciesStamp;
+    }
+
+    @Override
+    public T get() {
+      return myResult.get();
+    }
+
+    /**
+     * @return false if the result has been garbage collected, null results are kept strongly
+     */
+    private boolean isAvailable() {
+      return myResult == NULL_RESULT || myResult.get() != null;
+    }
+  }
   private static final Getter<ResolveResult[]> EMPTY_POLY_RESULT = new StaticGetter<ResolveResult[]>(ResolveResult.EMPTY_ARRAY);
   private static final Getter<Object> NULL_RESULT = new StaticGetter<Object>(null);
   private static <TRef extends PsiReference, TResult> void cache(@NotNull TRef ref,
@@ -176,6 +393,12 @@ public class ResolveCache {
     if (cached != null && cached.get() == result) {
       return;
     }
+    ConcurrencyUtil.cacheOrGet(map, ref, createGetter(result, isPoly));
+  }
+
+  @NotNull
+  private static <TResult> Getter<TResult> createGetter(TResult result, boolean isPoly) {
+    Getter<TResult> cached;
     if (result == null) {
       // no use in creating SoftReference to null
       //noinspection unchecked
@@ -189,6 +412,6 @@ public class ResolveCache {
     else {
       cached = new SoftGetter<TResult>(result);
     }
-    ConcurrencyUtil.cacheOrGet(map, ref, cached);
+    return cached;
   }
 }
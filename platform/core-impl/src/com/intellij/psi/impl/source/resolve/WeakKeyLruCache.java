@@ -0,0 +1,186 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.resolve;
+
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache with weakly referenced keys bounded by size. Entries are distributed between several shards by key hash, every shard
+ * is guarded by its own lock and evicts its least recently used entries when it's full.
+ * <p/>
+ * Thread-safe.
+ */
+class WeakKeyLruCache<K, V> {
+  private final Shard<K, V>[] myShards;
+  private final AtomicLong myEvictedCount = new AtomicLong();
+
+  WeakKeyLruCache(int shardsNumber, int maxSize) {
+    //noinspection unchecked
+    myShards = new Shard[shardsNumber];
+    int shardSize = Math.max(1, maxSize / shardsNumber);
+    for (int i = 0; i < shardsNumber; i++) {
+      myShards[i] = new Shard<K, V>(shardSize, myEvictedCount);
+    }
+  }
+
+  @Nullable
+  V get(@NotNull K key) {
+    Shard<K, V> shard = getShard(key);
+    synchronized (shard) {
+      shard.processQueue();
+      return shard.get(new StrongKey<K>(key));
+    }
+  }
+
+  void put(@NotNull K key, @NotNull V value) {
+    Shard<K, V> shard = getShard(key);
+    synchronized (shard) {
+      shard.processQueue();
+      shard.put(new WeakKey<K>(key, shard.myQueue), value);
+    }
+  }
+
+  void remove(@NotNull K key) {
+    Shard<K, V> shard = getShard(key);
+    synchronized (shard) {
+      shard.remove(new StrongKey<K>(key));
+    }
+  }
+
+  void clear() {
+    for (Shard<K, V> shard : myShards) {
+      synchronized (shard) {
+        shard.clear();
+        shard.processQueue();
+      }
+    }
+  }
+
+  int size() {
+    int result = 0;
+    for (Shard<K, V> shard : myShards) {
+      synchronized (shard) {
+        shard.processQueue();
+        result += shard.size();
+      }
+    }
+    return result;
+  }
+
+  /**
+   * @return number of entries evicted because of the size limit
+   */
+  long getEvictedCount() {
+    return myEvictedCount.get();
+  }
+
+  @NotNull
+  private Shard<K, V> getShard(@NotNull K key) {
+    int hash = key.hashCode();
+    hash ^= (hash >>> 16);
+    return myShards[(hash & Integer.MAX_VALUE) % myShards.length];
+  }
+
+  private static class Shard<K, V> extends LinkedHashMap<KeyReference<K>, V> {
+    private final int myMaxSize;
+    private final AtomicLong myEvictedCount;
+    private final ReferenceQueue<K> myQueue = new ReferenceQueue<K>();
+
+    private Shard(int maxSize, @NotNull AtomicLong evictedCount) {
+      super(16, 0.75f, true);
+      myMaxSize = maxSize;
+      myEvictedCount = evictedCount;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<KeyReference<K>, V> eldest) {
+      if (size() > myMaxSize) {
+        myEvictedCount.incrementAndGet();
+        return true;
+      }
+      return false;
+    }
+
+    private void processQueue() {
+      Object key;
+      while ((key = myQueue.poll()) != null) {
+        //noinspection SuspiciousMethodCalls
+        remove(key);
+      }
+    }
+  }
+
+  private interface KeyReference<K> {
+    @Nullable
+    K get();
+  }
+
+  private static boolean keysEqual(@NotNull KeyReference<?> key, Object o) {
+    if (key == o) return true;
+    if (!(o instanceof KeyReference)) return false;
+    Object referent = key.get();
+    return referent != null && referent.equals(((KeyReference)o).get());
+  }
+
+  private static class WeakKey<K> extends WeakReference<K> implements KeyReference<K> {
+    private final int myHash;
+
+    private WeakKey(@NotNull K referent, @NotNull ReferenceQueue<K> queue) {
+      super(referent, queue);
+      myHash = referent.hashCode();
+    }
+
+    @Override
+    public int hashCode() {
+      return myHash;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return keysEqual(this, o);
+    }
+  }
+
+  private static class StrongKey<K> implements KeyReference<K> {
+    private final K myReferent;
+
+    private StrongKey(@NotNull K referent) {
+      myReferent = referent;
+    }
+
+    @Override
+    public K get() {
+      return myReferent;
+    }
+
+    @Override
+    public int hashCode() {
+      return myReferent.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object o) {
+      return keysEqual(this, o);
+    }
+  }
+}
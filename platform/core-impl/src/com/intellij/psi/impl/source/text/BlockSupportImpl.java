@@ -26,11 +26,11 @@ import com.intellij.openapi.fileTypes.FileType;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.Ref;
-import com.intellij.openapi.util.TextRange;
 import com.intellij.psi.*;
 import com.intellij.psi.impl.PsiManagerEx;
 import com.intellij.psi.impl.PsiManagerImpl;
 import com.intellij.psi.impl.PsiTreeChangeEventImpl;
+import com.intellij.psi.impl.TextBlock;
 import com.intellij.psi.impl.source.DummyHolder;
 import com.intellij.psi.impl.source.DummyHolderFactory;
 import com.intellij.psi.impl.source.PsiFileImpl;
@@ -49,6 +49,9 @@ import com.intellij.util.diff.ShallowNodeComparator;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class BlockSupportImpl extends BlockSupport {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.text.BlockSupportImpl");
 
@@ -90,9 +93,7 @@ public class BlockSupportImpl extends BlockSupport {
                                               @NotNull CharSequence newFileText,
                                               @NotNull ProgressIndicator indicator) {
     final PsiFileImpl fileImpl = (PsiFileImpl)file;
-    Project project = fileImpl.getProject();
     final FileElement treeFileElement = fileImpl.getTreeElement();
-    final CharTable charTable = treeFileElement.getCharTable();
 
     final int textLength = treeFileElement.getTextLength() + lengthShift;
 
@@ -107,35 +108,9 @@ public class BlockSupportImpl extends BlockSupport {
     Language baseLanguage = file.getViewProvider().getBaseLanguage();
 
     while (node != null && !(node instanceof FileElement)) {
-      IElementType elementType = node.getElementType();
-      if (elementType instanceof IReparseableElementType) {
-        final TextRange textRange = node.getTextRange();
-        final IReparseableElementType reparseable = (IReparseableElementType)elementType;
-
-        if (baseLanguage.isKindOf(reparseable.getLanguage())) {
-          final int start = textRange.getStartOffset();
-          final int end = start + textRange.getLength() + lengthShift;
-          assertFileLength(file, newFileText, node, elementType, start, end);
-
-          CharSequence newTextStr = newFileText.subSequence(start, end);
-
-          if (reparseable.isParsable(newTextStr, baseLanguage, project)) {
-            ASTNode chameleon = reparseable.createNode(newTextStr);
-            if (chameleon != null) {
-              DummyHolder holder = DummyHolderFactory.createHolder(fileImpl.getManager(), null, node.getPsi(), charTable);
-              holder.getTreeElement().rawAddChildren((TreeElement)chameleon);
-
-              if (holder.getTextLength() != newTextStr.length()) {
-                String details = ApplicationManager.getApplication().isInternal()
-                           ? "text=" + newTextStr + "; treeText=" + holder.getText() + ";"
-                           : "";
-                LOG.error("Inconsistent reparse: " + details + " type=" + elementType);
-              }
-
-              return mergeTrees(fileImpl, node, chameleon, indicator);
-            }
-          }
-        }
+      ASTNode chameleon = reparseBlock(fileImpl, node, node.getStartOffset(), lengthShift, newFileText, baseLanguage);
+      if (chameleon != null) {
+        return mergeTrees(fileImpl, node, chameleon, indicator);
       }
       node = node.getTreeParent();
     }
@@ -143,6 +118,126 @@ public class BlockSupportImpl extends BlockSupport {
     return makeFullParse(node, newFileText, textLength, fileImpl, indicator);
   }
 
+  @Override
+  @Nullable
+  public DiffLog reparseChangedBlocks(@NotNull PsiFile file,
+                                      @NotNull List<TextBlock.Change> changes,
+                                      @NotNull CharSequence newFileText,
+                                      @NotNull ProgressIndicator indicator) {
+    if (changes.size() < 2) return null;
+    final PsiFileImpl fileImpl = (PsiFileImpl)file;
+    final FileElement treeFileElement = fileImpl.getTreeElement();
+    if (treeFileElement.getElementType() instanceof ITemplateDataElementType || isTooDeep(file) ||
+        fileImpl.getUserData(DO_NOT_REPARSE_INCREMENTALLY) != null) {
+      return null;
+    }
+    Language baseLanguage = file.getViewProvider().getBaseLanguage();
+
+    // find the smallest reparseable block for every change; a block which contains blocks of other changes replaces them
+    ASTNode[] changeBlocks = new ASTNode[changes.size()];
+    List<ASTNode> blocks = new ArrayList<ASTNode>();
+    int shift = 0;
+    for (int i = 0; i < changes.size(); i++) {
+      TextBlock.Change change = changes.get(i);
+      int psiStartOffset = change.getTextStartOffset() - shift;
+      shift += change.getLengthShift();
+      ASTNode block = findReparseableBlock(treeFileElement, psiStartOffset > 0 ? psiStartOffset - 1 : 0,
+                                           psiStartOffset + change.getPsiLength(), baseLanguage);
+      if (block == null) return null;
+      changeBlocks[i] = block;
+      while (!blocks.isEmpty() && isAncestorOrSelf(block, blocks.get(blocks.size() - 1))) {
+        blocks.remove(blocks.size() - 1);
+      }
+      if (blocks.isEmpty() || !isAncestorOrSelf(blocks.get(blocks.size() - 1), block)) {
+        blocks.add(block);
+      }
+    }
+    if (blocks.size() < 2) return null;
+
+    // blocks are disjoint and sorted by offset as well as changes, so, every block gets length shifts of the consecutive changes
+    int[] blockShifts = new int[blocks.size()];
+    int blockIndex = 0;
+    for (int i = 0; i < changes.size(); i++) {
+      while (!isAncestorOrSelf(blocks.get(blockIndex), changeBlocks[i])) {
+        blockIndex++;
+      }
+      blockShifts[blockIndex] += changes.get(i).getLengthShift();
+    }
+
+    DiffLog diffLog = new DiffLog();
+    int shiftBefore = 0;
+    for (int i = 0; i < blocks.size(); i++) {
+      ASTNode block = blocks.get(i);
+      ASTNode chameleon = reparseBlock(fileImpl, block, block.getStartOffset() + shiftBefore, blockShifts[i], newFileText, baseLanguage);
+      if (chameleon == null) return null;
+      diffLog.append(mergeTrees(fileImpl, block, chameleon, indicator));
+      shiftBefore += blockShifts[i];
+    }
+    return diffLog;
+  }
+
+  @Nullable
+  private static ASTNode findReparseableBlock(@NotNull FileElement treeFileElement, int startOffset, int endOffset, @NotNull Language baseLanguage) {
+    final ASTNode leafAtStart = treeFileElement.findLeafElementAt(startOffset);
+    final ASTNode leafAtEnd = treeFileElement.findLeafElementAt(endOffset);
+    ASTNode node = leafAtStart != null && leafAtEnd != null ? TreeUtil.findCommonParent(leafAtStart, leafAtEnd) : null;
+    while (node != null && !(node instanceof FileElement)) {
+      IElementType elementType = node.getElementType();
+      if (elementType instanceof IReparseableElementType && baseLanguage.isKindOf(elementType.getLanguage())) {
+        return node;
+      }
+      node = node.getTreeParent();
+    }
+    return null;
+  }
+
+  private static boolean isAncestorOrSelf(@NotNull ASTNode ancestor, @NotNull ASTNode node) {
+    for (ASTNode each = node; each != null; each = each.getTreeParent()) {
+      if (each == ancestor) return true;
+    }
+    return false;
+  }
+
+  /**
+   * @param newStartOffset  offset of the given node in the new file text
+   * @param lengthShift     difference between the new and the old text length of the node
+   * @return                new tree for the given node if it's reparseable and its new text is parsable, null otherwise
+   */
+  @Nullable
+  private static ASTNode reparseBlock(@NotNull PsiFileImpl fileImpl,
+                                     @NotNull ASTNode node,
+                                     int newStartOffset,
+                                     int lengthShift,
+                                     @NotNull CharSequence newFileText,
+                                     @NotNull Language baseLanguage) {
+    IElementType elementType = node.getElementType();
+    if (!(elementType instanceof IReparseableElementType)) return null;
+    final IReparseableElementType reparseable = (IReparseableElementType)elementType;
+    if (!baseLanguage.isKindOf(reparseable.getLanguage())) return null;
+
+    final int start = newStartOffset;
+    final int end = start + node.getTextLength() + lengthShift;
+    assertFileLength(fileImpl, newFileText, node, elementType, start, end);
+
+    CharSequence newTextStr = newFileText.subSequence(start, end);
+
+    if (!reparseable.isParsable(newTextStr, baseLanguage, fileImpl.getProject())) return null;
+    ASTNode chameleon = reparseable.createNode(newTextStr);
+    if (chameleon == null) return null;
+
+    CharTable charTable = fileImpl.getTreeElement().getCharTable();
+    DummyHolder holder = DummyHolderFactory.createHolder(fileImpl.getManager(), null, node.getPsi(), charTable);
+    holder.getTreeElement().rawAddChildren((TreeElement)chameleon);
+
+    if (holder.getTextLength() != newTextStr.length()) {
+      String details = ApplicationManager.getApplication().isInternal()
+                 ? "text=" + newTextStr + "; treeText=" + holder.getText() + ";"
+                 : "";
+      LOG.error("Inconsistent reparse: " + details + " type=" + elementType);
+    }
+    return chameleon;
+  }
+
   private static void assertFileLength(PsiFile file, CharSequence newFileText, ASTNode node, IElementType elementType, int start, int end) {
     if (end > newFileText.length() && ApplicationManager.getApplication().isInternal()) {
       String newTextBefore = newFileText.subSequence(0, start).toString();
@@ -61,6 +61,13 @@ public class DiffLog implements DiffTreeChangeBuilder<ASTNode,ASTNode> {
     return astDiffBuilder.getEvent();
   }
 
+  /**
+   * Adds all changes of the given log to this one; the logs are expected to change disjoint subtrees.
+   */
+  public void append(@NotNull DiffLog log) {
+    myEntries.addAll(log.myEntries);
+  }
+
   @Override
   public void nodeReplaced(@NotNull ASTNode oldNode, @NotNull ASTNode newNode) {
     if (oldNode instanceof FileElement && newNode instanceof FileElement) {
@@ -71,9 +71,23 @@ public class ASTShallowComparator implements ShallowNodeComparator<ASTNode, ASTN
       if (!Comparing.equal(e1.getErrorDescription(), e2.getErrorDescription())) return ThreeState.NO;
     }
 
+    // do not parse chameleons with the same text just to compare their subtrees, they will be parsed the same way
+    if (isUnparsedChameleon(oldNode) && isUnparsedChameleon(newNode)) {
+      LazyParseableElement oldChameleon = (LazyParseableElement)oldNode;
+      LazyParseableElement newChameleon = (LazyParseableElement)newNode;
+      if (oldChameleon.getTextLength() == newChameleon.getTextLength() && oldChameleon.hc() == newChameleon.hc() &&
+          oldChameleon.textMatches(newChameleon.getChars())) {
+        return ThreeState.YES;
+      }
+    }
+
     return ThreeState.UNSURE;
   }
 
+  private static boolean isUnparsedChameleon(@NotNull ASTNode node) {
+    return node instanceof LazyParseableElement && !((LazyParseableElement)node).isParsed();
+  }
+
   // have to perform tree walking by hand here to be able to interrupt ourselves
   private boolean compareTreeToText(@NotNull TreeElement root, @NotNull final String text) {
     final int[] curOffset = {0};
@@ -19,18 +19,24 @@
  */
 package com.intellij.psi.impl.source.tree;
 
+import com.intellij.concurrency.JobLauncher;
 import com.intellij.lang.ASTNode;
 import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.LogUtil;
 import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.psi.tree.ILazyParseableElementType;
+import com.intellij.util.Processor;
 import com.intellij.util.text.CharArrayUtil;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 import org.jetbrains.annotations.TestOnly;
 
+import java.util.ArrayList;
+import java.util.List;
+
 public class LazyParseableElement extends CompositeElement {
   private static final Logger LOG = Logger.getInstance("#com.intellij.psi.impl.source.tree.LazyParseableElement");
 
@@ -226,6 +232,66 @@ public class LazyParseableElement extends CompositeElement {
     return start + text.length();
   }
 
+  /**
+   * Parses all not yet parsed chameleons of the given tree using several threads. Every chameleon is parsed with all its
+   * nested chameleons by the same thread, the root itself is parsed by the calling thread first. Is expected to be called
+   * under read action.
+   *
+   * @param root      root of the tree to process
+   * @param progress  progress indicator to delegate cancellation checks to
+   * @return          false if parsing has been cancelled or the worker threads were unable to start read action; remaining
+   *                  chameleons are parsed lazily as usual then
+   */
+  public static boolean parseAllConcurrently(@NotNull ASTNode root, @Nullable ProgressIndicator progress) {
+    if (!ourParsingAllowed) return true;
+    if (root instanceof LazyParseableElement) {
+      ((LazyParseableElement)root).ensureParsed();
+    }
+    List<LazyParseableElement> chameleons = collectNotParsed((TreeElement)root);
+    if (chameleons.size() < 2) return true;
+
+    return JobLauncher.getInstance().invokeConcurrentlyUnderProgress(chameleons, progress, true, new Processor<LazyParseableElement>() {
+      @Override
+      public boolean process(LazyParseableElement chameleon) {
+        List<LazyParseableElement> toParse = new ArrayList<LazyParseableElement>();
+        toParse.add(chameleon);
+        while (!toParse.isEmpty()) {
+          LazyParseableElement element = toParse.remove(toParse.size() - 1);
+          element.ensureParsed();
+          toParse.addAll(collectNotParsed(element));
+        }
+        return true;
+      }
+    });
+  }
+
+  /**
+   * @return top-level not parsed chameleons of the given tree; the tree itself is traversed without parsing anything
+   */
+  @NotNull
+  private static List<LazyParseableElement> collectNotParsed(@NotNull TreeElement root) {
+    List<LazyParseableElement> result = new ArrayList<LazyParseableElement>();
+    List<TreeElement> toVisit = new ArrayList<TreeElement>();
+    if (root instanceof CompositeElement) {
+      toVisit.add(((CompositeElement)root).rawFirstChild());
+    }
+    while (!toVisit.isEmpty()) {
+      TreeElement element = toVisit.remove(toVisit.size() - 1);
+      for (; element != null; element = element.getTreeNext()) {
+        if (element instanceof LazyParseableElement && !((LazyParseableElement)element).isParsed()) {
+          result.add((LazyParseableElement)element);
+        }
+        else if (element instanceof CompositeElement) {
+          TreeElement child = ((CompositeElement)element).rawFirstChild();
+          if (child != null) {
+            toVisit.add(child);
+          }
+        }
+      }
+    }
+    return result;
+  }
+
   private static boolean ourParsingAllowed = true;
 
   @TestOnly
@@ -24,10 +24,14 @@ import com.intellij.openapi.util.Key;
 import com.intellij.openapi.util.UserDataHolder;
 import com.intellij.openapi.util.registry.Registry;
 import com.intellij.psi.PsiFile;
+import com.intellij.psi.impl.TextBlock;
 import com.intellij.psi.impl.source.text.DiffLog;
 import com.intellij.util.IncorrectOperationException;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.List;
 
 public abstract class BlockSupport {
   public static BlockSupport getInstance(Project project) {
@@ -44,6 +48,18 @@ public abstract class BlockSupport {
                                        @NotNull CharSequence newText,
                                        @NotNull ProgressIndicator progressIndicator) throws IncorrectOperationException;
 
+  /**
+   * Reparses only the reparseable blocks which cover the given changes, that is cheaper than reparsing the common parent of all
+   * the changes when they are far from each other (e.g. after 'replace all').
+   *
+   * @return diff log or null if some change isn't covered by a reparseable block
+   */
+  @Nullable
+  public abstract DiffLog reparseChangedBlocks(@NotNull PsiFile file,
+                                               @NotNull List<TextBlock.Change> changes,
+                                               @NotNull CharSequence newText,
+                                               @NotNull ProgressIndicator progressIndicator);
+
   public static final Key<Boolean> DO_NOT_REPARSE_INCREMENTALLY = Key.create("DO_NOT_REPARSE_INCREMENTALLY");
   public static final Key<ASTNode> TREE_TO_BE_REPARSED = Key.create("TREE_TO_BE_REPARSED");
 
@@ -74,4 +74,30 @@ public abstract class FileBasedIndexExtension<K, V> {
   public boolean isKeyHighlySelective() {
     return false;
   }
+
+  /**
+   * @return true if the index is often asked about keys it doesn't contain (e.g. words in a word index),
+   * then a Bloom filter of the keys is kept to answer such requests without reading the storage
+   */
+  public boolean needsKeyFilter() {
+    return false;
+  }
+
+  /**
+   * @return true if the indexer output depends only on the file content, its path and its file type (not on other settings
+   * or other files), then the output for library jars can be prebuilt once and shared between installations
+   */
+  public boolean isSnapshotShareable() {
+    return false;
+  }
+
+  /**
+   * @return classes besides the extension itself whose code determines the indexer output for files of the given type
+   * (e.g. a words scanner of a language plugin); the versions of the plugins providing them are a part of the snapshot key
+   * @see #isSnapshotShareable()
+   */
+  @NotNull
+  public Collection<Class<?>> getSnapshotDependencies(@NotNull FileType fileType) {
+    return Collections.emptyList();
+  }
 }
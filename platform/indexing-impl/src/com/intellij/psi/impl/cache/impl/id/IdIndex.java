@@ -32,6 +32,7 @@ import org.jetbrains.annotations.NotNull;
 import java.io.DataInput;
 import java.io.DataOutput;
 import java.io.IOException;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.Map;
 
@@ -92,6 +93,23 @@ public class IdIndex extends FileBasedIndexExtension<IdIndexEntry, Integer> {
     return 9; // TODO: version should enumerate all word scanner versions and build version upon that set
   }
 
+  @Override
+  public boolean needsKeyFilter() {
+    return true;
+  }
+
+  @Override
+  public boolean isSnapshotShareable() {
+    return true;
+  }
+
+  @NotNull
+  @Override
+  public Collection<Class<?>> getSnapshotDependencies(@NotNull FileType fileType) {
+    final Object implementation = IdTableBuilding.getIndexingImplementation(fileType);
+    return implementation != null ? Collections.<Class<?>>singletonList(implementation.getClass()) : Collections.<Class<?>>emptyList();
+  }
+
   @Override
   public boolean dependsOnFileContent() {
     return true;
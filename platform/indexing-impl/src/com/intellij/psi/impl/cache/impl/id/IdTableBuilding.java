@@ -112,6 +112,15 @@ public class IdTableBuilding {
     return null;
   }
 
+  /**
+   * @return the id indexer or the words scanner producing the id index data of the files of the given type
+   */
+  @Nullable
+  static Object getIndexingImplementation(FileType fileType) {
+    final FileTypeIdIndexer indexer = getFileTypeIndexer(fileType);
+    return indexer instanceof WordsScannerFileTypeIdIndexerAdapter ? ((WordsScannerFileTypeIdIndexerAdapter)indexer).myScanner : indexer;
+  }
+
   private static WordsScanner createWordScanner(final CustomSyntaxTableFileType customSyntaxTableFileType) {
     return new DefaultWordsScanner(new CustomFileTypeLexer(customSyntaxTableFileType.getSyntaxTable(), true),
                                    TokenSet.create(CustomHighlighterTokenType.IDENTIFIER),
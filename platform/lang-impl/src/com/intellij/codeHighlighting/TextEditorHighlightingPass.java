@@ -20,6 +20,8 @@ import com.intellij.codeInsight.daemon.impl.DaemonCodeAnalyzerImpl;
 import com.intellij.codeInsight.daemon.impl.HighlightInfo;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.impl.DocumentSnapshot;
+import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
 import com.intellij.openapi.project.DumbAware;
 import com.intellij.openapi.project.DumbService;
@@ -39,6 +41,7 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
   @NotNull protected final Project myProject;
   private final boolean myRunIntentionPassAfter;
   private final long myInitialStamp;
+  private volatile DocumentSnapshot myDocumentSnapshot;
   private int[] myCompletionPredecessorIds = ArrayUtil.EMPTY_INT_ARRAY;
   private int[] myStartingPredecessorIds = ArrayUtil.EMPTY_INT_ARRAY;
   private int myId;
@@ -80,7 +83,7 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
       return false;
     }
 
-    if (myDocument != null && myDocument.getModificationStamp() != myInitialStamp) return false;
+    if (!isDocumentUpToDate()) return false;
     if (myDocument != null) {
       PsiFile file = PsiDocumentManager.getInstance(myProject).getPsiFile(myDocument);
       if (file == null || !file.isValid()) return false;
@@ -89,6 +92,31 @@ public abstract class TextEditorHighlightingPass implements HighlightingPass {
     return true;
   }
 
+  /**
+   * @return true if the document hasn't been changed since the pass was created
+   */
+  protected final boolean isDocumentUpToDate() {
+    return myDocument == null || myDocument.getModificationStamp() == myInitialStamp;
+  }
+
+  /**
+   * @return the document text the pass has been created for. The text is immutable and can be read without a read action.
+   * @throws ProcessCanceledException if the document has been changed since the pass was created
+   */
+  @NotNull
+  protected final DocumentSnapshot getDocumentSnapshot() {
+    assert myDocument != null;
+    DocumentSnapshot snapshot = myDocumentSnapshot;
+    if (snapshot == null) {
+      snapshot = DocumentSnapshot.of(myDocument);
+      if (snapshot.getModificationStamp() != myInitialStamp) {
+        throw new ProcessCanceledException();
+      }
+      myDocumentSnapshot = snapshot;
+    }
+    return snapshot;
+  }
+
   @Override
   public final void applyInformationToEditor() {
     if (!isValid()) return; // Document has changed.
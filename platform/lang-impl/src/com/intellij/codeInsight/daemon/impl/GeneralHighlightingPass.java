@@ -26,6 +26,7 @@ import com.intellij.codeInsight.problems.ProblemImpl;
 import com.intellij.codeInsight.problems.WolfTheProblemSolverImpl;
 import com.intellij.concurrency.JobLauncher;
 import com.intellij.injected.editor.DocumentWindow;
+import com.intellij.lang.ASTNode;
 import com.intellij.lang.Language;
 import com.intellij.lang.annotation.HighlightSeverity;
 import com.intellij.lang.injection.InjectedLanguageManager;
@@ -55,10 +56,12 @@ import com.intellij.openapi.project.DumbService;
 import com.intellij.openapi.project.IndexNotReadyException;
 import com.intellij.openapi.project.Project;
 import com.intellij.openapi.util.*;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.VirtualFile;
 import com.intellij.problems.Problem;
 import com.intellij.problems.WolfTheProblemSolver;
 import com.intellij.psi.*;
+import com.intellij.psi.impl.source.tree.LazyParseableElement;
 import com.intellij.psi.impl.source.tree.injected.InjectedLanguageUtil;
 import com.intellij.psi.impl.source.tree.injected.Place;
 import com.intellij.psi.search.PsiTodoSearchHelper;
@@ -192,6 +195,15 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
     final List<PsiElement> outside = new ArrayList<PsiElement>();
     try {
       final HighlightVisitor[] filteredVisitors = filterVisitors(highlightVisitors, myFile);
+      if (isWholeFileHighlighting() && Registry.is("psi.parse.lazy.elements.concurrently")) {
+        // parse chameleons of the whole file at once using all cores instead of parsing them one by one on the highlighting visit
+        for (PsiFile root : myFile.getViewProvider().getAllFiles()) {
+          ASTNode node = root.getNode();
+          if (node != null) {
+            LazyParseableElement.parseAllConcurrently(node, progress);
+          }
+        }
+      }
       Divider.divideInsideAndOutside(myFile, myStartOffset, myEndOffset, myPriorityRange, inside, outside,
                                      HighlightLevelUtil.AnalysisLevel.HIGHLIGHT,false);
 
@@ -200,7 +212,7 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
       final boolean forceHighlightParents = forceHighlightParents();
 
       if (!isDumbMode()) {
-        highlightTodos(myFile, myDocument.getCharsSequence(), myStartOffset, myEndOffset, progress, myPriorityRange, gotHighlights, outsideResult);
+        highlightTodos(myFile, getDocumentSnapshot().getText(), myStartOffset, myEndOffset, progress, myPriorityRange, gotHighlights, outsideResult);
       }
 
       collectHighlights(inside, new Runnable() {
@@ -240,11 +252,10 @@ public class GeneralHighlightingPass extends ProgressableTextEditorHighlightingP
             myHighlights.addAll(toApplyInside);
             gotHighlights.clear();
             gotHighlights.addAll(outsideResult);
-            final long modificationStamp = myDocument.getModificationStamp();
             UIUtil.invokeLaterIfNeeded(new Runnable() {
               @Override
               public void run() {
-                if (myProject.isDisposed() || modificationStamp != myDocument.getModificationStamp()) return;
+                if (myProject.isDisposed() || !isDocumentUpToDate()) return;
                 MarkupModel markupModel = DocumentMarkupModel.forDocument(myDocument, myProject, true);
 
                 UpdateHighlightersUtil.setHighlightersInRange(myProject, myDocument, priorityIntersection, getColorsScheme(), toApplyInside,
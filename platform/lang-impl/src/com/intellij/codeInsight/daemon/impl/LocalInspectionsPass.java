@@ -145,9 +145,23 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
   }
 
   public void doInspectInBatch(@NotNull InspectionManagerEx iManager, @NotNull List<LocalInspectionToolWrapper> toolWrappers) {
+    inspectInBatch(iManager, toolWrappers);
+    addInspectionResultsInBatch(iManager);
+  }
 
+  /**
+   * Runs the given tools against the file and keeps the found problems in this pass, they are reported to the tools by
+   * {@link #addInspectionResultsInBatch(InspectionManagerEx)}. Passes for different files may run concurrently.
+   */
+  public void inspectInBatch(@NotNull InspectionManagerEx iManager, @NotNull List<LocalInspectionToolWrapper> toolWrappers) {
     ProgressIndicator progress = ProgressManager.getInstance().getProgressIndicator();
     inspect(new ArrayList<LocalInspectionToolWrapper>(toolWrappers), iManager, false, false, false, progress);
+  }
+
+  /**
+   * Reports problems found by {@link #inspectInBatch(InspectionManagerEx, List)} to the corresponding tool wrappers.
+   */
+  public void addInspectionResultsInBatch(@NotNull InspectionManagerEx iManager) {
     addDescriptorsFromInjectedResults(iManager);
     List<InspectionResult> resultList = result.get(myFile);
     if (resultList == null) return;
@@ -325,10 +339,15 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
                                                                                        }
                                                                                      };
                                                                                    Set<String> languages = (Set<String>)pair.getValue();
+                                                                                   InspectionToolsProfiler.Measurement measurement =
+                                                                                     startMeasurement(iManager, isOnTheFly);
                                                                                    PsiElementVisitor visitor =
                                                                                      createVisitorAndAcceptElements(tool, holder,
                                                                                                                     isOnTheFly, session,
                                                                                                                     elements, languages);
+                                                                                   if (measurement != null) {
+                                                                                     measurement.stop();
+                                                                                   }
 
                                                                                    synchronized (init) {
                                                                                      init.add(
@@ -337,10 +356,13 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
                                                                                    }
                                                                                    advanceProgress(1);
 
+                                                                                   int problemsCount = 0;
                                                                                    if (holder.hasResults()) {
-                                                                                     appendDescriptors(myFile, holder.getResults(),
-                                                                                                       wrapper);
+                                                                                     List<ProblemDescriptor> results = holder.getResults();
+                                                                                     problemsCount = results.size();
+                                                                                     appendDescriptors(myFile, results, wrapper);
                                                                                    }
+                                                                                   toolRunFinished(iManager, wrapper, measurement, problemsCount, 1);
                                                                                    applyIncrementally[0] =
                                                                                      false; // do not apply incrementally outside visible range
                                                                                    return true;
@@ -384,13 +406,21 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
           
           indicator.checkCanceled();
           ApplicationManager.getApplication().assertReadAccessAllowed();
+          InspectionToolsProfiler.Measurement measurement = startMeasurement(iManager, isOnTheFly);
           acceptElements(elements, context.visitor, context.languageIds);
           advanceProgress(1);
           context.tool.getTool().inspectionFinished(session, context.holder);
+          if (measurement != null) {
+            measurement.stop();
+          }
 
+          int problemsCount = 0;
           if (context.holder.hasResults()) {
-            appendDescriptors(myFile, context.holder.getResults(), context.tool);
+            List<ProblemDescriptor> results = context.holder.getResults();
+            problemsCount = results.size();
+            appendDescriptors(myFile, results, context.tool);
           }
+          toolRunFinished(iManager, context.tool, measurement, problemsCount, 0);
           return true;
         }
       };
@@ -401,6 +431,24 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
     inspectInjectedPsi(elements, isOnTheFly, indicator, iManager, false, checkDumbAwareness, wrappers);
   }
 
+  /**
+   * @return measurement of the tool run if it's recorded by the tools profiler (always in batch mode), null otherwise
+   */
+  @Nullable
+  private static InspectionToolsProfiler.Measurement startMeasurement(@NotNull InspectionManagerEx iManager, boolean isOnTheFly) {
+    return isOnTheFly && !iManager.getToolsProfiler().isEnabled() ? null : InspectionToolsProfiler.startMeasurement();
+  }
+
+  private static void toolRunFinished(@NotNull InspectionManagerEx iManager,
+                                      @NotNull LocalInspectionToolWrapper toolWrapper,
+                                      @Nullable InspectionToolsProfiler.Measurement measurement,
+                                      int problemsCount,
+                                      int filesCount) {
+    if (measurement != null) {
+      iManager.getToolsProfiler().addToolRun(toolWrapper.getShortName(), measurement, problemsCount, filesCount);
+    }
+  }
+
   private static void acceptElements(@NotNull List<PsiElement> elements,
                                      @NotNull PsiElementVisitor elementVisitor,
                                      @Nullable Set<String> languages) {
@@ -467,7 +515,8 @@ public class LocalInspectionsPass extends ProgressableTextEditorHighlightingPass
     @Override
     public boolean process(Trinity<ProblemDescriptor, LocalInspectionToolWrapper,ProgressIndicator> trinity) {
       ProgressIndicator indicator = trinity.getThird();
-      if (indicator.isCanceled()) {
+      if (indicator.isCanceled() || !isDocumentUpToDate()) {
+        // the descriptor ranges are for the text the pass has started with
         return false;
       }
 
@@ -20,6 +20,7 @@ import com.intellij.analysis.AnalysisScope;
 import com.intellij.codeInspection.ex.GlobalInspectionContextImpl;
 import com.intellij.codeInspection.ex.InspectionManagerEx;
 import com.intellij.codeInspection.ex.InspectionProfileImpl;
+import com.intellij.codeInspection.ex.InspectionToolsProfiler;
 import com.intellij.codeInspection.ex.XSLTReportConverter;
 import com.intellij.conversion.ConversionListener;
 import com.intellij.conversion.ConversionService;
@@ -48,11 +49,13 @@ import com.intellij.util.StringBuilderSpinAllocator;
 import com.thoughtworks.xstream.io.xml.PrettyPrintWriter;
 import org.jdom.JDOMException;
 import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.Writer;
 import java.util.*;
 
 /**
@@ -81,6 +84,7 @@ public class InspectionApplication {
   @NonNls public static final String PROFILE = "profile";
   @NonNls public static final String INSPECTIONS_NODE = "inspections";
   @NonNls public static final String XML_EXTENSION = ".xml";
+  @NonNls private static final String TOOLS_PROFILE_CSV_PROPERTY = "inspection.tools.profiling.csv";
 
   public void startup() {
     if (myProjectPath == null) {
@@ -268,6 +272,7 @@ public class InspectionApplication {
       describeInspections(descriptionsFile,
                           myRunWithEditorSettings ? null : inspectionProfile.getName());
       inspectionsResults.add(new File(descriptionsFile));
+      reportToolsProfile(im);
       // convert report
       if (reportConverter != null) {
         try {
@@ -297,6 +302,24 @@ public class InspectionApplication {
     }
   }
 
+  private void reportToolsProfile(@NotNull InspectionManagerEx im) throws IOException {
+    final InspectionToolsProfiler profiler = im.getToolsProfiler();
+    if (!profiler.isEnabled()) return;
+    final String csvPath = System.getProperty(TOOLS_PROFILE_CSV_PROPERTY);
+    if (csvPath == null) {
+      logMessageLn(1, profiler.getReport(InspectionToolsProfiler.SortKey.CPU_TIME));
+      return;
+    }
+    final Writer writer = new FileWriter(csvPath);
+    try {
+      profiler.writeCsv(writer, InspectionToolsProfiler.SortKey.CPU_TIME);
+    }
+    finally {
+      writer.close();
+    }
+    logMessageLn(1, "Inspection tools profile is written to " + csvPath);
+  }
+
   @Nullable
   private Profile loadInspectionProfile() throws IOException, JDOMException {
     Profile inspectionProfile = null;
@@ -66,16 +66,17 @@ import org.jdom.Element;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
+import org.jetbrains.annotations.TestOnly;
 
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
+import java.util.*;
 
 public class GlobalInspectionContextImpl extends UserDataHolderBase implements GlobalInspectionContext {
   private static final Logger LOG = Logger.getInstance("#com.intellij.codeInspection.ex.GlobalInspectionContextImpl");
+  /** Number of files that are inspected concurrently by local tools, their results are merged after the whole batch is done. */
+  private static final int FILES_BATCH_SIZE = Runtime.getRuntime().availableProcessors() * 4;
+  private static final int MAX_TOOLS_TO_REPORT = 20;
   private static final TObjectHashingStrategy<ToolsImpl> TOOLS_HASHING_STRATEGY = new TObjectHashingStrategy<ToolsImpl>() {
     @Override
     public int computeHashCode(ToolsImpl object) {
@@ -114,6 +115,7 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
   private final Map<String, Tools> myTools = new THashMap<String, Tools>();
 
   private AnalysisUIOptions myUIOptions;
+  private int myFilesBatchSize = FILES_BATCH_SIZE;
   @NonNls static final String LOCAL_TOOL_ATTRIBUTE = "is_local_tool";
 
   public GlobalInspectionContextImpl(Project project, NotNullLazyValue<ContentManager> contentManager) {
@@ -534,35 +536,38 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
     }
   }
 
-  private void runTools(@NotNull AnalysisScope scope, @NotNull final InspectionManager manager) {
+  private void runTools(@NotNull final AnalysisScope scope, @NotNull final InspectionManager manager) {
     final List<Tools> globalTools = new ArrayList<Tools>();
     final List<Tools> localTools = new ArrayList<Tools>();
     final List<Tools> globalSimpleTools = new ArrayList<Tools>();
     initializeTools(globalTools, localTools, globalSimpleTools);
-    final List<InspectionProfileEntry> needRepeatSearchRequest = new ArrayList<InspectionProfileEntry>();
-    ((RefManagerImpl)getRefManager()).initializeAnnotators();
+    final List<InspectionProfileEntry> needRepeatSearchRequest = Collections.synchronizedList(new ArrayList<InspectionProfileEntry>());
+    final long startTime = System.currentTimeMillis();
+    final InspectionToolsProfiler profiler = ((InspectionManagerEx)manager).getToolsProfiler();
+    final List<InspectionToolsProfiler.ToolStatistics> statisticsBefore = profiler.getStatistics(InspectionToolsProfiler.SortKey.NAME);
+    final List<InspectionTool> graphTools = new ArrayList<InspectionTool>();
+    final List<InspectionTool> independentTools = new ArrayList<InspectionTool>();
     for (Tools tools : globalTools) {
       for (ScopeToolState state : tools.getTools()) {
         final InspectionTool tool = (InspectionTool)state.getTool();
-        try {
-          if (tool.isGraphNeeded()) {
-            ((RefManagerImpl)getRefManager()).findAllDeclarations();
-          }
-          tool.runInspection(scope, manager);
-          if (tool.queryExternalUsagesRequests(manager)) {
-            needRepeatSearchRequest.add(tool);
-          }
-        }
-        catch (ProcessCanceledException e) {
-          throw e;
-        }
-        catch (IndexNotReadyException e) {
-          throw e;
-        }
-        catch (Exception e) {
-          LOG.error(e);
-        }
+        (tool.isGraphNeeded() ? graphTools : independentTools).add(tool);
+      }
+    }
+    ((RefManagerImpl)getRefManager()).initializeAnnotators();
+    // the reference graph is built once by the walking thread, tools which don't need it are run concurrently;
+    // the graph tools mark the shared reference elements, so they are run one by one
+    if (!graphTools.isEmpty()) {
+      ((RefManagerImpl)getRefManager()).findAllDeclarations();
+    }
+    JobLauncher.getInstance().invokeConcurrentlyUnderProgress(independentTools, myProgressIndicator, false, new Processor<InspectionTool>() {
+      @Override
+      public boolean process(InspectionTool tool) {
+        runGlobalTool(tool, scope, manager, needRepeatSearchRequest);
+        return true;
       }
+    });
+    for (InspectionTool tool : graphTools) {
+      runGlobalTool(tool, scope, manager, needRepeatSearchRequest);
     }
     for (GlobalInspectionContextExtension extension : myExtensions.values()) {
       try {
@@ -589,6 +594,9 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
     }
 
     final Map<String, DescriptorProviderInspection> map = getInspectionWrappersMap(localTools);
+    // files are inspected by local tools concurrently, problems are reported to the tools on the walking thread afterwards
+    final Map<PsiFile, LocalInspectionsPass> batch = new LinkedHashMap<PsiFile, LocalInspectionsPass>();
+    final int[] filesCount = new int[1];
     scope.accept(new PsiElementVisitor() {
       @Override
       public void visitFile(final PsiFile file) {
@@ -602,17 +610,113 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
         final FileViewProvider viewProvider = psiManager.findViewProvider(virtualFile);
         final com.intellij.openapi.editor.Document document = viewProvider == null ? null : viewProvider.getDocument();
         if (document == null || virtualFile.getFileType().isBinary()) return; //do not inspect binary files
-        final LocalInspectionsPass pass = new LocalInspectionsPass(file, document, 0,
-                                                                   file.getTextLength(), LocalInspectionsPass.EMPTY_PRIORITY_RANGE, true);
-        try {
-          final List<LocalInspectionToolWrapper> lTools = new ArrayList<LocalInspectionToolWrapper>();
-          for (Tools tool : localTools) {
-            final LocalInspectionToolWrapper enabledTool = (LocalInspectionToolWrapper)tool.getEnabledTool(file);
-            if (enabledTool != null) {
-              lTools.add(enabledTool);
+        batch.put(file, new LocalInspectionsPass(file, document, 0, file.getTextLength(), LocalInspectionsPass.EMPTY_PRIORITY_RANGE, true));
+        filesCount[0]++;
+        if (batch.size() >= myFilesBatchSize) {
+          inspectFilesInReadAction(batch, localTools, globalSimpleTools, map, manager);
+        }
+      }
+    });
+    if (!batch.isEmpty()) {
+      inspectFilesInReadAction(batch, localTools, globalSimpleTools, map, manager);
+    }
+    for (Tools tools : globalSimpleTools) {
+      GlobalInspectionToolWrapper toolWrapper = (GlobalInspectionToolWrapper)tools.getTool();
+      GlobalSimpleInspectionTool tool = (GlobalSimpleInspectionTool)toolWrapper.getTool();
+      GlobalInspectionToolWrapper problemDescriptionProcessor = getProblemDescriptionProcessor(toolWrapper, map);
+      tool.inspectionFinished(manager, this, problemDescriptionProcessor);
+    }
+    reportInspectionTimes(filesCount[0], System.currentTimeMillis() - startTime,
+                          profiler.getStatisticsSince(statisticsBefore, InspectionToolsProfiler.SortKey.CPU_TIME));
+  }
+
+  private void runGlobalTool(@NotNull InspectionTool tool,
+                             @NotNull AnalysisScope scope,
+                             @NotNull InspectionManager manager,
+                             @NotNull List<InspectionProfileEntry> needRepeatSearchRequest) {
+    try {
+      InspectionToolsProfiler.Measurement measurement = InspectionToolsProfiler.startMeasurement();
+      tool.runInspection(scope, manager);
+      measurement.stop();
+      int problemsCount = tool instanceof DescriptorProviderInspection ? ((DescriptorProviderInspection)tool).getProblemDescriptors().size() : 0;
+      ((InspectionManagerEx)manager).getToolsProfiler().addToolRun(tool.getShortName(), measurement, problemsCount, 0);
+      if (tool.queryExternalUsagesRequests(manager)) {
+        needRepeatSearchRequest.add(tool);
+      }
+    }
+    catch (ProcessCanceledException e) {
+      throw e;
+    }
+    catch (IndexNotReadyException e) {
+      throw e;
+    }
+    catch (Exception e) {
+      LOG.error(e);
+    }
+  }
+
+  private void inspectFilesInReadAction(@NotNull final Map<PsiFile, LocalInspectionsPass> batch,
+                                        @NotNull final List<Tools> localTools,
+                                        @NotNull final List<Tools> globalSimpleTools,
+                                        @NotNull final Map<String, DescriptorProviderInspection> map,
+                                        @NotNull final InspectionManager manager) {
+    ApplicationManager.getApplication().runReadAction(new Runnable() {
+      @Override
+      public void run() {
+        inspectFiles(batch, localTools, globalSimpleTools, map, manager);
+      }
+    });
+  }
+
+  /**
+   * Inspects the given files by local tools concurrently, then reports found problems and runs global simple tools file by file.
+   * The batch is cleared on return.
+   */
+  private void inspectFiles(@NotNull final Map<PsiFile, LocalInspectionsPass> batch,
+                            @NotNull final List<Tools> localTools,
+                            @NotNull final List<Tools> globalSimpleTools,
+                            @NotNull final Map<String, DescriptorProviderInspection> map,
+                            @NotNull final InspectionManager manager) {
+    final Set<PsiFile> failedFiles = Collections.synchronizedSet(new THashSet<PsiFile>());
+    try {
+      JobLauncher.getInstance().invokeConcurrentlyUnderProgress(new ArrayList<PsiFile>(batch.keySet()), myProgressIndicator, false,
+                                                                new Processor<PsiFile>() {
+        @Override
+        public boolean process(PsiFile file) {
+          try {
+            final List<LocalInspectionToolWrapper> lTools = new ArrayList<LocalInspectionToolWrapper>();
+            for (Tools tool : localTools) {
+              final LocalInspectionToolWrapper enabledTool = (LocalInspectionToolWrapper)tool.getEnabledTool(file);
+              if (enabledTool != null) {
+                lTools.add(enabledTool);
+              }
             }
+            batch.get(file).inspectInBatch((InspectionManagerEx)manager, lTools);
           }
-          pass.doInspectInBatch((InspectionManagerEx)manager, lTools);
+          catch (ProcessCanceledException e) {
+            throw e;
+          }
+          catch (IndexNotReadyException e) {
+            throw e;
+          }
+          catch (Exception e) {
+            failedFiles.add(file);
+            LOG.error("In file: " + file, e);
+          }
+          catch (AssertionError e) {
+            failedFiles.add(file);
+            LOG.error("In file: " + file, e);
+          }
+          return true;
+        }
+      });
+
+      for (Map.Entry<PsiFile, LocalInspectionsPass> entry : batch.entrySet()) {
+        final PsiFile file = entry.getKey();
+        try {
+          if (failedFiles.contains(file)) continue;
+          LocalInspectionsPass pass = entry.getValue();
+          pass.addInspectionResultsInBatch((InspectionManagerEx)manager);
 
           JobLauncher.getInstance().invokeConcurrentlyUnderProgress(globalSimpleTools, myProgressIndicator, false, new Processor<Tools>() {
             @Override
@@ -621,8 +725,12 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
               GlobalSimpleInspectionTool tool = (GlobalSimpleInspectionTool)toolWrapper.getTool();
               ProblemsHolder problemsHolder = new ProblemsHolder(manager, file, false);
               GlobalInspectionToolWrapper problemDescriptionProcessor = getProblemDescriptionProcessor(toolWrapper, map);
+              InspectionToolsProfiler.Measurement measurement = InspectionToolsProfiler.startMeasurement();
               tool.checkFile(file, manager, problemsHolder, GlobalInspectionContextImpl.this, problemDescriptionProcessor);
-              LocalInspectionToolWrapper.addProblemDescriptors(problemsHolder.getResults(), false, GlobalInspectionContextImpl.this, null,
+              measurement.stop();
+              List<ProblemDescriptor> problems = problemsHolder.getResults();
+              ((InspectionManagerEx)manager).getToolsProfiler().addToolRun(toolWrapper.getShortName(), measurement, problems.size(), 1);
+              LocalInspectionToolWrapper.addProblemDescriptors(problems, false, GlobalInspectionContextImpl.this, null,
                                                                CONVERT, toolWrapper);
               return true;
             }
@@ -640,17 +748,30 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
         catch (AssertionError e) {
           LOG.error("In file: " + file, e);
         }
-        finally {
-          InjectedLanguageManager.getInstance(myProject).dropFileCaches(file);
-        }
       }
-    });
-    for (Tools tools : globalSimpleTools) {
-      GlobalInspectionToolWrapper toolWrapper = (GlobalInspectionToolWrapper)tools.getTool();
-      GlobalSimpleInspectionTool tool = (GlobalSimpleInspectionTool)toolWrapper.getTool();
-      GlobalInspectionToolWrapper problemDescriptionProcessor = getProblemDescriptionProcessor(toolWrapper, map);
-      tool.inspectionFinished(manager, this, problemDescriptionProcessor);
     }
+    finally {
+      for (PsiFile file : batch.keySet()) {
+        InjectedLanguageManager.getInstance(myProject).dropFileCaches(file);
+      }
+      batch.clear();
+    }
+  }
+
+  /**
+   * Number of files inspected concurrently, 1 makes the files be inspected one by one.
+   */
+  @TestOnly
+  public void setFilesBatchSize(int filesBatchSize) {
+    myFilesBatchSize = filesBatchSize;
+  }
+
+  private static void reportInspectionTimes(int filesCount, long duration, @NotNull List<InspectionToolsProfiler.ToolStatistics> statistics) {
+    StringBuilder buffer = new StringBuilder();
+    for (InspectionToolsProfiler.ToolStatistics s : statistics.subList(0, Math.min(statistics.size(), MAX_TOOLS_TO_REPORT))) {
+      buffer.append("\n  ").append(s.getToolName()).append(": ").append(s.getCpuTime() / 1000000).append("ms");
+    }
+    LOG.info("Inspection of " + filesCount + " files took " + duration + "ms, CPU time of the most expensive tools:" + buffer);
   }
 
   private static GlobalInspectionToolWrapper getProblemDescriptionProcessor(@NotNull final GlobalInspectionToolWrapper toolWrapper,
@@ -815,8 +936,10 @@ public class GlobalInspectionContextImpl extends UserDataHolderBase implements G
 
     ProgressManager.checkCanceled();
 
-    int old = job.getDoneAmount();
-    job.setDoneAmount(old + 1);
+    // global tools may be run concurrently
+    synchronized (job) {
+      job.setDoneAmount(job.getDoneAmount() + 1);
+    }
 
     float totalProgress = getTotalProgress();
 
@@ -56,6 +56,7 @@ public class InspectionManagerEx extends InspectionManager {
   private final NotNullLazyValue<ContentManager> myContentManager;
 
   private final Set<GlobalInspectionContextImpl> myRunningContexts = new HashSet<GlobalInspectionContextImpl>();
+  private final InspectionToolsProfiler myToolsProfiler = new InspectionToolsProfiler();
 
   public InspectionManagerEx(Project project) {
     myProject = project;
@@ -197,6 +198,11 @@ public class InspectionManagerEx extends InspectionManager {
     return myRunningContexts;
   }
 
+  @NotNull
+  public InspectionToolsProfiler getToolsProfiler() {
+    return myToolsProfiler;
+  }
+
   public static boolean inspectionResultSuppressed(@NotNull PsiElement place, LocalInspectionTool tool) {
     if (tool instanceof CustomSuppressableInspectionTool) {
       return ((CustomSuppressableInspectionTool)tool).isSuppressedFor(place);
@@ -0,0 +1,286 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInspection.ex;
+
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.util.containers.ConcurrentHashMap;
+import org.jetbrains.annotations.NonNls;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.lang.reflect.Method;
+import java.util.*;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Collects statistics of the inspection tools runs: CPU time, allocated memory, number of inspected files and found problems.
+ * The data is accumulated per tool during the whole session until {@link #reset()} and may be dumped as a plain text report
+ * or CSV.
+ * <p/>
+ * Batch inspection runs are always recorded. Profiling of on-the-fly inspections is switched off by default, use
+ * {@code inspection.tools.profiling} registry key to turn it on (it may be passed as a system property for headless runs as well).
+ * <p/>
+ * Thread-safe.
+ */
+public class InspectionToolsProfiler {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.codeInspection.ex.InspectionToolsProfiler");
+  @NonNls private static final String PROFILING_KEY = "inspection.tools.profiling";
+  /** {@code com.sun.management.ThreadMXBean.getThreadAllocatedBytes(long)}, null if the JVM doesn't provide it */
+  private static final Method GET_THREAD_ALLOCATED_BYTES = findGetThreadAllocatedBytes();
+
+  public enum SortKey {CPU_TIME, ALLOCATED_BYTES, PROBLEMS, FILES, NAME}
+
+  private final ConcurrentMap<String, ToolStatistics> myStatistics = new ConcurrentHashMap<String, ToolStatistics>();
+
+  public boolean isEnabled() {
+    return Registry.is(PROFILING_KEY);
+  }
+
+  /**
+   * Records single tool run.
+   *
+   * @param toolName       short name of the tool
+   * @param measurement    stopped measurement of the tool run
+   * @param problemsCount  number of problems found by the run
+   * @param filesCount     number of files inspected by the run, zero if the run continues inspection of an already counted file
+   */
+  public void addToolRun(@NotNull String toolName, @NotNull Measurement measurement, int problemsCount, int filesCount) {
+    ToolStatistics statistics = myStatistics.get(toolName);
+    if (statistics == null) {
+      ToolStatistics newStatistics = new ToolStatistics(toolName);
+      statistics = myStatistics.putIfAbsent(toolName, newStatistics);
+      if (statistics == null) {
+        statistics = newStatistics;
+      }
+    }
+    statistics.add(measurement, problemsCount, filesCount);
+  }
+
+  public void reset() {
+    myStatistics.clear();
+  }
+
+  /**
+   * @return snapshot of the collected statistics sorted in descending order of the given key (or by name)
+   */
+  @NotNull
+  public List<ToolStatistics> getStatistics(@NotNull final SortKey sortKey) {
+    List<ToolStatistics> result = new ArrayList<ToolStatistics>();
+    for (ToolStatistics statistics : myStatistics.values()) {
+      result.add(statistics.copy());
+    }
+    Collections.sort(result, new Comparator<ToolStatistics>() {
+      @Override
+      public int compare(ToolStatistics o1, ToolStatistics o2) {
+        switch (sortKey) {
+          case CPU_TIME:
+            return compareLongs(o2.myCpuTime, o1.myCpuTime);
+          case ALLOCATED_BYTES:
+            return compareLongs(o2.myAllocatedBytes, o1.myAllocatedBytes);
+          case PROBLEMS:
+            return compareLongs(o2.myProblemsCount, o1.myProblemsCount);
+          case FILES:
+            return compareLongs(o2.myFilesCount, o1.myFilesCount);
+          default:
+            return o1.myToolName.compareTo(o2.myToolName);
+        }
+      }
+    });
+    return result;
+  }
+
+  /**
+   * @param previous statistics taken by {@link #getStatistics(SortKey)} earlier
+   * @return statistics collected since the previous ones were taken, tools which weren't run since then are skipped
+   */
+  @NotNull
+  public List<ToolStatistics> getStatisticsSince(@NotNull List<ToolStatistics> previous, @NotNull SortKey sortKey) {
+    Map<String, ToolStatistics> previousByName = new HashMap<String, ToolStatistics>();
+    for (ToolStatistics statistics : previous) {
+      previousByName.put(statistics.myToolName, statistics);
+    }
+    List<ToolStatistics> result = new ArrayList<ToolStatistics>();
+    for (ToolStatistics statistics : getStatistics(sortKey)) {
+      ToolStatistics before = previousByName.get(statistics.myToolName);
+      if (before == null) {
+        result.add(statistics);
+      }
+      else if (statistics.myCpuTime != before.myCpuTime || statistics.myFilesCount != before.myFilesCount) {
+        statistics.myCpuTime -= before.myCpuTime;
+        statistics.myAllocatedBytes -= before.myAllocatedBytes;
+        statistics.myFilesCount -= before.myFilesCount;
+        statistics.myProblemsCount -= before.myProblemsCount;
+        result.add(statistics);
+      }
+    }
+    return result;
+  }
+
+  private static int compareLongs(long l1, long l2) {
+    return l1 < l2 ? -1 : l1 == l2 ? 0 : 1;
+  }
+
+  @NotNull
+  public String getReport(@NotNull SortKey sortKey) {
+    List<ToolStatistics> statistics = getStatistics(sortKey);
+    int nameWidth = "Tool".length();
+    for (ToolStatistics s : statistics) {
+      nameWidth = Math.max(nameWidth, s.myToolName.length());
+    }
+    StringBuilder buffer = new StringBuilder();
+    buffer.append(String.format("%-" + nameWidth + "s %12s %14s %10s %10s%n", "Tool", "CPU time, ms", "Allocated, KB", "Files", "Problems"));
+    for (ToolStatistics s : statistics) {
+      buffer.append(String.format("%-" + nameWidth + "s %12d %14d %10d %10d%n", s.myToolName, s.myCpuTime / 1000000,
+                                  s.myAllocatedBytes / 1024, s.myFilesCount, s.myProblemsCount));
+    }
+    return buffer.toString();
+  }
+
+  public void writeCsv(@NotNull Writer writer, @NotNull SortKey sortKey) throws IOException {
+    writer.write("tool,cpu_time_ns,allocated_bytes,files,problems\n");
+    for (ToolStatistics s : getStatistics(sortKey)) {
+      writer.write(s.myToolName + "," + s.myCpuTime + "," + s.myAllocatedBytes + "," + s.myFilesCount + "," + s.myProblemsCount + "\n");
+    }
+  }
+
+  @NotNull
+  public static Measurement startMeasurement() {
+    return new Measurement();
+  }
+
+  /**
+   * @return CPU time of the current thread in nanoseconds, or the wall clock time if the JVM doesn't support CPU time measurement
+   */
+  public static long currentThreadCpuTime() {
+    ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    return bean.isCurrentThreadCpuTimeSupported() ? bean.getCurrentThreadCpuTime() : System.nanoTime();
+  }
+
+  /**
+   * @return number of bytes allocated by the current thread, or zero if the JVM doesn't support allocation measurement
+   */
+  public static long currentThreadAllocatedBytes() {
+    if (GET_THREAD_ALLOCATED_BYTES == null) return 0;
+    try {
+      long bytes = (Long)GET_THREAD_ALLOCATED_BYTES.invoke(ManagementFactory.getThreadMXBean(), Thread.currentThread().getId());
+      return Math.max(bytes, 0); // -1 if the measurement is switched off
+    }
+    catch (Exception e) {
+      return 0;
+    }
+  }
+
+  // com.sun.management is HotSpot specific, so it's only accessed reflectively
+  @Nullable
+  private static Method findGetThreadAllocatedBytes() {
+    try {
+      ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+      Class<?> sunBeanClass = Class.forName("com.sun.management.ThreadMXBean");
+      if (!sunBeanClass.isInstance(bean) || !(Boolean)sunBeanClass.getMethod("isThreadAllocatedMemorySupported").invoke(bean)) {
+        return null;
+      }
+      return sunBeanClass.getMethod("getThreadAllocatedBytes", long.class);
+    }
+    catch (Throwable e) {
+      LOG.debug(e);
+      return null;
+    }
+  }
+
+  /**
+   * CPU time and memory allocated by the current thread between the measurement start and {@link #stop()} call.
+   */
+  public static class Measurement {
+    private final long myStartCpuTime = currentThreadCpuTime();
+    private final long myStartAllocatedBytes = currentThreadAllocatedBytes();
+    private long myCpuTime;
+    private long myAllocatedBytes;
+
+    private Measurement() {
+    }
+
+    public void stop() {
+      myCpuTime = currentThreadCpuTime() - myStartCpuTime;
+      myAllocatedBytes = currentThreadAllocatedBytes() - myStartAllocatedBytes;
+    }
+
+    public long getCpuTime() {
+      return myCpuTime;
+    }
+
+    public long getAllocatedBytes() {
+      return myAllocatedBytes;
+    }
+  }
+
+  public static class ToolStatistics {
+    private final String myToolName;
+    private long myCpuTime;
+    private long myAllocatedBytes;
+    private long myFilesCount;
+    private long myProblemsCount;
+
+    private ToolStatistics(@NotNull String toolName) {
+      myToolName = toolName;
+    }
+
+    private synchronized void add(@NotNull Measurement measurement, int problemsCount, int filesCount) {
+      myCpuTime += measurement.getCpuTime();
+      myAllocatedBytes += measurement.getAllocatedBytes();
+      myProblemsCount += problemsCount;
+      myFilesCount += filesCount;
+    }
+
+    @NotNull
+    private synchronized ToolStatistics copy() {
+      ToolStatistics result = new ToolStatistics(myToolName);
+      result.myCpuTime = myCpuTime;
+      result.myAllocatedBytes = myAllocatedBytes;
+      result.myFilesCount = myFilesCount;
+      result.myProblemsCount = myProblemsCount;
+      return result;
+    }
+
+    @NotNull
+    public String getToolName() {
+      return myToolName;
+    }
+
+    /**
+     * @return total CPU time in nanoseconds
+     */
+    public long getCpuTime() {
+      return myCpuTime;
+    }
+
+    public long getAllocatedBytes() {
+      return myAllocatedBytes;
+    }
+
+    public long getFilesCount() {
+      return myFilesCount;
+    }
+
+    public long getProblemsCount() {
+      return myProblemsCount;
+    }
+  }
+}
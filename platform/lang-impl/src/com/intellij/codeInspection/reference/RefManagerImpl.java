@@ -456,7 +456,9 @@ public class RefManagerImpl extends RefManager {
     });
     if (refElement == null) return null;
 
-    putToRefTable(elem, refElement);
+    // global tools may be run concurrently, the element created first wins and only it is initialized
+    final RefElement existing = putToRefTableIfAbsent(elem, refElement);
+    if (existing != null) return existing;
 
     ApplicationManager.getApplication().runReadAction(new Runnable() {
       @Override
@@ -520,6 +522,26 @@ public class RefManagerImpl extends RefManager {
     }
   }
 
+  @Nullable
+  private RefElement putToRefTableIfAbsent(final PsiElement element, final RefElement ref) {
+    final PsiAnchor anchor = ApplicationManager.getApplication().runReadAction(new Computable<PsiAnchor>() {
+      @Override
+      public PsiAnchor compute() {
+        return PsiAnchor.create(element);
+      }
+    });
+    myLock.writeLock().lock();
+    try {
+      final RefElement existing = getRefTable().get(anchor);
+      if (existing != null) return existing;
+      getRefTable().put(anchor, ref);
+      return null;
+    }
+    finally {
+      myLock.writeLock().unlock();
+    }
+  }
+
   protected void putToRefTable(final PsiElement element, final RefElement ref) {
     myLock.writeLock().lock();
     try {
@@ -562,7 +562,8 @@ public class DocumentCommitThread implements Runnable, Disposable {
     int startOffset;
     int endOffset;
     int lengthShift;
-    if (file.getViewProvider().supportsIncrementalReparse(file.getLanguage())) {
+    boolean incremental = file.getViewProvider().supportsIncrementalReparse(file.getLanguage());
+    if (incremental) {
       startOffset = textBlock.getStartOffset();
       int psiEndOffset = textBlock.getPsiEndOffset();
       endOffset = psiEndOffset;
@@ -575,7 +576,11 @@ public class DocumentCommitThread implements Runnable, Disposable {
     }
     assertBeforeCommit(document, file, textBlock, chars, oldPsiText, myTreeElementBeingReparsedSoItWontBeCollected);
     BlockSupport blockSupport = BlockSupport.getInstance(file.getProject());
-    final DiffLog diffLog = blockSupport.reparseRange(file, startOffset, endOffset, lengthShift, chars, task.indicator);
+    List<TextBlock.Change> changes = incremental ? textBlock.getChanges() : null;
+    DiffLog changedBlocksDiffLog = changes == null ? null : blockSupport.reparseChangedBlocks(file, changes, chars, task.indicator);
+    final DiffLog diffLog = changedBlocksDiffLog != null
+                            ? changedBlocksDiffLog
+                            : blockSupport.reparseRange(file, startOffset, endOffset, lengthShift, chars, task.indicator);
 
     return new Processor<Document>() {
       @Override
@@ -139,6 +139,11 @@ public class TodoIndex extends FileBasedIndexExtension<TodoIndexEntry, Integer>
     return 4;
   }
 
+  @Override
+  public boolean needsKeyFilter() {
+    return true;
+  }
+
   @Override
   public boolean dependsOnFileContent() {
     return true;
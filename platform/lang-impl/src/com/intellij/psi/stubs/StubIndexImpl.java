@@ -59,6 +59,9 @@ import java.io.File;
 import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.locks.Lock;
 
@@ -78,6 +81,13 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
 
   private StubIndexState myPreviouslyRegistered;
 
+  private static final Comparator<StubIndexKey> LOCK_ORDER = new Comparator<StubIndexKey>() {
+    @Override
+    public int compare(StubIndexKey key1, StubIndexKey key2) {
+      return key1.getUniqueId() - key2.getUniqueId();
+    }
+  };
+
   public StubIndexImpl(FileBasedIndex fileBasedIndex /* need this to ensure initialization order*/ ) throws IOException {
     final boolean forceClean = Boolean.TRUE == ourForcedClean.getAndSet(Boolean.FALSE);
 
@@ -400,6 +410,9 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
   }
 
   public void dispose() {
+    if (LOG.isDebugEnabled()) {
+      LOG.debug("Stub index lock contention:\n" + getLockContentionReport());
+    }
     for (UpdatableIndex index : myIndices.values()) {
       index.dispose();
     }
@@ -464,6 +477,61 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     return myIndices.get(indexKey).getWriteLock();
   }
 
+  /**
+   * Write-locks the indices of the given keys. The locks are always taken in the same order, so updates of different files
+   * may hold the locks of overlapping sets of stub indices without deadlocking.
+   * @return the locked keys to be passed to {@link #unlockAfterUpdate(List)}
+   */
+  @NotNull
+  public List<StubIndexKey> lockForUpdate(@NotNull Collection<StubIndexKey> indexKeys) {
+    final List<StubIndexKey> ordered = new ArrayList<StubIndexKey>(indexKeys);
+    Collections.sort(ordered, LOCK_ORDER);
+    final List<StubIndexKey> locked = new ArrayList<StubIndexKey>(ordered.size());
+    try {
+      for (StubIndexKey key : ordered) {
+        myIndices.get(key).lockForUpdate();
+        locked.add(key);
+      }
+    }
+    catch (RuntimeException e) {
+      unlockAfterUpdate(locked);
+      throw e;
+    }
+    return locked;
+  }
+
+  public void unlockAfterUpdate(@NotNull List<StubIndexKey> lockedKeys) {
+    for (int i = lockedKeys.size() - 1; i >= 0; i--) {
+      getWriteLock(lockedKeys.get(i)).unlock();
+    }
+  }
+
+  /**
+   * Per-key write lock contention collected since startup: acquisitions, how many of them had to wait and the total waiting time,
+   * the most contended indices first.
+   */
+  @NotNull
+  public String getLockContentionReport() {
+    final List<StubIndexKey<?, ?>> keys = new ArrayList<StubIndexKey<?, ?>>(myIndices.keySet());
+    Collections.sort(keys, new Comparator<StubIndexKey<?, ?>>() {
+      @Override
+      public int compare(StubIndexKey<?, ?> key1, StubIndexKey<?, ?> key2) {
+        final long wait1 = myIndices.get(key1).myLockWaitNanos.get();
+        final long wait2 = myIndices.get(key2).myLockWaitNanos.get();
+        return wait1 < wait2 ? 1 : wait1 == wait2 ? 0 : -1;
+      }
+    });
+    final StringBuilder report = new StringBuilder();
+    for (StubIndexKey<?, ?> key : keys) {
+      final MyIndex<?> index = myIndices.get(key);
+      report.append(key).append(": ")
+        .append(index.myLockAcquisitions.get()).append(" locks, ")
+        .append(index.myContendedLockAcquisitions.get()).append(" contended, ")
+        .append(TimeUnit.NANOSECONDS.toMillis(index.myLockWaitNanos.get())).append(" ms waiting\n");
+    }
+    return report.toString();
+  }
+
   public Collection<StubIndexKey> getAllStubIndexKeys() {
     return Collections.<StubIndexKey>unmodifiableCollection(myIndices.keySet());
   }
@@ -489,11 +557,40 @@ public class StubIndexImpl extends StubIndex implements ApplicationComponent, Pe
     }
   }
 
+  public void updateIndices(int fileId,
+                            @NotNull Collection<StubIndexKey> indexKeys,
+                            @NotNull Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
+                            @NotNull Map<StubIndexKey, Map<Object, StubIdList>> newStubTree) {
+    for (StubIndexKey key : indexKeys) {
+      final Map<Object, StubIdList> oldMap = oldStubTree.get(key);
+      final Map<Object, StubIdList> newMap = newStubTree.get(key);
+
+      updateIndex(key, fileId,
+                  oldMap != null ? oldMap : Collections.<Object, StubIdList>emptyMap(),
+                  newMap != null ? newMap : Collections.<Object, StubIdList>emptyMap());
+    }
+  }
+
   private static class MyIndex<K> extends MapReduceIndex<K, StubIdList, Void> {
+    private final AtomicInteger myLockAcquisitions = new AtomicInteger();
+    private final AtomicInteger myContendedLockAcquisitions = new AtomicInteger();
+    private final AtomicLong myLockWaitNanos = new AtomicLong();
+
     public MyIndex(final IndexStorage<K, StubIdList> storage) {
       super(null, null, storage);
     }
 
+    private void lockForUpdate() {
+      final Lock lock = getWriteLock();
+      myLockAcquisitions.incrementAndGet();
+      if (!lock.tryLock()) {
+        final long started = System.nanoTime();
+        lock.lock();
+        myContendedLockAcquisitions.incrementAndGet();
+        myLockWaitNanos.addAndGet(System.nanoTime() - started);
+      }
+    }
+
     @Override
     public void updateWithMap(final int inputId, @NotNull final Map<K, StubIdList> newData, @NotNull Callable<Collection<K>> oldKeysGetter) throws StorageException {
       super.updateWithMap(inputId, newData, oldKeysGetter);
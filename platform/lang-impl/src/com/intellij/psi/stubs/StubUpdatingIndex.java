@@ -203,22 +203,6 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     return new MyIndex(indexId, storage, getIndexer());
   }
 
-  private static void updateStubIndices(@NotNull final Collection<StubIndexKey> indexKeys,
-                                        final int inputId,
-                                        @NotNull final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
-                                        @NotNull final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree) {
-    final StubIndexImpl stubIndex = (StubIndexImpl)StubIndex.getInstance();
-    for (StubIndexKey key : indexKeys) {
-      final Map<Object, StubIdList> oldMap = oldStubTree.get(key);
-      final Map<Object, StubIdList> newMap = newStubTree.get(key);
-
-      final Map<Object, StubIdList> _oldMap = oldMap != null ? oldMap : Collections.<Object, StubIdList>emptyMap();
-      final Map<Object, StubIdList> _newMap = newMap != null ? newMap : Collections.<Object, StubIdList>emptyMap();
-
-      stubIndex.updateIndex(key, inputId, _oldMap, _newMap);
-    }
-  }
-
   @NotNull
   private static Collection<StubIndexKey> getAffectedIndices(@NotNull final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree,
                                                              @NotNull final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree) {
@@ -254,46 +238,63 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       throws StorageException {
 
       checkNameStorage();
-      final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree;
-      try {
-        newStubTree = getStubTree(newData);
-      }
-      catch (SerializerNotFoundException e) {
-        throw new StorageException(e);
-      }
+      final Map<StubIndexKey, Map<Object, StubIdList>> newStubTree = getStubTreeOrFail(newData);
 
       final StubIndexImpl stubIndex = getStubIndex();
-      final Collection<StubIndexKey> allStubIndices = stubIndex.getAllStubIndexKeys();
-      try {
+      // the set of stub indices to lock is guessed from the current data and verified once the index is write-locked
+      Map<Integer, SerializedStubTree> expectedOldData = readOldDataUnderReadLock(inputId);
+      Map<StubIndexKey, Map<Object, StubIdList>> expectedOldStubTree = getStubTreeOrFail(expectedOldData);
+      while (true) {
+        final Collection<StubIndexKey> affectedIndices = getAffectedIndices(expectedOldStubTree, newStubTree);
         // first write-lock affected stub indices to avoid deadlocks
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).lock();
-        }
-
+        final List<StubIndexKey> lockedIndices = stubIndex.lockForUpdate(affectedIndices);
         try {
-          getWriteLock().lock();
-
-          final Map<Integer, SerializedStubTree> oldData = readOldData(inputId);
           final Map<StubIndexKey, Map<Object, StubIdList>> oldStubTree;
+          getWriteLock().lock();
           try {
-            oldStubTree = getStubTree(oldData);
+            final Map<Integer, SerializedStubTree> oldData = readOldData(inputId);
+            oldStubTree = oldData.equals(expectedOldData) ? expectedOldStubTree : getStubTreeOrFail(oldData);
+            if (!affectedIndices.containsAll(oldStubTree.keySet())) {
+              // the file has been concurrently reindexed into other stub indices, lock them as well
+              expectedOldData = oldData;
+              expectedOldStubTree = oldStubTree;
+              continue;
+            }
+
+            super.updateWithMap(inputId, newData, oldKeysGetter);
           }
-          catch (SerializerNotFoundException e) {
-            throw new StorageException(e);
+          finally {
+            getWriteLock().unlock();
           }
 
-          super.updateWithMap(inputId, newData, oldKeysGetter);
-
-          updateStubIndices(getAffectedIndices(oldStubTree, newStubTree), inputId, oldStubTree, newStubTree);
+          // stub indices of the file stay locked until they match the new stub tree, so other files can be updated meanwhile
+          stubIndex.updateIndices(inputId, affectedIndices, oldStubTree, newStubTree);
+          return;
         }
         finally {
-          getWriteLock().unlock();
+          stubIndex.unlockAfterUpdate(lockedIndices);
         }
       }
+    }
+
+    @NotNull
+    private Map<Integer, SerializedStubTree> readOldDataUnderReadLock(final int key) throws StorageException {
+      getReadLock().lock();
+      try {
+        return readOldData(key);
+      }
       finally {
-        for (StubIndexKey key : allStubIndices) {
-          stubIndex.getWriteLock(key).unlock();
-        }
+        getReadLock().unlock();
+      }
+    }
+
+    private static Map<StubIndexKey, Map<Object, StubIdList>> getStubTreeOrFail(@NotNull final Map<Integer, SerializedStubTree> data)
+      throws StorageException {
+      try {
+        return getStubTree(data);
+      }
+      catch (SerializerNotFoundException e) {
+        throw new StorageException(e);
       }
     }
 
@@ -338,7 +339,7 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       return stubTree;
     }
 
-    /*MUST be called under the WriteLock*/
+    /*MUST be called under the ReadLock or the WriteLock*/
     @NotNull
     private Map<Integer, SerializedStubTree> readOldData(final int key) throws StorageException {
       final Map<Integer, SerializedStubTree> result = new HashMap<Integer, SerializedStubTree>();
@@ -376,11 +377,8 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
     public void clear() throws StorageException {
       final StubIndexImpl stubIndex = StubIndexImpl.getInstanceOrInvalidate();
       final Collection<StubIndexKey> allStubIndexKeys = stubIndex != null? stubIndex.getAllStubIndexKeys() : Collections.<StubIndexKey>emptyList();
+      final List<StubIndexKey> lockedIndices = stubIndex != null ? stubIndex.lockForUpdate(allStubIndexKeys) : Collections.<StubIndexKey>emptyList();
       try {
-        for (StubIndexKey key : allStubIndexKeys) {
-          //noinspection ConstantConditions
-          stubIndex.getWriteLock(key).lock();
-        }
         getWriteLock().lock();
         if (stubIndex != null) {
           stubIndex.clearAllIndices();
@@ -389,9 +387,8 @@ public class StubUpdatingIndex extends CustomImplementationFileBasedIndexExtensi
       }
       finally {
         getWriteLock().unlock();
-        for (StubIndexKey key : allStubIndexKeys) {
-          //noinspection ConstantConditions
-          stubIndex.getWriteLock(key).unlock();
+        if (stubIndex != null) {
+          stubIndex.unlockAfterUpdate(lockedIndices);
         }
       }
     }
@@ -32,7 +32,10 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
   // there is no volatile as we modify under write lock and read under read lock
   private ValueContainerImpl<Value> myAdded;
   private TIntHashSet myInvalidated;
-  private volatile ValueContainerImpl<Value> myMerged;
+  // either ValueContainerImpl or read-only LazyValueContainer when there are no changes to apply to the data from disk
+  private volatile ValueContainer<Value> myMerged;
+  // merged data was handed out as a snapshot and has to be copied before it's changed, see MapIndexStorage.setKeepMergedDataIntact()
+  private boolean myMergedShared;
   private final Initializer<Value> myInitializer;
 
   public interface Initializer<T> extends Computable<ValueContainer<T>> {
@@ -45,7 +48,7 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
 
   @Override
   public void addValue(int inputId, Value value) {
-    ValueContainerImpl<Value> merged = myMerged;
+    final ValueContainerImpl<Value> merged = getMergedDataToUpdate();
     if (merged != null) {
       merged.addValue(inputId, value);
     }
@@ -56,7 +59,7 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
 
   @Override
   public void removeAssociatedValue(int inputId) {
-    ValueContainerImpl<Value> merged = myMerged;
+    final ValueContainerImpl<Value> merged = getMergedDataToUpdate();
     if (merged != null) {
       merged.removeAssociatedValue(inputId);
     }
@@ -67,6 +70,21 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
     myInvalidated.add(inputId);
   }
 
+  /**
+   * @return merged data to apply an update to or null when it's not read yet. Read-only data from disk is inflated in memory,
+   * so updates of a frequently changed key don't make the next read go to disk again
+   */
+  @Nullable
+  private ValueContainerImpl<Value> getMergedDataToUpdate() {
+    final ValueContainer<Value> merged = myMerged;
+    if (merged instanceof LazyValueContainer) {
+      final ValueContainerImpl<Value> inflated = ((LazyValueContainer<Value>)merged).inflate();
+      myMerged = inflated;
+      return inflated;
+    }
+    return (ValueContainerImpl<Value>)merged;
+  }
+
   @Override
   public int size() {
     return getMergedData().size();
@@ -101,10 +119,31 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
     myMerged = null;
   }
 
+  /**
+   * @return merged data which is not modified by subsequent updates of the container
+   */
+  ValueContainer<Value> getMergedSnapshot() {
+    final ValueContainer<Value> merged = getMergedData();
+    myMergedShared = true;
+    return merged;
+  }
+
+  /**
+   * Makes the following update apply to a private copy of the merged data if the current one was handed out as a snapshot.
+   */
+  void unshareMergedData() {
+    if (!myMergedShared) return;
+    myMergedShared = false;
+    final ValueContainer<Value> merged = myMerged;
+    if (merged instanceof ValueContainerImpl) {
+      myMerged = ((ValueContainerImpl<Value>)merged).copy();
+    }
+  }
+
   // need 'synchronized' to ensure atomic initialization of merged data
   // because several threads that acquired read lock may simultaneously execute the method
-  private ValueContainerImpl<Value> getMergedData() {
-    ValueContainerImpl<Value> merged = myMerged;
+  ValueContainer<Value> getMergedData() {
+    ValueContainer<Value> merged = myMerged;
     if (merged != null) {
       return merged;
     }
@@ -115,13 +154,20 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
       }
 
       final ValueContainer<Value> fromDisk = myInitializer.compute();
-      final ValueContainerImpl<Value> newMerged;
+      final ValueContainer<Value> data = fromDisk instanceof ChangeTrackingValueContainer
+                                         ? ((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData()
+                                         : fromDisk;
+      setNeedsCompacting(fromDisk.needsCompacting());
 
-      if (fromDisk instanceof ValueContainerImpl) {
-        newMerged = ((ValueContainerImpl<Value>)fromDisk).copy();
-      } else {
-        newMerged = ((ChangeTrackingValueContainer<Value>)fromDisk).getMergedData().copy();
+      if (data instanceof LazyValueContainer) {
+        if ((myAdded == null || myAdded.size() == 0) && (myInvalidated == null || myInvalidated.isEmpty())) {
+          myMerged = data; // read-only and nothing to apply, no need to inflate
+          return data;
+        }
       }
+      final ValueContainerImpl<Value> newMerged = data instanceof LazyValueContainer
+                                                  ? ((LazyValueContainer<Value>)data).inflate()
+                                                  : ((ValueContainerImpl<Value>)data).copy();
 
       if (myInvalidated != null) {
         myInvalidated.forEach(new TIntProcedure() {
@@ -143,7 +189,6 @@ class ChangeTrackingValueContainer<Value> extends UpdatableValueContainer<Value>
           }
         });
       }
-      setNeedsCompacting(fromDisk.needsCompacting());
 
       myMerged = newMerged;
       return newMerged;
@@ -127,6 +127,7 @@ public class FileBasedIndexImpl extends FileBasedIndex {
   private volatile int myLocalModCount;
   private volatile int myFilesModCount;
   private final AtomicInteger myUpdatingFiles = new AtomicInteger();
+  @Nullable private final IndexSnapshots mySnapshots = IndexSnapshots.createDefault();
   @SuppressWarnings({"FieldCanBeLocal", "UnusedDeclaration"}) private volatile boolean myInitialized;
     // need this variable for memory barrier
 
@@ -372,26 +373,42 @@ public class FileBasedIndexImpl extends FileBasedIndex {
     final File versionFile = IndexInfrastructure.getVersionFile(name);
     final boolean versionFileExisted = versionFile.exists();
     boolean versionChanged = false;
-    if (isCurrentVersionCorrupted || IndexInfrastructure.versionDiffers(versionFile, version)) {
+    final int shardsCount = ShardedMapIndexStorage.SHARDS_COUNT;
+    final boolean shardsCountChanged = ShardedMapIndexStorage.readShardsCount(IndexInfrastructure.getStorageFile(name)) != shardsCount;
+    if (isCurrentVersionCorrupted || shardsCountChanged || IndexInfrastructure.versionDiffers(versionFile, version)) {
       if (!isCurrentVersionCorrupted && versionFileExisted) {
         versionChanged = true;
-        LOG.info("Version has changed for index " + name + ". The index will be rebuilt.");
+        LOG.info((shardsCountChanged ? "Number of shards" : "Version") + " has changed for index " + name + ". The index will be rebuilt.");
       }
       FileUtil.delete(IndexInfrastructure.getIndexRootDir(name));
       IndexInfrastructure.rewriteVersion(versionFile, version);
     }
 
-    MapIndexStorage<K, V> storage = null;
+    IndexStorage<K, V> storage = null;
 
     for (int attempt = 0; attempt < 2; attempt++) {
       try {
-        storage = new MapIndexStorage<K, V>(
-          IndexInfrastructure.getStorageFile(name),
-          extension.getKeyDescriptor(),
-          extension.getValueExternalizer(),
-          extension.getCacheSize(),
-          extension.isKeyHighlySelective()
-        );
+        if (shardsCount > 1) {
+          storage = new ShardedMapIndexStorage<K, V>(
+            IndexInfrastructure.getStorageFile(name),
+            extension.getKeyDescriptor(),
+            extension.getValueExternalizer(),
+            extension.getCacheSize(),
+            extension.isKeyHighlySelective(),
+            extension.needsKeyFilter(),
+            shardsCount
+          );
+        }
+        else {
+          storage = new MapIndexStorage<K, V>(
+            IndexInfrastructure.getStorageFile(name),
+            extension.getKeyDescriptor(),
+            extension.getValueExternalizer(),
+            extension.getCacheSize(),
+            extension.isKeyHighlySelective(),
+            extension.needsKeyFilter()
+          );
+        }
         final MemoryIndexStorage<K, V> memStorage = new MemoryIndexStorage<K, V>(storage);
         final UpdatableIndex<K, V, FileContent> index = createIndex(name, extension, memStorage);
         final InputFilter inputFilter = extension.getInputFilter();
@@ -485,7 +502,8 @@ public class FileBasedIndexImpl extends FileBasedIndex {
       index = (MapReduceIndex<K, V, FileContent>)custom;
     }
     else {
-      index = new MapReduceIndex<K, V, FileContent>(indexId, extension.getIndexer(), storage);
+      final DataIndexer<K, V, FileContent> indexer = mySnapshots != null ? mySnapshots.wrapIndexer(extension) : extension.getIndexer();
+      index = new MapReduceIndex<K, V, FileContent>(indexId, indexer, storage);
     }
 
     final KeyDescriptor<K> keyDescriptor = extension.getKeyDescriptor();
@@ -635,6 +653,9 @@ public class FileBasedIndexImpl extends FileBasedIndex {
           checkRebuild(indexId, true); // if the index was scheduled for rebuild, only clean it
           index.dispose();
         }
+        if (mySnapshots != null) {
+          mySnapshots.dispose();
+        }
 
         myVfManager.removeVirtualFileListener(myChangedFilesCollector);
 
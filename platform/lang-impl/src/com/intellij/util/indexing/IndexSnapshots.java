@@ -0,0 +1,354 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.util.indexing;
+
+import com.intellij.ide.plugins.IdeaPluginDescriptor;
+import com.intellij.ide.plugins.PluginManager;
+import com.intellij.openapi.diagnostic.Logger;
+import com.intellij.openapi.extensions.PluginId;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.JarFile;
+import com.intellij.openapi.vfs.JarFileSystem;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import com.intellij.util.io.PersistentHashMap;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.THashMap;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Prebuilt index data of library jars, shareable between machines. The indexer output of every file of a jar is stored
+ * under the jar content hash (names, sizes and CRCs of the entries), the path of the file inside the jar, its file type and
+ * the versions of the plugins whose code produces the output, so a snapshot doesn't depend on file ids, file type
+ * associations or installed plugins. When a jar file is indexed and the snapshot has its data, the data is used instead
+ * of running the indexer.
+ * <p/>
+ * Only the indexer run is skipped: the data still goes through the regular index update, and queries read the local
+ * index storages. Stub and TODO indices don't use snapshots, see {@link FileBasedIndexExtension#isSnapshotShareable()}.
+ * <p/>
+ * Snapshots are looked up in <code>idea.index.snapshots.path</code>; with <code>idea.index.snapshots.record=true</code>
+ * the output of indexers for jar files missing in the snapshots is recorded there.
+ *
+ * @see FileBasedIndexExtension#isSnapshotShareable()
+ */
+class IndexSnapshots {
+  private static final Logger LOG = Logger.getInstance("#com.intellij.util.indexing.IndexSnapshots");
+  private static final String SNAPSHOTS_PATH = System.getProperty("idea.index.snapshots.path");
+  private static final boolean RECORD = Boolean.getBoolean("idea.index.snapshots.record");
+
+  private final File myRoot;
+  private final boolean myRecord;
+  // the data is kept serialized in the storages: the storage I/O goes under the storage lock and (de)serialization
+  // under the lock of the index, whose key descriptor and value externalizer needn't be thread-safe
+  // snapshot storages by jar hash and index, null values stand for absent snapshots
+  private final Map<String, PersistentHashMap<String, byte[]>> myStorages = new THashMap<String, PersistentHashMap<String, byte[]>>();
+  private final Map<String, JarHash> myJarHashes = new THashMap<String, JarHash>();
+  // plugin versions of the extension and its snapshot dependencies by index and file type
+  private final ConcurrentMap<String, String> myCodeVersions = new ConcurrentHashMap<String, String>();
+  private boolean myDisposed;
+
+  IndexSnapshots(@Nullable File root, boolean record) {
+    myRoot = root;
+    myRecord = record && root != null;
+  }
+
+  @Nullable
+  static IndexSnapshots createDefault() {
+    return SNAPSHOTS_PATH != null ? new IndexSnapshots(new File(SNAPSHOTS_PATH), RECORD) : null;
+  }
+
+  @NotNull
+  <K, V> DataIndexer<K, V, FileContent> wrapIndexer(@NotNull final FileBasedIndexExtension<K, V> extension) {
+    final DataIndexer<K, V, FileContent> indexer = extension.getIndexer();
+    if (!extension.isSnapshotShareable()) {
+      return indexer;
+    }
+    final InputMapExternalizer<K, V> externalizer = new InputMapExternalizer<K, V>(extension.getKeyDescriptor(),
+                                                                                   extension.getValueExternalizer());
+    return new DataIndexer<K, V, FileContent>() {
+      @Override
+      @NotNull
+      public Map<K, V> map(final FileContent inputData) {
+        final VirtualFile file = inputData.getFile();
+        final String jarHash = getJarHash(file);
+        final PersistentHashMap<String, byte[]> storage = jarHash != null ? getStorage(extension, jarHash) : null;
+        if (storage == null) {
+          return indexer.map(inputData);
+        }
+        final String key = getSnapshotKey(getPathInJar(file), inputData.getFileType(), getCodeVersions(extension, inputData.getFileType()));
+        try {
+          final byte[] prebuilt = storage.get(key);
+          if (prebuilt != null) {
+            synchronized (externalizer) {
+              return externalizer.read(new DataInputStream(new UnsyncByteArrayInputStream(prebuilt)));
+            }
+          }
+        }
+        catch (IOException e) {
+          LOG.info(e);
+        }
+
+        final Map<K, V> data = indexer.map(inputData);
+        if (myRecord) {
+          try {
+            final BufferExposingByteArrayOutputStream bytes = new BufferExposingByteArrayOutputStream();
+            synchronized (externalizer) {
+              externalizer.save(new DataOutputStream(bytes), data);
+            }
+            storage.put(key, bytes.toByteArray());
+          }
+          catch (IOException e) {
+            LOG.info(e);
+          }
+        }
+        return data;
+      }
+    };
+  }
+
+  @Nullable
+  private PersistentHashMap<String, byte[]> getStorage(@NotNull FileBasedIndexExtension<?, ?> extension, @NotNull String jarHash) {
+    final String name = jarHash + "/" + extension.getName() + "." + extension.getVersion();
+    synchronized (myStorages) {
+      if (myDisposed) {
+        return null;
+      }
+      if (myStorages.containsKey(name)) {
+        return myStorages.get(name);
+      }
+      final File storageFile = new File(myRoot, name);
+      PersistentHashMap<String, byte[]> storage = null;
+      if (myRecord || storageFile.exists()) {
+        try {
+          storage = new PersistentHashMap<String, byte[]>(storageFile, new EnumeratorStringDescriptor(), BytesExternalizer.INSTANCE);
+        }
+        catch (IOException e) {
+          LOG.info("Cannot open index snapshot " + storageFile, e);
+        }
+      }
+      myStorages.put(name, storage);
+      return storage;
+    }
+  }
+
+  /**
+   * Indexer output depends on the type the file is mapped to, and file type associations are configurable,
+   * so the data is keyed by the file type as well as by the path inside the jar. The code producing the output
+   * may come from plugins (e.g. word scanners), whose versions aren't reflected in the index version.
+   */
+  @NotNull
+  private static String getSnapshotKey(@NotNull String pathInJar, @NotNull FileType fileType, @NotNull String codeVersion) {
+    return pathInJar + '\n' + fileType.getName() + '\n' + codeVersion;
+  }
+
+  @NotNull
+  private String getCodeVersions(@NotNull FileBasedIndexExtension<?, ?> extension, @NotNull FileType fileType) {
+    final String cacheKey = extension.getName() + "\n" + fileType.getName();
+    String versions = myCodeVersions.get(cacheKey);
+    if (versions == null) {
+      final StringBuilder builder = new StringBuilder();
+      final List<Class<?>> classes = new ArrayList<Class<?>>();
+      classes.add(extension.getClass());
+      classes.addAll(extension.getSnapshotDependencies(fileType));
+      for (Class<?> aClass : classes) {
+        final String version = getCodeVersion(aClass);
+        if (version != null) {
+          if (builder.length() > 0) builder.append(';');
+          builder.append(version);
+        }
+      }
+      versions = builder.toString();
+      myCodeVersions.put(cacheKey, versions);
+    }
+    return versions;
+  }
+
+  /**
+   * @return the version of the plugin providing the class; changes of the platform code are covered by the index versions
+   */
+  @Nullable
+  String getCodeVersion(@NotNull Class<?> aClass) {
+    final PluginId pluginId = PluginManager.getPluginByClassName(aClass.getName());
+    final IdeaPluginDescriptor plugin = pluginId != null ? PluginManager.getPlugin(pluginId) : null;
+    return plugin != null ? pluginId.getIdString() + ':' + plugin.getVersion() : null;
+  }
+
+  @NotNull
+  String getPathInJar(@NotNull VirtualFile file) {
+    final String path = file.getPath();
+    return path.substring(path.indexOf(JarFileSystem.JAR_SEPARATOR) + JarFileSystem.JAR_SEPARATOR.length());
+  }
+
+  /**
+   * @return the content hash of the jar the file belongs to, or null if the file isn't in a jar
+   */
+  @Nullable
+  String getJarHash(@NotNull VirtualFile file) {
+    if (!(file.getFileSystem() instanceof JarFileSystem)) {
+      return null;
+    }
+    final JarFileSystem fileSystem = (JarFileSystem)file.getFileSystem();
+    final VirtualFile jar = fileSystem.getVirtualFileForJar(file);
+    if (jar == null) {
+      return null;
+    }
+    final String jarPath = jar.getPath();
+    synchronized (myJarHashes) {
+      final JarHash hash = myJarHashes.get(jarPath);
+      if (hash != null && hash.myTimeStamp == jar.getTimeStamp() && hash.myLength == jar.getLength()) {
+        return hash.myHash;
+      }
+    }
+
+    final JarHash hash = new JarHash(jar.getTimeStamp(), jar.getLength(), computeJarHash(fileSystem, file));
+    synchronized (myJarHashes) {
+      myJarHashes.put(jarPath, hash);
+    }
+    return hash.myHash;
+  }
+
+  @Nullable
+  private static String computeJarHash(@NotNull JarFileSystem fileSystem, @NotNull VirtualFile file) {
+    try {
+      final JarFile jarFile = fileSystem.getJarFile(file);
+      final ZipFile zipFile = jarFile != null ? jarFile.getZipFile() : null;
+      if (zipFile == null) {
+        return null;
+      }
+      final MessageDigest digest = MessageDigest.getInstance("MD5");
+      final Charset charset = Charset.forName("UTF-8");
+      final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        digest.update(entry.getName().getBytes(charset));
+        updateDigest(digest, entry.getSize());
+        updateDigest(digest, entry.getCrc());
+      }
+      final StringBuilder hash = new StringBuilder();
+      for (byte b : digest.digest()) {
+        hash.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+      }
+      return hash.toString();
+    }
+    catch (IOException e) {
+      LOG.info(e);
+      return null;
+    }
+    catch (NoSuchAlgorithmException e) {
+      LOG.error(e);
+      return null;
+    }
+  }
+
+  private static void updateDigest(@NotNull MessageDigest digest, long value) {
+    for (int shift = 56; shift >= 0; shift -= 8) {
+      digest.update((byte)(value >>> shift));
+    }
+  }
+
+  void dispose() {
+    synchronized (myStorages) {
+      myDisposed = true;
+      for (Map.Entry<String, PersistentHashMap<String, byte[]>> entry : myStorages.entrySet()) {
+        final PersistentHashMap<String, byte[]> storage = entry.getValue();
+        if (storage == null) continue;
+        try {
+          storage.close();
+        }
+        catch (IOException e) {
+          LOG.info(e);
+          FileUtil.delete(new File(myRoot, entry.getKey()));
+        }
+      }
+      myStorages.clear();
+    }
+  }
+
+  private static final class JarHash {
+    private final long myTimeStamp;
+    private final long myLength;
+    @Nullable private final String myHash;
+
+    private JarHash(long timeStamp, long length, @Nullable String hash) {
+      myTimeStamp = timeStamp;
+      myLength = length;
+      myHash = hash;
+    }
+  }
+
+  private static final class BytesExternalizer implements DataExternalizer<byte[]> {
+    private static final BytesExternalizer INSTANCE = new BytesExternalizer();
+
+    @Override
+    public void save(DataOutput out, byte[] value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.length);
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(DataInput in) throws IOException {
+      final byte[] value = new byte[DataInputOutputUtil.readINT(in)];
+      in.readFully(value);
+      return value;
+    }
+  }
+
+  private static final class InputMapExternalizer<K, V> implements DataExternalizer<Map<K, V>> {
+    private final KeyDescriptor<K> myKeyDescriptor;
+    private final DataExternalizer<V> myValueExternalizer;
+
+    private InputMapExternalizer(@NotNull KeyDescriptor<K> keyDescriptor, @NotNull DataExternalizer<V> valueExternalizer) {
+      myKeyDescriptor = keyDescriptor;
+      myValueExternalizer = valueExternalizer;
+    }
+
+    @Override
+    public void save(DataOutput out, Map<K, V> value) throws IOException {
+      DataInputOutputUtil.writeINT(out, value.size());
+      for (Map.Entry<K, V> entry : value.entrySet()) {
+        myKeyDescriptor.save(out, entry.getKey());
+        myValueExternalizer.save(out, entry.getValue());
+      }
+    }
+
+    @Override
+    public Map<K, V> read(DataInput in) throws IOException {
+      final int size = DataInputOutputUtil.readINT(in);
+      final Map<K, V> map = new HashMap<K, V>(size);
+      for (int i = 0; i < size; i++) {
+        map.put(myKeyDescriptor.read(in), myValueExternalizer.read(in));
+      }
+      return map;
+    }
+  }
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+
+import java.io.*;
+
+/**
+ * Bloom filter over key hash codes: answers "definitely absent" for most keys not added to it, never for added ones.
+ * Sized for ~1% false positives at the given capacity, the owner is expected to rebuild it bigger once the capacity
+ * is exceeded (see {@link #isOverfilled()}).
+ */
+final class KeyBloomFilter {
+  private static final int FORMAT_VERSION = 1;
+  private static final int BITS_PER_KEY = 10;
+  private static final int HASHES_COUNT = 7;
+
+  private final long[] myBits;
+  private final int myBitsCount;
+  private final int myCapacity;
+  private int myKeysCount;
+
+  KeyBloomFilter(int capacity) {
+    this(capacity, new long[(int)(((long)capacity * BITS_PER_KEY + 63) / 64)], 0);
+  }
+
+  private KeyBloomFilter(int capacity, long[] bits, int keysCount) {
+    myCapacity = capacity;
+    myBits = bits;
+    myBitsCount = bits.length * 64;
+    myKeysCount = keysCount;
+  }
+
+  /**
+   * @return true if the hash wasn't in the filter before
+   */
+  boolean add(int hash) {
+    boolean added = false;
+    int h1 = mix(hash);
+    final int h2 = mix(h1) | 1;
+    for (int i = 0; i < HASHES_COUNT; i++, h1 += h2) {
+      final int bit = (h1 >>> 1) % myBitsCount;
+      final long mask = 1L << bit;
+      if ((myBits[bit >>> 6] & mask) == 0) {
+        myBits[bit >>> 6] |= mask;
+        added = true;
+      }
+    }
+    if (added) myKeysCount++;
+    return added;
+  }
+
+  boolean mightContain(int hash) {
+    int h1 = mix(hash);
+    final int h2 = mix(h1) | 1;
+    for (int i = 0; i < HASHES_COUNT; i++, h1 += h2) {
+      final int bit = (h1 >>> 1) % myBitsCount;
+      if ((myBits[bit >>> 6] & (1L << bit)) == 0) return false;
+    }
+    return true;
+  }
+
+  boolean isOverfilled() {
+    return myKeysCount > myCapacity;
+  }
+
+  int getKeysCount() {
+    return myKeysCount;
+  }
+
+  // murmur3 finalizer, key hash codes are often poorly distributed
+  private static int mix(int h) {
+    h ^= h >>> 16;
+    h *= 0x85ebca6b;
+    h ^= h >>> 13;
+    h *= 0xc2b2ae35;
+    h ^= h >>> 16;
+    return h;
+  }
+
+  void save(File file) throws IOException {
+    final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+    try {
+      out.writeInt(FORMAT_VERSION);
+      out.writeInt(myCapacity);
+      out.writeInt(myKeysCount);
+      out.writeInt(myBits.length);
+      for (long word : myBits) {
+        out.writeLong(word);
+      }
+    }
+    finally {
+      out.close();
+    }
+  }
+
+  /**
+   * Reads the filter and deletes the file, so a filter not saved again on close (e.g. after a crash) isn't trusted.
+   * @return null when there is no valid filter saved
+   */
+  static KeyBloomFilter load(File file) {
+    if (!file.exists()) return null;
+    try {
+      final DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+      try {
+        if (in.readInt() != FORMAT_VERSION) return null;
+        final int capacity = in.readInt();
+        final int keysCount = in.readInt();
+        final long[] bits = new long[in.readInt()];
+        for (int i = 0; i < bits.length; i++) {
+          bits[i] = in.readLong();
+        }
+        return new KeyBloomFilter(capacity, bits, keysCount);
+      }
+      finally {
+        in.close();
+      }
+    }
+    catch (IOException e) {
+      return null;
+    }
+    finally {
+      FileUtil.delete(file);
+    }
+  }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.util.indexing;
+
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.DataInputOutputUtil;
+import com.intellij.util.io.UnsyncByteArrayInputStream;
+import gnu.trove.THashMap;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Read-only value container over the serialized record: only values are deserialized, input ids are decoded right from
+ * the record bytes on iteration, so reading a key with lots of inputs doesn't build sets of them.
+ * Becomes a {@link ValueContainerImpl} via {@link #inflate()} when the data is going to be changed.
+ * <p/>
+ * Records containing invalidation commands are not supported, see {@link #parse}.
+ */
+class LazyValueContainer<Value> extends ValueContainer<Value> {
+  private static final Object NULL_VALUE = new Object();
+  private static final int MAX_SCANNED_PREDICATE_SIZE = 16;
+
+  private final byte[] myBytes;
+  private final List<Value> myValues;
+  // for each value: its first ids segment and the total number of ids
+  private final int[] myFirstSegment;
+  private final int[] myIdsCount;
+  // ids segments: offset of the data, number of ids (negative for delta-encoded sorted ids), next segment of the same value
+  private final int[] mySegmentOffset;
+  private final int[] mySegmentCount;
+  private final int[] myNextSegment;
+  @Nullable private final THashMap<Object, Integer> myValueIndex;
+
+  private LazyValueContainer(byte[] bytes,
+                             List<Value> values,
+                             int[] firstSegment,
+                             int[] idsCount,
+                             int[] segmentOffset,
+                             int[] segmentCount,
+                             int[] nextSegment,
+                             @Nullable THashMap<Object, Integer> valueIndex) {
+    myBytes = bytes;
+    myValues = values;
+    myFirstSegment = firstSegment;
+    myIdsCount = idsCount;
+    mySegmentOffset = segmentOffset;
+    mySegmentCount = segmentCount;
+    myNextSegment = nextSegment;
+    myValueIndex = valueIndex;
+  }
+
+  /**
+   * @return view of the record or null when the record contains invalidation commands, such records are merged eagerly
+   */
+  @Nullable
+  static <Value> LazyValueContainer<Value> parse(byte[] bytes, DataExternalizer<Value> externalizer) throws IOException {
+    final UnsyncByteArrayInputStream byteStream = new UnsyncByteArrayInputStream(bytes);
+    final DataInputStream in = new DataInputStream(byteStream);
+
+    final List<Value> values = new ArrayList<Value>();
+    final TIntArrayList firstSegment = new TIntArrayList();
+    final TIntArrayList lastSegment = new TIntArrayList();
+    final TIntArrayList idsCount = new TIntArrayList();
+    final TIntArrayList segmentOffset = new TIntArrayList();
+    final TIntArrayList segmentCount = new TIntArrayList();
+    final TIntArrayList nextSegment = new TIntArrayList();
+    THashMap<Object, Integer> valueIndex = null;
+    boolean firstBlock = true;
+
+    while (byteStream.available() > 0) {
+      final int valueCount = DataInputOutputUtil.readSINT(in);
+      if (valueCount < 0) return null;
+
+      for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
+        final Value value = externalizer.read(in);
+        final int count = DataInputOutputUtil.readSINT(in);
+        final int offset = bytes.length - byteStream.available();
+        skipIds(in, count);
+
+        // values of a block are distinct, so the index is only needed to find values of previous blocks
+        if (!firstBlock && valueIndex == null) {
+          valueIndex = new THashMap<Object, Integer>(values.size());
+          for (int i = 0; i < values.size(); i++) {
+            valueIndex.put(wrap(values.get(i)), i);
+          }
+        }
+        final Integer existing = valueIndex != null ? valueIndex.get(wrap(value)) : null;
+
+        final int segment = segmentOffset.size();
+        segmentOffset.add(offset);
+        segmentCount.add(count);
+        nextSegment.add(-1);
+        if (existing == null) {
+          if (valueIndex != null) valueIndex.put(wrap(value), values.size());
+          values.add(value);
+          firstSegment.add(segment);
+          lastSegment.add(segment);
+          idsCount.add(Math.abs(count));
+        }
+        else {
+          final int index = existing.intValue();
+          nextSegment.set(lastSegment.get(index), segment);
+          lastSegment.set(index, segment);
+          idsCount.set(index, idsCount.get(index) + Math.abs(count));
+        }
+      }
+      firstBlock = false;
+    }
+
+    return new LazyValueContainer<Value>(bytes, values, firstSegment.toNativeArray(), idsCount.toNativeArray(),
+                                         segmentOffset.toNativeArray(), segmentCount.toNativeArray(), nextSegment.toNativeArray(),
+                                         valueIndex);
+  }
+
+  private static void skipIds(DataInputStream in, int count) throws IOException {
+    for (int i = Math.abs(count); i > 0; i--) {
+      DataInputOutputUtil.readINT(in);
+    }
+  }
+
+  private static Object wrap(Object value) {
+    return value != null ? value : NULL_VALUE;
+  }
+
+  private int indexOf(Value value) {
+    if (myValueIndex != null) {
+      final Integer index = myValueIndex.get(wrap(value));
+      return index != null ? index.intValue() : -1;
+    }
+    return myValues.indexOf(value);
+  }
+
+  @Override
+  public IntIterator getInputIdsIterator(Value value) {
+    final int index = indexOf(value);
+    return index >= 0 ? new IdsIterator(index) : ValueContainerImpl.EMPTY_ITERATOR;
+  }
+
+  @Override
+  public boolean isAssociated(Value value, int inputId) {
+    final int index = indexOf(value);
+    return index >= 0 && contains(index, inputId);
+  }
+
+  private boolean contains(int index, int inputId) {
+    for (IdsIterator ids = new IdsIterator(index); ids.hasNext(); ) {
+      final int id = ids.next();
+      if (id == inputId) return true;
+      if (id > inputId && ids.isSortedSegment()) ids.skipSegment();
+    }
+    return false;
+  }
+
+  @Override
+  public IntPredicate getValueAssociationPredicate(Value value) {
+    final int index = indexOf(value);
+    if (index < 0) {
+      return new IntPredicate() {
+        @Override
+        boolean contains(int id) {
+          return false;
+        }
+      };
+    }
+    if (myIdsCount[index] <= MAX_SCANNED_PREDICATE_SIZE) {
+      return new IntPredicate() {
+        @Override
+        boolean contains(int id) {
+          return LazyValueContainer.this.contains(index, id);
+        }
+      };
+    }
+    // the predicate is usually asked about many ids, so it's worth building a set
+    final TIntHashSet set = new TIntHashSet(myIdsCount[index]);
+    for (IdsIterator ids = new IdsIterator(index); ids.hasNext(); ) {
+      set.add(ids.next());
+    }
+    return new IntPredicate() {
+      @Override
+      boolean contains(int id) {
+        return set.contains(id);
+      }
+    };
+  }
+
+  @Override
+  public Iterator<Value> getValueIterator() {
+    return Collections.unmodifiableList(myValues).iterator();
+  }
+
+  @Override
+  public List<Value> toValueList() {
+    return new ArrayList<Value>(myValues);
+  }
+
+  @Override
+  public int size() {
+    return myValues.size();
+  }
+
+  ValueContainerImpl<Value> inflate() {
+    final ValueContainerImpl<Value> container = new ValueContainerImpl<Value>();
+    for (int index = 0; index < myValues.size(); index++) {
+      final Value value = myValues.get(index);
+      for (IdsIterator ids = new IdsIterator(index); ids.hasNext(); ) {
+        container.addValue(ids.next(), value);
+      }
+    }
+    return container;
+  }
+
+  private class IdsIterator implements IntIterator {
+    private final int mySize;
+    private int mySegment;
+    private int myPosition;
+    private int myRemaining;
+    private int myPrevious;
+
+    private IdsIterator(int index) {
+      mySize = myIdsCount[index];
+      startSegment(myFirstSegment[index]);
+    }
+
+    private void startSegment(int segment) {
+      mySegment = segment;
+      myPosition = mySegmentOffset[segment];
+      myRemaining = Math.abs(mySegmentCount[segment]);
+      myPrevious = 0;
+    }
+
+    @Override
+    public boolean hasNext() {
+      while (myRemaining == 0) {
+        final int next = myNextSegment[mySegment];
+        if (next < 0) return false;
+        startSegment(next);
+      }
+      return true;
+    }
+
+    @Override
+    public int next() {
+      if (!hasNext()) throw new NoSuchElementException();
+      myRemaining--;
+      final int value = readINT();
+      if (!isSortedSegment()) return value - 64; // SINT
+      return myPrevious += value;
+    }
+
+    boolean isSortedSegment() {
+      return mySegmentCount[mySegment] < 0;
+    }
+
+    void skipSegment() {
+      myRemaining = 0;
+    }
+
+    // see DataInputOutputUtil.readINT()
+    private int readINT() {
+      final byte[] bytes = myBytes;
+      final int val = bytes[myPosition++] & 0xFF;
+      if (val < 192) return val;
+
+      int res = val - 192;
+      for (int sh = 6; ; sh += 7) {
+        int next = bytes[myPosition++] & 0xFF;
+        res |= (next & 0x7F) << sh;
+        if ((next & 0x80) == 0) return res;
+      }
+    }
+
+    @Override
+    public int size() {
+      return mySize;
+    }
+  }
+}
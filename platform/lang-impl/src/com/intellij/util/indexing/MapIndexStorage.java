@@ -24,6 +24,7 @@ import com.intellij.util.containers.SLRUCache;
 import com.intellij.util.io.DataExternalizer;
 import com.intellij.util.io.KeyDescriptor;
 import com.intellij.util.io.PersistentMap;
+import gnu.trove.TIntArrayList;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
@@ -32,6 +33,7 @@ import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
 
@@ -50,6 +52,13 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
   private final Lock l = new ReentrantLock();
   private final DataExternalizer<Value> myDataExternalizer;
   private boolean myHighKeySelectivity;
+  private boolean myKeepMergedDataIntact;
+
+  private static final int MIN_KEY_FILTER_CAPACITY = 16 * 1024;
+  private final boolean myUseKeyFilter;
+  private KeyBloomFilter myKeyFilter; // guarded by l
+  private final AtomicLong myKeyFilterHits = new AtomicLong();
+  private final AtomicLong myKeyFilterMisses = new AtomicLong();
 
   public MapIndexStorage(@NotNull File storageFile,
                          @NotNull KeyDescriptor<Key> keyDescriptor,
@@ -64,15 +73,37 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
                          @NotNull DataExternalizer<Value> valueExternalizer,
                          final int cacheSize,
                          boolean highKeySelectivity) throws IOException {
+    this(storageFile, keyDescriptor, valueExternalizer, cacheSize, highKeySelectivity, false);
+  }
+
+  /**
+   * @param useKeyFilter whether to keep a Bloom filter of the keys, so lookups of absent keys mostly don't touch the map
+   */
+  public MapIndexStorage(@NotNull File storageFile,
+                         @NotNull KeyDescriptor<Key> keyDescriptor,
+                         @NotNull DataExternalizer<Value> valueExternalizer,
+                         final int cacheSize,
+                         boolean highKeySelectivity,
+                         boolean useKeyFilter) throws IOException {
 
     myStorageFile = storageFile;
     myKeyDescriptor = keyDescriptor;
     myCacheSize = cacheSize;
     myDataExternalizer = valueExternalizer;
     myHighKeySelectivity = highKeySelectivity;
+    myUseKeyFilter = useKeyFilter;
     initMapAndCache();
   }
 
+  /**
+   * Makes updates copy the merged data of a value container before changing it if the data was handed to a reader,
+   * so a merged container once handed to a reader never changes. Used by {@link ShardedMapIndexStorage}, where readers and writers of a key
+   * don't exclude each other for the whole time the reader works with the data.
+   */
+  void setKeepMergedDataIntact(boolean keepMergedDataIntact) {
+    myKeepMergedDataIntact = keepMergedDataIntact;
+  }
+
   private void initMapAndCache() throws IOException {
     final ValueContainerMap<Key, Value> map = new ValueContainerMap<Key, Value>(myStorageFile, myKeyDescriptor, myDataExternalizer);
     myCache = new SLRUCache<Key, ChangeTrackingValueContainer<Value>>(myCacheSize, (int)(Math.ceil(myCacheSize * 0.25)) /* 25% from the main cache size*/) {
@@ -118,6 +149,57 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     };
 
     myMap = map;
+
+    if (myUseKeyFilter) {
+      final KeyBloomFilter filter = KeyBloomFilter.load(getKeyFilterFile());
+      myKeyFilter = filter != null ? filter : buildKeyFilter(0);
+    }
+  }
+
+  private File getKeyFilterFile() {
+    return new File(myStorageFile.getPath() + ".bloom");
+  }
+
+  // should be called under the lock or on initialization
+  private KeyBloomFilter buildKeyFilter(int minCapacity) throws IOException {
+    myCache.clear(); // this will ensure that all new keys are made into the map
+    final TIntArrayList hashes = new TIntArrayList();
+    myMap.processKeys(new Processor<Key>() {
+      @Override
+      public boolean process(Key key) {
+        hashes.add(myKeyDescriptor.getHashCode(key));
+        return true;
+      }
+    });
+
+    final KeyBloomFilter filter = new KeyBloomFilter(Math.max(Math.max(hashes.size(), minCapacity) * 2, MIN_KEY_FILTER_CAPACITY));
+    for (int i = 0; i < hashes.size(); i++) {
+      filter.add(hashes.getQuick(i));
+    }
+    return filter;
+  }
+
+  private void addToKeyFilter(Key key) throws IOException {
+    l.lock();
+    try {
+      final KeyBloomFilter filter = myKeyFilter;
+      final int hash = myKeyDescriptor.getHashCode(key);
+      if (filter.add(hash) && filter.isOverfilled()) {
+        myKeyFilter = buildKeyFilter(filter.getKeysCount());
+        myKeyFilter.add(hash); // the key itself is not in the map yet
+      }
+    }
+    finally {
+      l.unlock();
+    }
+  }
+
+  public long getKeyFilterHits() {
+    return myKeyFilterHits.get();
+  }
+
+  public long getKeyFilterMisses() {
+    return myKeyFilterMisses.get();
   }
 
   @Override
@@ -139,6 +221,12 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     try {
       flush();
       myMap.close();
+      if (myKeyFilter != null) {
+        if (LOG.isDebugEnabled()) {
+          LOG.debug(myStorageFile + " key filter: " + myKeyFilterHits + " lookups rejected, " + myKeyFilterMisses + " passed");
+        }
+        myKeyFilter.save(getKeyFilterFile());
+      }
     }
     catch (IOException e) {
       throw new StorageException(e);
@@ -217,7 +305,26 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
 
   @Override
   @NotNull
-  public ChangeTrackingValueContainer<Value> read(final Key key) throws StorageException {
+  public ValueContainer<Value> read(final Key key) throws StorageException {
+    l.lock();
+    try {
+      final KeyBloomFilter filter = myKeyFilter;
+      if (filter != null) {
+        if (!filter.mightContain(myKeyDescriptor.getHashCode(key))) {
+          myKeyFilterHits.incrementAndGet();
+          return new ValueContainerImpl<Value>();
+        }
+        myKeyFilterMisses.incrementAndGet();
+      }
+      return readContainer(key);
+    }
+    finally {
+      l.unlock();
+    }
+  }
+
+  @NotNull
+  private ChangeTrackingValueContainer<Value> readContainer(final Key key) throws StorageException {
     l.lock();
     try {
       return myCache.get(key);
@@ -241,14 +348,15 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
   public void addValue(final Key key, final int inputId, final Value value) throws StorageException {
     try {
       myMap.markDirty();
+      if (myKeyFilter != null) addToKeyFilter(key);
       if (!myHighKeySelectivity) {
-        read(key).addValue(inputId, value);
+        prepareForUpdate(readContainer(key)).addValue(inputId, value);
         return;
       }
 
       ChangeTrackingValueContainer<Value> cached = myCache.getIfCached(key);
       if (cached != null) {
-        cached.addValue(inputId, value);
+        prepareForUpdate(cached).addValue(inputId, value);
         return;
       }
       // do not pollute the cache with highly selective data
@@ -266,11 +374,16 @@ public final class MapIndexStorage<Key, Value> implements IndexStorage<Key, Valu
     try {
       myMap.markDirty();
       // important: assuming the key exists in the index
-      read(key).removeAssociatedValue(inputId);
+      prepareForUpdate(readContainer(key)).removeAssociatedValue(inputId);
     }
     catch (IOException e) {
       throw new StorageException(e);
     }
   }
 
+  private ChangeTrackingValueContainer<Value> prepareForUpdate(ChangeTrackingValueContainer<Value> container) {
+    if (myKeepMergedDataIntact) container.unshareMergedData();
+    return container;
+  }
+
 }
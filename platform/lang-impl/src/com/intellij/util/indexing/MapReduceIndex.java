@@ -33,6 +33,7 @@ import java.io.IOException;
 import java.util.*;
 import java.util.concurrent.Callable;
 import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
@@ -47,6 +48,8 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
   @Nullable private PersistentHashMap<Integer, Collection<Key>> myInputsIndex;
 
   private final ReentrantReadWriteLock myLock = new ReentrantReadWriteLock();
+  // serialize concurrent updates of the same input when the index is updated under the read lock
+  private final Lock[] myInputLocks = new Lock[16];
   
   private Factory<PersistentHashMap<Integer, Collection<Key>>> myInputsIndexFactory;
 
@@ -55,6 +58,9 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     myIndexId = indexId;
     myIndexer = indexer;
     myStorage = storage;
+    for (int i = 0; i < myInputLocks.length; i++) {
+      myInputLocks[i] = new ReentrantLock();
+    }
   }
 
   @NotNull
@@ -223,8 +229,17 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
     });
   }
 
+  /**
+   * Applies the new data of the input. Normally the index is write-locked for that, but when the storage is sharded
+   * (and isn't buffering in memory) the read lock is enough, as the storage guards every key with the lock of its shard,
+   * so updates of different inputs run concurrently.
+   */
   protected void updateWithMap(final int inputId, @NotNull Map<Key, Value> newData, @NotNull Callable<Collection<Key>> oldKeysGetter) throws StorageException {
-    getWriteLock().lock();
+    final boolean concurrentUpdate = hasWriteLanes();
+    final Lock lock = concurrentUpdate ? getReadLock() : getWriteLock();
+    final Lock inputLock = concurrentUpdate ? myInputLocks[(inputId & 0x7fffffff) % myInputLocks.length] : null;
+    lock.lock();
+    if (inputLock != null) inputLock.lock();
     try {
       try {
         for (Key key : oldKeysGetter.call()) {
@@ -273,8 +288,19 @@ public class MapReduceIndex<Key, Value, Input> implements UpdatableIndex<Key,Val
       }
     }
     finally {
-      getWriteLock().unlock();
+      if (inputLock != null) inputLock.unlock();
+      lock.unlock();
     }
   }
 
+  private boolean hasWriteLanes() {
+    IndexStorage<Key, Value> storage = myStorage;
+    if (storage instanceof MemoryIndexStorage) {
+      final MemoryIndexStorage<Key, Value> memoryStorage = (MemoryIndexStorage<Key, Value>)storage;
+      // buffering state doesn't change during updates, see FileBasedIndexImpl.setDataBufferingEnabled()
+      if (memoryStorage.isBufferingEnabled()) return false;
+      storage = memoryStorage.getBackendStorage();
+    }
+    return storage instanceof ShardedMapIndexStorage && ((ShardedMapIndexStorage)storage).getShardsCount() > 1;
+  }
 }
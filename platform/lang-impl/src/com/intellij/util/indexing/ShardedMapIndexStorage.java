@@ -0,0 +1,223 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.CommonProcessors;
+import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Index storage split by key hash into several {@link MapIndexStorage} shards with their own files and locks ("write lanes").
+ * Every operation on a key holds only the lock of the key's shard, so updates of different keys can run concurrently,
+ * see {@link MapReduceIndex#updateWithMap}.
+ * <p/>
+ * Containers returned by {@link #read(Object)} are snapshots which are not changed by subsequent updates.
+ * The number of shards is configured with <code>idea.index.shards</code>, changing it makes the indices rebuild.
+ */
+public final class ShardedMapIndexStorage<Key, Value> implements IndexStorage<Key, Value> {
+  public static final int SHARDS_COUNT = Math.max(1, SystemProperties.getIntProperty("idea.index.shards", 1));
+
+  private final MapIndexStorage<Key, Value>[] myShards;
+  private final Lock[] myLanes;
+  private final KeyDescriptor<Key> myKeyDescriptor;
+
+  public ShardedMapIndexStorage(@NotNull File storageFile,
+                                @NotNull KeyDescriptor<Key> keyDescriptor,
+                                @NotNull DataExternalizer<Value> valueExternalizer,
+                                final int cacheSize,
+                                boolean highKeySelectivity,
+                                boolean useKeyFilter,
+                                int shardsCount) throws IOException {
+    myKeyDescriptor = keyDescriptor;
+    //noinspection unchecked
+    myShards = new MapIndexStorage[shardsCount];
+    myLanes = new Lock[shardsCount];
+    final int shardCacheSize = Math.max(cacheSize / shardsCount, 16);
+    try {
+      for (int i = 0; i < shardsCount; i++) {
+        myShards[i] = new MapIndexStorage<Key, Value>(getShardFile(storageFile, i), keyDescriptor, valueExternalizer, shardCacheSize,
+                                                      highKeySelectivity, useKeyFilter);
+        myShards[i].setKeepMergedDataIntact(true);
+        myLanes[i] = new ReentrantLock();
+      }
+      writeShardsCount(storageFile, shardsCount);
+    }
+    catch (IOException e) {
+      closeOpenedShards();
+      throw e;
+    }
+  }
+
+  private void closeOpenedShards() {
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      if (shard == null) continue;
+      try {
+        shard.close();
+      }
+      catch (StorageException ignored) {
+      }
+    }
+  }
+
+  private static File getShardFile(File storageFile, int shard) {
+    return new File(storageFile.getPath() + "_shard" + shard);
+  }
+
+  private static File getShardsCountFile(File storageFile) {
+    return new File(storageFile.getPath() + ".shards");
+  }
+
+  /**
+   * @return number of shards the storage was created with, 1 for storages created as a single {@link MapIndexStorage}
+   */
+  public static int readShardsCount(@NotNull File storageFile) {
+    final File file = getShardsCountFile(storageFile);
+    if (!file.exists()) return 1;
+    try {
+      return Integer.parseInt(FileUtil.loadFile(file).trim());
+    }
+    catch (Exception e) {
+      return -1;
+    }
+  }
+
+  private static void writeShardsCount(File storageFile, int shardsCount) throws IOException {
+    FileUtil.writeToFile(getShardsCountFile(storageFile), String.valueOf(shardsCount));
+  }
+
+  public int getShardsCount() {
+    return myShards.length;
+  }
+
+  int getShard(Key key) {
+    final int hash = myKeyDescriptor.getHashCode(key) * 0x9E3779B9; // spread neighbouring hashes, e.g. of integer keys
+    return (hash >>> 1) % myShards.length;
+  }
+
+  @Override
+  public void addValue(Key key, int inputId, Value value) throws StorageException {
+    final int shard = getShard(key);
+    myLanes[shard].lock();
+    try {
+      myShards[shard].addValue(key, inputId, value);
+    }
+    finally {
+      myLanes[shard].unlock();
+    }
+  }
+
+  @Override
+  public void removeAllValues(Key key, int inputId) throws StorageException {
+    final int shard = getShard(key);
+    myLanes[shard].lock();
+    try {
+      myShards[shard].removeAllValues(key, inputId);
+    }
+    finally {
+      myLanes[shard].unlock();
+    }
+  }
+
+  @NotNull
+  @Override
+  public ValueContainer<Value> read(Key key) throws StorageException {
+    final int shard = getShard(key);
+    myLanes[shard].lock();
+    try {
+      // merged data handed out here is never modified by updates, see MapIndexStorage.setKeepMergedDataIntact()
+      final ValueContainer<Value> container = myShards[shard].read(key);
+      return container instanceof ChangeTrackingValueContainer ? ((ChangeTrackingValueContainer<Value>)container).getMergedSnapshot() : container;
+    }
+    catch (RuntimeException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof IOException || cause instanceof StorageException) {
+        throw new StorageException(cause);
+      }
+      throw e;
+    }
+    finally {
+      myLanes[shard].unlock();
+    }
+  }
+
+  @Override
+  public boolean processKeys(Processor<Key> processor) throws StorageException {
+    for (int i = 0; i < myShards.length; i++) {
+      myLanes[i].lock();
+      try {
+        if (!myShards[i].processKeys(processor)) return false;
+      }
+      finally {
+        myLanes[i].unlock();
+      }
+    }
+    return true;
+  }
+
+  @Override
+  public Collection<Key> getKeys() throws StorageException {
+    List<Key> keys = new ArrayList<Key>();
+    processKeys(new CommonProcessors.CollectProcessor<Key>(keys));
+    return keys;
+  }
+
+  @Override
+  public void flush() throws IOException {
+    for (int i = 0; i < myShards.length; i++) {
+      myLanes[i].lock();
+      try {
+        myShards[i].flush();
+      }
+      finally {
+        myLanes[i].unlock();
+      }
+    }
+  }
+
+  @Override
+  public void clear() throws StorageException {
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      shard.clear();
+    }
+  }
+
+  @Override
+  public void close() throws StorageException {
+    StorageException exception = null;
+    for (MapIndexStorage<Key, Value> shard : myShards) {
+      try {
+        shard.close();
+      }
+      catch (StorageException e) {
+        if (exception == null) exception = e;
+      }
+    }
+    if (exception != null) throw exception;
+  }
+}
@@ -7,6 +7,7 @@ import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NotNull;
 
 import java.io.*;
+import java.util.Arrays;
 import java.util.Iterator;
 
 /**
@@ -86,26 +87,46 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
         myExternalizer.save(out, value);
 
         final ValueContainer.IntIterator ids = container.getInputIdsIterator(value);
-        if (ids != null) {
-          DataInputOutputUtil.writeSINT(out, ids.size());
-          while (ids.hasNext()) {
-            final int id = ids.next();
-            DataInputOutputUtil.writeSINT(out, id);
-          }
+        if (ids == null) {
+          DataInputOutputUtil.writeSINT(out, 0);
+        }
+        else if (ids.size() == 1) {
+          DataInputOutputUtil.writeSINT(out, 1);
+          DataInputOutputUtil.writeSINT(out, ids.next());
         }
         else {
-          DataInputOutputUtil.writeSINT(out, 0);
+          // several ids are written sorted and delta-encoded, which is marked by the negative count
+          final int[] sorted = new int[ids.size()];
+          for (int i = 0; i < sorted.length; i++) {
+            sorted[i] = ids.next();
+          }
+          Arrays.sort(sorted);
+          DataInputOutputUtil.writeSINT(out, -sorted.length);
+          int previous = 0;
+          for (int id : sorted) {
+            DataInputOutputUtil.writeINT(out, id - previous);
+            previous = id;
+          }
         }
       }
     }
 
     @NotNull
     @Override
-    public ValueContainerImpl<T> read(final DataInput in) throws IOException {
-      DataInputStream stream = (DataInputStream)in;
+    public ValueContainer<T> read(final DataInput input) throws IOException {
+      final byte[] bytes = new byte[((DataInputStream)input).available()];
+      input.readFully(bytes);
+
+      final LazyValueContainer<T> lazyContainer = LazyValueContainer.parse(bytes, myExternalizer);
+      if (lazyContainer != null) {
+        return lazyContainer;
+      }
+
+      // invalidation commands need to be applied, so the data is merged right away
+      final DataInputStream in = new DataInputStream(new UnsyncByteArrayInputStream(bytes));
       final ValueContainerImpl<T> valueContainer = new ValueContainerImpl<T>();
 
-      while (stream.available() > 0) {
+      while (in.available() > 0) {
         final int valueCount = DataInputOutputUtil.readSINT(in);
         if (valueCount < 0) {
           valueContainer.removeAssociatedValue(-valueCount);
@@ -115,9 +136,18 @@ class ValueContainerMap<Key, Value> extends PersistentHashMap<Key, ValueContaine
           for (int valueIdx = 0; valueIdx < valueCount; valueIdx++) {
             final T value = myExternalizer.read(in);
             final int idCount = DataInputOutputUtil.readSINT(in);
-            for (int i = 0; i < idCount; i++) {
-              final int id = DataInputOutputUtil.readSINT(in);
-              valueContainer.addValue(id, value);
+            if (idCount >= 0) {
+              for (int i = 0; i < idCount; i++) {
+                final int id = DataInputOutputUtil.readSINT(in);
+                valueContainer.addValue(id, value);
+              }
+            }
+            else {
+              int id = 0;
+              for (int i = 0; i < -idCount; i++) {
+                id += DataInputOutputUtil.readINT(in);
+                valueContainer.addValue(id, value);
+              }
             }
           }
         }
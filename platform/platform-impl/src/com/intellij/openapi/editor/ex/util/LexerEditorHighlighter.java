@@ -16,7 +16,9 @@
 package com.intellij.openapi.editor.ex.util;
 
 import com.intellij.lexer.Lexer;
+import com.intellij.openapi.application.Application;
 import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.editor.Document;
 import com.intellij.openapi.editor.HighlighterColors;
@@ -28,12 +30,14 @@ import com.intellij.openapi.editor.ex.PrioritizedDocumentListener;
 import com.intellij.openapi.editor.highlighter.EditorHighlighter;
 import com.intellij.openapi.editor.highlighter.HighlighterClient;
 import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentSnapshot;
 import com.intellij.openapi.editor.impl.EditorDocumentPriorities;
 import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.fileTypes.PlainSyntaxHighlighter;
 import com.intellij.openapi.fileTypes.SyntaxHighlighter;
 import com.intellij.openapi.project.DumbAwareRunnable;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Computable;
 import com.intellij.psi.tree.IElementType;
 import com.intellij.util.ArrayUtil;
 import com.intellij.util.ui.UIUtil;
@@ -45,6 +49,13 @@ import java.util.Map;
 
 public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDocumentListener {
   private static final Logger LOG = Logger.getInstance("#com.intellij.openapi.editor.ex.util.LexerEditorHighlighter");
+
+  /** Documents of this length and longer are relexed on document change only near the changed region, the rest is relexed in background. */
+  private static final int BACKGROUND_RELEXING_MIN_DOCUMENT_LENGTH = 1024 * 1024;
+
+  /** Number of symbols after the changed region which are relexed synchronously if background relexing is possible. */
+  private static final int SYNC_RELEXING_LIMIT = 64 * 1024;
+
   private HighlighterClient myEditor;
   private final Lexer myLexer;
   private final Map<IElementType, TextAttributes> myAttributesMap = new HashMap<IElementType, TextAttributes>();
@@ -53,6 +64,16 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   private EditorColorsScheme myScheme;
   private final int myInitialState;
 
+  /**
+   * Offset of the first token which may have out-of-date (shifted on document changes) data because the text after it is being
+   * relexed in background; negative value if all tokens are up-to-date.
+   */
+  private int myStaleStartOffset = -1;
+
+  /** Is incremented on every background relexing request, background relexing is cancelled if the value has been changed. */
+  private volatile int myRelexingGeneration;
+  private Boolean myBackgroundRelexingSupported;
+
   public LexerEditorHighlighter(@NotNull SyntaxHighlighter highlighter, @NotNull EditorColorsScheme scheme) {
     myScheme = scheme;
     myLexer = highlighter.getHighlightingLexer();
@@ -142,6 +163,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     final Document document = e.getDocument();
 
     if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
+      cancelBackgroundRelexing();
       mySegments.removeAll();
       return;
     }
@@ -154,6 +176,24 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     CharSequence text = document.getCharsSequence();
     int oldStartOffset = e.getOffset();
 
+    // Tokens after the stale start offset are re-created in background anyway, so, we just keep them in sync with the text.
+    int staleStartOffset = myStaleStartOffset;
+    if (staleStartOffset >= 0) {
+      if (oldStartOffset >= staleStartOffset) {
+        shiftStaleSegments(e);
+        scheduleBackgroundRelexing(document);
+        return;
+      }
+      if (oldStartOffset + e.getOldLength() <= staleStartOffset) {
+        staleStartOffset += e.getNewLength() - e.getOldLength();
+      }
+      else {
+        staleStartOffset = oldStartOffset + e.getNewLength();
+      }
+    }
+    boolean relexInBackground = text.length() >= BACKGROUND_RELEXING_MIN_DOCUMENT_LENGTH && isBackgroundRelexingSupported();
+    int relexingStopOffset = -1;
+
     final int segmentIndex;
     try {
       segmentIndex = mySegments.findSegmentIndex(oldStartOffset) - 2;
@@ -225,7 +265,18 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
       if(tokenStart >= newEndOffset && lexerState == myInitialState) {
         int shiftedTokenStart = tokenStart - e.getNewLength() + e.getOldLength();
         int index = mySegments.findSegmentIndex(shiftedTokenStart);
-        if (mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
+        if ((staleStartOffset < 0 || tokenStart < staleStartOffset)
+            && mySegments.getSegmentStart(index) == shiftedTokenStart && mySegments.getSegmentData(index) == data) {
+          repaintEnd = tokenStart;
+          oldEndIndex = index;
+          break;
+        }
+        if (relexInBackground && tokenStart - newEndOffset > SYNC_RELEXING_LIMIT) {
+          // Keep old tokens (shifted) after the current one for now, they are replaced when background relexing is done.
+          if (mySegments.getSegmentStart(index) != shiftedTokenStart) {
+            mySegments.setElementAt(index, shiftedTokenStart, mySegments.getSegmentEnd(index), mySegments.getSegmentData(index));
+          }
+          relexingStopOffset = tokenStart;
           repaintEnd = tokenStart;
           oldEndIndex = index;
           break;
@@ -259,6 +310,22 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     mySegments.shiftSegments(oldEndIndex, shift);
     mySegments.replace(startIndex, oldEndIndex, insertSegments);
 
+    if (relexingStopOffset >= 0) {
+      myStaleStartOffset = relexingStopOffset;
+    }
+    else if (oldEndIndex < mySegments.getSegmentCount() && repaintEnd < text.length()) {
+      myStaleStartOffset = staleStartOffset;
+    }
+    else {
+      myStaleStartOffset = -1;
+    }
+    if (myStaleStartOffset >= 0) {
+      scheduleBackgroundRelexing(document);
+    }
+    else if (staleStartOffset >= 0) {
+      cancelBackgroundRelexing();
+    }
+
     if (insertSegmentCount == 0 ||
         oldEndIndex == startIndex + 1 && insertSegmentCount == 1 && data == mySegments.getSegmentData(startIndex)) {
       return;
@@ -267,6 +334,116 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
     myEditor.repaint(startOffset, repaintEnd);
   }
 
+  /**
+   * Updates tokens located after the {@link #myStaleStartOffset stale start offset} on the given document change. The tokens
+   * which intersect the changed region are merged into single token.
+   */
+  private void shiftStaleSegments(@NotNull DocumentEvent e) {
+    int shift = e.getNewLength() - e.getOldLength();
+    int startIndex = mySegments.findSegmentIndex(e.getOffset());
+    int endIndex = mySegments.findSegmentIndex(e.getOffset() + e.getOldLength());
+    int startOffset = mySegments.getSegmentStart(startIndex);
+    int endOffset = mySegments.getSegmentEnd(endIndex) + shift;
+    SegmentArrayWithData newSegments = new SegmentArrayWithData();
+    if (endOffset > startOffset) {
+      newSegments.setElementAt(0, startOffset, endOffset, mySegments.getSegmentData(startIndex));
+    }
+    mySegments.shiftSegments(endIndex + 1, shift);
+    mySegments.replace(startIndex, endIndex + 1, newSegments);
+    if (myStaleStartOffset >= e.getDocument().getTextLength()) {
+      myStaleStartOffset = -1;
+    }
+  }
+
+  /**
+   * Background relexing is not used if there is a chance that the lexer is shared or if the segments hold more
+   * than lexer tokens data.
+   */
+  protected boolean isBackgroundRelexingSupported() {
+    if (myBackgroundRelexingSupported == null) {
+      myBackgroundRelexingSupported = mySegments.getClass() == SegmentArrayWithData.class && myHighlighter.getHighlightingLexer() != myLexer;
+    }
+    return myBackgroundRelexingSupported;
+  }
+
+  private void cancelBackgroundRelexing() {
+    myStaleStartOffset = -1;
+    myRelexingGeneration++;
+  }
+
+  /**
+   * Relexes text after the {@link #myStaleStartOffset stale start offset} at the pooled thread using the document
+   * snapshot and replaces the stale tokens by the new ones at EDT if the document hasn't been changed meanwhile.
+   * <p/>
+   * The snapshot is taken by the pooled thread only if no other change has been made by that time, so, a series of
+   * fast changes doesn't snapshot the text on every change. The pooled thread copies the text itself, so the next
+   * keystroke doesn't have to copy the text array shared with the snapshot.
+   */
+  private void scheduleBackgroundRelexing(@NotNull final Document document) {
+    final int generation = ++myRelexingGeneration;
+    final int startOffset = myStaleStartOffset;
+    if (startOffset < 0) {
+      return;
+    }
+    final ModalityState modalityState = ModalityState.current();
+    final Application application = ApplicationManager.getApplication();
+    application.executeOnPooledThread(new Runnable() {
+      @Override
+      public void run() {
+        final DocumentSnapshot snapshot = application.runReadAction(new Computable<DocumentSnapshot>() {
+          @Override
+          public DocumentSnapshot compute() {
+            // every document change increments the generation, so, the document is still at the state the request is made for
+            return generation == myRelexingGeneration ? DocumentSnapshot.copyOf(document) : null;
+          }
+        });
+        if (snapshot == null) {
+          return;
+        }
+        CharSequence text = snapshot.getText();
+        Lexer lexer = myHighlighter.getHighlightingLexer();
+        lexer.start(text, startOffset, text.length(), myInitialState);
+        final SegmentArrayWithData segments = new SegmentArrayWithData();
+        int i = 0;
+        for (IElementType tokenType = lexer.getTokenType(); tokenType != null; tokenType = lexer.getTokenType()) {
+          if ((i & 0xFFF) == 0 && generation != myRelexingGeneration) {
+            return;
+          }
+          segments.setElementAt(i++, lexer.getTokenStart(), lexer.getTokenEnd(), packData(tokenType, lexer.getState()));
+          lexer.advance();
+        }
+        application.invokeLater(new Runnable() {
+          @Override
+          public void run() {
+            application.runWriteAction(new Runnable() {
+              @Override
+              public void run() {
+                applyBackgroundRelexing(generation, snapshot, startOffset, segments);
+              }
+            });
+          }
+        }, modalityState);
+      }
+    });
+  }
+
+  // is called in write action, so, no reader may see the segments being replaced
+  private void applyBackgroundRelexing(int generation,
+                                       @NotNull DocumentSnapshot snapshot,
+                                       int startOffset,
+                                       @NotNull SegmentArrayWithData segments) {
+    Document document = getDocument();
+    if (generation != myRelexingGeneration || startOffset != myStaleStartOffset || document == null || !snapshot.isUpToDate(document)
+        || startOffset >= mySegments.getLastValidOffset())
+    {
+      return;
+    }
+    int startIndex = mySegments.findSegmentIndex(startOffset);
+    mySegments.replace(startIndex, mySegments.getSegmentCount(), segments);
+    myStaleStartOffset = -1;
+    myEditor.repaint(startOffset, document.getTextLength());
+  }
+
   @Override
   public void beforeDocumentChange(DocumentEvent event) {
   }
@@ -303,6 +480,7 @@ public class LexerEditorHighlighter implements EditorHighlighter, PrioritizedDoc
   }
 
   private void doSetText(final CharSequence text) {
+    cancelBackgroundRelexing();
     final TokenProcessor processor = createTokenProcessor(0);
     myLexer.start(text, 0, text.length(),myInitialState);
     mySegments.removeAll();
@@ -211,6 +211,11 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
 
   private final ArrayList<CachedFontContent> myFontCache = new ArrayList<CachedFontContent>();
   @Nullable private FontInfo myCurrentFontType = null;
+  private final TextFragmentLayoutCache myTextLayoutCache = new TextFragmentLayoutCache();
+
+  /** Document text being painted at the moment; <code>null</code> if the editor is not painting document text now. */
+  @Nullable private char[] myPaintedDocumentChars;
+  private int myPaintedDocumentCharsOffset; // document offset of myPaintedDocumentChars[0]
 
   private final EditorSizeContainer mySizeContainer = new EditorSizeContainer();
 
@@ -222,6 +227,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   private long myMouseSelectionChangeTimestamp;
   private int mySavedCaretOffsetForDNDUndoHack;
   private final ArrayList<FocusChangeListener> myFocusListeners = new ArrayList<FocusChangeListener>();
+  private final ArrayList<EditorPaintListener> myPaintListeners = new ArrayList<EditorPaintListener>();
 
   private MyInputMethodHandler myInputMethodRequestsHandler;
   private InputMethodRequests myInputMethodRequestsSwingWrapper;
@@ -624,6 +630,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   @Override
   public void reinitSettings() {
     assertIsDispatchThread();
+    myTextLayoutCache.clear();
     myCharHeight = -1;
     myLineHeight = -1;
     myDescent = -1;
@@ -717,6 +724,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     clearCaretThread();
 
     myFocusListeners.clear();
+    myPaintListeners.clear();
+    myTextLayoutCache.clear();
 
     if (myConnection != null) {
       myConnection.disconnect();
@@ -1590,6 +1599,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
   }
 
   private void changedUpdate(DocumentEvent e) {
+    myTextLayoutCache.onDocumentChange(e.getOffset());
     if (myScrollPane == null || myDocument.isInBulkUpdate()) return;
 
     stopOptimizedScrolling();
@@ -1790,6 +1800,20 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       return;
     }
 
+    if (myPaintListeners.isEmpty()) {
+      doPaint(g, clip);
+      return;
+    }
+
+    long start = System.nanoTime();
+    doPaint(g, clip);
+    long duration = System.nanoTime() - start;
+    for (EditorPaintListener listener : myPaintListeners.toArray(new EditorPaintListener[myPaintListeners.size()])) {
+      listener.paintFinished(this, clip, duration);
+    }
+  }
+
+  private void doPaint(@NotNull Graphics2D g, @NotNull Rectangle clip) {
     if (Registry.is("editor.dumb.mode.available")) {
       final BufferedImage buffer = getUserData(BUFFER);
       if (buffer != null) {
@@ -2581,7 +2605,19 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       int fontType = attributes.getFontType();
       g.setColor(currentColor);
 
-      final char[] chars = myDocument.getRawChars();
+      final char[] chars;
+      if (myDocument.hasRawChars()) {
+        chars = myDocument.getRawChars();
+        myPaintedDocumentCharsOffset = 0;
+      }
+      else {
+        // don't flatten the whole text on every modification, copy only the painted part
+        chars = new char[clipEndOffset - clipStartOffset];
+        CharArrayUtil.getChars(myDocument.getCharsSequence(), chars, clipStartOffset, 0, chars.length);
+        myPaintedDocumentCharsOffset = clipStartOffset;
+      }
+      myTextLayoutCache.checkFont(myScheme);
+      myPaintedDocumentChars = chars;
 
       while (!iterationState.atEnd() && !lIterator.atEnd()) {
         int hEnd = iterationState.getEndOffset();
@@ -2658,6 +2694,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       }
     }
     finally {
+      myPaintedDocumentChars = null;
       iterationState.dispose();
     }
 
@@ -2878,6 +2915,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                                       @JdkConstants.FontStyle int fontType,
                                       Color fontColor,
                                       @NotNull Ref<LogicalPosition> startDrawingLogicalPosition) {
+    // start, end and soft wrap offsets are document offsets, painted document chars may start at a non-zero one
+    final int charsOffset = text == myPaintedDocumentChars ? myPaintedDocumentCharsOffset : 0;
     int startToUse = start;
 
     // There is a possible case that starting logical line is split by soft-wraps and it's part after the split should be drawn.
@@ -2936,7 +2975,7 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       // Draw token text before the wrap.
       if (softWrap.getStart() > startToUse) {
         position.x = drawString(
-          g, text, startToUse, softWrap.getStart(), position, clip, null, null, fontType, fontColor
+          g, text, startToUse - charsOffset, softWrap.getStart() - charsOffset, position, clip, null, null, fontType, fontColor
         );
       }
 
@@ -2980,7 +3019,8 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
       position.x += mySoftWrapModel.paint(g, SoftWrapDrawingType.AFTER_SOFT_WRAP, position.x, position.y, getLineHeight());
       myForceRefreshFont = true;
     }
-    return position.x = drawString(g, text, startToUse, end, position, clip, effectColor, effectType, fontType, fontColor);
+    return position.x = drawString(g, text, startToUse - charsOffset, end - charsOffset, position, clip, effectColor, effectType,
+                                   fontType, fontColor);
   }
 
   private int drawString(@NotNull Graphics g,
@@ -3105,6 +3145,12 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
                                 @JdkConstants.FontStyle final int fontType,
                                 final Color fontColor,
                                 @NotNull final Rectangle clip) {
+    if (text == myPaintedDocumentChars && start < end) {
+      TextFragmentLayoutCache.FragmentLayout layout = myTextLayoutCache.getLayout(
+        text, myPaintedDocumentCharsOffset, start + myPaintedDocumentCharsOffset, end + myPaintedDocumentCharsOffset, fontType, this
+      );
+      return drawTablessString(layout, text, start, g, x, y, fontType, fontColor, clip);
+    }
     int endX = x;
     if (start < end) {
       FontInfo font = EditorUtil.fontForChar(text[start], fontType, this);
@@ -3160,6 +3206,51 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     return endX;
   }
 
+  /**
+   * Draws document text fragment which layout is already calculated.
+   * 
+   * @return  x coordinate of the fragment end
+   */
+  private int drawTablessString(@NotNull TextFragmentLayoutCache.FragmentLayout layout,
+                                @NotNull char[] text,
+                                int start,
+                                @NotNull Graphics g,
+                                int x,
+                                int y,
+                                @JdkConstants.FontStyle int fontType,
+                                Color fontColor,
+                                @NotNull Rectangle clip) {
+    int[] xs = layout.x;
+    int clipEnd = clip.x + clip.width;
+    for (int i = 0; i < layout.getRunsNumber(); i++) {
+      int runStart = layout.runStarts[i];
+      int runEnd = layout.runStarts[i + 1];
+      if (x + xs[runEnd] < clip.x) {
+        continue;
+      }
+      if (x + xs[runStart] > clipEnd) {
+        break;
+      }
+      
+      // Draw only visible part of the run.
+      while (runStart < runEnd - 1 && x + xs[runStart + 1] < clip.x) {
+        runStart++;
+      }
+      while (runEnd > runStart + 1 && x + xs[runEnd - 1] > clipEnd) {
+        runEnd--;
+      }
+      // Same space width check as in the non-cached drawing above.
+      if (layout.runHasSpaces[i] && myCommonSpaceWidth > 0 && myLastCache != null) {
+        int spaceWidth = layout.runFonts[i].charWidth(' ');
+        if (spaceWidth != myCommonSpaceWidth || spaceWidth != myLastCache.spaceWidth) {
+          myForceRefreshFont = true;
+        }
+      }
+      drawCharsCached(g, text, start + runStart, start + runEnd, x + xs[runStart], y, fontType, fontColor);
+    }
+    return x + layout.getWidth();
+  }
+
   private void drawTabPlacer(Graphics g, int y, int start, int stop) {
     if (mySettings.isWhitespacesShown()) {
       myTabPainter.paint(g, y, start, stop);
@@ -4171,6 +4262,14 @@ public final class EditorImpl extends UserDataHolderBase implements EditorEx, Hi
     myFocusListeners.add(listener);
   }
 
+  public void addPaintListener(@NotNull EditorPaintListener listener) {
+    myPaintListeners.add(listener);
+  }
+
+  public void removePaintListener(@NotNull EditorPaintListener listener) {
+    myPaintListeners.remove(listener);
+  }
+
   @Override
   @Nullable
   public Project getProject() {
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.awt.*;
+import java.util.EventListener;
+
+/**
+ * Instrumentation callback that receives information about editor text area painting duration.
+ * 
+ * @see EditorImpl#addPaintListener(EditorPaintListener) 
+ */
+public interface EditorPaintListener extends EventListener {
+
+  /**
+   * Is called on EDT after every editor text area painting.
+   * 
+   * @param editor          painted editor
+   * @param clip            painted area
+   * @param durationNanos   painting duration in nanoseconds
+   */
+  void paintFinished(@NotNull EditorImpl editor, @NotNull Rectangle clip, long durationNanos);
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.Editor;
+import com.intellij.openapi.editor.colors.EditorColorsScheme;
+import com.intellij.openapi.editor.ex.util.EditorUtil;
+import com.intellij.openapi.util.Comparing;
+import org.intellij.lang.annotations.JdkConstants;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.util.*;
+
+/**
+ * Holds layout of the tab-less document text fragments painted by the editor, i.e. fonts to use for fragment symbols and
+ * symbols widths. That allows to avoid fonts lookup and symbols measuring on every repaint (e.g. on scrolling or caret blinking).
+ * <p/>
+ * Fragments are identified by their document offsets and font style, so, highlighting or folding change that splits the text
+ * into different fragments just produces new cache entries. Cached data depends only on the document text and editor font,
+ * hence, the cache is expected to be notified about document changes and it drops everything on editor font change.
+ * <p/>
+ * Not thread-safe, is assumed to be used from EDT only.
+ */
+class TextFragmentLayoutCache {
+
+  /** Max number of fragments to keep, least recently used fragments are evicted first. */
+  static final int MAX_FRAGMENTS_NUMBER = 2048;
+
+  /** Holds {@code 'fragment start offset -> fragment layout'} mappings. */
+  private final Map<Integer, FragmentLayout> myLayouts = new LinkedHashMap<Integer, FragmentLayout>(16, 0.75f, true) {
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Integer, FragmentLayout> eldest) {
+      if (size() > MAX_FRAGMENTS_NUMBER) {
+        myLayoutsByEnd.remove(eldest.getValue());
+        return true;
+      }
+      return false;
+    }
+  };
+
+  /** Holds the same layouts as {@link #myLayouts} ordered by fragment end offset, so that a document change visits only affected ones. */
+  private final SortedSet<FragmentLayout> myLayoutsByEnd = new TreeSet<FragmentLayout>(new Comparator<FragmentLayout>() {
+    @Override
+    public int compare(FragmentLayout o1, FragmentLayout o2) {
+      if (o1.myEnd != o2.myEnd) {
+        return o1.myEnd < o2.myEnd ? -1 : 1;
+      }
+      return o1.myStart < o2.myStart ? -1 : o1.myStart == o2.myStart ? 0 : 1;
+    }
+  });
+
+  @Nullable private String myFontName;
+  private int myFontSize;
+
+  /**
+   * Drops all cached data if editor font has been changed since the last call.
+   *
+   * @param scheme  colors scheme used by the editor
+   */
+  public void checkFont(@NotNull EditorColorsScheme scheme) {
+    String fontName = scheme.getEditorFontName();
+    int fontSize = scheme.getEditorFontSize();
+    if (myFontSize != fontSize || !Comparing.equal(myFontName, fontName)) {
+      clear();
+      myFontName = fontName;
+      myFontSize = fontSize;
+    }
+  }
+
+  /**
+   * Returns layout of the given document text fragment, builds it if necessary.
+   *
+   * @param text      document text
+   * @param start     start offset of the target fragment (inclusive)
+   * @param end       end offset of the target fragment (exclusive)
+   * @param fontType  font style to use
+   * @param editor    target editor
+   * @return          layout of the given text fragment
+   */
+  @NotNull
+  public FragmentLayout getLayout(@NotNull char[] text, int start, int end, @JdkConstants.FontStyle int fontType, @NotNull Editor editor) {
+    return getLayout(text, 0, start, end, fontType, editor);
+  }
+
+  /**
+   * Same as {@link #getLayout(char[], int, int, int, Editor)} for a part of the document text.
+   *
+   * @param text        document text part
+   * @param textOffset  document offset of the first symbol of the given text part
+   */
+  @NotNull
+  public FragmentLayout getLayout(@NotNull char[] text,
+                                  int textOffset,
+                                  int start,
+                                  int end,
+                                  @JdkConstants.FontStyle int fontType,
+                                  @NotNull Editor editor) {
+    FragmentLayout result = myLayouts.get(start);
+    if (result == null || result.myEnd != end || result.myFontType != fontType) {
+      if (result != null) {
+        myLayoutsByEnd.remove(result);
+      }
+      result = new FragmentLayout(text, textOffset, start, end, fontType, editor);
+      myLayoutsByEnd.add(result);
+      myLayouts.put(start, result);
+    }
+    return result;
+  }
+
+  /**
+   * Drops layout of all fragments that might be affected by the document change at the given offset.
+   *
+   * @param offset  start offset of the changed document range
+   */
+  public void onDocumentChange(int offset) {
+    SortedSet<FragmentLayout> affected = myLayoutsByEnd.tailSet(new FragmentLayout(Integer.MIN_VALUE, offset));
+    for (FragmentLayout layout : affected) {
+      myLayouts.remove(layout.myStart);
+    }
+    affected.clear();
+  }
+
+  public void clear() {
+    myLayouts.clear();
+    myLayoutsByEnd.clear();
+  }
+
+  int size() {
+    return myLayouts.size();
+  }
+
+  /**
+   * Layout of particular tab-less text fragment. The fragment is split into runs that are drawn by a single
+   * {@link java.awt.Graphics#drawChars(char[], int, int, int, int) drawChars()} call, i.e. every run uses single font
+   * and a run is ended after symbol that {@link FontInfo#getSymbolsToBreakDrawingIteration() breaks drawing iteration}.
+   */
+  static class FragmentLayout {
+
+    private final int myStart;
+    private final int myEnd;
+    private final int myFontType;
+
+    /** Holds x coordinate of the every fragment symbol start relative to the fragment start; the last element is fragment width. */
+    final int[]      x;
+    /** Holds start index (relative to the fragment start) of every run; the last element is fragment length. */
+    final int[]      runStarts;
+    final FontInfo[] runFonts;
+    /** Holds <code>true</code> for runs that contain white spaces. */
+    final boolean[]  runHasSpaces;
+
+    FragmentLayout(@NotNull char[] text, int textOffset, int start, int end, @JdkConstants.FontStyle int fontType, @NotNull Editor editor) {
+      myStart = start;
+      myEnd = end;
+      myFontType = fontType;
+      x = new int[end - start + 1];
+      int[] runStarts = new int[end - start + 1];
+      FontInfo[] runFonts = new FontInfo[end - start];
+      boolean[] runHasSpaces = new boolean[end - start];
+      int runsNumber = 0;
+      FontInfo runFont = null;
+      boolean breakRun = true;
+      for (int i = start; i < end; i++) {
+        char c = text[i - textOffset];
+        FontInfo font = EditorUtil.fontForChar(c, fontType, editor);
+        if (breakRun || font != runFont) {
+          runStarts[runsNumber] = i - start;
+          runFonts[runsNumber++] = font;
+          runFont = font;
+        }
+        if (c == ' ') {
+          runHasSpaces[runsNumber - 1] = true;
+        }
+        breakRun = font.hasGlyphsToBreakDrawingIteration() && font.getSymbolsToBreakDrawingIteration().contains(c);
+        x[i - start + 1] = x[i - start] + font.charWidth(c);
+      }
+      runStarts[runsNumber] = end - start;
+      this.runStarts = new int[runsNumber + 1];
+      System.arraycopy(runStarts, 0, this.runStarts, 0, runsNumber + 1);
+      this.runFonts = new FontInfo[runsNumber];
+      System.arraycopy(runFonts, 0, this.runFonts, 0, runsNumber);
+      this.runHasSpaces = new boolean[runsNumber];
+      System.arraycopy(runHasSpaces, 0, this.runHasSpaces, 0, runsNumber);
+    }
+
+    /** Creates a search key for {@link TextFragmentLayoutCache#myLayoutsByEnd}. */
+    private FragmentLayout(int start, int end) {
+      myStart = start;
+      myEnd = end;
+      myFontType = 0;
+      x = null;
+      runStarts = null;
+      runFonts = null;
+      runHasSpaces = null;
+    }
+
+    public int getRunsNumber() {
+      return runFonts.length;
+    }
+
+    public int getWidth() {
+      return x[x.length - 1];
+    }
+  }
+}
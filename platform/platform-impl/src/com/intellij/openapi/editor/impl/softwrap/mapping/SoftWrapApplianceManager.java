@@ -58,6 +58,19 @@ import java.util.List;
 public class SoftWrapApplianceManager implements SoftWrapFoldingListener, DocumentListener, Dumpable {
   
   private static final Logger LOG = Logger.getInstance("#" + SoftWrapApplianceManager.class.getName());
+
+  /**
+   * Soft wraps are calculated only for the visible document part (plus {@link #VISIBLE_AREA_MARGIN_LINES}) for documents which
+   * length is greater than this value. The rest of the text is processed in background by {@link #BACKGROUND_SLICE_SIZE} chunks.
+   */
+  private static final int LAZY_PROCESSING_MIN_DOCUMENT_LENGTH = 128 * 1024;
+
+  /** Number of logical lines below the viewport bottom which soft wraps are calculated together with the visible ones. */
+  private static final int VISIBLE_AREA_MARGIN_LINES = 100;
+
+  /** Number of document symbols processed during single background processing iteration. */
+  private static final int BACKGROUND_SLICE_SIZE = 64 * 1024;
+  
   
   /** Enumerates possible type of soft wrap indents to use. */
   enum IndentType {
@@ -105,6 +118,13 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   private boolean                        myInProgress;
   private boolean                        myHasLinesWithFailedWrap;
 
+  /**
+   * Offset of the first document symbol which soft wraps are not calculated yet (all text that starts from it is assumed
+   * to be soft wraps-free until it's processed); negative value means that the whole document is processed.
+   */
+  private int                            myNotProcessedStartOffset = -1;
+  private boolean                        myBackgroundSliceScheduled;
+
   public SoftWrapApplianceManager(@NotNull SoftWrapsStorage storage,
                                   @NotNull EditorEx editor,
                                   @NotNull SoftWrapPainter painter,
@@ -133,6 +153,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
 
   public void reset() {
     myEventsStorage.release();
+    myNotProcessedStartOffset = -1;
     myEventsStorage.add(myEditor.getDocument(), new IncrementalCacheUpdateEvent(myEditor.getDocument()));
     for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
       listener.reset();
@@ -141,6 +162,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   
   public void release() {
     myEventsStorage.release();
+    myNotProcessedStartOffset = -1;
     myLineWrapPositionStrategy = null;
   }
 
@@ -166,14 +188,40 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
    *            have information about viewport width)
    */
   private boolean recalculateSoftWraps() {
+    return recalculateSoftWraps(false);
+  }
+
+  /**
+   * Processes stored dirty regions. Only the text up to the viewport bottom (plus a margin) is processed for large documents,
+   * the rest is remembered as {@link #myNotProcessedStartOffset not processed} and handled later by background slices.
+   * 
+   * @param backgroundSlice   flag that indicates if the call is performed in order to process next not processed text chunk
+   * @return                  <code>true</code> if soft wraps were really re-calculated; <code>false</code> otherwise
+   */
+  private boolean recalculateSoftWraps(boolean backgroundSlice) {
     initListenerIfNecessary();
-    if (myEventsStorage.getEvents().isEmpty()) {
+    if (myEventsStorage.getEvents().isEmpty() && myNotProcessedStartOffset < 0) {
       return true;
     }
     if (myVisibleAreaWidth <= 0) {
       return false;
     }
 
+    Document document = myEditor.getDocument();
+    int visibleEndLine = getVisibleEndLine();
+    if (!backgroundSlice && myEventsStorage.getEvents().isEmpty()
+        && document.getLineNumber(Math.min(myNotProcessedStartOffset, document.getTextLength())) > visibleEndLine)
+    {
+      // Nothing to process at the visible area, not processed text is handled in background.
+      scheduleBackgroundSlice();
+      return true;
+    }
+    int endLine = visibleEndLine == Integer.MAX_VALUE ? visibleEndLine : visibleEndLine + VISIBLE_AREA_MARGIN_LINES;
+    if (backgroundSlice && myNotProcessedStartOffset >= 0) {
+      int sliceEndOffset = Math.min(document.getTextLength(), myNotProcessedStartOffset + BACKGROUND_SLICE_SIZE);
+      endLine = Math.max(endLine, document.getLineNumber(sliceEndOffset));
+    }
+
     // There is a possible case that new dirty regions are encountered during processing, hence, we iterate on regions snapshot here.
     List<IncrementalCacheUpdateEvent> events = new ArrayList<IncrementalCacheUpdateEvent>(myEventsStorage.getEvents());
     myActiveEvents.addAll(events);
@@ -189,11 +237,28 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       ));
     }
     myInProgress = true;
-    myHasLinesWithFailedWrap = false;
+    if (!backgroundSlice) {
+      myHasLinesWithFailedWrap = false;
+    }
     try {
       for (IncrementalCacheUpdateEvent event : events) {
+        if (myNotProcessedStartOffset >= 0 && event.getOldStartOffset() >= myNotProcessedStartOffset) {
+          // The change is located at the region which is not processed yet, it will be handled during that region processing.
+          continue;
+        }
+        myEventBeingProcessed = event;
+        recalculateSoftWraps(event, endLine);
+      }
+      if (myNotProcessedStartOffset >= document.getTextLength()) {
+        myNotProcessedStartOffset = -1;
+      }
+      if (myNotProcessedStartOffset >= 0
+          && (backgroundSlice || document.getLineNumber(myNotProcessedStartOffset) <= visibleEndLine))
+      {
+        IncrementalCacheUpdateEvent event
+          = new IncrementalCacheUpdateEvent(document, myNotProcessedStartOffset, Math.max(0, document.getTextLength() - 1));
         myEventBeingProcessed = event;
-        recalculateSoftWraps(event);
+        recalculateSoftWraps(event, endLine);
       }
     }
     finally {
@@ -202,14 +267,95 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       myEventBeingProcessed = null;
     }
     updateLastTopLeftCornerOffset();
-    for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
-      listener.recalculationEnds();
+    if (backgroundSlice) {
+      // Don't notify listeners here because that triggers caret position update and scrolling to it.
+      myEditor.getContentComponent().repaint();
+    }
+    else {
+      for (SoftWrapAwareDocumentParsingListener listener : myListeners) {
+        listener.recalculationEnds();
+      }
+    }
+    if (myNotProcessedStartOffset >= 0) {
+      scheduleBackgroundSlice();
     }
     return true;
   }
 
-  private void recalculateSoftWraps(IncrementalCacheUpdateEvent event) {
-    event.updateNewOffsetsIfNecessary(myEditor.getDocument(), myEditor.getFoldingModel());
+  /**
+   * @return    logical line shown at the bottom of the editor viewport; {@link Integer#MAX_VALUE} if the whole document
+   *            should be processed
+   */
+  private int getVisibleEndLine() {
+    Document document = myEditor.getDocument();
+    if (document.getTextLength() < LAZY_PROCESSING_MIN_DOCUMENT_LENGTH) {
+      return Integer.MAX_VALUE;
+    }
+    Rectangle visibleArea = myEditor.getScrollingModel().getVisibleArea();
+    int lineHeight = myEditor.getLineHeight();
+    int visibleLines = visibleArea.height / lineHeight + 1;
+    int result = (visibleArea.y + visibleArea.height) / lineHeight;
+    if (myLastTopLeftCornerOffset >= 0 && myLastTopLeftCornerOffset <= document.getTextLength()) {
+      result = Math.max(result, document.getLineNumber(myLastTopLeftCornerOffset) + visibleLines);
+    }
+    return result;
+  }
+
+  private void scheduleBackgroundSlice() {
+    if (myBackgroundSliceScheduled) {
+      return;
+    }
+    myBackgroundSliceScheduled = true;
+    SwingUtilities.invokeLater(new Runnable() {
+      @Override
+      public void run() {
+        myBackgroundSliceScheduled = false;
+        if (myNotProcessedStartOffset < 0 || myEditor.isDisposed() || !myEditor.getSettings().isUseSoftWraps()) {
+          return;
+        }
+        Document document = myEditor.getDocument();
+        if (document instanceof DocumentEx && ((DocumentEx)document).isInBulkUpdate()) {
+          return;
+        }
+        if (myInProgress) {
+          scheduleBackgroundSlice();
+          return;
+        }
+        recalculateSoftWraps(true);
+      }
+    });
+  }
+
+  /**
+   * Processes given dirty region.
+   * <p/>
+   * There is a possible case that the region spreads to the document end. Its processing is stopped after the given logical line
+   * then and the remaining text is marked as {@link #myNotProcessedStartOffset not processed}.
+   * 
+   * @param event     dirty region to process
+   * @param endLine   logical line after which processing of the region that spreads to the document end may be stopped
+   */
+  private void recalculateSoftWraps(IncrementalCacheUpdateEvent event, int endLine) {
+    Document document = myEditor.getDocument();
+    event.updateNewOffsetsIfNecessary(document, myEditor.getFoldingModel());
+    int textLength = document.getTextLength();
+    boolean toDocumentEnd = event.getNewEndOffset() >= textLength - 1;
+    int rangeEndOffset = event.getNewEndOffset();
+    if (toDocumentEnd) {
+      int limitLine = Math.max(endLine, document.getLineNumber(event.getNewStartOffset()));
+      if (limitLine < document.getLineCount() - 1) {
+        FoldingModel foldingModel = myEditor.getFoldingModel();
+        int limit = document.getLineEndOffset(limitLine);
+        for (
+          FoldRegion region = foldingModel.getCollapsedRegionAtOffset(limit);
+          region != null;
+          region = foldingModel.getCollapsedRegionAtOffset(limit))
+        {
+          limit = document.getLineEndOffset(document.getLineNumber(region.getEndOffset()));
+        }
+        rangeEndOffset = Math.min(rangeEndOffset, limit);
+      }
+    }
     
     //CachingSoftWrapDataMapper.log("xxxxxxxxxxxxxx Processing soft wraps for " + event + ". Document length: " + myEditor.getDocument().getTextLength() 
     //                              + ", document: " + System.identityHashCode(myEditor.getDocument()));
@@ -221,7 +367,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     boolean normalCompletion = true;
     try {
       //start = System.currentTimeMillis();
-      normalCompletion = doRecalculateSoftWraps(event);
+      normalCompletion = doRecalculateSoftWraps(event, rangeEndOffset);
       //CachingSoftWrapDataMapper.log("xxxxxxxxxxxxxxxxx Processing is complete in " + (System.currentTimeMillis() - start) + " ms");
     }
     finally {
@@ -232,9 +378,24 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       //  + " ms. Processing finished " + (normalCompletion ? "normally" : "non-normally")
       //);
     }
+
+    if (rangeEndOffset < event.getNewEndOffset()) {
+      myNotProcessedStartOffset = rangeEndOffset + 1 < textLength ? rangeEndOffset + 1 : -1;
+    }
+    else if (toDocumentEnd) {
+      myNotProcessedStartOffset = -1;
+    }
+    else if (myNotProcessedStartOffset >= 0) {
+      if (event.getOldEndOffset() < myNotProcessedStartOffset) {
+        myNotProcessedStartOffset += event.getExactOffsetsDiff();
+      }
+      else {
+        myNotProcessedStartOffset = event.getNewEndOffset() + 1 < textLength ? event.getNewEndOffset() + 1 : -1;
+      }
+    }
   }
 
-  private boolean doRecalculateSoftWraps(IncrementalCacheUpdateEvent event) {
+  private boolean doRecalculateSoftWraps(IncrementalCacheUpdateEvent event, int rangeEndOffset) {
     // Preparation.
     myContext.reset();
     myOffset2fontType.clear();
@@ -267,7 +428,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
     try {
       TextAttributes attributes = iterationState.getMergedAttributes();
       myContext.fontType = attributes.getFontType();
-      myContext.rangeEndOffset = event.getNewEndOffset();
+      myContext.rangeEndOffset = rangeEndOffset;
 
       EditorPosition position = new EditorPosition(logical, start, myEditor, myRepresentationHelper);
       position.x = point.x;
@@ -284,7 +445,7 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
       myContext.reservedWidthInPixels = myPainter.getMinDrawingWidth(SoftWrapDrawingType.BEFORE_SOFT_WRAP_LINE_FEED);
 
       // Perform soft wraps calculation.
-      while (!iterationState.atEnd() && myContext.currentPosition.offset <= event.getNewEndOffset()) {
+      while (!iterationState.atEnd() && myContext.currentPosition.offset <= myContext.rangeEndOffset) {
         FoldRegion currentFold = iterationState.getCurrentFold();
         if (currentFold == null) {
           myContext.tokenEndOffset = iterationState.getEndOffset();
@@ -1030,8 +1191,9 @@ public class SoftWrapApplianceManager implements SoftWrapFoldingListener, Docume
   @Override
   public String dumpState() {
     return String.format(
-      "recalculation in progress: %b; stored update events: %s; active update events: %s, event being processed: %s",
-      myInProgress, myEventsStorage, myActiveEvents, myEventBeingProcessed
+      "recalculation in progress: %b; stored update events: %s; active update events: %s, event being processed: %s, "
+      + "not processed start offset: %d",
+      myInProgress, myEventsStorage, myActiveEvents, myEventBeingProcessed, myNotProcessedStartOffset
     );
   }
 
@@ -67,8 +67,14 @@ public class SoftWrapAwareVisualSizeManager extends SoftWrapAwareDocumentParsing
     
     int startLine = event.getStartLogicalLine();
     int oldEndLine = event.getOldEndLogicalLine();
+    int newEndLine = myLastLogicalLine;
+    if (normal) {
+      // Processing might be stopped before the region end (soft wraps for the remaining text are calculated later),
+      // we don't want to lose information about the lines that are not processed yet then.
+      newEndLine = Math.max(newEndLine, startLine + event.getNewLogicalLinesDiff());
+    }
     for (VisualSizeChangeListener listener : myListeners) {
-      listener.onLineWidthsChange(startLine, oldEndLine, myLastLogicalLine, myLineWidths);
+      listener.onLineWidthsChange(startLine, oldEndLine, newEndLine, myLineWidths);
     }
   }
 
@@ -36,6 +36,7 @@ import com.intellij.openapi.editor.event.DocumentAdapter;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.ex.DocumentEx;
 import com.intellij.openapi.editor.ex.EditorSettingsExternalizable;
+import com.intellij.openapi.editor.impl.DocumentSnapshot;
 import com.intellij.openapi.extensions.Extensions;
 import com.intellij.openapi.fileChooser.FileChooserFactory;
 import com.intellij.openapi.fileChooser.FileSaverDescriptor;
@@ -409,14 +410,15 @@ public class FileDocumentManagerImpl extends FileDocumentManager implements Appl
 
     LOG.assertTrue(file.isValid());
 
-    String text = document.getText();
+    DocumentSnapshot snapshot = DocumentSnapshot.of(document);
+    String text = snapshot.getText().toString();
     String lineSeparator = getLineSeparator(document, file);
     if (!lineSeparator.equals("\n")) {
       text = StringUtil.convertLineSeparators(text, lineSeparator);
     }
 
     Project project = ProjectLocator.getInstance().guessProjectForFile(file);
-    Writer writer = LoadTextUtil.getWriter(project, file, this, text, document.getModificationStamp());
+    Writer writer = LoadTextUtil.getWriter(project, file, this, text, snapshot.getModificationStamp());
     try {
       writer.write(text);
     }
@@ -103,6 +103,10 @@ class CacheUpdateRunner {
         indicator.cancel();
         indicator.checkCanceled();
       }
+
+      if (LOG.isDebugEnabled()) {
+        LOG.debug("Content queue: " + queue.getStatistics());
+      }
     }
     catch (ProcessCanceledException e) {
       mySession.canceled();
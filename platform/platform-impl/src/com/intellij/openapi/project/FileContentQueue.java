@@ -20,17 +20,19 @@ import com.intellij.openapi.application.ApplicationManager;
 import com.intellij.openapi.diagnostic.Logger;
 import com.intellij.openapi.progress.ProcessCanceledException;
 import com.intellij.openapi.progress.ProgressIndicator;
+import com.intellij.openapi.util.registry.Registry;
 import com.intellij.openapi.vfs.InvalidVirtualFileAccessException;
 import com.intellij.openapi.vfs.VirtualFile;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
 
 import java.io.IOException;
-import java.util.ArrayDeque;
-import java.util.Collection;
-import java.util.Queue;
+import java.util.*;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
 * @author peter
@@ -38,7 +40,7 @@ import java.util.concurrent.TimeUnit;
 @SuppressWarnings({"SynchronizeOnThis"})
 public class FileContentQueue {
   private static final Logger LOG = Logger.getInstance("#com.intellij.ide.startup.FileContentQueue");
-  private static final long SIZE_THRESHOLD = 1024*1024;
+  private static final int PROC_COUNT = Runtime.getRuntime().availableProcessors();
   private static final long TAKEN_FILES_THRESHOLD = 1024*1024*3;
   private static final long LARGE_SIZE_REQUEST_THRESHOLD = TAKEN_FILES_THRESHOLD - 1024 * 300; // 300k for other threads
 
@@ -50,38 +52,99 @@ public class FileContentQueue {
   private final Queue<FileContent> myPushbackBuffer = new ArrayDeque<FileContent>();
   private volatile boolean myContentLoadingThreadTerminated = false;
 
+  private final long mySizeThreshold = getSizeThreshold();
+  private final Statistics myStatistics = new Statistics();
+
   public void queue(final Collection<VirtualFile> files, @NotNull final ProgressIndicator indicator) {
+    final List<VirtualFile> ordered = orderByDirectory(files);
+    final AtomicInteger nextIndex = new AtomicInteger();
+    final int loadersCount = Math.max(1, Math.min(getLoaderThreadsCount(), ordered.size()));
+    final AtomicInteger activeLoaders = new AtomicInteger(loadersCount);
+    final AtomicBoolean canceled = new AtomicBoolean();
+
     final Runnable contentLoadingRunnable = new Runnable() {
       public void run() {
         try {
-          for (VirtualFile file : files) {
-            if (indicator != null) {
-              indicator.checkCanceled();
-            }
-            addLast(file, indicator);
-          }
-
-          // put end-of-queue marker only if not canceled
-          try {
-            myQueue.put(new FileContent(null));
-          }
-          catch (InterruptedException e) {
-            LOG.error(e);
+          int index;
+          while ((index = nextIndex.getAndIncrement()) < ordered.size()) {
+            indicator.checkCanceled();
+            addLast(ordered.get(index), indicator);
           }
         }
         catch (ProcessCanceledException e) {
           // Do nothing, exit the thread.
+          canceled.set(true);
         }
         catch (InterruptedException e) {
+          canceled.set(true);
           LOG.error(e);
         }
         finally {
-          myContentLoadingThreadTerminated = true;
+          if (activeLoaders.decrementAndGet() == 0) {
+            // put end-of-queue marker only if not canceled
+            try {
+              if (!canceled.get()) {
+                myQueue.put(new FileContent(null));
+              }
+            }
+            catch (InterruptedException e) {
+              LOG.error(e);
+            }
+            finally {
+              myContentLoadingThreadTerminated = true;
+            }
+          }
         }
       }
     };
 
-    ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    myStatistics.start();
+    for (int i = 0; i < loadersCount; i++) {
+      ApplicationManager.getApplication().executeOnPooledThread(contentLoadingRunnable);
+    }
+  }
+
+  /**
+   * Files of the same directory are usually stored close to each other on disk, so loading them in a row
+   * (and in parallel by several loaders) reads the disk in a more sequential manner.
+   */
+  private static List<VirtualFile> orderByDirectory(Collection<VirtualFile> files) {
+    final Map<VirtualFile, List<VirtualFile>> byParent = new LinkedHashMap<VirtualFile, List<VirtualFile>>();
+    final List<VirtualFile> orphans = new ArrayList<VirtualFile>();
+    for (VirtualFile file : files) {
+      final VirtualFile parent = file.getParent();
+      if (parent == null) {
+        orphans.add(file);
+        continue;
+      }
+      List<VirtualFile> children = byParent.get(parent);
+      if (children == null) {
+        children = new ArrayList<VirtualFile>();
+        byParent.put(parent, children);
+      }
+      children.add(file);
+    }
+
+    final List<VirtualFile> result = new ArrayList<VirtualFile>(files.size());
+    for (List<VirtualFile> children : byParent.values()) {
+      result.addAll(children);
+    }
+    result.addAll(orphans);
+    return result;
+  }
+
+  /**
+   * Loaders mostly wait for the disk while the consumers (indexers) are CPU-bound, so by default the loaders get half
+   * of the processors: enough to keep several reads in flight on fast storage and still leave the rest for indexing.
+   */
+  private static int getLoaderThreadsCount() {
+    final int count = Registry.intValue("caches.contentLoaderThreadsCount");
+    return count > 0 ? count : Math.max(1, PROC_COUNT / 2);
+  }
+
+  private static long getSizeThreshold() {
+    final int threshold = Registry.intValue("caches.contentLoadingSizeThresholdKb");
+    return (threshold > 0 ? threshold : 1024) * 1024L;
   }
 
   private void addLast(VirtualFile file, @NotNull final ProgressIndicator indicator) throws InterruptedException {
@@ -104,8 +167,9 @@ public class FileContentQueue {
 
     boolean counterUpdated = false;
     try {
+      final long waitStart = System.nanoTime();
       synchronized (this) {
-        while (myTotalSize > SIZE_THRESHOLD) {
+        while (myTotalSize > mySizeThreshold) {
           indicator.checkCanceled();
           wait(300L);
         }
@@ -113,7 +177,9 @@ public class FileContentQueue {
         counterUpdated = true;
       }
 
+      final long loadStart = System.nanoTime();
       content.getBytes(); // Reads the content bytes and caches them.
+      myStatistics.fileLoaded(contentLength, loadStart - waitStart, System.nanoTime() - loadStart);
 
       return true;
     }
@@ -187,6 +253,7 @@ public class FileContentQueue {
       }
     }
 
+    final long waitStart = System.nanoTime();
     try {
       while (result == null) {
         result = myQueue.poll(300L, TimeUnit.MILLISECONDS);
@@ -198,6 +265,9 @@ public class FileContentQueue {
     catch (InterruptedException e) {
       throw new RuntimeException(e);
     }
+    finally {
+      myStatistics.fileAwaited(System.nanoTime() - waitStart);
+    }
 
     final VirtualFile file = result.getVirtualFile();
     if (file == null) {
@@ -223,10 +293,78 @@ public class FileContentQueue {
 
   public synchronized void release(@NotNull FileContent content) {
     myTakenSize -= content.getLength();
+    myStatistics.fileProcessed(content.getLength());
     notifyAll();
   }
 
   public synchronized void pushback(@NotNull FileContent content) {
     myPushbackBuffer.add(content);
   }
+
+  @NotNull
+  public Statistics getStatistics() {
+    return myStatistics;
+  }
+
+  /**
+   * Throughput counters of the queue stages: loading of the content by the loader threads
+   * and its processing by the consumers.
+   */
+  public static class Statistics {
+    private final AtomicLong myLoadedFiles = new AtomicLong();
+    private final AtomicLong myLoadedBytes = new AtomicLong();
+    private final AtomicLong myLoadingNanos = new AtomicLong();
+    private final AtomicLong myLoaderWaitNanos = new AtomicLong();
+    private final AtomicLong myProcessedFiles = new AtomicLong();
+    private final AtomicLong myProcessedBytes = new AtomicLong();
+    private final AtomicLong myConsumerWaitNanos = new AtomicLong();
+    private volatile long myStartNanos;
+
+    private void start() {
+      myStartNanos = System.nanoTime();
+    }
+
+    private void fileLoaded(long length, long waitNanos, long loadNanos) {
+      myLoadedFiles.incrementAndGet();
+      myLoadedBytes.addAndGet(length);
+      myLoaderWaitNanos.addAndGet(waitNanos);
+      myLoadingNanos.addAndGet(loadNanos);
+    }
+
+    private void fileAwaited(long waitNanos) {
+      myConsumerWaitNanos.addAndGet(waitNanos);
+    }
+
+    private void fileProcessed(long length) {
+      myProcessedFiles.incrementAndGet();
+      myProcessedBytes.addAndGet(length);
+    }
+
+    public long getLoadedFiles() {
+      return myLoadedFiles.get();
+    }
+
+    public long getLoadedBytes() {
+      return myLoadedBytes.get();
+    }
+
+    public long getProcessedFiles() {
+      return myProcessedFiles.get();
+    }
+
+    public long getProcessedBytes() {
+      return myProcessedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+      final long elapsedMs = Math.max(1, TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - myStartNanos));
+      return "loaded " + myLoadedFiles + " files (" + myLoadedBytes.get() / 1024 + " Kb) in " +
+             TimeUnit.NANOSECONDS.toMillis(myLoadingNanos.get()) + " ms of reading, " +
+             TimeUnit.NANOSECONDS.toMillis(myLoaderWaitNanos.get()) + " ms loaders waited for consumers; " +
+             "processed " + myProcessedFiles + " files (" + myProcessedBytes.get() / 1024 + " Kb), " +
+             TimeUnit.NANOSECONDS.toMillis(myConsumerWaitNanos.get()) + " ms consumers waited for loaders; " +
+             "throughput " + myProcessedBytes.get() / elapsedMs + " bytes/ms";
+    }
+  }
 }
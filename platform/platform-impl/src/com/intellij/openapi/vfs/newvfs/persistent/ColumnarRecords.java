@@ -0,0 +1,148 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.Forceable;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Fixed size records stored column-wise: every field of the record lives in its own mapped file, so operations
+ * touching a single field of many records (e.g. flags or parents) read only the pages of that field.
+ * Fields are addressed by the same offsets they have in the row layout.
+ */
+class ColumnarRecords implements Forceable {
+  private static final int INITIAL_COLUMN_SIZE = 4 * 1024;
+
+  private final ResizeableMappedFile[] myColumns;
+  private final int[] myFieldSizes;
+  private final int[] myColumnByOffset;
+
+  ColumnarRecords(File recordsFile,
+                  PagedFileStorage.StorageLockContext lockContext,
+                  String[] fieldNames,
+                  int[] fieldOffsets,
+                  int[] fieldSizes,
+                  int recordSize) throws IOException {
+    assert fieldNames.length == fieldOffsets.length && fieldOffsets.length == fieldSizes.length;
+    myFieldSizes = fieldSizes;
+    myColumnByOffset = new int[recordSize];
+    Arrays.fill(myColumnByOffset, -1);
+    myColumns = new ResizeableMappedFile[fieldNames.length];
+
+    for (int i = 0; i < fieldNames.length; i++) {
+      assert PagedFileStorage.BUFFER_SIZE % fieldSizes[i] == 0; // values must not cross pages
+      myColumnByOffset[fieldOffsets[i]] = i;
+      myColumns[i] = new ResizeableMappedFile(getColumnFile(recordsFile, fieldNames[i]), INITIAL_COLUMN_SIZE, lockContext,
+                                              PagedFileStorage.BUFFER_SIZE, true);
+    }
+  }
+
+  static File getColumnFile(File recordsFile, String fieldName) {
+    return new File(recordsFile.getPath() + "." + fieldName);
+  }
+
+  static boolean exists(File recordsFile, String[] fieldNames) {
+    for (String name : fieldNames) {
+      if (!getColumnFile(recordsFile, name).exists()) return false;
+    }
+    return true;
+  }
+
+  static boolean deleteFiles(File recordsFile, String[] fieldNames) {
+    boolean deleted = true;
+    for (String name : fieldNames) {
+      final File columnFile = getColumnFile(recordsFile, name);
+      deleted &= FileUtil.delete(columnFile);
+      deleted &= FileUtil.delete(new File(columnFile.getPath() + ".len"));
+    }
+    return deleted;
+  }
+
+  private int column(int offset) {
+    final int column = offset >= 0 && offset < myColumnByOffset.length ? myColumnByOffset[offset] : -1;
+    if (column < 0) {
+      throw new IllegalArgumentException("No record field starts at offset " + offset);
+    }
+    return column;
+  }
+
+  private int address(int id, int column) {
+    return id * myFieldSizes[column];
+  }
+
+  public int getInt(int id, int offset) {
+    final int column = column(offset);
+    return myColumns[column].getInt(address(id, column));
+  }
+
+  public void putInt(int id, int offset, int value) {
+    final int column = column(offset);
+    myColumns[column].putInt(address(id, column), value);
+  }
+
+  public long getLong(int id, int offset) {
+    final int column = column(offset);
+    return myColumns[column].getLong(address(id, column));
+  }
+
+  public void putLong(int id, int offset, long value) {
+    final int column = column(offset);
+    myColumns[column].putLong(address(id, column), value);
+  }
+
+  public void cleanRecord(int id) {
+    for (int column = 0; column < myColumns.length; column++) {
+      if (myFieldSizes[column] == 8) {
+        myColumns[column].putLong(address(id, column), 0);
+      }
+      else {
+        myColumns[column].putInt(address(id, column), 0);
+      }
+    }
+  }
+
+  public int getRecordsCount() {
+    // every column grows on record creation, the first one is as good as any other
+    return (int)(myColumns[0].length() / myFieldSizes[0]);
+  }
+
+  @Override
+  public boolean isDirty() {
+    for (ResizeableMappedFile column : myColumns) {
+      if (column.isDirty()) return true;
+    }
+    return false;
+  }
+
+  @Override
+  public void force() {
+    for (ResizeableMappedFile column : myColumns) {
+      column.force();
+    }
+  }
+
+  public void close() {
+    for (ResizeableMappedFile column : myColumns) {
+      column.close();
+    }
+  }
+}
@@ -30,6 +30,7 @@ import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.ArrayUtil;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.IntArrayList;
 import com.intellij.util.io.*;
 import com.intellij.util.io.DataOutputStream;
@@ -49,7 +50,8 @@ import java.util.concurrent.locks.ReentrantReadWriteLock;
 public class FSRecords implements Forceable {
   private static final Logger LOG = Logger.getInstance("#com.intellij.vfs.persistent.FSRecords");
 
-  private static final int VERSION = 17;
+  static final int VERSION = 18;
+  static final int ROWS_ONLY_VERSION = 17; // before the records layout was stored in the header
 
   private static final int PARENT_OFFSET = 0;
   private static final int PARENT_SIZE = 4;
@@ -68,19 +70,29 @@ public class FSRecords implements Forceable {
   private static final int LENGTH_OFFSET = MOD_COUNT_OFFSET + MOD_COUNT_SIZE;
   private static final int LENGTH_SIZE = 8;
 
-  private static final int RECORD_SIZE = LENGTH_OFFSET + LENGTH_SIZE;
+  static final int RECORD_SIZE = LENGTH_OFFSET + LENGTH_SIZE;
+
+  static final String[] FIELD_NAMES = {"parent", "name", "flags", "attr", "content", "timestamp", "modcount", "length"};
+  static final int[] FIELD_OFFSETS = {PARENT_OFFSET, NAME_OFFSET, FLAGS_OFFSET, ATTR_REF_OFFSET, CONTENT_OFFSET,
+    TIMESTAMP_OFFSET, MOD_COUNT_OFFSET, LENGTH_OFFSET};
+  static final int[] FIELD_SIZES = {PARENT_SIZE, NAME_SIZE, FLAGS_SIZE, ATTR_REF_SIZE, CONTENT_SIZE,
+    TIMESTAMP_SIZE, MOD_COUNT_SIZE, LENGTH_SIZE};
+
+  static final int ROWS_LAYOUT = 0;
+  private static final int COLUMNS_LAYOUT = 1;
+  private static final int RECORDS_LAYOUT = SystemProperties.getBooleanProperty("idea.vfs.columnar.records", false) ? COLUMNS_LAYOUT : ROWS_LAYOUT;
 
   private static final byte[] ZEROES = new byte[RECORD_SIZE];
 
-  private static final int HEADER_VERSION_OFFSET = 0;
-  //private static final int HEADER_RESERVED_4BYTES_OFFSET = 4; // reserved
+  static final int HEADER_VERSION_OFFSET = 0;
+  static final int HEADER_LAYOUT_OFFSET = 4;
   private static final int HEADER_GLOBAL_MOD_COUNT_OFFSET = 8;
-  private static final int HEADER_CONNECTION_STATUS_OFFSET = 12;
-  private static final int HEADER_TIMESTAMP_OFFSET = 16;
+  static final int HEADER_CONNECTION_STATUS_OFFSET = 12;
+  static final int HEADER_TIMESTAMP_OFFSET = 16;
   private static final int HEADER_SIZE = HEADER_TIMESTAMP_OFFSET + 8;
 
   private static final int CONNECTED_MAGIC = 0x12ad34e4;
-  private static final int SAFELY_CLOSED_MAGIC = 0x1f2f3f4f;
+  static final int SAFELY_CLOSED_MAGIC = 0x1f2f3f4f;
   private static final int CORRUPTED_MAGIC = 0xabcf7f7f;
 
   private static final String CHILDREN_ATT = "FsRecords.DIRECTORY_CHILDREN";
@@ -110,7 +122,8 @@ public class FSRecords implements Forceable {
     private static PersistentStringEnumerator myNames;
     private static Storage myAttributes;
     private static RefCountingStorage myContents;
-    private static ResizeableMappedFile myRecords;
+    private static ResizeableMappedFile myRecords; // header followed by records in rows layout, header only otherwise
+    @Nullable private static ColumnarRecords myColumns;
     private static final TIntArrayList myFreeRecords = new TIntArrayList();
 
     private static boolean myDirty = false;
@@ -135,10 +148,7 @@ public class FSRecords implements Forceable {
     }
 
     private static void scanFreeRecords() {
-      final int filelength = (int)getRecords().length();
-      LOG.assertTrue(filelength % RECORD_SIZE == 0, "invalid file size: " + filelength);
-
-      int count = filelength / RECORD_SIZE;
+      int count = getRecordsCount();
       for (int n = 2; n < count; n++) {
         if ((getFlags(n) & FREE_RECORD_FLAG) != 0) {
           addFreeRecord(n);
@@ -215,9 +225,19 @@ public class FSRecords implements Forceable {
                                              PagedFileStorage.BUFFER_SIZE, aligned);
 
         if (myRecords.length() == 0) {
-          cleanRecord(0); // Clean header
-          cleanRecord(1); // Create root record
+          myRecords.put(0, ZEROES, 0, RECORD_SIZE); // Clean header
           setCurrentVersion();
+          if (RECORDS_LAYOUT == COLUMNS_LAYOUT) {
+            myColumns = createColumns(recordsFile, storageLockContext);
+            cleanRecord(0);
+          }
+          cleanRecord(1); // Create root record
+        }
+
+        if (getVersion() == ROWS_ONLY_VERSION) {
+          upgradeHeader(myRecords);
+          myAttributes.setVersion(VERSION);
+          myContents.setVersion(VERSION);
         }
 
         if (getVersion() != VERSION) {
@@ -228,6 +248,7 @@ public class FSRecords implements Forceable {
           throw new IOException("FS repository wasn't safely shut down");
         }
         markDirty();
+        openRecordsLayout(recordsFile, storageLockContext);
         scanFreeRecords();
       }
       catch (Exception e) { // IOException, IllegalArgumentException
@@ -283,6 +304,115 @@ public class FSRecords implements Forceable {
       }
     }
 
+    /**
+     * Opens column files when records are stored column-wise and converts the records if the layout stored in the header
+     * differs from the requested one, the other storages refer to record ids only and stay intact.
+     */
+    private static void openRecordsLayout(File recordsFile, PagedFileStorage.StorageLockContext storageLockContext) throws IOException {
+      final int layout = myRecords.getInt(HEADER_LAYOUT_OFFSET);
+      if (layout == RECORDS_LAYOUT) {
+        if (layout == COLUMNS_LAYOUT && myColumns == null) {
+          if (!ColumnarRecords.exists(recordsFile, FIELD_NAMES)) {
+            throw new IOException("FS repository record columns are missing");
+          }
+          myColumns = openColumns(recordsFile, storageLockContext);
+        }
+        return;
+      }
+
+      final long started = System.currentTimeMillis();
+      final int count;
+      if (RECORDS_LAYOUT == COLUMNS_LAYOUT) {
+        count = getRecordsCount();
+        final ColumnarRecords columns = createColumns(recordsFile, storageLockContext);
+        copyRowsToColumns(myRecords, columns, count);
+        columns.force();
+
+        // the header is switched only when the columns are complete, the rows are dropped after that
+        myRecords.putInt(HEADER_LAYOUT_OFFSET, COLUMNS_LAYOUT);
+        myRecords.force();
+        myColumns = columns;
+
+        myRecords.close();
+        truncateToHeader(recordsFile);
+        myRecords = new ResizeableMappedFile(recordsFile, 20 * 1024, storageLockContext, PagedFileStorage.BUFFER_SIZE, true);
+      }
+      else {
+        if (!ColumnarRecords.exists(recordsFile, FIELD_NAMES)) {
+          throw new IOException("FS repository record columns are missing");
+        }
+        final ColumnarRecords columns = openColumns(recordsFile, storageLockContext);
+        myColumns = columns; // records count is taken from the columns
+        count = getRecordsCount();
+        copyColumnsToRows(columns, myRecords, count);
+        // the header is switched only when the rows are complete, the columns are dropped after that
+        myRecords.putInt(HEADER_LAYOUT_OFFSET, ROWS_LAYOUT);
+        myRecords.force();
+        columns.close();
+        myColumns = null;
+        ColumnarRecords.deleteFiles(recordsFile, FIELD_NAMES);
+      }
+
+      LOG.info("Converted " + count + " file records to " + (RECORDS_LAYOUT == COLUMNS_LAYOUT ? "columns" : "rows") +
+               " in " + (System.currentTimeMillis() - started) + " ms");
+    }
+
+    private static void truncateToHeader(File recordsFile) throws IOException {
+      final RandomAccessFile file = new RandomAccessFile(recordsFile, "rw");
+      try {
+        file.setLength(RECORD_SIZE);
+      }
+      finally {
+        file.close();
+      }
+      FileUtil.delete(new File(recordsFile.getPath() + ".len")); // it's restored from the file size
+    }
+
+    private static ColumnarRecords createColumns(File recordsFile, PagedFileStorage.StorageLockContext storageLockContext)
+      throws IOException {
+      if (!ColumnarRecords.deleteFiles(recordsFile, FIELD_NAMES)) { // leftovers of an interrupted conversion
+        throw new IOException("Cannot delete FS repository record columns");
+      }
+      return openColumns(recordsFile, storageLockContext);
+    }
+
+    static ColumnarRecords openColumns(File recordsFile, PagedFileStorage.StorageLockContext storageLockContext) throws IOException {
+      return new ColumnarRecords(recordsFile, storageLockContext, FIELD_NAMES, FIELD_OFFSETS, FIELD_SIZES, RECORD_SIZE);
+    }
+
+    /**
+     * Copies fields of records 1..count-1 from the row layout, record 0 is the header there and is cleaned in the columns.
+     */
+    static void copyRowsToColumns(ResizeableMappedFile rows, ColumnarRecords columns, int count) {
+      columns.cleanRecord(0);
+      for (int id = 1; id < count; id++) {
+        for (int i = 0; i < FIELD_OFFSETS.length; i++) {
+          if (FIELD_SIZES[i] == 8) {
+            columns.putLong(id, FIELD_OFFSETS[i], rows.getLong(getOffset(id, FIELD_OFFSETS[i])));
+          }
+          else {
+            columns.putInt(id, FIELD_OFFSETS[i], rows.getInt(getOffset(id, FIELD_OFFSETS[i])));
+          }
+        }
+      }
+    }
+
+    /**
+     * Copies fields of records 1..count-1 to the row layout, the header in record 0 is left as is.
+     */
+    static void copyColumnsToRows(ColumnarRecords columns, ResizeableMappedFile rows, int count) {
+      for (int id = 1; id < count; id++) {
+        for (int i = 0; i < FIELD_OFFSETS.length; i++) {
+          if (FIELD_SIZES[i] == 8) {
+            rows.putLong(getOffset(id, FIELD_OFFSETS[i]), columns.getLong(id, FIELD_OFFSETS[i]));
+          }
+          else {
+            rows.putInt(getOffset(id, FIELD_OFFSETS[i]), columns.getInt(id, FIELD_OFFSETS[i]));
+          }
+        }
+      }
+    }
+
     private static void invalidateIndex() {
       LOG.info("Marking VFS as corrupted");
       final File indexRoot = PathManager.getIndexRoot();
@@ -355,6 +485,7 @@ public class FSRecords implements Forceable {
           myNames.force();
           myAttributes.force();
           myContents.force();
+          if (myColumns != null) myColumns.force();
           myRecords.force();
         }
       }
@@ -377,6 +508,7 @@ public class FSRecords implements Forceable {
         final boolean contentsFlushed = myContents.flushSome();
         if (attribsFlushed && contentsFlushed) {
           markClean();
+          if (myColumns != null) myColumns.force();
           myRecords.force();
         }
       }
@@ -386,7 +518,8 @@ public class FSRecords implements Forceable {
     }
 
     public static boolean isDirty() {
-      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myRecords.isDirty();
+      return myDirty || myNames.isDirty() || myAttributes.isDirty() || myContents.isDirty() || myRecords.isDirty() ||
+             myColumns != null && myColumns.isDirty();
     }
 
 
@@ -401,8 +534,19 @@ public class FSRecords implements Forceable {
       return myRecords.getLong(HEADER_TIMESTAMP_OFFSET);
     }
 
+    /**
+     * Version 17 header differs only by the layout slot which was reserved then, so just the version and the layout are written:
+     * connection status and timestamp are kept and checked as for any other repository.
+     */
+    static void upgradeHeader(ResizeableMappedFile records) {
+      assert records.getInt(HEADER_VERSION_OFFSET) == ROWS_ONLY_VERSION;
+      records.putInt(HEADER_VERSION_OFFSET, VERSION);
+      records.putInt(HEADER_LAYOUT_OFFSET, ROWS_LAYOUT);
+    }
+
     private static void setCurrentVersion() {
       myRecords.putInt(HEADER_VERSION_OFFSET, VERSION);
+      myRecords.putInt(HEADER_LAYOUT_OFFSET, RECORDS_LAYOUT);
       myRecords.putLong(HEADER_TIMESTAMP_OFFSET, System.currentTimeMillis());
       myAttributes.setVersion(VERSION);
       myContents.setVersion(VERSION);
@@ -410,7 +554,47 @@ public class FSRecords implements Forceable {
     }
 
     static void cleanRecord(int id) {
-      myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      if (myColumns != null) {
+        myColumns.cleanRecord(id);
+      }
+      else {
+        myRecords.put(id * RECORD_SIZE, ZEROES, 0, RECORD_SIZE);
+      }
+    }
+
+    static int getRecordsCount() {
+      if (myColumns != null) {
+        return myColumns.getRecordsCount();
+      }
+      final int filelength = (int)myRecords.length();
+      LOG.assertTrue(filelength % RECORD_SIZE == 0, "invalid file size: " + filelength);
+      return filelength / RECORD_SIZE;
+    }
+
+    static int getRecordInt(int id, int offset) {
+      return myColumns != null ? myColumns.getInt(id, offset) : myRecords.getInt(getOffset(id, offset));
+    }
+
+    static void putRecordInt(int id, int offset, int value) {
+      if (myColumns != null) {
+        myColumns.putInt(id, offset, value);
+      }
+      else {
+        myRecords.putInt(getOffset(id, offset), value);
+      }
+    }
+
+    static long getRecordLong(int id, int offset) {
+      return myColumns != null ? myColumns.getLong(id, offset) : myRecords.getLong(getOffset(id, offset));
+    }
+
+    static void putRecordLong(int id, int offset, long value) {
+      if (myColumns != null) {
+        myColumns.putLong(id, offset, value);
+      }
+      else {
+        myRecords.putLong(getOffset(id, offset), value);
+      }
     }
 
     public static PersistentStringEnumerator getNames() {
@@ -447,6 +631,11 @@ public class FSRecords implements Forceable {
         myRecords.close();
         myRecords = null;
       }
+
+      if (myColumns != null) {
+        myColumns.close();
+        myColumns = null;
+      }
       ourInitialized = false;
     }
 
@@ -535,11 +724,9 @@ public class FSRecords implements Forceable {
 
       final int free = DbConnection.getFreeRecord();
       if (free == 0) {
-        final int filelength = (int)getRecords().length();
-        LOG.assertTrue(filelength % RECORD_SIZE == 0);
-        int newrecord = filelength / RECORD_SIZE;
+        int newrecord = DbConnection.getRecordsCount();
         DbConnection.cleanRecord(newrecord);
-        assert filelength + RECORD_SIZE == getRecords().length();
+        assert newrecord + 1 == DbConnection.getRecordsCount();
         return newrecord;
       }
       else {
@@ -991,7 +1178,7 @@ public class FSRecords implements Forceable {
   public static long getLength(int id) {
     try {
       r.lock();
-      return getRecords().getLong(getOffset(id, LENGTH_OFFSET));
+      return DbConnection.getRecordLong(id, LENGTH_OFFSET);
     }
     finally {
       r.unlock();
@@ -1002,7 +1189,7 @@ public class FSRecords implements Forceable {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, LENGTH_OFFSET), len);
+      DbConnection.putRecordLong(id, LENGTH_OFFSET, len);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1015,7 +1202,7 @@ public class FSRecords implements Forceable {
   public static long getTimestamp(int id) {
     try {
       r.lock();
-      return getRecords().getLong(getOffset(id, TIMESTAMP_OFFSET));
+      return DbConnection.getRecordLong(id, TIMESTAMP_OFFSET);
     }
     finally {
       r.unlock();
@@ -1026,7 +1213,7 @@ public class FSRecords implements Forceable {
     try {
       w.lock();
       incModCount(id);
-      getRecords().putLong(getOffset(id, TIMESTAMP_OFFSET), value);
+      DbConnection.putRecordLong(id, TIMESTAMP_OFFSET, value);
     }
     catch (Throwable e) {
       throw DbConnection.handleError(e);
@@ -1067,14 +1254,14 @@ public class FSRecords implements Forceable {
   }
 
   private static int getRecordInt(int id, int offset) {
-    return getRecords().getInt(getOffset(id, offset));
+    return DbConnection.getRecordInt(id, offset);
   }
 
   private static void putRecordInt(int id, int offset, int value) {
-    getRecords().putInt(getOffset(id, offset), value);
+    DbConnection.putRecordInt(id, offset, value);
   }
 
-  private static int getOffset(int id, int offset) {
+  static int getOffset(int id, int offset) {
     return id * RECORD_SIZE + offset;
   }
 
@@ -1377,9 +1564,7 @@ public class FSRecords implements Forceable {
 
     try {
       r.lock();
-      final int fileLength = (int)getRecords().length();
-      assert fileLength % RECORD_SIZE == 0;
-      int recordCount = fileLength / RECORD_SIZE;
+      int recordCount = DbConnection.getRecordsCount();
 
       IntArrayList usedAttributeRecordIds = new IntArrayList();
       IntArrayList validAttributeIds = new IntArrayList();
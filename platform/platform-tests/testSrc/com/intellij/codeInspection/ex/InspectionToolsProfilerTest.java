@@ -0,0 +1,96 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.codeInspection.ex;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class InspectionToolsProfilerTest {
+  @Test
+  public void testStatisticsAreAccumulatedPerTool() {
+    InspectionToolsProfiler profiler = new InspectionToolsProfiler();
+    profiler.addToolRun("A", stoppedMeasurement(), 2, 1);
+    profiler.addToolRun("A", stoppedMeasurement(), 3, 0);
+    profiler.addToolRun("B", stoppedMeasurement(), 0, 1);
+    profiler.addToolRun("B", stoppedMeasurement(), 1, 1);
+
+    List<InspectionToolsProfiler.ToolStatistics> statistics = profiler.getStatistics(InspectionToolsProfiler.SortKey.NAME);
+    assertEquals(2, statistics.size());
+    assertEquals("A", statistics.get(0).getToolName());
+    assertEquals(5, statistics.get(0).getProblemsCount());
+    assertEquals(1, statistics.get(0).getFilesCount());
+    assertEquals("B", statistics.get(1).getToolName());
+    assertEquals(1, statistics.get(1).getProblemsCount());
+    assertEquals(2, statistics.get(1).getFilesCount());
+
+    assertEquals("A", profiler.getStatistics(InspectionToolsProfiler.SortKey.PROBLEMS).get(0).getToolName());
+    assertEquals("B", profiler.getStatistics(InspectionToolsProfiler.SortKey.FILES).get(0).getToolName());
+
+    profiler.reset();
+    assertTrue(profiler.getStatistics(InspectionToolsProfiler.SortKey.CPU_TIME).isEmpty());
+  }
+
+  @Test
+  public void testCsv() throws Exception {
+    InspectionToolsProfiler profiler = new InspectionToolsProfiler();
+    profiler.addToolRun("A", stoppedMeasurement(), 2, 1);
+    StringWriter writer = new StringWriter();
+    profiler.writeCsv(writer, InspectionToolsProfiler.SortKey.CPU_TIME);
+
+    String[] lines = writer.toString().split("\n");
+    assertEquals(2, lines.length);
+    assertEquals("tool,cpu_time_ns,allocated_bytes,files,problems", lines[0]);
+    assertTrue(lines[1], lines[1].startsWith("A,"));
+    assertTrue(lines[1], lines[1].endsWith(",1,2"));
+  }
+
+  @Test
+  public void testStatisticsSince() {
+    InspectionToolsProfiler profiler = new InspectionToolsProfiler();
+    profiler.addToolRun("A", stoppedMeasurement(), 2, 1);
+    profiler.addToolRun("B", stoppedMeasurement(), 1, 1);
+    List<InspectionToolsProfiler.ToolStatistics> before = profiler.getStatistics(InspectionToolsProfiler.SortKey.NAME);
+    profiler.addToolRun("A", stoppedMeasurement(), 3, 2);
+    profiler.addToolRun("C", stoppedMeasurement(), 1, 1);
+
+    List<InspectionToolsProfiler.ToolStatistics> since = profiler.getStatisticsSince(before, InspectionToolsProfiler.SortKey.NAME);
+    assertEquals(2, since.size());
+    assertEquals("A", since.get(0).getToolName());
+    assertEquals(3, since.get(0).getProblemsCount());
+    assertEquals(2, since.get(0).getFilesCount());
+    assertEquals("C", since.get(1).getToolName());
+    assertEquals(1, since.get(1).getProblemsCount());
+    assertEquals(5, profiler.getStatistics(InspectionToolsProfiler.SortKey.NAME).get(0).getProblemsCount());
+  }
+
+  @Test
+  public void testAllocatedBytes() {
+    long before = InspectionToolsProfiler.currentThreadAllocatedBytes();
+    assertTrue(before >= 0);
+    assertTrue(InspectionToolsProfiler.currentThreadAllocatedBytes() >= before);
+  }
+
+  private static InspectionToolsProfiler.Measurement stoppedMeasurement() {
+    InspectionToolsProfiler.Measurement measurement = InspectionToolsProfiler.startMeasurement();
+    measurement.stop();
+    return measurement;
+  }
+}
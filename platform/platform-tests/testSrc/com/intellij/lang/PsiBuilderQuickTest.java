@@ -19,6 +19,8 @@ import com.intellij.lang.impl.PsiBuilderImpl;
 import com.intellij.lexer.Lexer;
 import com.intellij.lexer.LexerBase;
 import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.Ref;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.psi.FileViewProvider;
 import com.intellij.psi.PsiElement;
 import com.intellij.psi.PsiFile;
@@ -541,6 +543,70 @@ public class PsiBuilderQuickTest extends LightPlatformTestCase {
            "    PsiElement(OTHER)('}')\n");
   }
 
+  public void testLexemeBuffersAreReusedAtTheSameThread() {
+    String text = StringUtil.repeat("ab ", 1000);
+    buildTree(createBuilder(text));
+    int cachedLength = PsiBuilderImpl.getCachedLexemeBuffersLength();
+    assertTrue(String.valueOf(cachedLength), cachedLength >= text.length());
+
+    PsiBuilderImpl builder = createBuilder(text);
+    assertEquals(0, PsiBuilderImpl.getCachedLexemeBuffersLength()); // taken by the builder
+    buildTree(builder);
+    assertEquals(cachedLength, PsiBuilderImpl.getCachedLexemeBuffersLength()); // returned back, nothing new is allocated
+  }
+
+  public void testTreeBuiltAtAnotherThread() throws InterruptedException {
+    final String text = StringUtil.repeat("ab ", 1000);
+    String expected = DebugUtil.nodeTreeToString(buildTree(createBuilder(text)), false);
+
+    final PsiBuilderImpl builder = createBuilder(text);
+    final Ref<ASTNode> root = Ref.create();
+    Thread thread = new Thread("PsiBuilderQuickTest") {
+      @Override
+      public void run() {
+        root.set(buildTree(builder));
+      }
+    };
+    thread.start();
+    thread.join();
+    assertEquals(expected, DebugUtil.nodeTreeToString(root.get(), false));
+
+    // the other thread has kept the buffers, the builders of this thread don't share them
+    assertEquals(0, PsiBuilderImpl.getCachedLexemeBuffersLength());
+    assertEquals(expected, DebugUtil.nodeTreeToString(buildTree(createBuilder(text)), false));
+  }
+
+  public void testPooledMarkersOfCollapsedElementsAreReset() {
+    PsiBuilder collapsing = createBuilder("ab");
+    PsiBuilder.Marker rootMarker = collapsing.mark();
+    while (!collapsing.eof()) {
+      PsiBuilder.Marker marker = collapsing.mark();
+      collapsing.advanceLexer();
+      marker.collapse(COLLAPSED);
+    }
+    rootMarker.done(ROOT);
+    collapsing.getTreeBuilt();
+
+    // the markers recycled by the first builder are reused by the second one at the same thread
+    assertEquals("Element(ROOT)\n" +
+                 "  Element(OTHER)\n" +
+                 "    PsiElement(LETTER)('a')\n" +
+                 "  Element(OTHER)\n" +
+                 "    PsiElement(LETTER)('b')\n",
+                 DebugUtil.nodeTreeToString(buildTree(createBuilder("ab")), false));
+  }
+
+  private static ASTNode buildTree(PsiBuilder builder) {
+    PsiBuilder.Marker rootMarker = builder.mark();
+    while (!builder.eof()) {
+      PsiBuilder.Marker marker = builder.mark();
+      builder.advanceLexer();
+      marker.done(OTHER);
+    }
+    rootMarker.done(ROOT);
+    return builder.getTreeBuilt();
+  }
+
   @SuppressWarnings("ConstantConditions")
   private static PsiBuilderImpl createBuilder(CharSequence text) {
     ParserDefinition parserDefinition = new ParserDefinition() {
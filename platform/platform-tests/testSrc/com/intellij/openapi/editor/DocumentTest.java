@@ -4,6 +4,7 @@ import com.intellij.openapi.command.WriteCommandAction;
 import com.intellij.openapi.editor.event.DocumentAdapter;
 import com.intellij.openapi.editor.event.DocumentEvent;
 import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.editor.impl.DocumentSnapshot;
 import com.intellij.testFramework.LightPlatformTestCase;
 
 public class DocumentTest extends LightPlatformTestCase {
@@ -56,4 +57,42 @@ public class DocumentTest extends LightPlatformTestCase {
       }
     }.execute().throwException();
   }
+
+  public void testSnapshotIsNotAffectedByModifications() throws Exception {
+    new WriteCommandAction.Simple(getProject()) {
+      @Override
+      protected void run() throws Throwable {
+        final DocumentImpl doc = new DocumentImpl("0123456789");
+        doc.insertString(10, "abc");
+        DocumentSnapshot snapshot = doc.getSnapshot();
+        assertTrue(snapshot.isUpToDate(doc));
+
+        doc.insertString(0, "xy");
+        assertEquals("0123456789abc", snapshot.getText().toString());
+        assertFalse(snapshot.isUpToDate(doc));
+
+        snapshot = doc.getSnapshot();
+        doc.deleteString(0, 5);
+        assertEquals("xy0123456789abc", snapshot.getText().toString());
+
+        snapshot = doc.getSnapshot();
+        doc.replaceString(0, 3, "Z");
+        assertEquals("3456789abc", snapshot.getText().toString());
+        assertEquals("Z6789abc", doc.getText());
+
+        DocumentSnapshot bulkSnapshot;
+        doc.setInBulkUpdate(true);
+        try {
+          doc.insertString(1, "_");
+          bulkSnapshot = doc.getSnapshot();
+          doc.deleteString(0, 1);
+        }
+        finally {
+          doc.setInBulkUpdate(false);
+        }
+        assertEquals("Z_6789abc", bulkSnapshot.getText().toString());
+        assertEquals("_6789abc", doc.getText());
+      }
+    }.execute().throwException();
+  }
 }
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import com.intellij.lang.Language;
+import com.intellij.lexer.Lexer;
+import com.intellij.lexer.LexerBase;
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.application.ModalityState;
+import com.intellij.openapi.editor.Document;
+import com.intellij.openapi.editor.colors.TextAttributesKey;
+import com.intellij.openapi.editor.colors.impl.DefaultColorsScheme;
+import com.intellij.openapi.editor.highlighter.HighlighterClient;
+import com.intellij.openapi.editor.highlighter.HighlighterIterator;
+import com.intellij.openapi.editor.impl.DocumentImpl;
+import com.intellij.openapi.fileTypes.SyntaxHighlighterBase;
+import com.intellij.openapi.project.Project;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.psi.tree.IElementType;
+import com.intellij.testFramework.UsefulTestCase;
+import org.jetbrains.annotations.NotNull;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Future;
+
+public class LexerEditorHighlighterTest extends UsefulTestCase {
+  private static final IElementType QUOTE = new IElementType("QUOTE", Language.ANY);
+  private static final IElementType TEXT = new IElementType("TEXT", Language.ANY);
+  private static final IElementType STRING = new IElementType("STRING", Language.ANY);
+
+  // long enough to be relexed in background
+  private static final String TEXT_WITH_STRINGS = StringUtil.repeat("\"abc\" def\n", 110000);
+
+  // pooled thread and EDT tasks are run by the test one by one
+  private final List<Runnable> myTasks = new ArrayList<Runnable>();
+  private DocumentImpl myDocument;
+  private LexerEditorHighlighter myHighlighter;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationManager.setApplication(new MockApplication(getTestRootDisposable()) {
+      @NotNull
+      @Override
+      public Future<?> executeOnPooledThread(@NotNull Runnable action) {
+        myTasks.add(action);
+        return null;
+      }
+
+      @Override
+      public void invokeLater(@NotNull Runnable runnable, @NotNull ModalityState state) {
+        myTasks.add(runnable);
+      }
+    }, getTestRootDisposable());
+
+    myDocument = new DocumentImpl(TEXT_WITH_STRINGS, true);
+    myHighlighter = createHighlighter(myDocument);
+    myDocument.addDocumentListener(myHighlighter);
+  }
+
+  public void testTailIsRelexedInBackground() {
+    myDocument.insertString(0, "\"");
+    assertFalse(myTasks.isEmpty());
+    assertFalse(dumpTokens(createHighlighter(myDocument)).equals(dumpTokens(myHighlighter))); // the tail is stale so far
+    runTasks(Integer.MAX_VALUE);
+    assertTokensRelexed();
+  }
+
+  public void testChangeInStaleTokensRestartsRelexing() {
+    myDocument.insertString(0, "\"");
+    myDocument.insertString(myDocument.getTextLength() / 2, "\"x");
+    runTasks(Integer.MAX_VALUE);
+    assertTokensRelexed();
+  }
+
+  public void testChangeBeforeRelexedTokensAreAppliedDropsThem() {
+    myDocument.insertString(0, "\"");
+    runTasks(1); // the text is relexed at the pooled thread, the tokens are not applied yet
+    myDocument.insertString(10, "\"");
+    runTasks(Integer.MAX_VALUE);
+    assertTokensRelexed();
+  }
+
+  private void runTasks(int limit) {
+    for (int i = 0; i < limit && !myTasks.isEmpty(); i++) {
+      myTasks.remove(0).run();
+    }
+  }
+
+  private void assertTokensRelexed() {
+    assertEquals(dumpTokens(createHighlighter(myDocument)), dumpTokens(myHighlighter));
+  }
+
+  private static LexerEditorHighlighter createHighlighter(final Document document) {
+    LexerEditorHighlighter highlighter = new LexerEditorHighlighter(new QuoteHighlighter(), new DefaultColorsScheme(null));
+    highlighter.setEditor(new HighlighterClient() {
+      @Override
+      public Project getProject() {
+        return null;
+      }
+
+      @Override
+      public void repaint(int start, int end) {
+      }
+
+      @Override
+      public Document getDocument() {
+        return document;
+      }
+    });
+    highlighter.setText(document.getCharsSequence());
+    return highlighter;
+  }
+
+  private static String dumpTokens(LexerEditorHighlighter highlighter) {
+    StringBuilder result = new StringBuilder();
+    for (HighlighterIterator iterator = highlighter.createIterator(0); !iterator.atEnd(); iterator.advance()) {
+      result.append(iterator.getStart()).append('-').append(iterator.getEnd()).append(iterator.getTokenType()).append('\n');
+    }
+    return result.toString();
+  }
+
+  private static class QuoteHighlighter extends SyntaxHighlighterBase {
+    @NotNull
+    @Override
+    public Lexer getHighlightingLexer() {
+      return new QuoteLexer();
+    }
+
+    @NotNull
+    @Override
+    public TextAttributesKey[] getTokenHighlights(IElementType tokenType) {
+      return EMPTY;
+    }
+  }
+
+  // the text between quotes is a string, so a quote changes the type of all the tokens after it
+  private static class QuoteLexer extends LexerBase {
+    private CharSequence myBuffer;
+    private int myBufferEnd;
+    private int myTokenStart;
+    private int myTokenEnd;
+    private int myState;
+
+    @Override
+    public void start(@NotNull CharSequence buffer, int startOffset, int endOffset, int initialState) {
+      myBuffer = buffer;
+      myBufferEnd = endOffset;
+      myState = initialState;
+      myTokenStart = startOffset;
+      myTokenEnd = findTokenEnd(startOffset);
+    }
+
+    private int findTokenEnd(int start) {
+      if (start < myBufferEnd && myBuffer.charAt(start) == '"') return start + 1;
+      int end = start;
+      while (end < myBufferEnd && myBuffer.charAt(end) != '"') end++;
+      return end;
+    }
+
+    @Override
+    public int getState() {
+      return myState;
+    }
+
+    @Override
+    public IElementType getTokenType() {
+      if (myTokenStart >= myBufferEnd) return null;
+      if (myBuffer.charAt(myTokenStart) == '"') return QUOTE;
+      return myState == 0 ? TEXT : STRING;
+    }
+
+    @Override
+    public int getTokenStart() {
+      return myTokenStart;
+    }
+
+    @Override
+    public int getTokenEnd() {
+      return myTokenEnd;
+    }
+
+    @Override
+    public void advance() {
+      if (myBuffer.charAt(myTokenStart) == '"') {
+        myState = 1 - myState;
+      }
+      myTokenStart = myTokenEnd;
+      myTokenEnd = findTokenEnd(myTokenStart);
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getBufferSequence() {
+      return myBuffer;
+    }
+
+    @Override
+    public int getBufferEnd() {
+      return myBufferEnd;
+    }
+  }
+}
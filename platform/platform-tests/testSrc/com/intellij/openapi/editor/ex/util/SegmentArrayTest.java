@@ -0,0 +1,99 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.ex.util;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class SegmentArrayTest {
+
+  @Test
+  public void sequentialFill() {
+    SegmentArrayWithData segments = new SegmentArrayWithData();
+    int count = SegmentArray.MAX_CHUNK_SIZE * 5 + 3;
+    for (int i = 0; i < count; i++) {
+      segments.setElementAt(i, i * 2, i * 2 + 2, i % 100);
+    }
+    assertEquals(count, segments.getSegmentCount());
+    assertEquals(count * 2, segments.getLastValidOffset());
+    for (int i = 0; i < count; i++) {
+      assertEquals(i, segments.findSegmentIndex(i * 2));
+      assertEquals(i, segments.findSegmentIndex(i * 2 + 1));
+      assertEquals(i % 100, segments.getSegmentData(i));
+    }
+  }
+
+  @Test
+  public void randomModificationsInTheMiddle() {
+    Random random = new Random(42);
+    SegmentArrayWithData segments = new SegmentArrayWithData();
+    List<int[]> expected = new ArrayList<int[]>();
+    for (int i = 0; i < SegmentArray.MAX_CHUNK_SIZE * 3; i++) {
+      segments.setElementAt(i, i, i + 1, i % 50);
+      expected.add(new int[]{i, i + 1, i % 50});
+    }
+
+    for (int iteration = 0; iteration < 300; iteration++) {
+      // Replace random range of tokens by tokens of different length, like the lexer highlighter does on document change.
+      int startIndex = random.nextInt(expected.size());
+      int endIndex = Math.min(expected.size(), startIndex + random.nextInt(SegmentArray.MAX_CHUNK_SIZE / 2));
+      int startOffset = expected.get(startIndex)[0];
+      int oldEndOffset = endIndex < expected.size() ? expected.get(endIndex)[0] : expected.get(expected.size() - 1)[1];
+      int newCount = random.nextInt(SegmentArray.MAX_CHUNK_SIZE);
+      if (endIndex == expected.size() && newCount == 0) {
+        newCount = 1;
+      }
+
+      SegmentArrayWithData newSegments = new SegmentArrayWithData();
+      List<int[]> newExpected = new ArrayList<int[]>();
+      for (int i = 0; i < newCount; i++) {
+        int data = random.nextInt(50);
+        newSegments.setElementAt(i, startOffset + i * 2, startOffset + i * 2 + 2, data);
+        newExpected.add(new int[]{startOffset + i * 2, startOffset + i * 2 + 2, data});
+      }
+      int shift = newCount * 2 - (oldEndOffset - startOffset);
+
+      segments.shiftSegments(endIndex, shift);
+      segments.replace(startIndex, endIndex, newSegments);
+      for (int i = endIndex; i < expected.size(); i++) {
+        int[] segment = expected.get(i);
+        segment[0] += shift;
+        segment[1] += shift;
+      }
+      expected.subList(startIndex, endIndex).clear();
+      expected.addAll(startIndex, newExpected);
+
+      checkSegments(expected, segments);
+    }
+  }
+
+  private static void checkSegments(List<int[]> expected, SegmentArrayWithData segments) {
+    assertEquals(expected.size(), segments.getSegmentCount());
+    for (int i = 0; i < expected.size(); i++) {
+      int[] segment = expected.get(i);
+      assertEquals(segment[0], segments.getSegmentStart(i));
+      assertEquals(segment[1], segments.getSegmentEnd(i));
+      assertEquals(segment[2], segments.getSegmentData(i));
+      assertEquals(i, segments.findSegmentIndex(segment[0]));
+    }
+    assertEquals(expected.get(expected.size() - 1)[1], segments.getLastValidOffset());
+  }
+}
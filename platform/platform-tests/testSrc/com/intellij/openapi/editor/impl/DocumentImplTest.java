@@ -0,0 +1,130 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.editor.event.DocumentAdapter;
+import com.intellij.openapi.editor.event.DocumentEvent;
+import com.intellij.testFramework.UsefulTestCase;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+public class DocumentImplTest extends UsefulTestCase {
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationManager.setApplication(new MockApplication(getTestRootDisposable()), getTestRootDisposable());
+  }
+
+  public void testRandomEditsInArrayMode() {
+    doTestRandomEdits(false);
+  }
+
+  public void testRandomEditsInImmutableTextMode() {
+    doTestRandomEdits(true);
+  }
+
+  public void testImmutableTextModeKeepsNoRawChars() {
+    DocumentImpl document = new DocumentImpl("abc\ndef", true, true);
+    assertFalse(document.hasRawChars());
+    assertEquals("abc\ndef", new String(document.getRawChars()));
+    assertTrue(new DocumentImpl("abc\ndef", true, false).hasRawChars());
+  }
+
+  public void testImmutableTextModeSnapshotAndEvents() {
+    final DocumentImpl document = new DocumentImpl("0123456789", true, true);
+    final List<String> events = new ArrayList<String>();
+    document.addDocumentListener(new DocumentAdapter() {
+      @Override
+      public void documentChanged(DocumentEvent e) {
+        events.add(e.getOffset() + ":" + e.getOldFragment() + "->" + e.getNewFragment() + ":" + document.getText());
+      }
+    });
+
+    DocumentSnapshot snapshot = document.getSnapshot();
+    document.insertString(10, "\nabc");
+    document.replaceString(0, 2, "x");
+    document.deleteString(1, 4);
+    assertEquals("0123456789", snapshot.getText().toString());
+    assertFalse(snapshot.isUpToDate(document));
+    assertTrue(document.getSnapshot().isUpToDate(document));
+    assertOrderedEquals(events, "10:->\nabc:0123456789\nabc", "0:01->x:x23456789\nabc", "1:234->:x56789\nabc");
+    assertEquals(2, document.getLineCount());
+    assertEquals(7, document.getLineStartOffset(1));
+  }
+
+  public void testCopiedSnapshotIsNotChangedByModifications() {
+    DocumentImpl document = new DocumentImpl("0123456789", true);
+    DocumentSnapshot snapshot = DocumentSnapshot.copyOf(document);
+    document.replaceString(0, 5, "x");
+    document.insertString(0, "y");
+    assertEquals("0123456789", snapshot.getText().toString());
+    assertFalse(snapshot.isUpToDate(document));
+    assertTrue(DocumentSnapshot.copyOf(document).isUpToDate(document));
+    assertEquals("yx56789", DocumentSnapshot.copyOf(document).getText().toString());
+  }
+
+  private static void doTestRandomEdits(boolean useImmutableText) {
+    Random random = new Random(42);
+    StringBuilder expected = new StringBuilder("first line\nsecond line\n");
+    DocumentImpl document = new DocumentImpl(expected, true, useImmutableText);
+    for (int i = 0; i < 2000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(20));
+      String text = random.nextInt(5) == 0 ? "\n" : "text" + i;
+      switch (random.nextInt(3)) {
+        case 0:
+          document.insertString(start, text);
+          expected.insert(start, text);
+          break;
+        case 1:
+          document.deleteString(start, end);
+          expected.delete(start, end);
+          break;
+        default:
+          document.replaceString(start, end, text);
+          expected.replace(start, end, text);
+      }
+      if (i % 100 == 0) {
+        assertDocumentText(expected.toString(), document);
+      }
+    }
+    assertDocumentText(expected.toString(), document);
+  }
+
+  private static void assertDocumentText(String expected, DocumentImpl document) {
+    assertEquals(expected, document.getText());
+    assertEquals(expected, document.getCharsSequence().toString());
+    assertEquals(expected, new String(document.getRawChars(), 0, document.getTextLength()));
+    assertEquals(expected.length(), document.getTextLength());
+
+    int lines = 0;
+    int lineStart = 0;
+    for (int i = 0; i <= expected.length(); i++) {
+      if (i == expected.length() || expected.charAt(i) == '\n') {
+        assertEquals(lineStart, document.getLineStartOffset(lines));
+        assertEquals(i, document.getLineEndOffset(lines));
+        assertEquals(lines, document.getLineNumber(lineStart));
+        lines++;
+        lineStart = i + 1;
+      }
+    }
+    assertEquals(lines, document.getLineCount());
+  }
+}
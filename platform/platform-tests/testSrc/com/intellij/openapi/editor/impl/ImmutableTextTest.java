@@ -0,0 +1,108 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.util.text.StringUtil;
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ImmutableTextTest {
+  @Test
+  public void valueOfLongText() {
+    String text = randomText(new Random(1), 100000);
+    ImmutableText immutableText = ImmutableText.valueOf(text);
+    assertEquals(text, immutableText.toString());
+    assertEquals(text.length(), immutableText.length());
+    for (int i = 0; i < text.length(); i += 97) {
+      assertEquals(text.charAt(i), immutableText.charAt(i));
+    }
+  }
+
+  @Test
+  public void editsDoNotChangeOriginal() {
+    ImmutableText original = ImmutableText.valueOf("0123456789");
+    ImmutableText inserted = original.insert(5, "abc");
+    ImmutableText deleted = original.delete(2, 4);
+    ImmutableText replaced = original.replace(0, 10, "x");
+
+    assertEquals("0123456789", original.toString());
+    assertEquals("01234abc56789", inserted.toString());
+    assertEquals("01456789", deleted.toString());
+    assertEquals("x", replaced.toString());
+    assertEquals("4abc5", inserted.subSequence(4, 9).toString());
+  }
+
+  @Test
+  public void randomEditsMatchStringBuilder() {
+    Random random = new Random(42);
+    StringBuilder expected = new StringBuilder(randomText(random, 5000));
+    ImmutableText text = ImmutableText.valueOf(expected);
+    for (int i = 0; i < 20000; i++) {
+      int start = random.nextInt(expected.length() + 1);
+      int end = Math.min(expected.length(), start + random.nextInt(100));
+      switch (random.nextInt(3)) {
+        case 0:
+          String toInsert = randomText(random, random.nextInt(i % 100 == 0 ? 3000 : 10));
+          expected.insert(start, toInsert);
+          text = text.insert(start, toInsert);
+          break;
+        case 1:
+          expected.delete(start, end);
+          text = text.delete(start, end);
+          break;
+        default:
+          String replacement = randomText(random, random.nextInt(20));
+          expected.replace(start, end, replacement);
+          text = text.replace(start, end, replacement);
+      }
+      assertEquals(expected.length(), text.length());
+      if (expected.length() > 0) {
+        int offset = random.nextInt(expected.length());
+        assertEquals(expected.charAt(offset), text.charAt(offset));
+      }
+    }
+    assertEquals(expected.toString(), text.toString());
+    assertTrue(StringUtil.equals(expected, text));
+    char[] chars = new char[text.length()];
+    text.getChars(chars, 0);
+    assertEquals(expected.toString(), new String(chars));
+    assertTrue("depth " + text.getDepth(), text.getDepth() < 4 * 32 - Integer.numberOfLeadingZeros(text.length()));
+  }
+
+  @Test
+  public void typingIntoHugeText() {
+    ImmutableText text = ImmutableText.valueOf(randomText(new Random(7), 20 * 1024 * 1024));
+    ImmutableText snapshot = text;
+    int offset = text.length() / 2;
+    for (int i = 0; i < 10000; i++) {
+      text = text.insert(offset++, "a");
+    }
+    assertEquals(snapshot.length() + 10000, text.length());
+    assertEquals('a', text.charAt(offset - 1));
+    assertEquals(snapshot.charAt(offset - 10000), text.charAt(offset));
+  }
+
+  private static String randomText(Random random, int length) {
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append((char)('a' + random.nextInt(26)));
+    }
+    return builder.toString();
+  }
+}
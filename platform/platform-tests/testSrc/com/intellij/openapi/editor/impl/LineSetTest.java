@@ -0,0 +1,171 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.mock.MockDocument;
+import com.intellij.openapi.editor.impl.event.DocumentEventImpl;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import org.jetbrains.annotations.NotNull;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class LineSetTest {
+  @Test
+  public void randomEditsKeepLinesInSync() {
+    Random random = new Random(13);
+    LinesDocument document = new LinesDocument(randomText(random, 20000));
+    for (int i = 0; i < 3000; i++) {
+      int length = document.getTextLength();
+      int start = random.nextInt(length + 1);
+      int end = Math.min(length, start + (random.nextInt(4) == 0 ? random.nextInt(5000) : random.nextInt(10)));
+      document.replaceString(start, end, randomText(random, random.nextInt(3) == 0 ? random.nextInt(3000) : random.nextInt(5)));
+      if (i % 100 == 0) {
+        assertSameLines(document);
+      }
+    }
+    assertSameLines(document);
+  }
+
+  @Test
+  public void lineSeparatorsAtEdges() {
+    LinesDocument document = new LinesDocument("a\nb");
+    document.replaceString(1, 1, "\n");
+    assertSameLines(document);
+    document.replaceString(0, document.getTextLength(), "\n\n");
+    assertSameLines(document);
+    document.replaceString(2, 2, "x");
+    assertSameLines(document);
+    document.replaceString(0, document.getTextLength(), "");
+    assertSameLines(document);
+  }
+
+  @Test
+  public void lineBreaksAtOnePlace() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 3000; i++) {
+      text.append("line ").append(i).append('\n');
+    }
+    LinesDocument document = new LinesDocument(text);
+    int offset = document.myLineSet.getLineStart(1500);
+    // splits a block again and again, then empties it
+    for (int i = 0; i < 2000; i++) {
+      document.replaceString(offset, offset, i % 2 == 0 ? "\n" : "\n\n");
+      if (i % 100 == 0) {
+        assertSameLines(document);
+      }
+    }
+    assertSameLines(document);
+    for (int i = 0; i < 1500; i++) {
+      document.replaceString(offset, offset + 2, "");
+      if (i % 100 == 0) {
+        assertSameLines(document);
+      }
+    }
+    assertSameLines(document);
+  }
+
+  @Test
+  public void typingIntoMillionLinesDocument() {
+    StringBuilder text = new StringBuilder();
+    for (int i = 0; i < 1000000; i++) {
+      text.append("    int field").append(i).append(" = ").append(i).append(";\n");
+    }
+    final LinesDocument document = new LinesDocument(text);
+    final Random random = new Random(1);
+    final int keystrokes = 20000;
+    final long[] latencies = new long[keystrokes];
+    PlatformTestUtil.startPerformanceTest("typing into 1M lines document", 1000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Throwable {
+        for (int i = 0; i < keystrokes; i++) {
+          int offset = document.myLineSet.getLineStart(random.nextInt(document.myLineSet.getLineCount()));
+          document.replaceString(offset, offset, i % 50 == 0 ? "\n" : "x");
+          latencies[i] = document.myLastUpdateNanos;
+        }
+      }
+    }).cpuBound().assertTiming();
+    Arrays.sort(latencies);
+    // the timing above covers the whole typing, the per keystroke latency is only reported: wall-clock bounds are flaky
+    System.out.println("LineSet update per keystroke: median " + latencies[keystrokes / 2] + " ns, 99th percentile " +
+                       latencies[keystrokes * 99 / 100] + " ns");
+    assertSameLines(document);
+  }
+
+  private static void assertSameLines(@NotNull LinesDocument document) {
+    LineSet expected = new LineSet();
+    expected.documentCreated(new MockDocument(document.getCharsSequence().toString()));
+    LineSet actual = document.myLineSet;
+    assertEquals(expected.getLineCount(), actual.getLineCount());
+    for (int i = 0; i < expected.getLineCount(); i++) {
+      assertEquals(expected.getLineStart(i), actual.getLineStart(i));
+      assertEquals(expected.getLineEnd(i), actual.getLineEnd(i));
+      assertEquals(expected.getSeparatorLength(i), actual.getSeparatorLength(i));
+      assertEquals(i, actual.findLineIndex(actual.getLineStart(i)));
+    }
+  }
+
+  private static String randomText(@NotNull Random random, int length) {
+    String chars = "ab \t\n\n";
+    StringBuilder builder = new StringBuilder(length);
+    for (int i = 0; i < length; i++) {
+      builder.append(chars.charAt(random.nextInt(chars.length())));
+    }
+    return builder.toString();
+  }
+
+  private static class LinesDocument extends MockDocument {
+    private ImmutableText myText;
+    private final LineSet myLineSet = new LineSet();
+    private long myLastUpdateNanos;
+
+    private LinesDocument(@NotNull CharSequence text) {
+      myText = ImmutableText.valueOf(text);
+      myLineSet.documentCreated(this);
+    }
+
+    @NotNull
+    @Override
+    public CharSequence getCharsSequence() {
+      return myText;
+    }
+
+    @Override
+    public int getTextLength() {
+      return myText.length();
+    }
+
+    @Override
+    public int getLineNumber(int offset) {
+      return myLineSet.findLineIndex(offset);
+    }
+
+    @Override
+    public void replaceString(int startOffset, int endOffset, @NotNull CharSequence s) {
+      CharSequence oldString = myText.subSequence(startOffset, endOffset);
+      DocumentEventImpl event = new DocumentEventImpl(this, startOffset, oldString, s, 0, false);
+      event.getStartOldIndex(); // computed against the lines before the change, as DocumentImpl does
+      myText = myText.replace(startOffset, endOffset, s);
+      long start = System.nanoTime();
+      myLineSet.changedUpdate(event);
+      myLastUpdateNanos = System.nanoTime() - start;
+    }
+  }
+}
@@ -27,6 +27,7 @@ import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
@@ -975,6 +976,46 @@ public class RangeMarkerTest extends LightPlatformTestCase {
     assertEquals(2, ((DocumentImpl)document).getRangeMarkersSize());
     assertEquals(2, ((DocumentImpl)document).getRangeMarkersNodeSize());
   }
+
+  public void testBulkAddIntervalsBuildsBalancedTree() throws Exception {
+    DocumentImpl document = (DocumentImpl)EditorFactory.getInstance().createDocument(StringUtil.repeat("x", 1000));
+    RangeMarkerTree<RangeMarkerEx> tree = new RangeMarkerTree<RangeMarkerEx>(document);
+    try {
+      int n = 500;
+      int[] starts = new int[n];
+      int[] ends = new int[n];
+      List<RangeMarkerEx> markers = new ArrayList<RangeMarkerEx>();
+      for (int i = 0; i < n; i++) {
+        starts[i] = i / 2 * 2; // each range is added twice, equal ranges share the node
+        ends[i] = starts[i] + 10;
+        markers.add(new RangeMarkerImpl(document, starts[i], ends[i], false));
+      }
+      tree.addIntervals(markers, starts, ends, false, false, 0);
+
+      assertEquals(n, tree.size());
+      assertEquals(n / 2, tree.nodeSize());
+      assertEquals(8, tree.maxHeight());
+      for (int i = 0; i < n; i++) {
+        assertTrue(markers.get(i).isValid());
+        assertEquals(starts[i], markers.get(i).getStartOffset());
+        assertEquals(ends[i], markers.get(i).getEndOffset());
+      }
+
+      document.insertString(0, "yy");
+      for (int i = 0; i < n; i++) {
+        assertEquals(starts[i] + 2, markers.get(i).getStartOffset());
+      }
+
+      RangeMarkerEx added = new RangeMarkerImpl(document, 1, 3, false);
+      tree.addIntervals(Collections.singletonList(added), new int[]{1}, new int[]{3}, false, false, 0);
+      assertEquals(n + 1, tree.size());
+      assertEquals(1, added.getStartOffset());
+    }
+    finally {
+      tree.dispose();
+    }
+  }
+
   public void testRangeHighlightersRecreateBug() throws Exception {
     Document document = EditorFactory.getInstance().createDocument("[xxxxxxxxxxxxxx]");
 
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.editor.impl;
+
+import com.intellij.openapi.editor.ex.util.EditorUtil;
+import com.intellij.openapi.util.text.StringUtil;
+import com.intellij.testFramework.LightPlatformCodeInsightTestCase;
+
+import java.awt.*;
+
+public class TextFragmentLayoutCacheTest extends LightPlatformCodeInsightTestCase {
+  private static final char[] TEXT = "abc def\nxyz".toCharArray();
+
+  private final TextFragmentLayoutCache myCache = new TextFragmentLayoutCache();
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    configureFromFileText(getTestName(false) + ".txt", new String(TEXT));
+  }
+
+  public void testLayoutIsReusedAndMeasuresSymbols() {
+    TextFragmentLayoutCache.FragmentLayout layout = getLayout(0, 7);
+    assertSame(layout, getLayout(0, 7));
+
+    int width = 0;
+    for (int i = 0; i < 7; i++) {
+      assertEquals(width, layout.x[i]);
+      width += EditorUtil.fontForChar(TEXT[i], Font.PLAIN, myEditor).charWidth(TEXT[i]);
+    }
+    assertEquals(width, layout.getWidth());
+    assertEquals(7, layout.runStarts[layout.getRunsNumber()]);
+
+    boolean hasSpaces = false;
+    for (int i = 0; i < layout.getRunsNumber(); i++) {
+      hasSpaces |= layout.runHasSpaces[i];
+    }
+    assertTrue(hasSpaces);
+    assertNotSame(layout, myCache.getLayout(TEXT, 0, 7, Font.BOLD, myEditor));
+  }
+
+  public void testDocumentChangeDropsOnlyAffectedFragments() {
+    TextFragmentLayoutCache.FragmentLayout first = getLayout(0, 3);
+    TextFragmentLayoutCache.FragmentLayout second = getLayout(4, 7);
+    getLayout(8, 11);
+    assertEquals(3, myCache.size());
+
+    myCache.onDocumentChange(5);
+    assertEquals(1, myCache.size());
+    assertSame(first, getLayout(0, 3));
+    assertNotSame(second, getLayout(4, 7));
+
+    myCache.onDocumentChange(3);
+    assertEquals(0, myCache.size());
+  }
+
+  public void testRebuiltFragmentIsReindexed() {
+    TextFragmentLayoutCache.FragmentLayout layout = getLayout(0, 7);
+    assertNotSame(layout, getLayout(0, 2));
+    assertEquals(1, myCache.size());
+
+    myCache.onDocumentChange(3);
+    assertEquals(1, myCache.size());
+    myCache.onDocumentChange(2);
+    assertEquals(0, myCache.size());
+  }
+
+  public void testNumberOfFragmentsIsBounded() {
+    int fragmentsNumber = TextFragmentLayoutCache.MAX_FRAGMENTS_NUMBER + 100;
+    char[] text = StringUtil.repeatSymbol('x', fragmentsNumber).toCharArray();
+    for (int i = 0; i < fragmentsNumber; i++) {
+      myCache.getLayout(text, i, i + 1, Font.PLAIN, myEditor);
+    }
+    assertEquals(TextFragmentLayoutCache.MAX_FRAGMENTS_NUMBER, myCache.size());
+
+    myCache.onDocumentChange(fragmentsNumber);
+    assertEquals(TextFragmentLayoutCache.MAX_FRAGMENTS_NUMBER - 1, myCache.size());
+    myCache.onDocumentChange(0);
+    assertEquals(0, myCache.size());
+  }
+
+  private TextFragmentLayoutCache.FragmentLayout getLayout(int start, int end) {
+    return myCache.getLayout(TEXT, start, end, Font.PLAIN, myEditor);
+  }
+}
@@ -25,6 +25,7 @@ import com.intellij.openapi.editor.markup.TextAttributes;
 import com.intellij.openapi.util.Ref;
 import com.intellij.psi.codeStyle.CommonCodeStyleSettings;
 import com.intellij.testFramework.TestFileType;
+import com.intellij.util.ui.UIUtil;
 import gnu.trove.TIntHashSet;
 import gnu.trove.TIntProcedure;
 import org.jetbrains.annotations.NotNull;
@@ -1040,6 +1041,20 @@ public class SoftWrapApplianceOnDocumentModificationTest extends AbstractEditorP
     assertFalse(foldRegion.isExpanded());
     assertEquals(foldStart, myEditor.getCaretModel().getOffset());
   }
+
+  public void testSoftWrapsOfLargeDocumentAreCalculatedInBackground() throws IOException {
+    StringBuilder buffer = new StringBuilder();
+    while (buffer.length() < 256 * 1024) {
+      buffer.append("aaaa bbbb cccc dddd eeee\n");
+    }
+    init(10, buffer.toString());
+    int lastLine = myEditor.getDocument().getLineCount() - 2;
+    assertFalse(getSoftWrapModel().getSoftWrapsForLine(0).isEmpty());
+    assertTrue(getSoftWrapModel().getSoftWrapsForLine(lastLine).isEmpty());
+
+    UIUtil.dispatchAllInvocationEvents();
+    assertFalse(getSoftWrapModel().getSoftWrapsForLine(lastLine).isEmpty());
+  }
   
   private void init(final int visibleWidthInColumns, @NotNull String fileText) throws IOException {
     init(visibleWidthInColumns, 7, fileText);
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.project;
+
+import com.intellij.ide.caches.FileContent;
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.progress.EmptyProgressIndicator;
+import com.intellij.openapi.util.registry.Registry;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.testFramework.UsefulTestCase;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+public class FileContentQueueTest extends UsefulTestCase {
+  private static final String LOADERS_KEY = "caches.contentLoaderThreadsCount";
+  private static final int FILES_NUMBER = 1000;
+
+  private int myLoadersCount;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationManager.setApplication(new MockApplication(getTestRootDisposable()), getTestRootDisposable());
+    myLoadersCount = Registry.intValue(LOADERS_KEY);
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Registry.get(LOADERS_KEY).setValue(myLoadersCount);
+    super.tearDown();
+  }
+
+  public void testEveryFileIsTakenOnceBySingleLoader() {
+    doTestEveryFileIsTakenOnce(1);
+  }
+
+  public void testEveryFileIsTakenOnceBySeveralLoaders() {
+    doTestEveryFileIsTakenOnce(4);
+  }
+
+  public void testCanceledLoadersTerminateQueue() {
+    Registry.get(LOADERS_KEY).setValue(4);
+    List<VirtualFile> files = createFiles();
+    FileContentQueue queue = new FileContentQueue();
+    EmptyProgressIndicator loadingIndicator = new EmptyProgressIndicator();
+    queue.queue(files, loadingIndicator);
+    loadingIndicator.cancel();
+
+    // loaders blocked on the full queue are released by the consumer and exit without the end-of-queue marker
+    Set<VirtualFile> taken = takeAll(queue);
+    assertTrue(files.containsAll(taken));
+    assertNull(queue.take(new EmptyProgressIndicator()));
+  }
+
+  private void doTestEveryFileIsTakenOnce(int loadersCount) {
+    Registry.get(LOADERS_KEY).setValue(loadersCount);
+    List<VirtualFile> files = createFiles();
+    FileContentQueue queue = new FileContentQueue();
+    queue.queue(files, new EmptyProgressIndicator());
+
+    assertEquals(new HashSet<VirtualFile>(files), takeAll(queue));
+    assertNull(queue.take(new EmptyProgressIndicator()));
+    assertEquals(FILES_NUMBER, queue.getStatistics().getLoadedFiles());
+    assertEquals(FILES_NUMBER, queue.getStatistics().getProcessedFiles());
+  }
+
+  private static Set<VirtualFile> takeAll(FileContentQueue queue) {
+    Set<VirtualFile> taken = new HashSet<VirtualFile>();
+    EmptyProgressIndicator indicator = new EmptyProgressIndicator();
+    FileContent content;
+    while ((content = queue.take(indicator)) != null) {
+      assertTrue(taken.add(content.getVirtualFile()));
+      queue.release(content);
+    }
+    return taken;
+  }
+
+  private static List<VirtualFile> createFiles() {
+    List<VirtualFile> files = new ArrayList<VirtualFile>();
+    for (int i = 0; i < FILES_NUMBER; i++) {
+      files.add(new LightVirtualFile("file" + i + ".txt", PlainTextFileType.INSTANCE, "content of file " + i,
+                                     CharsetToolkit.UTF8_CHARSET, 0));
+    }
+    return files;
+  }
+}
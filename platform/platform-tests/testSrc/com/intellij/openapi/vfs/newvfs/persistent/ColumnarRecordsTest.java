@@ -0,0 +1,192 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ColumnarRecordsTest extends TestCase {
+  private static final int RECORDS_COUNT = 5000;
+
+  private final PagedFileStorage.StorageLockContext myContext = new PagedFileStorage.StorageLock(false).myDefaultStorageLockContext;
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("columnar", "records");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testFieldsAreReadBackAfterReopening() throws Exception {
+    File recordsFile = new File(myDir, "records.dat");
+    ColumnarRecords columns = FSRecords.DbConnection.openColumns(recordsFile, myContext);
+    for (int id = 0; id < RECORDS_COUNT; id++) {
+      putFields(columns, id);
+    }
+    columns.cleanRecord(7);
+    columns.close();
+
+    assertTrue(ColumnarRecords.exists(recordsFile, FSRecords.FIELD_NAMES));
+    columns = FSRecords.DbConnection.openColumns(recordsFile, myContext);
+    try {
+      assertEquals(RECORDS_COUNT, columns.getRecordsCount());
+      for (int id = 0; id < RECORDS_COUNT; id++) {
+        if (id == 7) {
+          assertFieldsCleaned(columns, id);
+        }
+        else {
+          assertFields(columns, id);
+        }
+      }
+    }
+    finally {
+      columns.close();
+    }
+
+    assertTrue(ColumnarRecords.deleteFiles(recordsFile, FSRecords.FIELD_NAMES));
+    assertFalse(ColumnarRecords.exists(recordsFile, FSRecords.FIELD_NAMES));
+  }
+
+  public void testUnknownOffsetIsRejected() throws Exception {
+    ColumnarRecords columns = FSRecords.DbConnection.openColumns(new File(myDir, "records.dat"), myContext);
+    try {
+      int offset = FSRecords.FIELD_OFFSETS[1] + 1; // inside a field
+      try {
+        columns.getInt(1, offset);
+        fail("field offset " + offset + " must be rejected");
+      }
+      catch (IllegalArgumentException ignored) {
+      }
+      try {
+        columns.putLong(1, FSRecords.RECORD_SIZE, 0);
+        fail("offset after the record must be rejected");
+      }
+      catch (IllegalArgumentException ignored) {
+      }
+    }
+    finally {
+      columns.close();
+    }
+  }
+
+  public void testRowsToColumnsAndBack() throws Exception {
+    File rowsFile = new File(myDir, "rows.dat");
+    ResizeableMappedFile rows = openRows(rowsFile);
+    rows.putInt(0, FSRecords.VERSION); // header
+    for (int id = 1; id < RECORDS_COUNT; id++) {
+      for (int i = 0; i < FSRecords.FIELD_OFFSETS.length; i++) {
+        if (FSRecords.FIELD_SIZES[i] == 8) {
+          rows.putLong(FSRecords.getOffset(id, FSRecords.FIELD_OFFSETS[i]), longValue(id, i));
+        }
+        else {
+          rows.putInt(FSRecords.getOffset(id, FSRecords.FIELD_OFFSETS[i]), intValue(id, i));
+        }
+      }
+    }
+
+    ColumnarRecords columns = FSRecords.DbConnection.openColumns(new File(myDir, "records.dat"), myContext);
+    try {
+      FSRecords.DbConnection.copyRowsToColumns(rows, columns, RECORDS_COUNT);
+      rows.close();
+      assertEquals(RECORDS_COUNT, columns.getRecordsCount());
+      assertFieldsCleaned(columns, 0);
+      for (int id = 1; id < RECORDS_COUNT; id++) {
+        assertFields(columns, id);
+      }
+
+      File convertedFile = new File(myDir, "converted.dat");
+      ResizeableMappedFile converted = openRows(convertedFile);
+      try {
+        converted.putInt(0, FSRecords.VERSION);
+        FSRecords.DbConnection.copyColumnsToRows(columns, converted, RECORDS_COUNT);
+        assertEquals(RECORDS_COUNT * FSRecords.RECORD_SIZE, converted.length());
+        assertEquals(FSRecords.VERSION, converted.getInt(0));
+        for (int id = 1; id < RECORDS_COUNT; id++) {
+          for (int i = 0; i < FSRecords.FIELD_OFFSETS.length; i++) {
+            if (FSRecords.FIELD_SIZES[i] == 8) {
+              assertEquals(longValue(id, i), converted.getLong(FSRecords.getOffset(id, FSRecords.FIELD_OFFSETS[i])));
+            }
+            else {
+              assertEquals(intValue(id, i), converted.getInt(FSRecords.getOffset(id, FSRecords.FIELD_OFFSETS[i])));
+            }
+          }
+        }
+      }
+      finally {
+        converted.close();
+      }
+    }
+    finally {
+      columns.close();
+    }
+  }
+
+  private ResizeableMappedFile openRows(File file) throws IOException {
+    return new ResizeableMappedFile(file, 20 * 1024, myContext, PagedFileStorage.BUFFER_SIZE, true);
+  }
+
+  private static void putFields(ColumnarRecords columns, int id) {
+    for (int i = 0; i < FSRecords.FIELD_OFFSETS.length; i++) {
+      if (FSRecords.FIELD_SIZES[i] == 8) {
+        columns.putLong(id, FSRecords.FIELD_OFFSETS[i], longValue(id, i));
+      }
+      else {
+        columns.putInt(id, FSRecords.FIELD_OFFSETS[i], intValue(id, i));
+      }
+    }
+  }
+
+  private static void assertFields(ColumnarRecords columns, int id) {
+    for (int i = 0; i < FSRecords.FIELD_OFFSETS.length; i++) {
+      if (FSRecords.FIELD_SIZES[i] == 8) {
+        assertEquals(longValue(id, i), columns.getLong(id, FSRecords.FIELD_OFFSETS[i]));
+      }
+      else {
+        assertEquals(intValue(id, i), columns.getInt(id, FSRecords.FIELD_OFFSETS[i]));
+      }
+    }
+  }
+
+  private static void assertFieldsCleaned(ColumnarRecords columns, int id) {
+    for (int i = 0; i < FSRecords.FIELD_OFFSETS.length; i++) {
+      if (FSRecords.FIELD_SIZES[i] == 8) {
+        assertEquals(0, columns.getLong(id, FSRecords.FIELD_OFFSETS[i]));
+      }
+      else {
+        assertEquals(0, columns.getInt(id, FSRecords.FIELD_OFFSETS[i]));
+      }
+    }
+  }
+
+  private static int intValue(int id, int field) {
+    return id * 31 + field + 1;
+  }
+
+  private static long longValue(int id, int field) {
+    return ((long)id << 32) + field + 1;
+  }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.openapi.vfs.newvfs.persistent;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.PagedFileStorage;
+import com.intellij.util.io.ResizeableMappedFile;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class FSRecordsHeaderTest extends TestCase {
+  private static final int CONNECTED_MAGIC = 0x12ad34e4;
+
+  public void testVersion17HeaderUpgrade() throws Exception {
+    File file = FileUtil.createTempFile("records", ".dat");
+    PagedFileStorage.StorageLockContext context = new PagedFileStorage.StorageLock(false).myDefaultStorageLockContext;
+    try {
+      ResizeableMappedFile records = new ResizeableMappedFile(file, 20 * 1024, context, PagedFileStorage.BUFFER_SIZE, true);
+      records.putInt(FSRecords.HEADER_VERSION_OFFSET, FSRecords.ROWS_ONLY_VERSION);
+      records.putInt(FSRecords.HEADER_CONNECTION_STATUS_OFFSET, FSRecords.SAFELY_CLOSED_MAGIC);
+      records.putLong(FSRecords.HEADER_TIMESTAMP_OFFSET, 12345L);
+      FSRecords.DbConnection.upgradeHeader(records);
+      records.close();
+
+      records = new ResizeableMappedFile(file, 20 * 1024, context, PagedFileStorage.BUFFER_SIZE, true);
+      assertEquals(FSRecords.VERSION, records.getInt(FSRecords.HEADER_VERSION_OFFSET));
+      assertEquals(FSRecords.ROWS_LAYOUT, records.getInt(FSRecords.HEADER_LAYOUT_OFFSET));
+      assertEquals(FSRecords.SAFELY_CLOSED_MAGIC, records.getInt(FSRecords.HEADER_CONNECTION_STATUS_OFFSET));
+      assertEquals(12345L, records.getLong(FSRecords.HEADER_TIMESTAMP_OFFSET));
+      records.close();
+    }
+    finally {
+      FileUtil.delete(file);
+      FileUtil.delete(new File(file.getPath() + ".len"));
+    }
+  }
+
+  public void testUpgradeKeepsConnectionStatus() throws Exception {
+    File file = FileUtil.createTempFile("records", ".dat");
+    PagedFileStorage.StorageLockContext context = new PagedFileStorage.StorageLock(false).myDefaultStorageLockContext;
+    try {
+      ResizeableMappedFile records = new ResizeableMappedFile(file, 20 * 1024, context, PagedFileStorage.BUFFER_SIZE, true);
+      records.putInt(FSRecords.HEADER_VERSION_OFFSET, FSRecords.ROWS_ONLY_VERSION);
+      records.putInt(FSRecords.HEADER_CONNECTION_STATUS_OFFSET, CONNECTED_MAGIC); // not safely closed
+      FSRecords.DbConnection.upgradeHeader(records);
+
+      assertEquals(FSRecords.VERSION, records.getInt(FSRecords.HEADER_VERSION_OFFSET));
+      assertEquals(CONNECTED_MAGIC, records.getInt(FSRecords.HEADER_CONNECTION_STATUS_OFFSET));
+      records.close();
+    }
+    finally {
+      FileUtil.delete(file);
+      FileUtil.delete(new File(file.getPath() + ".len"));
+    }
+  }
+}
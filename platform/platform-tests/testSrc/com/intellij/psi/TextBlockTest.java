@@ -5,6 +5,8 @@ import com.intellij.openapi.editor.impl.event.DocumentEventImpl;
 import com.intellij.psi.impl.TextBlock;
 import junit.framework.TestCase;
 
+import java.util.List;
+
 public class TextBlockTest extends TestCase {
   private TextBlock myTextBlock;
   private MockDocument myDocument;
@@ -190,4 +192,60 @@ public class TextBlockTest extends TestCase {
     assertEquals(14, myTextBlock.getTextEndOffset());
     assertEquals(13, myTextBlock.getPsiEndOffset());
   }
+
+  public void testChanges_NonAdjFragmentsAreTrackedSeparately() throws Exception {
+    myTextBlock.documentChanged(new DocumentEventImpl(myDocument, 10, "", "xxx", 1, false));
+    myTextBlock.documentChanged(new DocumentEventImpl(myDocument, 5, "xx", "", 1, false));
+    myTextBlock.documentChanged(new DocumentEventImpl(myDocument, 20, "x", "yyyy", 1, false));
+
+    List<TextBlock.Change> changes = myTextBlock.getChanges();
+    assertNotNull(changes);
+    assertEquals(3, changes.size());
+    assertChange(changes.get(0), 5, 5, 2);
+    assertChange(changes.get(1), 8, 11, 0);
+    assertChange(changes.get(2), 20, 24, 1);
+  }
+
+  public void testChanges_AdjFragmentsAreMerged() throws Exception {
+    myTextBlock.documentChanged(new DocumentEventImpl(myDocument, 10, "", "xxx", 1, false));
+    myTextBlock.documentChanged(new DocumentEventImpl(myDocument, 20, "xx", "", 1, false));
+    myTextBlock.documentChanged(new DocumentEventImpl(myDocument, 12, "xxxxxxxx", "y", 1, false));
+
+    List<TextBlock.Change> changes = myTextBlock.getChanges();
+    assertNotNull(changes);
+    assertEquals(1, changes.size());
+    assertChange(changes.get(0), 10, 13, 9);
+    assertEquals(myTextBlock.getStartOffset(), changes.get(0).getTextStartOffset());
+    assertEquals(myTextBlock.getTextEndOffset(), changes.get(0).getTextEndOffset());
+  }
+
+  public void testChanges_NearestAreMergedIfTooMany() throws Exception {
+    // gaps between the changes grow, so the first changes are merged
+    int[] offsets = new int[30];
+    int offset = 0;
+    for (int i = 0; i < offsets.length; i++) {
+      offset += 10 + i;
+      offsets[i] = offset;
+      myTextBlock.documentChanged(new DocumentEventImpl(myDocument, offset, "x", "yy", 1, false));
+      offset += 2;
+    }
+    List<TextBlock.Change> changes = myTextBlock.getChanges();
+    assertEquals(20, changes.size());
+    assertChange(changes.get(0), offsets[0], offsets[10] + 2, offsets[10] + 2 - offsets[0] - 11);
+    for (int i = 1; i < changes.size(); i++) {
+      assertChange(changes.get(i), offsets[i + 10], offsets[i + 10] + 2, 1);
+    }
+    assertEquals(myTextBlock.getStartOffset(), changes.get(0).getTextStartOffset());
+    assertEquals(myTextBlock.getTextEndOffset(), changes.get(changes.size() - 1).getTextEndOffset());
+
+    myTextBlock.clear();
+    myTextBlock.documentChanged(new DocumentEventImpl(myDocument, 10, "", "xxx", 1, false));
+    assertEquals(1, myTextBlock.getChanges().size());
+  }
+
+  private static void assertChange(TextBlock.Change change, int textStartOffset, int textEndOffset, int psiLength) {
+    assertEquals(textStartOffset, change.getTextStartOffset());
+    assertEquals(textEndOffset, change.getTextEndOffset());
+    assertEquals(psiLength, change.getPsiLength());
+  }
 }
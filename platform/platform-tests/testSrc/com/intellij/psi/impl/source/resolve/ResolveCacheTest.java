@@ -0,0 +1,184 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.resolve;
+
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.util.TextRange;
+import com.intellij.psi.*;
+import com.intellij.psi.impl.FakePsiElement;
+import com.intellij.psi.impl.PsiModificationTrackerImpl;
+import com.intellij.testFramework.LightPlatformCodeInsightTestCase;
+import com.intellij.util.ArrayUtil;
+import org.jetbrains.annotations.NotNull;
+
+public class ResolveCacheTest extends LightPlatformCodeInsightTestCase {
+  private ResolveCache myCache;
+  private FileReference myReference;
+  private int myResolveCount;
+  private PsiElement myTarget;
+  private final IncrementalResolveSupport mySupport = new IncrementalResolveSupport() {
+    @Override
+    public boolean isOutOfCodeBlockModificationTracked(@NotNull PsiFile file) {
+      return true;
+    }
+  };
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    configureFromFileText(getTestName(false) + ".txt", "foo bar");
+    LanguageIncrementalResolveSupport.INSTANCE.addExplicitExtension(getFile().getLanguage(), mySupport);
+    myCache = new ResolveCache(getProject().getMessageBus(), true);
+    myReference = new FileReference(getFile());
+    myTarget = new Target(getFile());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    LanguageIncrementalResolveSupport.INSTANCE.removeExplicitExtension(getFile().getLanguage(), mySupport);
+    myCache = null;
+    myReference = null;
+    myTarget = null;
+    super.tearDown();
+  }
+
+  public void testResultIsReused() {
+    assertSame(myTarget, resolve());
+    assertTrue(myCache.isCached(myReference, true, false, false));
+    assertSame(myTarget, resolve());
+    assertEquals(1, myResolveCount);
+    assertEquals(1, myCache.getHitCount());
+    assertEquals(1, myCache.getMissCount());
+
+    myCache.clearCache(true);
+    assertSame(myTarget, resolve());
+    assertEquals(1, myResolveCount);
+  }
+
+  public void testDropCaches() {
+    resolve();
+    myCache.dropCaches();
+    assertFalse(myCache.isCached(myReference, true, false, false));
+
+    resolve();
+    assertEquals(2, myResolveCount);
+    assertEquals(1, myCache.getInvalidationCount(ResolveCache.InvalidationCause.CACHE_CLEARED));
+  }
+
+  public void testNotSupportedLanguage() {
+    LanguageIncrementalResolveSupport.INSTANCE.removeExplicitExtension(getFile().getLanguage(), mySupport);
+    resolve();
+    assertTrue(myCache.isCached(myReference, true, false, false));
+    myCache.clearCache(true);
+    assertFalse(myCache.isCached(myReference, true, false, false));
+
+    resolve();
+    assertEquals(2, myResolveCount);
+  }
+
+  public void testNullResultIsReused() {
+    myTarget = null;
+    assertNull(resolve());
+    assertTrue(myCache.isCached(myReference, true, false, false));
+    assertNull(resolve());
+    assertEquals(1, myResolveCount);
+    assertEquals(1, myCache.getHitCount());
+  }
+
+  public void testFileChange() {
+    resolve();
+    ApplicationManager.getApplication().runWriteAction(new Runnable() {
+      @Override
+      public void run() {
+        myEditor.getDocument().insertString(0, "x");
+        PsiDocumentManager.getInstance(getProject()).commitAllDocuments();
+      }
+    });
+    assertFalse(myCache.isCached(myReference, true, false, false));
+
+    resolve();
+    assertEquals(2, myResolveCount);
+    assertEquals(1, myCache.getInvalidationCount(ResolveCache.InvalidationCause.FILE_CHANGED));
+  }
+
+  public void testDependenciesChange() {
+    resolve();
+    ((PsiModificationTrackerImpl)getPsiManager().getModificationTracker()).incOutOfCodeBlockModificationCounter();
+    assertFalse(myCache.isCached(myReference, true, false, false));
+
+    resolve();
+    assertEquals(2, myResolveCount);
+    assertEquals(1, myCache.getInvalidationCount(ResolveCache.InvalidationCause.DEPENDENCIES_CHANGED));
+  }
+
+  public void testResultInvalidation() {
+    resolve();
+    ((Target)myTarget).myValid = false;
+    assertFalse(myCache.isCached(myReference, true, false, false));
+
+    myTarget = new Target(getFile());
+    assertSame(myTarget, resolve());
+    assertEquals(2, myResolveCount);
+    assertEquals(1, myCache.getInvalidationCount(ResolveCache.InvalidationCause.RESULT_INVALIDATED));
+  }
+
+  private PsiElement resolve() {
+    return myCache.resolveWithCaching(myReference, new ResolveCache.AbstractResolver<FileReference, PsiElement>() {
+      @Override
+      public PsiElement resolve(@NotNull FileReference ref, boolean incompleteCode) {
+        myResolveCount++;
+        return myTarget;
+      }
+    }, false, false);
+  }
+
+  private static class FileReference extends PsiReferenceBase.Poly<PsiFile> {
+    private FileReference(@NotNull PsiFile file) {
+      super(file, new TextRange(0, 3), false);
+    }
+
+    @NotNull
+    @Override
+    public ResolveResult[] multiResolve(boolean incompleteCode) {
+      return ResolveResult.EMPTY_ARRAY;
+    }
+
+    @NotNull
+    @Override
+    public Object[] getVariants() {
+      return ArrayUtil.EMPTY_OBJECT_ARRAY;
+    }
+  }
+
+  private static class Target extends FakePsiElement {
+    private final PsiElement myParent;
+    private boolean myValid = true;
+
+    private Target(@NotNull PsiElement parent) {
+      myParent = parent;
+    }
+
+    @Override
+    public PsiElement getParent() {
+      return myParent;
+    }
+
+    @Override
+    public boolean isValid() {
+      return myValid;
+    }
+  }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.psi.impl.source.resolve;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class WeakKeyLruCacheTest {
+  @Test
+  public void testPutGetRemove() {
+    WeakKeyLruCache<String, String> cache = new WeakKeyLruCache<String, String>(4, 100);
+    String key = new String("key");
+    cache.put(key, "value");
+    assertEquals("value", cache.get(key));
+    assertEquals("value", cache.get(new String("key")));
+
+    cache.remove(new String("key"));
+    assertNull(cache.get(key));
+    assertEquals(0, cache.size());
+  }
+
+  @Test
+  public void testLeastRecentlyUsedEntryIsEvicted() {
+    WeakKeyLruCache<Integer, String> cache = new WeakKeyLruCache<Integer, String>(1, 2);
+    Integer first = 1000;
+    Integer second = 2000;
+    Integer third = 3000;
+    cache.put(first, "1");
+    cache.put(second, "2");
+    assertEquals("1", cache.get(first));
+
+    cache.put(third, "3");
+    assertEquals(2, cache.size());
+    assertEquals(1, cache.getEvictedCount());
+    assertEquals("1", cache.get(first));
+    assertNull(cache.get(second));
+    assertEquals("3", cache.get(third));
+  }
+
+  @Test
+  public void testClear() {
+    WeakKeyLruCache<Integer, String> cache = new WeakKeyLruCache<Integer, String>(4, 100);
+    Integer key = 1000;
+    cache.put(key, "1");
+    cache.clear();
+    assertNull(cache.get(key));
+    assertEquals(0, cache.size());
+  }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.mock.MockApplication;
+import com.intellij.openapi.application.ApplicationManager;
+import com.intellij.openapi.fileTypes.FileType;
+import com.intellij.openapi.fileTypes.PlainTextFileType;
+import com.intellij.openapi.fileTypes.UnknownFileType;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.vfs.CharsetToolkit;
+import com.intellij.openapi.vfs.VirtualFile;
+import com.intellij.testFramework.LightVirtualFile;
+import com.intellij.testFramework.UsefulTestCase;
+import com.intellij.util.io.DataExternalizer;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import com.intellij.util.io.KeyDescriptor;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.File;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class IndexSnapshotsTest extends UsefulTestCase {
+  private static final ID<String, Integer> INDEX_ID = ID.create("IndexSnapshotsTest");
+
+  private File myDir;
+  private IndexSnapshots mySnapshots;
+  private final AtomicInteger myIndexerRuns = new AtomicInteger();
+  private Class<?> myDependency = String.class;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    ApplicationManager.setApplication(new MockApplication(getTestRootDisposable()), getTestRootDisposable());
+    myDir = FileUtil.createTempDirectory("index", "snapshots");
+    mySnapshots = createSnapshots();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    try {
+      mySnapshots.dispose();
+      FileUtil.delete(myDir);
+    }
+    finally {
+      super.tearDown();
+    }
+  }
+
+  public void testSnapshotDataIsReused() {
+    DataIndexer<String, Integer, FileContent> indexer = mySnapshots.wrapIndexer(new FileTypeNameIndex());
+    VirtualFile file = createFile("data.txt", PlainTextFileType.INSTANCE);
+
+    Map<String, Integer> expected = Collections.singletonMap(PlainTextFileType.INSTANCE.getName() + ":data.txt", 1);
+    assertEquals(expected, indexer.map(createContent(file)));
+    assertEquals(expected, indexer.map(createContent(file)));
+    assertEquals(1, myIndexerRuns.get()); // the second time the data is taken from the snapshot
+  }
+
+  public void testSnapshotDataIsKeyedByFileType() {
+    DataIndexer<String, Integer, FileContent> indexer = mySnapshots.wrapIndexer(new FileTypeNameIndex());
+    indexer.map(createContent(createFile("data.txt", PlainTextFileType.INSTANCE)));
+
+    // the same path in the jar mapped to another file type
+    Map<String, Integer> data = indexer.map(createContent(createFile("data.txt", UnknownFileType.INSTANCE)));
+    assertEquals(Collections.singleton(UnknownFileType.INSTANCE.getName() + ":data.txt"), data.keySet());
+    assertEquals(2, myIndexerRuns.get());
+  }
+
+  public void testSnapshotDataIsKeyedByDependencies() {
+    DataIndexer<String, Integer, FileContent> indexer = mySnapshots.wrapIndexer(new FileTypeNameIndex());
+    VirtualFile file = createFile("data.txt", PlainTextFileType.INSTANCE);
+    indexer.map(createContent(file));
+    indexer.map(createContent(file));
+    assertEquals(1, myIndexerRuns.get());
+
+    // code versions are cached per index and file type, so the changed dependency is seen by new snapshots
+    myDependency = Integer.class;
+    mySnapshots.dispose();
+    mySnapshots = createSnapshots();
+    indexer = mySnapshots.wrapIndexer(new FileTypeNameIndex());
+    indexer.map(createContent(file));
+    assertEquals(2, myIndexerRuns.get());
+  }
+
+  public void testConcurrentIndexing() throws Exception {
+    final DataIndexer<String, Integer, FileContent> indexer = mySnapshots.wrapIndexer(new FileTypeNameIndex());
+    final List<VirtualFile> files = new ArrayList<VirtualFile>();
+    for (int i = 0; i < 200; i++) {
+      files.add(createFile("data" + i + ".txt", PlainTextFileType.INSTANCE));
+    }
+    final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+    List<Thread> threads = new ArrayList<Thread>();
+    for (int t = 0; t < 4; t++) {
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int round = 0; round < 2; round++) {
+              for (VirtualFile file : files) {
+                Map<String, Integer> data = indexer.map(createContent(file));
+                assertEquals(Collections.singletonMap(PlainTextFileType.INSTANCE.getName() + ":" + file.getName(), 1), data);
+              }
+            }
+          }
+          catch (Throwable e) {
+            errors.add(e);
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertEmpty(errors);
+    assertTrue(myIndexerRuns.get() >= files.size());
+  }
+
+  private IndexSnapshots createSnapshots() {
+    return new IndexSnapshots(myDir, true) {
+      @Override
+      String getJarHash(@NotNull VirtualFile file) {
+        return "lib";
+      }
+
+      @NotNull
+      @Override
+      String getPathInJar(@NotNull VirtualFile file) {
+        return file.getName();
+      }
+
+      @Override
+      String getCodeVersion(@NotNull Class<?> aClass) {
+        return aClass.getName(); // stands for the version of the plugin providing the class
+      }
+    };
+  }
+
+  private static VirtualFile createFile(String name, final FileType fileType) {
+    return new LightVirtualFile(name, fileType, "content", CharsetToolkit.UTF8_CHARSET, 0) {
+      @NotNull
+      @Override
+      public FileType getFileType() {
+        return fileType;
+      }
+    };
+  }
+
+  private static FileContent createContent(VirtualFile file) {
+    return new FileContentImpl(file, "content", CharsetToolkit.UTF8_CHARSET);
+  }
+
+  private class FileTypeNameIndex extends FileBasedIndexExtension<String, Integer> {
+    @NotNull
+    @Override
+    public ID<String, Integer> getName() {
+      return INDEX_ID;
+    }
+
+    @NotNull
+    @Override
+    public DataIndexer<String, Integer, FileContent> getIndexer() {
+      return new DataIndexer<String, Integer, FileContent>() {
+        @Override
+        @NotNull
+        public Map<String, Integer> map(FileContent inputData) {
+          myIndexerRuns.incrementAndGet();
+          return Collections.singletonMap(inputData.getFileType().getName() + ":" + inputData.getFileName(), 1);
+        }
+      };
+    }
+
+    @Override
+    public KeyDescriptor<String> getKeyDescriptor() {
+      return new EnumeratorStringDescriptor();
+    }
+
+    @Override
+    public DataExternalizer<Integer> getValueExternalizer() {
+      return new EnumeratorIntegerDescriptor();
+    }
+
+    @Override
+    public FileBasedIndex.InputFilter getInputFilter() {
+      return new FileBasedIndex.InputFilter() {
+        @Override
+        public boolean acceptInput(VirtualFile file) {
+          return true;
+        }
+      };
+    }
+
+    @Override
+    public boolean dependsOnFileContent() {
+      return true;
+    }
+
+    @Override
+    public int getVersion() {
+      return 0;
+    }
+
+    @Override
+    public boolean isSnapshotShareable() {
+      return true;
+    }
+
+    @NotNull
+    @Override
+    public Collection<Class<?>> getSnapshotDependencies(@NotNull FileType fileType) {
+      return Collections.<Class<?>>singletonList(myDependency);
+    }
+  }
+}
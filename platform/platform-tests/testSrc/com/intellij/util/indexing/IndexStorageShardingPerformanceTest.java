@@ -0,0 +1,168 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.testFramework.PlatformTestUtil;
+import com.intellij.util.ThrowableRunnable;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import gnu.trove.THashMap;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Indexes a generated project with an IdIndex-like indexer into a single storage and into a sharded one
+ * and checks that both end up with the same data. {@link #testThreadsCountComparison()} reports indexing times of 100k files
+ * by 1, 2, 4 and 8 threads.
+ */
+public class IndexStorageShardingPerformanceTest extends TestCase {
+  private static final int FILES_COUNT = 100000;
+  private static final int WORDS_COUNT = 50000;
+  private static final int WORDS_PER_FILE = 40;
+  private static final int SHARDS_COUNT = 8;
+  private static final Collection<Integer> NO_KEYS = Collections.emptyList();
+
+  private File myDir;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("index", "sharding");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testConcurrentUpdatesOfShardedStorage() throws Exception {
+    reindex(1, 1, 10000);
+    reindex(SHARDS_COUNT, 4, 10000);
+  }
+
+  public void testThreadsCountComparison() throws Exception {
+    for (int threads : new int[]{1, 2, 4, 8}) {
+      final long plain = reindex(1, threads, FILES_COUNT);
+      final long sharded = reindex(SHARDS_COUNT, threads, FILES_COUNT);
+      System.out.println(threads + " thread(s): single storage " + plain + "ms, " + SHARDS_COUNT + " shards " + sharded + "ms");
+    }
+  }
+
+  public void testReindexGeneratedProject() throws Exception {
+    // takes 4-9s on a single core
+    PlatformTestUtil.startPerformanceTest("indexing of 50k files by 4 threads into " + SHARDS_COUNT + " shards", 30000, new ThrowableRunnable() {
+      @Override
+      public void run() throws Exception {
+        reindex(SHARDS_COUNT, 4, 50000);
+      }
+    }).ioBound().assertTiming();
+  }
+
+  /**
+   * @return time in ms spent on indexing
+   */
+  private long reindex(int shardsCount, int threadsCount, final int filesCount) throws Exception {
+    final File storageFile = new File(myDir, "index" + shardsCount + "_" + threadsCount + "_" + filesCount);
+    final IndexStorage<Integer, Integer> backend = shardsCount > 1
+      ? new ShardedMapIndexStorage<Integer, Integer>(storageFile, new EnumeratorIntegerDescriptor(), new EnumeratorIntegerDescriptor(), 1024, false, false, shardsCount)
+      : new MapIndexStorage<Integer, Integer>(storageFile, new EnumeratorIntegerDescriptor(), new EnumeratorIntegerDescriptor(), 1024);
+    final MapReduceIndex<Integer, Integer, Integer> index =
+      new MapReduceIndex<Integer, Integer, Integer>(null, null, new MemoryIndexStorage<Integer, Integer>(backend));
+
+    final AtomicInteger nextFile = new AtomicInteger();
+    final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+    final Callable<Collection<Integer>> noOldKeys = new Callable<Collection<Integer>>() {
+      @Override
+      public Collection<Integer> call() {
+        return NO_KEYS;
+      }
+    };
+
+    long started = System.currentTimeMillis();
+    Thread[] threads = new Thread[threadsCount];
+    for (int i = 0; i < threadsCount; i++) {
+      threads[i] = new Thread("indexer " + i) {
+        @Override
+        public void run() {
+          try {
+            int file;
+            while ((file = nextFile.incrementAndGet()) <= filesCount) {
+              index.updateWithMap(file, generateFile(file), noOldKeys);
+            }
+          }
+          catch (Throwable e) {
+            error.compareAndSet(null, e);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    index.flush();
+    long elapsed = System.currentTimeMillis() - started;
+
+    try {
+      if (error.get() != null) throw new AssertionError(error.get());
+      checkWord(index, 0, filesCount);
+      checkWord(index, 7, filesCount);
+      checkWord(index, WORDS_COUNT - 1, filesCount);
+    }
+    finally {
+      index.dispose();
+    }
+    return elapsed;
+  }
+
+  // word frequencies roughly follow Zipf's law like in real sources, values are occurrence masks like in IdIndex
+  private static Map<Integer, Integer> generateFile(int file) {
+    Random random = new Random(file);
+    THashMap<Integer, Integer> words = new THashMap<Integer, Integer>();
+    for (int i = 0; i < WORDS_PER_FILE; i++) {
+      final int word = (int)(WORDS_COUNT * Math.pow(random.nextDouble(), 4));
+      words.put(word, 1 << random.nextInt(4));
+    }
+    return words;
+  }
+
+  private static void checkWord(MapReduceIndex<Integer, Integer, Integer> index, int word, int filesCount) throws StorageException {
+    TIntHashSet expected = new TIntHashSet();
+    for (int file = 1; file <= filesCount; file++) {
+      if (generateFile(file).containsKey(word)) expected.add(file);
+    }
+
+    TIntHashSet actual = new TIntHashSet();
+    final ValueContainer<Integer> container = index.getData(word);
+    for (Iterator<Integer> it = container.getValueIterator(); it.hasNext(); ) {
+      for (ValueContainer.IntIterator ids = container.getInputIdsIterator(it.next()); ids.hasNext(); ) {
+        actual.add(ids.next());
+      }
+    }
+    assertEquals(expected, actual);
+  }
+}
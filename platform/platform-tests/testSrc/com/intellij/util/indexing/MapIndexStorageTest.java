@@ -0,0 +1,94 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import junit.framework.TestCase;
+
+import java.io.File;
+
+public class MapIndexStorageTest extends TestCase {
+  private File myDir;
+  private File myStorageFile;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("index", "storage");
+    myStorageFile = new File(myDir, "index");
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  private MapIndexStorage<String, Integer> createStorage() throws Exception {
+    return new MapIndexStorage<String, Integer>(myStorageFile, new EnumeratorStringDescriptor(), new EnumeratorIntegerDescriptor(), 16,
+                                                false, true);
+  }
+
+  public void testKeyFilter() throws Exception {
+    final int keysCount = 50000; // more than the initial filter capacity
+    MapIndexStorage<String, Integer> storage = createStorage();
+    try {
+      for (int i = 0; i < keysCount; i++) {
+        storage.addValue("key" + i, i + 1, 0);
+      }
+      assertAllKeysPresent(storage, keysCount);
+      assertEquals(0, storage.getKeyFilterHits());
+
+      for (int i = 0; i < keysCount; i++) {
+        assertEquals(0, storage.read("absent" + i).size());
+      }
+      assertTrue(storage.getKeyFilterHits() > keysCount * 95 / 100);
+    }
+    finally {
+      storage.close();
+    }
+
+    assertTrue(new File(myStorageFile.getPath() + ".bloom").exists());
+    storage = createStorage();
+    try {
+      assertFalse("filter is deleted when loaded", new File(myStorageFile.getPath() + ".bloom").exists());
+      assertAllKeysPresent(storage, keysCount);
+      assertEquals(0, storage.read("absent").size());
+    }
+    finally {
+      storage.close();
+    }
+
+    FileUtil.delete(new File(myStorageFile.getPath() + ".bloom"));
+    storage = createStorage();
+    try {
+      assertAllKeysPresent(storage, keysCount); // rebuilt from the map keys
+    }
+    finally {
+      storage.close();
+    }
+  }
+
+  private static void assertAllKeysPresent(MapIndexStorage<String, Integer> storage, int keysCount) throws StorageException {
+    for (int i = 0; i < keysCount; i++) {
+      final ValueContainer<Integer> container = storage.read("key" + i);
+      assertEquals(1, container.size());
+      assertTrue(container.isAssociated(0, i + 1));
+    }
+  }
+}
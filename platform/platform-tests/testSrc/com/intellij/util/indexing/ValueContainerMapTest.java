@@ -0,0 +1,169 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.indexing;
+
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.EnumeratorIntegerDescriptor;
+import com.intellij.util.io.EnumeratorStringDescriptor;
+import gnu.trove.TIntHashSet;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.concurrent.atomic.AtomicInteger;
+
+public class ValueContainerMapTest extends TestCase {
+  private File myDir;
+  private ValueContainerMap<String, Integer> myMap;
+
+  @Override
+  protected void setUp() throws Exception {
+    super.setUp();
+    myDir = FileUtil.createTempDirectory("value", "containers");
+    myMap = new ValueContainerMap<String, Integer>(new File(myDir, "map"), new EnumeratorStringDescriptor(), new EnumeratorIntegerDescriptor());
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    myMap.close();
+    FileUtil.delete(myDir);
+    super.tearDown();
+  }
+
+  public void testAppendedDataIsReadLazily() throws IOException {
+    ChangeTrackingValueContainer<Integer> added = new ChangeTrackingValueContainer<Integer>(null);
+    for (int id : new int[]{5, 3, 100000, 42}) {
+      added.addValue(id, 1);
+    }
+    added.addValue(7, 2);
+    myMap.put("key", added);
+
+    added = new ChangeTrackingValueContainer<Integer>(null);
+    added.addValue(50, 1);
+    added.addValue(8, 3);
+    myMap.put("key", added);
+
+    ValueContainer<Integer> container = myMap.get("key");
+    assertTrue(container instanceof LazyValueContainer);
+    assertEquals(3, container.size());
+    assertEquals(new HashSet<Integer>(Arrays.asList(1, 2, 3)), new HashSet<Integer>(container.toValueList()));
+    assertEquals(ids(3, 5, 42, 50, 100000), ids(container, 1));
+    assertEquals(ids(7), ids(container, 2));
+    assertEquals(ids(8), ids(container, 3));
+    assertEquals(ids(), ids(container, 4));
+    assertEquals(5, container.getInputIdsIterator(1).size());
+
+    assertTrue(container.isAssociated(1, 42));
+    assertFalse(container.isAssociated(1, 43));
+    assertFalse(container.isAssociated(2, 42));
+    assertTrue(container.getValueAssociationPredicate(1).contains(100000));
+    assertFalse(container.getValueAssociationPredicate(1).contains(7));
+
+    ValueContainerImpl<Integer> inflated = ((LazyValueContainer<Integer>)container).inflate();
+    assertEquals(ids(3, 5, 42, 50, 100000), ids(inflated, 1));
+    assertEquals(ids(8), ids(inflated, 3));
+  }
+
+  public void testUpdatesAreAppliedToLazyDataInMemory() throws IOException {
+    ChangeTrackingValueContainer<Integer> added = new ChangeTrackingValueContainer<Integer>(null);
+    added.addValue(1, 1);
+    added.addValue(2, 1);
+    myMap.put("key", added);
+
+    final AtomicInteger reads = new AtomicInteger();
+    ChangeTrackingValueContainer<Integer> container = new ChangeTrackingValueContainer<Integer>(new ChangeTrackingValueContainer.Initializer<Integer>() {
+      @Override
+      public Object getLock() {
+        return this;
+      }
+
+      @Override
+      public ValueContainer<Integer> compute() {
+        reads.incrementAndGet();
+        try {
+          return myMap.get("key");
+        }
+        catch (IOException e) {
+          throw new RuntimeException(e);
+        }
+      }
+    });
+    assertTrue(container.getMergedData() instanceof LazyValueContainer);
+
+    container.addValue(3, 2);
+    assertEquals(ids(1, 2), ids(container, 1));
+    assertEquals(ids(3), ids(container, 2));
+    container.removeAssociatedValue(1);
+    assertEquals(ids(2), ids(container, 1));
+    assertEquals(1, reads.get());
+
+    container.dropMergedData();
+    assertEquals(ids(2), ids(container, 1));
+    assertEquals(ids(3), ids(container, 2));
+    assertEquals(2, reads.get());
+  }
+
+  public void testInvalidatedDataIsMerged() throws IOException {
+    ChangeTrackingValueContainer<Integer> added = new ChangeTrackingValueContainer<Integer>(null);
+    added.addValue(1, 1);
+    added.addValue(2, 1);
+    added.addValue(3, 2);
+    myMap.put("key", added);
+
+    ChangeTrackingValueContainer<Integer> removed = new ChangeTrackingValueContainer<Integer>(null);
+    removed.removeAssociatedValue(2);
+    removed.removeAssociatedValue(3);
+    removed.addValue(3, 1);
+    myMap.put("key", removed);
+
+    ValueContainer<Integer> container = myMap.get("key");
+    assertTrue(container instanceof ValueContainerImpl);
+    assertTrue(container.needsCompacting());
+    assertEquals(1, container.size());
+    assertEquals(ids(1, 3), ids(container, 1));
+  }
+
+  public void testLargeContainerPredicate() throws IOException {
+    ChangeTrackingValueContainer<Integer> added = new ChangeTrackingValueContainer<Integer>(null);
+    TIntHashSet expected = new TIntHashSet();
+    for (int id = 1; id < 100000; id += 7) {
+      added.addValue(id, 0);
+      expected.add(id);
+    }
+    myMap.put("key", added);
+
+    ValueContainer<Integer> container = myMap.get("key");
+    assertEquals(expected, ids(container, 0));
+    ValueContainer.IntPredicate predicate = container.getValueAssociationPredicate(0);
+    for (int id = 0; id < 100000; id++) {
+      assertEquals(expected.contains(id), predicate.contains(id));
+    }
+  }
+
+  private static TIntHashSet ids(int... ids) {
+    return new TIntHashSet(ids);
+  }
+
+  private static TIntHashSet ids(ValueContainer<Integer> container, Integer value) {
+    TIntHashSet result = new TIntHashSet();
+    for (ValueContainer.IntIterator iterator = container.getInputIdsIterator(value); iterator.hasNext(); ) {
+      result.add(iterator.next());
+    }
+    return result;
+  }
+}
@@ -1,12 +1,14 @@
 package com.intellij.util.io;
 
 import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.openapi.util.text.StringUtil;
 import com.intellij.testFramework.PlatformTestUtil;
 import com.intellij.util.ThrowableRunnable;
 import com.intellij.util.containers.IntObjectCache;
 import com.intellij.util.io.storage.Storage;
 import junit.framework.TestCase;
 
+import java.io.DataOutput;
 import java.io.File;
 import java.io.FileFilter;
 import java.io.IOException;
@@ -208,6 +210,97 @@ public class PersistentMapTest extends TestCase {
     }
   }
 
+  public void testIncrementalCompaction() throws Exception {
+    final int stringsCount = 5000;
+    Map<String, String> expected = new HashMap<String, String>();
+    for (int i = 0; i < stringsCount; ++i) {
+      final String key = createRandomString();
+      myMap.put(key, key + "_garbage");
+      myMap.put(key, key + "_value");
+      expected.put(key, key + "_value");
+    }
+    assertTrue(myMap.getGarbageRatio() > 0);
+
+    myMap.startIncrementalCompaction();
+    int i = 0;
+    for (final String key : new ArrayList<String>(expected.keySet())) {
+      if (myMap.getCompactionProgress() < 0) break;
+      switch (i++ % 4) {
+        case 0:
+          myMap.put(key, key + "_new");
+          expected.put(key, key + "_new");
+          break;
+        case 1:
+          myMap.appendData(key, new PersistentHashMap.ValueDataAppender() {
+            @Override
+            public void append(DataOutput out) throws IOException {
+              out.writeUTF("_appended"); // EnumeratorStringDescriptor reads the first UTF string only
+            }
+          });
+          break;
+        case 2:
+          myMap.remove(key);
+          expected.remove(key);
+          break;
+        default:
+          assertEquals(expected.get(key), myMap.get(key));
+      }
+    }
+
+    myMap.compact(); // finishes the running compaction
+    assertEquals(-1.0, myMap.getCompactionProgress());
+
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+    myMap.close();
+    myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    assertEquals(new HashSet<String>(expected.keySet()), new HashSet<String>(myMap.getAllKeysWithExistingMapping()));
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
+  public void testOpeningWithGarbageStartsIncrementalCompaction() throws Exception {
+    final String padding = StringUtil.repeatSymbol('x', 1000);
+    final Map<String, String> expected = new HashMap<String, String>();
+    for (int i = 0; i < 2000; ++i) {
+      final String key = createRandomString();
+      myMap.put(key, key + padding + "_garbage1");
+      myMap.put(key, key + padding + "_garbage2");
+      myMap.put(key, key + padding);
+      expected.put(key, key + padding);
+    }
+    myMap.close();
+    final long sizeWithGarbage = myDataFile.length();
+    assertTrue(sizeWithGarbage > 5 * 1024 * 1024);
+
+    final String property = System.getProperty(PersistentHashMap.INCREMENTAL_COMPACTION_PROPERTY);
+    System.setProperty(PersistentHashMap.INCREMENTAL_COMPACTION_PROPERTY, "true");
+    try {
+      myMap = new PersistentHashMap<String, String>(myFile, new EnumeratorStringDescriptor(), new EnumeratorStringDescriptor());
+    }
+    finally {
+      if (property == null) {
+        System.clearProperty(PersistentHashMap.INCREMENTAL_COMPACTION_PROPERTY);
+      }
+      else {
+        System.setProperty(PersistentHashMap.INCREMENTAL_COMPACTION_PROPERTY, property);
+      }
+    }
+
+    final long deadline = System.currentTimeMillis() + 60000;
+    while (myMap.getCompactionProgress() >= 0 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertEquals(-1.0, myMap.getCompactionProgress());
+    assertEquals(0.0, myMap.getGarbageRatio());
+    assertTrue(myDataFile.length() < sizeWithGarbage / 2);
+    for (Map.Entry<String, String> entry : expected.entrySet()) {
+      assertEquals(entry.getValue(), myMap.get(entry.getKey()));
+    }
+  }
+
   public void testOpeningWithCompact2() throws IOException {
     File file = FileUtil.createTempFile("persistent", "map");
 
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Block compression used for cached contents. Implementations keep their working state per thread, so they can be
+ * used concurrently without locking. Every block produced by a codec starts with its {@link #getFormatMarker() marker},
+ * which allows readers to pick the right codec for data written by another one.
+ *
+ * @see CompressionCodecs
+ */
+public interface CompressionCodec {
+  byte getFormatMarker();
+
+  void compress(@NotNull byte[] source, int off, int len, @NotNull BufferExposingByteArrayOutputStream out);
+
+  @NotNull
+  byte[] decompress(@NotNull byte[] compressed, int off, int len) throws IOException;
+}
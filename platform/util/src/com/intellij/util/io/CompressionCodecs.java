@@ -0,0 +1,49 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import org.jetbrains.annotations.NotNull;
+
+import java.util.zip.Deflater;
+
+public class CompressionCodecs {
+  /**
+   * zlib format, the one contents were stored in before codecs were introduced.
+   */
+  public static final CompressionCodec DEFLATE = new DeflateCodec(null, Deflater.DEFAULT_COMPRESSION);
+  /**
+   * Byte oriented LZ77 codec, several times faster than {@link #DEFLATE} on both ends at the price of up to twice as big output.
+   */
+  public static final CompressionCodec LZ = new LZCodec();
+
+  private static final CompressionCodec ourDefault = "lz".equalsIgnoreCase(System.getProperty("idea.storage.codec")) ? LZ : DEFLATE;
+
+  private CompressionCodecs() {
+  }
+
+  @NotNull
+  public static CompressionCodec getDefault() {
+    return ourDefault;
+  }
+
+  /**
+   * @return codec the given block was compressed with, data without a known marker is considered to be zlib
+   */
+  @NotNull
+  public static CompressionCodec forData(@NotNull byte[] data, int off, int len) {
+    return len > 0 && data[off] == LZCodec.FORMAT_MARKER ? LZ : DEFLATE;
+  }
+}
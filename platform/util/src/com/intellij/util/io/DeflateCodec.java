@@ -0,0 +1,121 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+import org.jetbrains.annotations.Nullable;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * zlib codec, the zlib header (0x78 for the default 32K window) serves as the format marker.
+ */
+class DeflateCodec implements CompressionCodec {
+  private static final byte ZLIB_HEADER = 0x78;
+  private static final int CHUNK_SIZE = 8192;
+
+  private static final ThreadLocal<byte[]> ourChunk = new ThreadLocal<byte[]>() {
+    @Override
+    protected byte[] initialValue() {
+      return new byte[CHUNK_SIZE];
+    }
+  };
+
+  private final byte[] myDictionary;
+  private final ThreadLocal<Deflater> myDeflater;
+  private final ThreadLocal<Inflater> myInflater = new ThreadLocal<Inflater>() {
+    @Override
+    protected Inflater initialValue() {
+      return new Inflater();
+    }
+  };
+
+  DeflateCodec(@Nullable byte[] dictionary, final int level) {
+    myDictionary = dictionary;
+    myDeflater = new ThreadLocal<Deflater>() {
+      @Override
+      protected Deflater initialValue() {
+        return new Deflater(level);
+      }
+    };
+  }
+
+  @Override
+  public byte getFormatMarker() {
+    return ZLIB_HEADER;
+  }
+
+  @Override
+  public void compress(@NotNull byte[] source, int off, int len, @NotNull BufferExposingByteArrayOutputStream out) {
+    final Deflater deflater = myDeflater.get();
+    final byte[] chunk = ourChunk.get();
+    try {
+      if (myDictionary != null) deflater.setDictionary(myDictionary);
+      deflater.setInput(source, off, len);
+      deflater.finish();
+      while (!deflater.finished()) {
+        out.write(chunk, 0, deflater.deflate(chunk));
+      }
+    }
+    finally {
+      deflater.reset(); // also drops the reference to the source
+    }
+  }
+
+  @NotNull
+  @Override
+  public byte[] decompress(@NotNull byte[] compressed, int off, int len) throws IOException {
+    final Inflater inflater = myInflater.get();
+    final byte[] chunk = ourChunk.get();
+    final BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream(Math.max(len * 4, 32));
+    try {
+      inflater.setInput(compressed, off, len);
+      boolean dictionarySet = false;
+      while (!inflater.finished()) {
+        final int inflated = inflater.inflate(chunk);
+        if (inflated > 0) {
+          out.write(chunk, 0, inflated);
+        }
+        else if (inflater.finished()) {
+          break;
+        }
+        else if (inflater.needsDictionary()) {
+          if (myDictionary == null || dictionarySet) throw new IOException("Compressed data requires an unknown dictionary");
+          inflater.setDictionary(myDictionary);
+          dictionarySet = true;
+        }
+        else if (inflater.needsInput()) {
+          throw new EOFException("Unexpected end of compressed data");
+        }
+        else {
+          throw new IOException("Inflater made no progress");
+        }
+      }
+      return out.toByteArray();
+    }
+    catch (DataFormatException e) {
+      throw new IOException(e);
+    }
+    finally {
+      inflater.reset();
+    }
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io;
+
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import org.jetbrains.annotations.NotNull;
+
+import java.io.IOException;
+
+/**
+ * Pure Java LZ77 codec in the spirit of LZ4: no entropy coding, byte aligned sequences and a single probe hash table,
+ * which keeps both compression and decompression close to memcpy speed.
+ * <p/>
+ * Block layout: marker, varint uncompressed length, then sequences of
+ * <pre>token(literals:4 | matchLength - 4:4) [literals extra length] literals offset:2 [match extra length]</pre>
+ * where nibbles equal to 15 are continued by 255-terminated extra length bytes. The last sequence has literals only.
+ */
+class LZCodec implements CompressionCodec {
+  static final byte FORMAT_MARKER = 0x4C; // low nibble of a zlib header byte is always 8, so this never clashes with zlib data
+
+  private static final int MIN_MATCH = 4;
+  private static final int MAX_OFFSET = 0xFFFF;
+  private static final int HASH_LOG = 14;
+  private static final int RUN_MASK = 15;
+
+  /**
+   * Positions of the last occurrences of 4-byte sequences, relative to the start of the block. The table is not
+   * cleared between blocks: a stale entry is just a candidate that fails the bytes check.
+   */
+  private final ThreadLocal<int[]> myHashTable = new ThreadLocal<int[]>() {
+    @Override
+    protected int[] initialValue() {
+      return new int[1 << HASH_LOG];
+    }
+  };
+
+  @Override
+  public byte getFormatMarker() {
+    return FORMAT_MARKER;
+  }
+
+  @Override
+  public void compress(@NotNull byte[] source, int off, int len, @NotNull BufferExposingByteArrayOutputStream out) {
+    out.write(FORMAT_MARKER);
+    writeVarInt(out, len);
+
+    final int[] table = myHashTable.get();
+    final int end = off + len;
+    final int matchStartLimit = end - MIN_MATCH;
+    int anchor = off;
+    int pos = off;
+
+    while (pos <= matchStartLimit) {
+      final int sequence = readInt(source, pos);
+      final int hash = hash(sequence);
+      int candidate = off + table[hash];
+      table[hash] = pos - off;
+
+      if (candidate >= pos || pos - candidate > MAX_OFFSET || readInt(source, candidate) != sequence) {
+        pos += 1 + ((pos - anchor) >>> 6); // skip faster through incompressible data
+        continue;
+      }
+
+      int matchLength = MIN_MATCH;
+      while (pos + matchLength < end && source[candidate + matchLength] == source[pos + matchLength]) matchLength++;
+      while (pos > anchor && candidate > off && source[pos - 1] == source[candidate - 1]) {
+        pos--;
+        candidate--;
+        matchLength++;
+      }
+
+      writeSequence(out, source, anchor, pos - anchor, pos - candidate, matchLength);
+      pos += matchLength;
+      anchor = pos;
+    }
+
+    if (anchor < end) {
+      final int literals = end - anchor;
+      out.write(Math.min(literals, RUN_MASK) << 4);
+      if (literals >= RUN_MASK) writeLength(out, literals - RUN_MASK);
+      out.write(source, anchor, literals);
+    }
+  }
+
+  @NotNull
+  @Override
+  public byte[] decompress(@NotNull byte[] compressed, int off, int len) throws IOException {
+    final int end = off + len;
+    int pos = off;
+    if (len == 0 || compressed[pos++] != FORMAT_MARKER) throw new IOException("Not an LZ compressed block");
+
+    int length = 0;
+    for (int shift = 0; ; shift += 7) {
+      if (pos >= end || shift > 28) throw corrupted();
+      final byte b = compressed[pos++];
+      length |= (b & 0x7F) << shift;
+      if (b >= 0) break;
+    }
+
+    final byte[] result = new byte[length];
+    int resultPos = 0;
+    try {
+      while (resultPos < length) {
+        final int token = compressed[pos++] & 0xFF;
+
+        int literals = token >>> 4;
+        if (literals == RUN_MASK) {
+          int b;
+          do {
+            b = compressed[pos++] & 0xFF;
+            literals += b;
+          }
+          while (b == 255);
+        }
+        if (literals > end - pos || literals > length - resultPos) throw corrupted();
+        System.arraycopy(compressed, pos, result, resultPos, literals);
+        pos += literals;
+        resultPos += literals;
+        if (resultPos == length) break;
+
+        final int offset = (compressed[pos++] & 0xFF) | ((compressed[pos++] & 0xFF) << 8);
+        int matchLength = (token & RUN_MASK) + MIN_MATCH;
+        if ((token & RUN_MASK) == RUN_MASK) {
+          int b;
+          do {
+            b = compressed[pos++] & 0xFF;
+            matchLength += b;
+          }
+          while (b == 255);
+        }
+        if (offset == 0 || offset > resultPos || matchLength > length - resultPos) throw corrupted();
+
+        int from = resultPos - offset;
+        if (offset >= matchLength) {
+          System.arraycopy(result, from, result, resultPos, matchLength);
+          resultPos += matchLength;
+        }
+        else {
+          for (int i = 0; i < matchLength; i++) result[resultPos++] = result[from++]; // overlapping copy repeats the pattern
+        }
+      }
+    }
+    catch (ArrayIndexOutOfBoundsException e) {
+      throw corrupted();
+    }
+    if (pos != end) throw corrupted();
+    return result;
+  }
+
+  private static IOException corrupted() {
+    return new IOException("Corrupted LZ compressed block");
+  }
+
+  private static void writeSequence(BufferExposingByteArrayOutputStream out,
+                                    byte[] source,
+                                    int literalsStart,
+                                    int literals,
+                                    int offset,
+                                    int matchLength) {
+    final int matchExtra = matchLength - MIN_MATCH;
+    out.write((Math.min(literals, RUN_MASK) << 4) | Math.min(matchExtra, RUN_MASK));
+    if (literals >= RUN_MASK) writeLength(out, literals - RUN_MASK);
+    out.write(source, literalsStart, literals);
+    out.write(offset & 0xFF);
+    out.write(offset >>> 8);
+    if (matchExtra >= RUN_MASK) writeLength(out, matchExtra - RUN_MASK);
+  }
+
+  private static void writeLength(BufferExposingByteArrayOutputStream out, int length) {
+    while (length >= 255) {
+      out.write(255);
+      length -= 255;
+    }
+    out.write(length);
+  }
+
+  private static void writeVarInt(BufferExposingByteArrayOutputStream out, int value) {
+    while ((value & ~0x7F) != 0) {
+      out.write((value & 0x7F) | 0x80);
+      value >>>= 7;
+    }
+    out.write(value);
+  }
+
+  private static int readInt(byte[] bytes, int pos) {
+    return (bytes[pos] & 0xFF) | ((bytes[pos + 1] & 0xFF) << 8) | ((bytes[pos + 2] & 0xFF) << 16) | (bytes[pos + 3] << 24);
+  }
+
+  private static int hash(int sequence) {
+    return (sequence * -1640531535) >>> (32 - HASH_LOG);
+  }
+}
@@ -46,6 +46,7 @@ public class PagedFileStorage implements Forceable {
   private final static int UPPER_LIMIT;
   public final static int BUFFER_SIZE;
   private static final int UNKNOWN_PAGE = -1;
+  private static final boolean CONCURRENT_READS = SystemProperties.getBooleanProperty("idea.paged.storage.concurrent.reads", false);
 
   static {
     final int lower = 100;
@@ -136,13 +137,14 @@ public class PagedFileStorage implements Forceable {
   }
 
   public int getInt(int addr) {
-    if (myValuesAreBufferAligned) {
+    if (myValuesAreBufferAligned || isInsidePage(addr, 4)) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       return getBuffer(page, false).getInt(page_offset);
     } else {
-      get(addr, myTypedIOBuffer, 0, 4);
-      return Bits.getInt(myTypedIOBuffer, 0);
+      byte[] typedIOBuffer = getTypedIOBufferForRead();
+      get(addr, typedIOBuffer, 0, 4);
+      return Bits.getInt(typedIOBuffer, 0);
     }
   }
 
@@ -167,13 +169,14 @@ public class PagedFileStorage implements Forceable {
   }
 
   public final short getShort(int addr) {
-    if (myValuesAreBufferAligned) {
+    if (myValuesAreBufferAligned || isInsidePage(addr, 2)) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       return getBuffer(page, false).getShort(page_offset);
     } else {
-      get(addr, myTypedIOBuffer, 0, 2);
-      return Bits.getShort(myTypedIOBuffer, 0);
+      byte[] typedIOBuffer = getTypedIOBufferForRead();
+      get(addr, typedIOBuffer, 0, 2);
+      return Bits.getShort(typedIOBuffer, 0);
     }
   }
 
@@ -199,16 +202,32 @@ public class PagedFileStorage implements Forceable {
   }
 
   public long getLong(int addr) {
-    if (myValuesAreBufferAligned) {
+    if (myValuesAreBufferAligned || isInsidePage(addr, 8)) {
       int page = addr / myPageSize;
       int page_offset = addr % myPageSize;
       return getBuffer(page, false).getLong(page_offset);
     } else {
-      get(addr, myTypedIOBuffer, 0, 8);
-      return Bits.getLong(myTypedIOBuffer, 0);
+      byte[] typedIOBuffer = getTypedIOBufferForRead();
+      get(addr, typedIOBuffer, 0, 8);
+      return Bits.getLong(typedIOBuffer, 0);
     }
   }
 
+  /**
+   * In concurrent reads mode the shared typed IO buffer can't be used by readers, so values not crossing page bounds
+   * are read directly from the page buffer.
+   */
+  private boolean isInsidePage(int addr, int length) {
+    return myStorageLockContext.myStorageLock.myConcurrentReads && addr % myPageSize + length <= myPageSize;
+  }
+
+  /**
+   * Readers don't hold the lock in concurrent reads mode, so values crossing page bounds are assembled in a buffer of their own.
+   */
+  private byte[] getTypedIOBufferForRead() {
+    return myStorageLockContext.myStorageLock.myConcurrentReads ? new byte[8] : myTypedIOBuffer;
+  }
+
   public byte get(int index) {
     int page = index / myPageSize;
     int offset = index % myPageSize;
@@ -234,7 +253,10 @@ public class PagedFileStorage implements Forceable {
       int page_offset = i % myPageSize;
 
       int page_len = Math.min(l, myPageSize - page_offset);
-      final ByteBuffer buffer = getBuffer(page, false);
+      ByteBuffer buffer = getBuffer(page, false);
+      if (myStorageLockContext.myStorageLock.myConcurrentReads) {
+        buffer = buffer.duplicate(); // position of the shared buffer can't be changed by a reader
+      }
       try {
         buffer.position(page_offset);
       }
@@ -361,6 +383,10 @@ public class PagedFileStorage implements Forceable {
   }
 
   private ByteBuffer getBuffer(int page, boolean modify) {
+    if (myStorageLockContext.myStorageLock.myConcurrentReads) {
+      return getBufferConcurrently(page, modify);
+    }
+
     if (myLastPage == page) {
       ByteBuffer buf = myLastBuffer.getCachedBuffer();
       if (buf != null && myLastChangeCount == myStorageLockContext.myStorageLock.myMappingChangeCount) {
@@ -415,6 +441,42 @@ public class PagedFileStorage implements Forceable {
     }
   }
 
+  /**
+   * Concurrent readers don't take the storage lock, so the last pages cache which is not thread safe is bypassed here:
+   * pages are looked up in the published page table of {@link StorageLock} instead. Mapping a missing page may evict
+   * other pages, so it is done under the storage lock only.
+   */
+  private ByteBuffer getBufferConcurrently(int page, boolean modify) {
+    assert page <= MAX_PAGES_COUNT;
+    final StorageLock storageLock = myStorageLockContext.myStorageLock;
+    if (modify) {
+      storageLock.checkThreadAccess(myStorageLockContext);
+    }
+
+    try {
+      int storageIndex = myStorageIndex;
+      ByteBufferWrapper byteBufferWrapper = storageIndex != -1 ? storageLock.getPublished(storageIndex | page) : null;
+      if (byteBufferWrapper == null) {
+        myStorageLockContext.myLock.lock();
+        try {
+          if (myStorageIndex == -1) {
+            myStorageIndex = storageLock.registerPagedFileStorage(this);
+          }
+          byteBufferWrapper = storageLock.get(myStorageIndex | page);
+        }
+        finally {
+          myStorageLockContext.myLock.unlock();
+        }
+      }
+
+      if (modify) byteBufferWrapper.markDirty();
+      return byteBufferWrapper.getBuffer();
+    }
+    catch (IOException e) {
+      throw new MappingFailedException("Cannot map buffer", e);
+    }
+  }
+
   public void force() {
     long started = IOStatistics.DEBUG ? System.currentTimeMillis():0;
     if (isDirty) {
@@ -438,6 +500,7 @@ public class PagedFileStorage implements Forceable {
     private static final int FILE_INDEX_MASK = 0xFFFF0000;
     private static final int FILE_INDEX_SHIFT = 16;
     private final boolean checkThreadAccess;
+    private final boolean myConcurrentReads;
     public final StorageLockContext myDefaultStorageLockContext;
     private final ConcurrentHashMap<Integer, PagedFileStorage> myIndex2Storage = new ConcurrentHashMap<Integer, PagedFileStorage>();
 
@@ -450,12 +513,28 @@ public class PagedFileStorage implements Forceable {
     private volatile long mySizeLimit;
     private volatile int myMappingChangeCount;
 
+    // page table published for readers in concurrent reads mode, mirrors mySegments
+    @Nullable private final ConcurrentHashMap<Integer, ByteBufferWrapper> myPublishedSegments;
+    private int myLockFreeHits;
+    private static final int LRU_TOUCH_PERIOD = 32;
+
     public StorageLock() {
       this(true);
     }
 
     public StorageLock(boolean checkThreadAccess) {
+      this(checkThreadAccess, CONCURRENT_READS);
+    }
+
+    /**
+     * @param concurrentReads when true, readers of the storages don't need to hold the lock: mapped pages are looked up
+     *                        in a concurrent page table and evicted pages are flushed but left for GC instead of being
+     *                        released eagerly, so a reader never sees a disposed buffer. Writers still have to hold the lock.
+     */
+    public StorageLock(boolean checkThreadAccess, boolean concurrentReads) {
       this.checkThreadAccess = checkThreadAccess;
+      myConcurrentReads = concurrentReads;
+      myPublishedSegments = concurrentReads ? new ConcurrentHashMap<Integer, ByteBufferWrapper>() : null;
       myDefaultStorageLockContext = new StorageLockContext(this);
 
       mySizeLimit = UPPER_LIMIT;
@@ -471,6 +550,7 @@ public class PagedFileStorage implements Forceable {
           // this method can be called after removeEldestEntry
           ByteBufferWrapper wrapper = super.remove(key);
           if (wrapper != null) {
+            if (myPublishedSegments != null) myPublishedSegments.remove(key);
             ++myMappingChangeCount;
             mySegmentsToRemove.offer(wrapper);
             mySize -= wrapper.myLength;
@@ -504,6 +584,21 @@ public class PagedFileStorage implements Forceable {
       return myIndex2Storage.get(index);
     }
 
+    public boolean isConcurrentReads() {
+      return myConcurrentReads;
+    }
+
+    /**
+     * Lock-free lookup of an already mapped page in concurrent reads mode.
+     */
+    @Nullable
+    private ByteBufferWrapper getPublished(Integer key) {
+      assert myPublishedSegments != null;
+      ByteBufferWrapper wrapper = myPublishedSegments.get(key);
+      if (wrapper != null) touchLockFree(key);
+      return wrapper;
+    }
+
     private ByteBufferWrapper get(Integer key) {
       ByteBufferWrapper wrapper;
       try {         // fast path
@@ -540,6 +635,7 @@ public class PagedFileStorage implements Forceable {
         mySegmentsAccessLock.lock();
         try {
           mySegments.put(key, wrapper);
+          if (myPublishedSegments != null) myPublishedSegments.put(key, wrapper);
           mySize += wrapper.myLength;
         }
         finally {
@@ -555,11 +651,33 @@ public class PagedFileStorage implements Forceable {
       }
     }
 
+    /**
+     * Lock-free hits don't update LRU order of the segments, so it is done for every few hits and only if nobody holds
+     * the access lock at the moment, readers never wait for it.
+     */
+    private void touchLockFree(Integer key) {
+      if (++myLockFreeHits % LRU_TOUCH_PERIOD != 0) return; // racy counter is fine, it only thins out the touches
+      if (mySegmentsAccessLock.tryLock()) {
+        try {
+          mySegments.get(key);
+        }
+        finally {
+          mySegmentsAccessLock.unlock();
+        }
+      }
+    }
+
     private void disposeRemovedSegments() {
       assert mySegmentsAllocationLock.isHeldByCurrentThread();
       Iterator<ByteBufferWrapper> iterator = mySegmentsToRemove.iterator();
       while(iterator.hasNext()) {
-        iterator.next().dispose();
+        ByteBufferWrapper wrapper = iterator.next();
+        if (myConcurrentReads) {
+          wrapper.flush(); // lock-free reader may still use the buffer, it's released by GC
+        }
+        else {
+          wrapper.dispose();
+        }
         iterator.remove();
       }
     }
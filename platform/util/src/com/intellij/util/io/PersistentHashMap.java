@@ -20,9 +20,13 @@ import com.intellij.openapi.util.LowMemoryWatcher;
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.FileUtil;
 import com.intellij.util.CommonProcessors;
+import com.intellij.util.ConcurrencyUtil;
 import com.intellij.util.Processor;
+import com.intellij.util.SystemProperties;
 import com.intellij.util.containers.LimitedPool;
 import com.intellij.util.containers.SLRUCache;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
 import org.jetbrains.annotations.NonNls;
 import org.jetbrains.annotations.NotNull;
 import org.jetbrains.annotations.Nullable;
@@ -31,6 +35,8 @@ import java.io.*;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author Eugene Zhuravlev
@@ -63,6 +69,13 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private boolean myIntAddressForNewRecord;
   private static final boolean doHardConsistencyChecks = false;
 
+  @NonNls static final String INCREMENTAL_COMPACTION_PROPERTY = "idea.phm.incremental.compaction";
+  private static final int COMPACTION_SLICE_SIZE = 256;
+  private static final int COMPACTION_SLICE_DELAY_MS = 10;
+  private static final ScheduledExecutorService ourCompactionExecutor =
+    ConcurrencyUtil.newSingleScheduledThreadExecutor("PersistentHashMap compaction", Thread.MIN_PRIORITY);
+  @Nullable private IncrementalCompaction myCompaction;
+
   private static class AppendStream extends DataOutputStream {
     private AppendStream() {
       super(null);
@@ -97,12 +110,17 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     protected void onDropFromCache(final Key key, @NotNull final BufferExposingByteArrayOutputStream bytes) {
       myEnumerator.lockStorage();
       try {
-        final int id = enumerate(key);
+        int id = enumerate(key);
         long oldHeaderRecord = readValueId(id);
+        if (myCompaction != null && oldHeaderRecord != NULL_ADDR && !myCompaction.isMoved(id)) {
+          // appended chunk has to be in the same storage as the previous ones
+          id = myCompaction.relocate(id, oldHeaderRecord, myValueStorage.readBytes(oldHeaderRecord).buffer, key, 0);
+          oldHeaderRecord = readValueId(id);
+        }
 
-        long headerRecord = myValueStorage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), oldHeaderRecord);
+        long headerRecord = getWriteStorage().appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), oldHeaderRecord);
 
-        updateValueId(id, headerRecord, oldHeaderRecord, key, 0);
+        markMoved(updateValueId(id, headerRecord, oldHeaderRecord, key, 0));
         if (oldHeaderRecord == NULL_ADDR) {
           myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
         }
@@ -182,7 +200,14 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       myCanReEnumerate = myEnumerator.canReEnumerate();
 
       if (makesSenseToCompact()) {
-        compact();
+        if (SystemProperties.getBooleanProperty(INCREMENTAL_COMPACTION_PROPERTY, false)) {
+          // background slices touch only the private state of this class which is initialized by now,
+          // so they don't depend on the constructors of subclasses
+          startIncrementalCompaction();
+        }
+        else {
+          compact();
+        }
       }
     }
     catch (IOException e) {
@@ -222,6 +247,26 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     return (int)myLiveAndGarbageKeysCounter;
   }
 
+  /**
+   * @return share of dead keys among all keys ever stored since the last compaction
+   */
+  public double getGarbageRatio() {
+    synchronized (myEnumerator) {
+      final long liveKeys = myLiveAndGarbageKeysCounter / LIVE_KEY_MASK;
+      final long deadKeys = myLiveAndGarbageKeysCounter & 0xFFFFFFFFL;
+      return liveKeys + deadKeys == 0 ? 0 : (double)deadKeys / (liveKeys + deadKeys);
+    }
+  }
+
+  /**
+   * @return fraction of keys processed by the running incremental compaction or -1 when there is no compaction in progress
+   */
+  public double getCompactionProgress() {
+    synchronized (myEnumerator) {
+      return myCompaction != null ? myCompaction.getProgress() : -1;
+    }
+  }
+
   public File getBaseFile() {
     return myEnumerator.myFile;
   }
@@ -303,9 +348,9 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         myLiveAndGarbageKeysCounter += LIVE_KEY_MASK;
       }
 
-      long header = myValueStorage.appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), 0);
+      long header = getWriteStorage().appendBytes(bytes.getInternalBuffer(), 0, bytes.size(), 0);
 
-      updateValueId(id, header, oldheader, key, 0);
+      markMoved(updateValueId(id, header, oldheader, key, 0));
     }
     finally {
       myEnumerator.unlockStorage();
@@ -315,7 +360,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   @Override
   public final int enumerate(Key name) throws IOException {
     synchronized (myEnumerator) {
-      myIntAddressForNewRecord = canUseIntAddressForNewRecord(myValueStorage.getSize());
+      myIntAddressForNewRecord = canUseIntAddressForNewRecord(getWriteStorage().getSize());
       return super.enumerate(name);
     }
   }
@@ -395,13 +440,20 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         return null;
       }
 
-      PersistentHashMapValueStorage.ReadResult readResult = myValueStorage.readBytes(oldHeader);
-      if (readResult.offset != oldHeader) {
-        myEnumerator.markDirty(true);
+      final PersistentHashMapValueStorage.ReadResult readResult;
+      if (myCompaction != null && !myCompaction.isMoved(id)) {
+        readResult = myValueStorage.readBytes(oldHeader);
+        myCompaction.relocate(id, oldHeader, readResult.buffer, key, 0);
+      }
+      else {
+        readResult = getWriteStorage().readBytes(oldHeader);
+        if (readResult.offset != oldHeader) {
+          myEnumerator.markDirty(true);
 
-        updateValueId(id, readResult.offset, oldHeader, key, 0);
-        myLiveAndGarbageKeysCounter++;
-        myReadCompactionGarbageSize += readResult.buffer.length;
+          markMoved(updateValueId(id, readResult.offset, oldHeader, key, 0));
+          myLiveAndGarbageKeysCounter++;
+          myReadCompactionGarbageSize += readResult.buffer.length;
+        }
       }
 
       final DataInputStream input = new DataInputStream(new UnsyncByteArrayInputStream(readResult.buffer));
@@ -487,7 +539,8 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         clearAppenderCaches();
       }
       finally {
-        super.force();
+        // key records refer to both value storages during incremental compaction, the map can't be marked clean before it ends
+        if (myCompaction == null) super.force();
       }
     }
     finally {
@@ -498,6 +551,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   private void clearAppenderCaches() {
     myAppendCache.clear();
     myValueStorage.force();
+    if (myCompaction != null) myCompaction.myTarget.force();
   }
 
   @Override
@@ -513,6 +567,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
       try {
         myAppendCacheFlusher.stop();
         myAppendCache.clear();
+        finishIncrementalCompaction();
         final PersistentHashMapValueStorage valueStorage = myValueStorage;
         if (valueStorage != null) {
           valueStorage.dispose();
@@ -530,6 +585,17 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
   // made public for tests
   public void compact() throws IOException {
     synchronized (myEnumerator) {
+      if (myCompaction != null) {
+        myEnumerator.lockStorage();
+        try {
+          finishIncrementalCompaction();
+        }
+        finally {
+          myEnumerator.unlockStorage();
+        }
+        return;
+      }
+
       final long now = System.currentTimeMillis();
       final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
       final PersistentHashMapValueStorage newStorage = PersistentHashMapValueStorage.create(newPath);
@@ -567,6 +633,154 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
     }
   }
 
+  /**
+   * Starts compaction which copies live values to the new storage in small slices on a background thread,
+   * the map stays available for reads and writes in between. Values written meanwhile go to the new storage directly.
+   */
+  public void startIncrementalCompaction() throws IOException {
+    synchronized (myEnumerator) {
+      if (myCompaction != null) return;
+
+      myEnumerator.lockStorage();
+      try {
+        myAppendCache.clear();
+        final TIntArrayList keyIds = new TIntArrayList();
+        final TIntArrayList processingKeys = new TIntArrayList();
+        traverseAllRecords(new PersistentEnumerator.RecordsProcessor() {
+          @Override
+          public boolean process(final int keyId) throws IOException {
+            keyIds.add(keyId);
+            processingKeys.add(getCurrentKey());
+            return true;
+          }
+        });
+
+        myEnumerator.markDirty(true);
+        final String newPath = getDataFile(myEnumerator.myFile).getPath() + ".new";
+        FileUtil.delete(new File(newPath));
+        myValueStorage.force();
+        myValueStorage.switchToCompactionMode();
+        myCompaction = new IncrementalCompaction(PersistentHashMapValueStorage.create(newPath), newPath, keyIds, processingKeys,
+                                                 (int)(myLiveAndGarbageKeysCounter & 0xFFFFFFFFL));
+      }
+      finally {
+        myEnumerator.unlockStorage();
+      }
+    }
+
+    ourCompactionExecutor.execute(new Runnable() {
+      @Override
+      public void run() {
+        boolean finished;
+        try {
+          synchronized (myEnumerator) {
+            if (myCompaction == null) return;
+            myEnumerator.lockStorage();
+            try {
+              finished = compactSlice(COMPACTION_SLICE_SIZE);
+            }
+            finally {
+              myEnumerator.unlockStorage();
+            }
+          }
+        }
+        catch (Throwable e) {
+          LOG.error(e);
+          return;
+        }
+        if (!finished) {
+          ourCompactionExecutor.schedule(this, COMPACTION_SLICE_DELAY_MS, TimeUnit.MILLISECONDS);
+        }
+      }
+    });
+  }
+
+  private void finishIncrementalCompaction() throws IOException {
+    final boolean finished = compactSlice(Integer.MAX_VALUE);
+    assert finished;
+  }
+
+  /**
+   * Copies up to maxKeys values of the running incremental compaction and switches to the new storage when all are copied.
+   * @return true if the compaction is finished
+   */
+  private boolean compactSlice(int maxKeys) throws IOException {
+    final IncrementalCompaction compaction = myCompaction;
+    if (compaction == null) return true;
+
+    for (int processed = 0; compaction.myNextKey < compaction.myKeyIds.size() && processed < maxKeys; compaction.myNextKey++) {
+      final int keyId = compaction.myKeyIds.get(compaction.myNextKey);
+      if (compaction.isMoved(keyId)) continue;
+      final long record = readValueId(keyId);
+      if (record == NULL_ADDR) continue;
+      compaction.relocate(keyId, record, myValueStorage.readBytes(record).buffer, null, compaction.myProcessingKeys.get(compaction.myNextKey));
+      processed++;
+    }
+    if (compaction.myNextKey < compaction.myKeyIds.size()) return false;
+
+    myAppendCache.clear(); // pending appends refer to the new storage
+    myCompaction = null;
+    compaction.myTarget.dispose();
+    myValueStorage.dispose();
+
+    FileUtil.rename(new File(compaction.myPath), getDataFile(myEnumerator.myFile));
+    myValueStorage = PersistentHashMapValueStorage.create(getDataFile(myEnumerator.myFile).getPath());
+
+    final long deadKeys = Math.max(0, (myLiveAndGarbageKeysCounter & 0xFFFFFFFFL) - compaction.myDeadKeysAtStart);
+    myLiveAndGarbageKeysCounter = (myLiveAndGarbageKeysCounter & ~0xFFFFFFFFL) | deadKeys;
+    myReadCompactionGarbageSize = 0;
+    myEnumerator.putMetaData(myLiveAndGarbageKeysCounter);
+    LOG.info("Compacted " + myEnumerator.myFile.getPath() + " incrementally in " + (System.currentTimeMillis() - compaction.myStarted) + "ms.");
+    return true;
+  }
+
+  @NotNull
+  private PersistentHashMapValueStorage getWriteStorage() {
+    return myCompaction != null ? myCompaction.myTarget : myValueStorage;
+  }
+
+  private void markMoved(int keyId) {
+    if (myCompaction != null) myCompaction.myMovedKeys.add(keyId);
+  }
+
+  private class IncrementalCompaction {
+    private final PersistentHashMapValueStorage myTarget;
+    private final String myPath;
+    private final TIntArrayList myKeyIds;
+    private final TIntArrayList myProcessingKeys;
+    private final TIntHashSet myMovedKeys = new TIntHashSet(); // keys with values in the target storage
+    private final int myDeadKeysAtStart;
+    private final long myStarted = System.currentTimeMillis();
+    private int myNextKey;
+
+    private IncrementalCompaction(PersistentHashMapValueStorage target,
+                                  String path,
+                                  TIntArrayList keyIds,
+                                  TIntArrayList processingKeys,
+                                  int deadKeysAtStart) {
+      myTarget = target;
+      myPath = path;
+      myKeyIds = keyIds;
+      myProcessingKeys = processingKeys;
+      myDeadKeysAtStart = deadKeysAtStart;
+    }
+
+    private boolean isMoved(int keyId) {
+      return myMovedKeys.contains(keyId);
+    }
+
+    private int relocate(int keyId, long record, byte[] bytes, @Nullable Key key, int processingKey) throws IOException {
+      final long value = myTarget.appendBytes(bytes, 0, bytes.length, 0);
+      final int newKeyId = updateValueId(keyId, value, record, key, processingKey);
+      myMovedKeys.add(newKeyId);
+      return newKeyId;
+    }
+
+    private double getProgress() {
+      return myKeyIds.isEmpty() ? 1 : (double)myNextKey / myKeyIds.size();
+    }
+  }
+
   private long readValueId(final int keyId) {
     long address = myEnumerator.myStorage.getInt(keyId + myParentValueRefOffset);
     if (address == 0 || address == -POSITIVE_VALUE_SHIFT) {
@@ -605,6 +819,7 @@ public class PersistentHashMap<Key, Value> extends PersistentEnumeratorDelegate<
         if (keyId < myLargeIndexWatermarkId && (oldValue == NULL_ADDR || canUseIntAddressForNewRecord(oldValue))) {
           // keyId is result of enumerate, if we do reenumerate then it is no longer accessible unless somebody cached it
           myIntAddressForNewRecord = false;
+          markMoved(keyId); // the old record must not be picked by incremental compaction
           keyId = myEnumerator.reenumerate(key == null ? myEnumerator.getValue(keyId, processingKey) : key);
           ++transformedKeys;
         }
@@ -62,8 +62,10 @@ public class ReadWriteDirectBufferWrapper extends DirectBufferWrapper {
         final FileChannel channel = file.getChannel();
         try {
           channel.position(myPosition);
-          buffer.rewind();
-          channel.write(buffer);
+          // concurrent readers may use the buffer, so its position isn't changed
+          final ByteBuffer toWrite = buffer.duplicate();
+          toWrite.rewind();
+          channel.write(toWrite);
           myDirty = false;
         }
         finally {
@@ -21,21 +21,18 @@ package com.intellij.util.io.storage;
 
 import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
 import com.intellij.openapi.util.io.ByteSequence;
-import com.intellij.openapi.util.io.StreamUtil;
 import com.intellij.util.IncorrectOperationException;
 import com.intellij.util.containers.ConcurrentHashMap;
+import com.intellij.util.io.CompressionCodec;
+import com.intellij.util.io.CompressionCodecs;
 import com.intellij.util.io.PagePool;
 import com.intellij.util.io.UnsyncByteArrayInputStream;
 
 import java.io.DataInputStream;
-import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.util.Map;
 import java.util.concurrent.*;
-import java.util.zip.DeflaterOutputStream;
-import java.util.zip.Inflater;
-import java.util.zip.InflaterInputStream;
 
 public class RefCountingStorage extends AbstractStorage {
   private final Map<Integer, Future<?>> myPendingWriteRequests = new ConcurrentHashMap<Integer, Future<?>>();
@@ -49,65 +46,44 @@ public class RefCountingStorage extends AbstractStorage {
 
   private final boolean myDoNotZipCaches = Boolean.valueOf(System.getProperty("idea.doNotZipCaches")).booleanValue();
   private static final int MAX_PENDING_WRITE_SIZE = 20 * 1024 * 1024;
+  private final CompressionCodec myCodec;
 
   public RefCountingStorage(String path) throws IOException {
-    super(path);
+    this(path, CapacityAllocationPolicy.DEFAULT);
   }
 
   public RefCountingStorage(String path, CapacityAllocationPolicy capacityAllocationPolicy) throws IOException {
+    this(path, capacityAllocationPolicy, CompressionCodecs.getDefault());
+  }
+
+  /**
+   * @param codec codec for new records, records written with other codecs are still read
+   */
+  public RefCountingStorage(String path, CapacityAllocationPolicy capacityAllocationPolicy, CompressionCodec codec) throws IOException {
     super(path, capacityAllocationPolicy);
+    myCodec = codec;
   }
 
   public DataInputStream readStream(int record) throws IOException {
     if (myDoNotZipCaches) return super.readStream(record);
-    BufferExposingByteArrayOutputStream stream = internalReadStream(record);
-    return new DataInputStream(new UnsyncByteArrayInputStream(stream.getInternalBuffer(), 0, stream.size()));
+    return new DataInputStream(new UnsyncByteArrayInputStream(internalReadBytes(record)));
   }
 
   @Override
   protected byte[] readBytes(int record) throws IOException {
     if (myDoNotZipCaches) return super.readBytes(record);
-    return internalReadStream(record).toByteArray();
+    return internalReadBytes(record);
   }
 
-  private BufferExposingByteArrayOutputStream internalReadStream(int record) throws IOException {
+  private byte[] internalReadBytes(int record) throws IOException {
     waitForPendingWriteForRecord(record);
 
+    final byte[] compressed;
     synchronized (myLock) {
-
-      byte[] result = super.readBytes(record);
-      InflaterInputStream in = new CustomInflaterInputStream(result);
-      try {
-        final BufferExposingByteArrayOutputStream outputStream = new BufferExposingByteArrayOutputStream();
-        StreamUtil.copyStreamContent(in, outputStream);
-        return outputStream;
-      }
-      finally {
-        in.close();
-      }
-    }
-  }
-
-  private static class CustomInflaterInputStream extends InflaterInputStream {
-    public CustomInflaterInputStream(byte[] compressedData) {
-      super(new UnsyncByteArrayInputStream(compressedData), new Inflater(), 1);
-      // force to directly use compressed data, this ensures less round trips with native extraction code and copy streams
-      this.buf = compressedData;
-      this.len = -1;
-    }
-
-    @Override
-    protected void fill() throws IOException {
-      if (len >= 0) throw new EOFException();
-      len = buf.length;
-      inf.setInput(buf, 0, len);
-    }
-
-    @Override
-    public void close() throws IOException {
-      super.close();
-      inf.end(); // custom inflater need explicit dispose
+      compressed = super.readBytes(record);
     }
+    // decompression doesn't need the storage, so concurrent readers don't wait for each other
+    return CompressionCodecs.forData(compressed, 0, compressed.length).decompress(compressed, 0, compressed.length);
   }
 
   private void waitForPendingWriteForRecord(int record) {
@@ -154,14 +130,8 @@ public class RefCountingStorage extends AbstractStorage {
   }
 
   private void zipAndWrite(ByteSequence bytes, int record, boolean fixedSize) throws IOException {
-    BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream();
-    DeflaterOutputStream out = new DeflaterOutputStream(s);
-    try {
-      out.write(bytes.getBytes(), bytes.getOffset(), bytes.getLength());
-    }
-    finally {
-      out.close();
-    }
+    BufferExposingByteArrayOutputStream s = new BufferExposingByteArrayOutputStream(Math.max(bytes.getLength() / 2, 32));
+    myCodec.compress(bytes.getBytes(), bytes.getOffset(), bytes.getLength(), s);
 
     synchronized (myLock) {
       doWrite(record, fixedSize, s);
@@ -23,6 +23,8 @@ import java.io.IOException;
 import java.text.SimpleDateFormat;
 import java.util.Date;
 import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class PagedFileStorageTest extends TestCase {
   private final PagedFileStorage.StorageLock lock = new PagedFileStorage.StorageLock();
@@ -118,6 +120,97 @@ public class PagedFileStorageTest extends TestCase {
     }
   }
 
+  public void testConcurrentReads() throws Exception {
+    readConcurrently(new PagedFileStorage.StorageLock(true, false), 100000, 8);
+  }
+
+  public void testLockFreeConcurrentReads() throws Exception {
+    readConcurrently(new PagedFileStorage.StorageLock(true, true), 100000, 8);
+  }
+
+  public void testConcurrentReadsPerformance() throws Exception {
+    for (int threadsCount : new int[]{8, 16}) {
+      long locked = readConcurrently(new PagedFileStorage.StorageLock(true, false), 1000000, threadsCount);
+      long lockFree = readConcurrently(new PagedFileStorage.StorageLock(true, true), 1000000, threadsCount);
+      System.out.println(threadsCount + " readers: " + locked + " ms under the storage lock, " + lockFree + " ms lock-free");
+    }
+  }
+
+  /**
+   * @return time in ms spent by the readers
+   */
+  private static long readConcurrently(final PagedFileStorage.StorageLock storageLock, final int count, int threadsCount)
+    throws Exception {
+    final File file = FileUtil.createTempFile("concurrent", ".tmp");
+    final PagedFileStorage storage;
+    storageLock.lock();
+    try {
+      // small unaligned pages: some of the values cross page bounds
+      storage = new PagedFileStorage(file, storageLock, Page.PAGE_SIZE, false);
+      storage.resize(count * 4 + 2);
+      for (int i = 0; i < count; i++) {
+        storage.putInt(i * 4 + 2, i);
+      }
+    }
+    finally {
+      storageLock.unlock();
+    }
+
+    try {
+      final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+      Thread[] threads = new Thread[threadsCount];
+      for (int t = 0; t < threadsCount; t++) {
+        final int seed = t;
+        threads[t] = new Thread("reader " + t) {
+          @Override
+          public void run() {
+            try {
+              Random random = new Random(seed);
+              for (int i = 0; i < count; i++) {
+                int index = random.nextInt(count);
+                int value;
+                if (storageLock.isConcurrentReads()) {
+                  value = storage.getInt(index * 4 + 2);
+                }
+                else {
+                  storageLock.lock();
+                  try {
+                    value = storage.getInt(index * 4 + 2);
+                  }
+                  finally {
+                    storageLock.unlock();
+                  }
+                }
+                assertEquals(index, value);
+              }
+            }
+            catch (Throwable e) {
+              failure.compareAndSet(null, e);
+            }
+          }
+        };
+      }
+
+      long start = System.currentTimeMillis();
+      for (Thread thread : threads) thread.start();
+      for (Thread thread : threads) thread.join();
+      long elapsed = System.currentTimeMillis() - start;
+
+      if (failure.get() != null) throw new AssertionError(failure.get());
+      return elapsed;
+    }
+    finally {
+      storageLock.lock();
+      try {
+        storage.close();
+      }
+      finally {
+        storageLock.unlock();
+      }
+      FileUtil.delete(file);
+    }
+  }
+
   private static final SimpleDateFormat FORMATTER = new SimpleDateFormat("HH:mm:ss.SSS", Locale.US);
 
   private static void printPct(int pct) {
@@ -0,0 +1,135 @@
+/*
+ * Copyright 2000-2012 JetBrains s.r.o.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.intellij.util.io.storage;
+
+import com.intellij.openapi.util.Disposer;
+import com.intellij.openapi.util.io.BufferExposingByteArrayOutputStream;
+import com.intellij.openapi.util.io.ByteSequence;
+import com.intellij.openapi.util.io.FileUtil;
+import com.intellij.util.io.CompressionCodec;
+import com.intellij.util.io.CompressionCodecs;
+import com.intellij.util.io.SourceCodeCompressor;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+public class RefCountingStorageTest extends TestCase {
+  private String getFileName() {
+    return FileUtil.getTempDirectory() + File.separatorChar + getName();
+  }
+
+  @Override
+  protected void tearDown() throws Exception {
+    Storage.deleteFiles(getFileName());
+    super.tearDown();
+  }
+
+  public void testCodecsRoundTrip() throws Exception {
+    Random random = new Random(42);
+    byte[] text = createText(random, 200000);
+    byte[] noise = new byte[70000];
+    random.nextBytes(noise);
+    byte[] run = new byte[1000];
+    Arrays.fill(run, (byte)'a');
+
+    for (CompressionCodec codec : new CompressionCodec[]{CompressionCodecs.DEFLATE, CompressionCodecs.LZ}) {
+      for (byte[] data : new byte[][]{new byte[0], "a".getBytes(), "abcd".getBytes(), "abcdabcdabcd".getBytes(), run, text, noise}) {
+        assertRoundTrip(codec, data, 0, data.length);
+      }
+      assertRoundTrip(codec, text, 1000, 5000);
+    }
+
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionCodecs.LZ.compress(text, 0, text.length, out);
+    assertTrue(out.size() < text.length * 2 / 3);
+  }
+
+  public void testCorruptedLZBlock() throws Exception {
+    byte[] text = createText(new Random(1), 10000);
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionCodecs.LZ.compress(text, 0, text.length, out);
+    try {
+      CompressionCodecs.LZ.decompress(out.getInternalBuffer(), 0, out.size() - 3);
+      fail();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  public void testTruncatedDeflateBlock() throws Exception {
+    byte[] text = createText(new Random(2), 10000);
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionCodecs.DEFLATE.compress(text, 0, text.length, out);
+    for (int len : new int[]{1, 2, out.size() / 2, out.size() - 1}) {
+      try {
+        CompressionCodecs.DEFLATE.decompress(out.getInternalBuffer(), 0, len);
+        fail("length " + len);
+      }
+      catch (IOException ignored) {
+      }
+    }
+  }
+
+  public void testReadsRecordsOfAnotherCodec() throws Exception {
+    byte[] text = createText(new Random(7), 50000);
+
+    RefCountingStorage storage = new RefCountingStorage(getFileName(), CapacityAllocationPolicy.DEFAULT, CompressionCodecs.DEFLATE);
+    int deflated = storage.acquireNewRecord();
+    storage.writeBytes(deflated, new ByteSequence(text), false);
+    Disposer.dispose(storage);
+
+    storage = new RefCountingStorage(getFileName(), CapacityAllocationPolicy.DEFAULT, CompressionCodecs.LZ);
+    try {
+      int compressed = storage.acquireNewRecord();
+      storage.writeBytes(compressed, new ByteSequence(text, 100, 20000), false);
+      assertTrue(Arrays.equals(text, storage.readBytes(deflated)));
+      assertTrue(Arrays.equals(Arrays.copyOfRange(text, 100, 20100), storage.readBytes(compressed)));
+    }
+    finally {
+      Disposer.dispose(storage);
+    }
+  }
+
+  public void testSourceCodeCompressor() throws Exception {
+    byte[] text = createText(new Random(3), 30000);
+    assertTrue(Arrays.equals(text, SourceCodeCompressor.decompress(SourceCodeCompressor.compress(text))));
+
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    CompressionCodecs.LZ.compress(text, 0, text.length, out);
+    assertTrue(Arrays.equals(text, SourceCodeCompressor.decompress(out.toByteArray())));
+  }
+
+  private static void assertRoundTrip(CompressionCodec codec, byte[] data, int off, int len) throws IOException {
+    BufferExposingByteArrayOutputStream out = new BufferExposingByteArrayOutputStream();
+    codec.compress(data, off, len, out);
+    byte[] compressed = out.toByteArray();
+    assertSame(codec, CompressionCodecs.forData(compressed, 0, compressed.length));
+    assertTrue(Arrays.equals(Arrays.copyOfRange(data, off, off + len), codec.decompress(compressed, 0, compressed.length)));
+  }
+
+  private static byte[] createText(Random random, int size) {
+    String[] words = {"public ", "class ", "void ", "return ", "myField", " = ", ";\n", "  ", "if (", ") {\n", "}\n", "new ", "int "};
+    StringBuilder builder = new StringBuilder(size);
+    while (builder.length() < size) {
+      builder.append(words[random.nextInt(words.length)]);
+      if (random.nextInt(10) == 0) builder.append(random.nextInt());
+    }
+    return builder.toString().getBytes();
+  }
+}